@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013 jonathan.colt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package colt.nicity.performance.agent;
+
+import colt.nicity.performance.latent.LatentContext;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import javassist.ByteArrayClassPath;
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.bytecode.AccessFlag;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
+
+/**
+ * Rewrites the jdk executors so tasks submitted from inside an instrumented method carry the caller's latent frame, see LatentContext.
+ * Covers ThreadPoolExecutor, ScheduledThreadPoolExecutor and ForkJoinPool which between them back Executors.*, ExecutorService.submit,
+ * FutureTask and the *Async stages of CompletableFuture. Callbacks a CompletableFuture runs inline on the completing thread are not
+ * followed.
+ *
+ * Where an executor accepts a task the task is captured, where it runs one the run goes through LatentContext which adopts what was
+ * captured. The task objects are never replaced so remove, shutdownNow, before/afterExecute and rejection handlers all still see the
+ * caller's own task.
+ *
+ * The executors are loaded by the bootstrap class loader so the latent classes they call must be visible there too.
+ */
+class AsyncHandoffs {
+
+    private static final String LATENT_PACKAGE = "colt/nicity/performance/latent/";
+    private static final String LATENT_CONTEXT = "colt.nicity.performance.latent.LatentContext";
+
+    private static final Map<String, Handoff> TARGETS = new HashMap<>();
+
+    static {
+        String runnable = "(Ljava/lang/Runnable;";
+        String callable = "(Ljava/util/concurrent/Callable;";
+        String[] none = new String[0];
+        TARGETS.put("java/util/concurrent/ThreadPoolExecutor", new Handoff(
+            new String[]{"execute" + runnable}, new String[]{"runWorker("}, none));
+        // schedule* and execute all end up in delayedExecute with the task the queue and the worker will hold
+        TARGETS.put("java/util/concurrent/ScheduledThreadPoolExecutor", new Handoff(
+            new String[]{"delayedExecute(Ljava/util/concurrent/RunnableScheduledFuture;"}, none, none));
+        TARGETS.put("java/util/concurrent/ForkJoinPool", new Handoff(
+            new String[]{"execute" + runnable, "submit" + runnable, "submit" + callable}, none, none));
+        // the adapters ForkJoinPool wraps plain tasks in, they run the caller's task from exec or on newer jdks from compute
+        String[] exec = new String[]{"exec()", "compute()"};
+        for (String adapter : new String[]{"RunnableExecuteAction", "AdaptedRunnable", "AdaptedRunnableAction", "AdaptedCallable",
+            "AdaptedInterruptibleCallable"}) {
+            TARGETS.put("java/util/concurrent/ForkJoinTask$" + adapter, new Handoff(none, exec, none));
+        }
+        // ForkJoinTasks that run themselves, exec calls their own run
+        TARGETS.put("java/util/concurrent/CompletableFuture$AsyncSupply", new Handoff(none, new String[]{"exec()"}, none));
+        TARGETS.put("java/util/concurrent/CompletableFuture$AsyncRun", new Handoff(none, new String[]{"exec()"}, none));
+        // what CompletableFuture uses instead of the common pool on machines with fewer than two cores, it keeps no reference to the task
+        TARGETS.put("java/util/concurrent/CompletableFuture$ThreadPerTaskExecutor", new Handoff(
+            none, none, new String[]{"execute" + runnable}));
+    }
+
+    /**
+     * Which methods of a class to rewrite, each given as name plus the start of its descriptor.
+     */
+    static class Handoff {
+
+        final String[] capture; // accept a task as their first argument
+        final String[] route; // run tasks, their Runnable.run, Callable.call and own run calls go through LatentContext
+        final String[] wrap; // hand their first argument to a thread and forget it
+
+        Handoff(String[] capture, String[] route, String[] wrap) {
+            this.capture = capture;
+            this.route = route;
+            this.wrap = wrap;
+        }
+    }
+
+    private static boolean bootstrapped;
+
+    static boolean isTarget(String className) {
+        return TARGETS.containsKey(className);
+    }
+
+    static boolean isTarget(Class<?> c) {
+        return isTarget(c.getName().replace('.', '/'));
+    }
+
+    static byte[] instrument(String className, byte[] classfileBuffer) throws Exception {
+        return instrument(className, classfileBuffer, TARGETS.get(className));
+    }
+
+    static byte[] instrument(String className, byte[] classfileBuffer, Handoff handoff) throws Exception {
+        String javassistClassName = className.replace('/', '.');
+        ClassPool cp = new ClassPool(true);
+        cp.appendClassPath(new ClassClassPath(LatentContext.class));
+        cp.insertClassPath(new ByteArrayClassPath(javassistClassName, classfileBuffer));
+        CtClass cc = cp.get(javassistClassName);
+        try {
+            for (CtMethod method : cc.getDeclaredMethods()) {
+                if ((method.getMethodInfo().getAccessFlags() & AccessFlag.BRIDGE) != 0) {
+                    continue; // the bridge calls the method we rewrite
+                }
+                String signature = method.getName() + method.getSignature();
+                if (matches(signature, handoff.capture)) {
+                    System.out.println("Capturing latent context in:" + method.getLongName());
+                    method.insertBefore(LATENT_CONTEXT + ".capture($1);");
+                }
+                if (matches(signature, handoff.route)) {
+                    System.out.println("Adopting latent context in:" + method.getLongName());
+                    method.instrument(new ExprEditor() {
+                        @Override
+                        public void edit(MethodCall m) throws CannotCompileException {
+                            if (m.getMethodName().equals("run") && m.getSignature().equals("()V")
+                                && (m.getClassName().equals("java.lang.Runnable") || m.getClassName().equals(javassistClassName))) {
+                                m.replace(LATENT_CONTEXT + ".run($0);");
+                            } else if (m.getClassName().equals("java.util.concurrent.Callable") && m.getMethodName().equals("call")) {
+                                m.replace("$_ = " + LATENT_CONTEXT + ".call($0);");
+                            }
+                        }
+                    });
+                }
+                if (matches(signature, handoff.wrap)) {
+                    System.out.println("Propagating latent context through:" + method.getLongName());
+                    method.insertBefore("$1 = " + LATENT_CONTEXT + ".wrap($1);");
+                }
+            }
+            return cc.toBytecode();
+        } finally {
+            cc.detach();
+        }
+    }
+
+    private static boolean matches(String signature, String[] targets) {
+        for (String target : targets) {
+            if (signature.startsWith(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the latent package out of the agent jar and appends it to the bootstrap search path. Must run before anything loads a
+     * latent class, afterwards the system class loader delegates to the bootstrap copy so there is still only one Latency.
+     *
+     * @return false if the agent isn't running from a jar or the host already loaded latent classes, hand offs are then left alone.
+     */
+    static synchronized boolean bootstrap(Instrumentation instrumentation) {
+        if (bootstrapped) {
+            return true;
+        }
+        File agentJar;
+        try {
+            agentJar = new File(AsyncHandoffs.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (Exception x) {
+            System.err.println("LatentAgent couldn't locate its jar. " + x);
+            return false;
+        }
+        if (!agentJar.isFile()) {
+            System.err.println("LatentAgent isn't running from a jar, async hand offs won't be followed.");
+            return false;
+        }
+        for (Class<?> loaded : instrumentation.getAllLoadedClasses()) {
+            if (loaded.getName().startsWith("colt.nicity.performance.latent.") && loaded.getClassLoader() != null) {
+                // the host already loaded some of the package itself, publishing the rest would split it across two loaders
+                System.err.println("LatentAgent found " + loaded.getName() + " already loaded, async hand offs won't be followed.");
+                return false;
+            }
+        }
+        try (JarFile jar = new JarFile(agentJar)) {
+            File latentJar = File.createTempFile("latent-bootstrap", ".jar");
+            latentJar.deleteOnExit();
+            try (JarOutputStream out = new JarOutputStream(new FileOutputStream(latentJar))) {
+                byte[] buffer = new byte[8192];
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    // just the latent package, its http client and everything we shade must stay on the system class path
+                    if (name.startsWith(LATENT_PACKAGE) && name.endsWith(".class") && name.indexOf('/', LATENT_PACKAGE.length()) == -1) {
+                        out.putNextEntry(new JarEntry(name));
+                        try (InputStream in = jar.getInputStream(entry)) {
+                            int read;
+                            while ((read = in.read(buffer)) != -1) {
+                                out.write(buffer, 0, read);
+                            }
+                        }
+                        out.closeEntry();
+                    }
+                }
+            }
+            instrumentation.appendToBootstrapClassLoaderSearch(new JarFile(latentJar));
+            bootstrapped = true;
+            return true;
+        } catch (IOException x) {
+            System.err.println("LatentAgent failed to publish its latent classes to the bootstrap class loader. " + x);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 jonathan.colt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package colt.nicity.performance.agent;
+
+/**
+ * Reads just enough of a class file to decide whether the agent cares about it: walks the constant pool without decoding it, then
+ * resolves only the names of the directly implemented interfaces. Costs a single pass over the constant pool and no allocation for
+ * classes that are interfaces or implement none.
+ */
+public class ClassFileFilter {
+
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ANNOTATION = 0x2000;
+
+    private final String[] interfacePrefixs;
+
+    /**
+     * @param interfacePrefixs dotted package fragments, an interface whose name contains any of them is one we instrument.
+     */
+    public ClassFileFilter(String[] interfacePrefixs) {
+        this.interfacePrefixs = new String[interfacePrefixs.length];
+        for (int i = 0; i < interfacePrefixs.length; i++) {
+            this.interfacePrefixs[i] = interfacePrefixs[i].trim().replace('.', '/');
+        }
+    }
+
+    /**
+     * @return true if the class is concrete and directly implements at least one interface matching a prefix.
+     */
+    public boolean matches(byte[] classfile) {
+        try {
+            return scan(classfile);
+        } catch (ArrayIndexOutOfBoundsException x) {
+            return false; // not a class file we understand, leave it alone
+        }
+    }
+
+    private boolean scan(byte[] b) {
+        if (b.length < 10 || u4(b, 0) != 0xCAFEBABE) {
+            return false;
+        }
+        int constantPoolCount = u2(b, 8);
+        int[] offsets = null;
+        int p = 10;
+        for (int i = 1; i < constantPoolCount; i++) {
+            int tag = b[p] & 0xFF;
+            switch (tag) {
+                case 1: // Utf8
+                    if (offsets == null) {
+                        offsets = new int[constantPoolCount];
+                    }
+                    offsets[i] = p;
+                    p += 3 + u2(b, p + 1);
+                    break;
+                case 7: // Class
+                    if (offsets == null) {
+                        offsets = new int[constantPoolCount];
+                    }
+                    offsets[i] = p;
+                    p += 3;
+                    break;
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    p += 3;
+                    break;
+                case 15: // MethodHandle
+                    p += 4;
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    p += 5;
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    p += 9;
+                    i++; // takes two slots
+                    break;
+                default:
+                    return false;
+            }
+        }
+        int access = u2(b, p);
+        if ((access & (ACC_INTERFACE | ACC_ANNOTATION)) != 0) {
+            return false;
+        }
+        int interfacesCount = u2(b, p + 6);
+        for (int i = 0; i < interfacesCount; i++) {
+            int classEntry = offsets[u2(b, p + 8 + i * 2)];
+            int utf8Entry = offsets[u2(b, classEntry + 1)];
+            if (matchesPrefix(b, utf8Entry + 3, u2(b, utf8Entry + 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesPrefix(byte[] b, int offset, int length) {
+        if (startsWith(b, offset, length, "colt/nicity/performance/")) {
+            return false; // never instrument ourself
+        }
+        for (String prefix : interfacePrefixs) {
+            if (contains(b, offset, length, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // interface names are ascii in practice, a multi byte name simply won't match an ascii prefix
+    private static boolean contains(byte[] b, int offset, int length, String s) {
+        int n = s.length();
+        for (int start = offset; start + n <= offset + length; start++) {
+            if (regionMatches(b, start, s)) {
+                return true;
+            }
+        }
+        return n == 0;
+    }
+
+    private static boolean startsWith(byte[] b, int offset, int length, String s) {
+        return s.length() <= length && regionMatches(b, offset, s);
+    }
+
+    private static boolean regionMatches(byte[] b, int start, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (b[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int u2(byte[] b, int p) {
+        return ((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF);
+    }
+
+    private static int u4(byte[] b, int p) {
+        return (u2(b, p) << 16) | u2(b, p + 2);
+    }
+}
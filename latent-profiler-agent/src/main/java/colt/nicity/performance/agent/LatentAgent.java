@@ -15,44 +15,205 @@
  */
 package colt.nicity.performance.agent;
 
+import colt.nicity.performance.latent.Latency;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
-import java.lang.reflect.Modifier;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import javassist.ByteArrayClassPath;
 import javassist.CannotCompileException;
+import javassist.ClassClassPath;
 import javassist.ClassPool;
 import javassist.CtClass;
-import javassist.CtField;
 import javassist.CtMethod;
+import javassist.LoaderClassPath;
 import javassist.NotFoundException;
 
 /**
- * -javaagent:<path to your profiler project directory>/target/LatentProfiler-1.0-SNAPSHOT.jar=interfacePackagePrefix
+ * -javaagent:<path to your profiler project directory>/target/LatentProfiler-1.0-SNAPSHOT.jar=host:cluster:service:version:interfacePackagePrefix[:async]
+ *
+ * With async the call graph follows tasks handed to executors, see AsyncHandoffs.
+ *
+ * The same jar can be loaded into a running jvm through the attach api. agentmain accepts one command per load:
+ * <pre>
+ * attach:host:cluster:service:version:prefix,prefix[:async]  install the agent, or replace its prefixes if already installed
+ * add:prefix,prefix                                  start instrumenting more interfaces
+ * remove:prefix,prefix                               strip the probes from the given interfaces
+ * detach                                             strip every probe, remove the transformer and stop reporting
+ * </pre>
+ * Loaded classes are retransformed whenever the prefixes change. The current prefixes are published to the host jvm as the
+ * {@value #PREFIXES_PROPERTY} system property, and whether async hand offs are followed as {@value #ASYNC_PROPERTY}, so an attaching
+ * tool can read them back.
  *
  * @author jonathan
  */
 public class LatentAgent implements ClassFileTransformer {
 
-    private String[] interfacePrefixs;
+    public static final String PREFIXES_PROPERTY = "latent.profiler.prefixes";
+    public static final String ASYNC_PROPERTY = "latent.profiler.async";
+
+    private static LatentAgent installed; // guarded by LatentAgent.class
+
+    private final Instrumentation instrumentation;
+    private final boolean canFollowAsync;
+    private volatile Prefixes prefixes;
+    private volatile boolean async;
+    private LatentHttpPump pump;
 
     public static void premain(String agentArgs, Instrumentation instrumentation) {
         String[] host_clusterName_serviceName_version_AndPackages = agentArgs.split(":");
-        new LatentAgent(host_clusterName_serviceName_version_AndPackages[4], instrumentation);
-        new LatentHttpPump(host_clusterName_serviceName_version_AndPackages[0],
+        boolean async = host_clusterName_serviceName_version_AndPackages.length > 5
+            && host_clusterName_serviceName_version_AndPackages[5].equals("async");
+        LatentAgent agent = new LatentAgent(host_clusterName_serviceName_version_AndPackages[4], async, instrumentation);
+        agent.setAsync(async);
+        agent.pump = new LatentHttpPump(host_clusterName_serviceName_version_AndPackages[0],
             host_clusterName_serviceName_version_AndPackages[1],
             host_clusterName_serviceName_version_AndPackages[2],
-            host_clusterName_serviceName_version_AndPackages[3]).start();
+            host_clusterName_serviceName_version_AndPackages[3]);
+        agent.pump.start();
+        synchronized (LatentAgent.class) {
+            installed = agent;
+        }
+    }
 
+    public static synchronized void agentmain(String agentArgs, Instrumentation instrumentation) {
+        String[] command = (agentArgs == null ? "" : agentArgs).split(":");
+        switch (command[0]) {
+            case "attach":
+                if (command.length < 6) {
+                    System.err.println("LatentAgent expected attach:host:cluster:service:version:prefixes but was:" + agentArgs);
+                    return;
+                }
+                if (installed == null) {
+                    LatentAgent agent = new LatentAgent("", command.length > 6 && command[6].equals("async"), instrumentation);
+                    agent.pump = new LatentHttpPump(command[1], command[2], command[3], command[4]);
+                    agent.pump.start();
+                    installed = agent;
+                }
+                installed.setPrefixes(Prefixes.parse(command[5]));
+                installed.setAsync(command.length > 6 && command[6].equals("async"));
+                break;
+            case "add":
+            case "remove":
+                if (installed == null) {
+                    System.err.println("LatentAgent is not attached, ignoring:" + agentArgs);
+                    return;
+                }
+                Set<String> changed = new LinkedHashSet<>(Arrays.asList(installed.prefixes.interfacePrefixs));
+                List<String> given = Arrays.asList(Prefixes.parse(command.length > 1 ? command[1] : "").interfacePrefixs);
+                if (command[0].equals("add")) {
+                    changed.addAll(given);
+                } else {
+                    changed.removeAll(given);
+                }
+                installed.setPrefixes(new Prefixes(changed.toArray(new String[changed.size()])));
+                break;
+            case "detach":
+                if (installed != null) {
+                    installed.detach();
+                    installed = null;
+                }
+                break;
+            default:
+                System.err.println("LatentAgent doesn't understand:" + agentArgs);
+        }
+    }
+
+    /**
+     * @param followAsync whether async hand offs may ever be followed, only then are the latent classes published to the bootstrap
+     * class loader. An agent attached without it can't be switched to async later.
+     */
+    public LatentAgent(String agentArgs, boolean followAsync, Instrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+        // first, nothing may load a latent class before the bootstrap class loader can see them
+        this.canFollowAsync = followAsync && AsyncHandoffs.bootstrap(instrumentation);
+        this.prefixes = Prefixes.parse(agentArgs);
+        publish(prefixes);
+        System.setProperty(ASYNC_PROPERTY, "false");
+        instrumentation.addTransformer(this, instrumentation.isRetransformClassesSupported());
+    }
+
+    private void setPrefixes(Prefixes next) {
+        Prefixes prior = prefixes;
+        prefixes = next;
+        publish(next);
+        retransform(prior, next);
     }
 
-    public LatentAgent(String agentArgs, Instrumentation instrumentation) {
-        if (agentArgs == null) {
-            agentArgs = null;
+    private void setAsync(boolean follow) {
+        if (follow && !canFollowAsync) {
+            System.err.println("LatentAgent can't follow async hand offs, it was started without async or this jvm doesn't allow it.");
+            follow = false;
         }
-        instrumentation.addTransformer(this);
-        interfacePrefixs = agentArgs.split(",");
+        if (async == follow) {
+            return;
+        }
+        async = follow;
+        System.setProperty(ASYNC_PROPERTY, String.valueOf(follow));
+        List<Class<?>> executors = new ArrayList<>();
+        for (Class<?> loaded : instrumentation.getAllLoadedClasses()) {
+            if (AsyncHandoffs.isTarget(loaded)) {
+                executors.add(loaded);
+            }
+        }
+        retransform(executors);
+    }
+
+    private void detach() {
+        setAsync(false);
+        Prefixes prior = prefixes;
+        prefixes = Prefixes.parse("");
+        retransform(prior, prefixes);
+        instrumentation.removeTransformer(this);
+        if (pump != null) {
+            pump.stop();
+        }
+        Latency.singleton().getLatentGraph(true).clear();
+        System.clearProperty(PREFIXES_PROPERTY);
+        System.clearProperty(ASYNC_PROPERTY);
+        System.out.println("LatentAgent detached.");
+    }
+
+    private static void publish(Prefixes prefixes) {
+        System.setProperty(PREFIXES_PROPERTY, String.join(",", prefixes.interfacePrefixs));
+    }
+
+    /**
+     * Retransformation always starts from the original class bytes so a class that no longer matches simply comes back without probes.
+     */
+    private void retransform(Prefixes prior, Prefixes next) {
+        List<Class<?>> candidates = new ArrayList<>();
+        for (Class<?> loaded : instrumentation.getAllLoadedClasses()) {
+            if (!loaded.isInterface()
+                && !loaded.getName().startsWith("colt.nicity.performance.")
+                && instrumentation.isModifiableClass(loaded)
+                && (prior.implementsAny(loaded) || next.implementsAny(loaded))) {
+                candidates.add(loaded);
+            }
+        }
+        retransform(candidates);
+    }
+
+    private void retransform(List<Class<?>> candidates) {
+        if (!instrumentation.isRetransformClassesSupported()) {
+            System.err.println("LatentAgent cannot retransform, changes only apply to classes loaded from now on.");
+            return;
+        }
+        int failed = 0;
+        for (Class<?> candidate : candidates) {
+            try {
+                instrumentation.retransformClasses(candidate);
+            } catch (Throwable t) { // one class we can't touch shouldn't stop the rest
+                failed++;
+                System.err.println("LatentAgent failed to retransform:" + candidate.getName() + " " + t);
+            }
+        }
+        System.out.println("LatentAgent retransformed " + (candidates.size() - failed) + " of " + candidates.size() + " classes.");
     }
 
     @Override
@@ -62,32 +223,47 @@ public class LatentAgent implements ClassFileTransformer {
         ProtectionDomain protectionDomain,
         byte[] classfileBuffer)
         throws IllegalClassFormatException {
-        if (className.contains("colt.nicity.performance.latent")) { // keep from instrumenting ourself
-            return classfileBuffer;
+        if (className == null || className.startsWith("colt/nicity/performance/")) { // keep from instrumenting ourself
+            return null;
+        }
+        if (AsyncHandoffs.isTarget(className)) {
+            if (!async) {
+                return null;
+            }
+            try {
+                return AsyncHandoffs.instrument(className, classfileBuffer);
+            } catch (Exception x) {
+                System.err.println("LatentAgent failed to instrument:" + className + " " + x);
+                return null;
+            }
+        }
+        Prefixes prefixes = this.prefixes;
+        if (!prefixes.classFileFilter.matches(classfileBuffer)) {
+            return null;
         }
 
+        CtClass cc = null;
         try {
             String javassistClassName = className.replace('/', '.'); // first modify the class name for javassist. convert slashes to dots:
-            ClassPool cp = ClassPool.getDefault();
+            // scoped to this one class so nothing we parse outlives the transform
+            ClassPool cp = new ClassPool(true);
+            if (loader != null) {
+                cp.appendClassPath(new LoaderClassPath(loader));
+            }
+            cp.appendClassPath(new ClassClassPath(Latency.class));
             cp.insertClassPath(new ByteArrayClassPath(javassistClassName, classfileBuffer));
-            CtClass cc = cp.get(javassistClassName);
+            cc = cp.get(javassistClassName);
             if (cc.isInterface()) {
                 return classfileBuffer;
             }
-            if (cc.isFrozen()) {
-                cc.defrost();
-            }
-            if (cc.isFrozen()) {
-                return classfileBuffer;
-            }
 
             CtClass[] interfaces = cc.getInterfaces();
             if (interfaces != null && interfaces.length > 0) {
-                if (!isDevelopControlledInterface(interfaces)) {
+                if (!isDevelopControlledInterface(prefixes.interfacePrefixs, interfaces)) {
                     return classfileBuffer;
                 }
 
-                CtMethod[] methods = cc.getMethods();
+                CtMethod[] methods = cc.getDeclaredMethods();
                 instrumentClass(cc);
                 for (int k = 0; k < methods.length; k++) { // do not instrument inherited methods:
                     CtClass interfaceClass = isInterfaceMethod(interfaces, methods[k]);
@@ -102,14 +278,14 @@ public class LatentAgent implements ClassFileTransformer {
             System.err.println(exc.getClass().getName() + ": " + exc.getMessage());
             exc.printStackTrace();
             return classfileBuffer;
+        } finally {
+            if (cc != null) {
+                cc.detach();
+            }
         }
     }
 
     private void instrumentClass(CtClass cc) throws NotFoundException, CannotCompileException {
-        CtClass latencyClass = ClassPool.getDefault().get("colt.nicity.performance.latent.Latency");
-        CtField latency = new CtField(latencyClass, "latency", cc);
-        latency.setModifiers(Modifier.STATIC | Modifier.PRIVATE);
-        cc.addField(latency, "colt.nicity.performance.latent.Latency.singleton()");
         System.out.println("Instrumenting Class:" + cc.getName());
     }
 
@@ -125,18 +301,20 @@ public class LatentAgent implements ClassFileTransformer {
 
         System.out.println("Instrumenting Method:" + interfaceName + " " + methods[k].getLongName());
 
-        String fname = "latent" + k;
-        CtClass latentClass = ClassPool.getDefault().get("colt.nicity.performance.latent.Latent");
-        CtField f = new CtField(latentClass, fname, cc);
-        f.setModifiers(Modifier.STATIC | Modifier.PRIVATE);
-        cc.addField(f);
-
         String longMethodName = methods[k].getLongName();
         int splitIndex = longMethodName.lastIndexOf('.', longMethodName.indexOf('('));
         String cname = longMethodName.substring(0, splitIndex);
         String mname = longMethodName.substring(splitIndex);
-        methods[k].insertBefore(fname + " = latency.enter(" + fname + ",\"" + interfaceName + "\",\"" + cname + "\",\"" + mname + "\",String.valueOf(1));");
-        methods[k].insertAfter(fname + ".exit();", true);
+
+        // resolved now and inlined by id, a retransform may not add the static field we would otherwise cache it in
+        int id = Latency.singleton().latent(interfaceName, cname, mname).getId();
+        if (id == 0) {
+            System.out.println("Skipping Method, too many latents:" + longMethodName);
+            return;
+        }
+        String latent = "colt.nicity.performance.latent.Latency.latent(" + id + ")";
+        methods[k].insertBefore(latent + ".enter();");
+        methods[k].insertAfter(latent + ".exit();", true);
     }
 
     private CtClass isInterfaceMethod(CtClass[] interfaces, CtMethod method) {
@@ -152,7 +330,7 @@ public class LatentAgent implements ClassFileTransformer {
         return null;
     }
 
-    private boolean isDevelopControlledInterface(CtClass[] interfaces) {
+    private boolean isDevelopControlledInterface(String[] interfacePrefixs, CtClass[] interfaces) {
         boolean inControlOfInterfaces = false;
         for (int i = 0; i < interfaces.length; i++) {
             boolean inControlOfInterface = false;
@@ -173,4 +351,41 @@ public class LatentAgent implements ClassFileTransformer {
         }
         return inControlOfInterfaces;
     }
+
+    private static class Prefixes {
+
+        private final String[] interfacePrefixs;
+        private final ClassFileFilter classFileFilter;
+
+        private Prefixes(String[] interfacePrefixs) {
+            this.interfacePrefixs = interfacePrefixs;
+            this.classFileFilter = new ClassFileFilter(interfacePrefixs);
+        }
+
+        static Prefixes parse(String agentArgs) {
+            List<String> parsed = new ArrayList<>();
+            if (agentArgs != null) {
+                for (String prefix : agentArgs.split(",")) {
+                    if (!prefix.trim().isEmpty()) {
+                        parsed.add(prefix.trim());
+                    }
+                }
+            }
+            return new Prefixes(parsed.toArray(new String[parsed.size()]));
+        }
+
+        boolean implementsAny(Class<?> c) {
+            if (interfacePrefixs.length == 0) {
+                return false;
+            }
+            for (Class<?> iface : c.getInterfaces()) {
+                for (String interfacePrefix : interfacePrefixs) {
+                    if (iface.getName().contains(interfacePrefix)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
 }
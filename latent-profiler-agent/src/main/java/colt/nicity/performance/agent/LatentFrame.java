@@ -0,0 +1,170 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 1999-$year$ Jive Software. All rights reserved.
+ *
+ * This software is the proprietary information of Jive Software. Use is subject to license terms.
+ */
+package colt.nicity.performance.agent;
+
+import colt.nicity.performance.latent.LatentDepth;
+import colt.nicity.performance.latent.LatentHistogram;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds one gzipped binary frame holding every edge sampled in an interval. Class and method names are interned into a dictionary
+ * that lives for the session and each frame only carries the names the receiver has not been sent yet.
+ *
+ * Frame layout, all big endian:
+ * <pre>
+ * int magic, byte version, long sessionId
+ * utf clusterName, utf serviceName, utf serviceVersion, long sampleTimestampEpochMillis
+ * int dictionaryBase, int nameCount, utf[nameCount]
+ * int edgeCount, edge[edgeCount]
+ * edge := node from, boolean hasTo, node to
+ * node := int depth, int interfaceNameId, int classNameId, int methodNameId, long callCount, long callLatency, long failedCount,
+ *         long failedLatency, short bucketCount, bucket[bucketCount]
+ * bucket := unsigned byte LatentHistogram bucket, long count
+ * </pre>
+ */
+public class LatentFrame {
+
+    public static final int MAGIC = 0x4C544631; // LTF1
+    public static final byte VERSION = 2;
+
+    private final long sessionId;
+    private final String clusterName;
+    private final String serviceName;
+    private final String serviceVersion;
+
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private int sentNames = 0;
+
+    public LatentFrame(long sessionId, String clusterName, String serviceName, String serviceVersion) {
+        this.sessionId = sessionId;
+        this.clusterName = clusterName;
+        this.serviceName = serviceName;
+        this.serviceVersion = serviceVersion;
+    }
+
+    /**
+     * Call when the receiver has lost our dictionary, the next frame will carry every name again.
+     */
+    public synchronized void resetDictionary() {
+        sentNames = 0;
+    }
+
+    /**
+     * Call once the receiver has accepted the last frame built.
+     */
+    public synchronized void acknowledge(int namesInFrame) {
+        sentNames = Math.max(sentNames, namesInFrame);
+    }
+
+    public synchronized Built build(long sampleTimestampEpochMillis, List<LatentDepth[]> edges) throws IOException {
+        int[][] nodeIds = new int[edges.size() * 2][];
+        for (int i = 0; i < edges.size(); i++) {
+            LatentDepth[] edge = edges.get(i);
+            nodeIds[i * 2] = ids(edge[0]);
+            nodeIds[i * 2 + 1] = ids(edge[1]);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(sessionId);
+            out.writeUTF(clusterName);
+            out.writeUTF(serviceName);
+            out.writeUTF(serviceVersion);
+            out.writeLong(sampleTimestampEpochMillis);
+
+            out.writeInt(sentNames);
+            out.writeInt(names.size() - sentNames);
+            for (int i = sentNames; i < names.size(); i++) {
+                out.writeUTF(names.get(i));
+            }
+
+            out.writeInt(edges.size());
+            for (int i = 0; i < edges.size(); i++) {
+                LatentDepth[] edge = edges.get(i);
+                writeNode(out, edge[0], nodeIds[i * 2]);
+                out.writeBoolean(edge[1] != null);
+                if (edge[1] != null) {
+                    writeNode(out, edge[1], nodeIds[i * 2 + 1]);
+                }
+            }
+        }
+        return new Built(bytes.toByteArray(), names.size());
+    }
+
+    private int[] ids(LatentDepth latentDepth) {
+        if (latentDepth == null) {
+            return null;
+        }
+        return new int[]{
+            id(latentDepth.getLatent().getInterfaceName()),
+            id(latentDepth.getLatent().getClassName()),
+            id(latentDepth.getLatent().getMethodName())
+        };
+    }
+
+    private int id(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    private static void writeNode(DataOutputStream out, LatentDepth latentDepth, int[] ids) throws IOException {
+        out.writeInt(latentDepth.getDepth());
+        out.writeInt(ids[0]);
+        out.writeInt(ids[1]);
+        out.writeInt(ids[2]);
+        out.writeLong(latentDepth.getLatent().getCalled());
+        out.writeLong(latentDepth.getLatent().getSuccesslatency());
+        out.writeLong(latentDepth.getLatent().getFailed());
+        out.writeLong(latentDepth.getLatent().getFailedlatency());
+
+        LatentHistogram histogram = latentDepth.getLatent().getLatencyHistogram();
+        int[] buckets = new int[LatentHistogram.BUCKETS];
+        long[] counts = new long[LatentHistogram.BUCKETS];
+        int[] nonEmpty = new int[1];
+        histogram.buckets((bucket, count) -> {
+            buckets[nonEmpty[0]] = bucket;
+            counts[nonEmpty[0]] = count;
+            nonEmpty[0]++;
+        });
+        out.writeShort(nonEmpty[0]);
+        for (int i = 0; i < nonEmpty[0]; i++) {
+            out.writeByte(buckets[i]);
+            out.writeLong(counts[i]);
+        }
+    }
+
+    public static class Built {
+
+        public final byte[] frame;
+        public final int names;
+
+        private Built(byte[] frame, int names) {
+            this.frame = frame;
+            this.names = names;
+        }
+    }
+}
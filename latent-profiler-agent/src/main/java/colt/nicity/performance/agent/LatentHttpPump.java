@@ -10,6 +10,7 @@ package colt.nicity.performance.agent;
 
 import colt.nicity.performance.latent.Latency;
 import colt.nicity.performance.latent.LatentDepth;
+import colt.nicity.performance.latent.LatentGraph;
 import colt.nicity.performance.latent.http.ApacheHttpClient;
 import colt.nicity.performance.latent.http.HttpResponse;
 import colt.nicity.performance.latent.http.json.JSONObject;
@@ -21,7 +22,12 @@ import org.apache.commons.httpclient.cookie.CookiePolicy;
 import org.apache.commons.httpclient.params.HttpConnectionParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -37,11 +43,14 @@ public class LatentHttpPump {
     private final String serviceName;
     private final String serviceVersion;
     private final ApacheHttpClient httpClient;
+    private final LatentFrame latentFrame;
+    private final AtomicBoolean binary = new AtomicBoolean(true);
 
     public LatentHttpPump(String hostName, String clusterName, String serviceName, String serviceVersion) {
         this.clusterName = clusterName;
         this.serviceName = serviceName;
         this.serviceVersion = serviceVersion;
+        this.latentFrame = new LatentFrame(new SecureRandom().nextLong(), clusterName, serviceName, serviceVersion);
         httpClient = new ApacheHttpClient(createApacheClient(hostName, 1175, 10, 30000), new HashMap<>());
     }
 
@@ -109,38 +118,22 @@ public class LatentHttpPump {
     }
 
     private final AtomicBoolean enabled = new AtomicBoolean(true);
+    private ScheduledExecutorService scheduledExecutorService;
 
-    public void start() {
-        ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+    public synchronized void start() {
+        if (scheduledExecutorService != null) {
+            return;
+        }
+        scheduledExecutorService = Executors.newScheduledThreadPool(1, runnable -> {
+            Thread thread = new Thread(runnable, "latent-http-pump");
+            thread.setDaemon(true); // an attached agent must never keep the host jvm alive
+            return thread;
+        });
         scheduledExecutorService.scheduleWithFixedDelay(() -> {
             try {
                 final long now = System.currentTimeMillis();
-                Boolean enabled = latency.getLatentGraph(this.enabled.get()).latentDepths((from, to) -> {
-                    // TODO batching
-                    try {
-                        JSONObject sample = new JSONObject();
-                        sample.put("clusterName", clusterName);
-                        sample.put("serviceName", serviceName);
-                        sample.put("serviceVersion", serviceVersion);
-                        sample.put("sampleTimestampEpochMillis", now);
-                        sample.put("from", latentJson(from));
-                        sample.put("to", latentJson(to));
-                        HttpResponse postJson = httpClient.postJson("/profile/latents", sample.toJSONString());
-                        if (postJson.getStatusCode() >= 200 && postJson.getStatusCode() < 300) {
-                            String response = new String(postJson.getResponseBody());
-                            return Boolean.getBoolean(response);
-                        } else {
-                            return null;
-                        }
-                    } catch (Exception x) {
-                        //if (verbose) {
-                        //System.out.println("Latent Service is inaccessible. "+x.getMessage());
-                        //}
-                        return null;
-                    }
-
-                });
-
+                LatentGraph latentGraph = latency.getLatentGraph(this.enabled.get());
+                Boolean enabled = binary.get() ? pumpFrame(latentGraph, now) : pumpJson(latentGraph, now);
                 if (enabled != null) {
                     this.enabled.set(enabled);
                 }
@@ -151,7 +144,73 @@ public class LatentHttpPump {
         }, 5, 5, TimeUnit.SECONDS);
     }
 
-    public void stop() {
+    public synchronized void stop() {
+        if (scheduledExecutorService != null) {
+            scheduledExecutorService.shutdownNow();
+            scheduledExecutorService = null;
+        }
+    }
+
+    private Boolean pumpFrame(LatentGraph latentGraph, long now) throws IOException {
+        List<LatentDepth[]> edges = new ArrayList<>();
+        latentGraph.latentDepths((from, to) -> {
+            edges.add(new LatentDepth[]{from, to});
+            return null;
+        });
+        if (edges.isEmpty()) {
+            return null;
+        }
+        for (int attempt = 0; attempt < 2; attempt++) {
+            LatentFrame.Built built = latentFrame.build(now, edges);
+            HttpResponse response;
+            try {
+                response = httpClient.postBytes("/profile/latents/frame", built.frame, "application/octet-stream");
+            } catch (Exception x) {
+                return null;
+            }
+            int status = response.getStatusCode();
+            if (status >= 200 && status < 300) {
+                latentFrame.acknowledge(built.names);
+                return Boolean.parseBoolean(new String(response.getResponseBody(), StandardCharsets.UTF_8).trim());
+            } else if (status == 409) {
+                // upena lost our dictionary, most likely it restarted
+                latentFrame.resetDictionary();
+            } else if (status == 404) {
+                // upena predates frames
+                binary.set(false);
+                return pumpJson(latentGraph, now);
+            } else {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private Boolean pumpJson(LatentGraph latentGraph, long now) {
+        return latentGraph.latentDepths((from, to) -> {
+            try {
+                JSONObject sample = new JSONObject();
+                sample.put("clusterName", clusterName);
+                sample.put("serviceName", serviceName);
+                sample.put("serviceVersion", serviceVersion);
+                sample.put("sampleTimestampEpochMillis", now);
+                sample.put("from", latentJson(from));
+                sample.put("to", latentJson(to));
+                HttpResponse postJson = httpClient.postJson("/profile/latents", sample.toJSONString());
+                if (postJson.getStatusCode() >= 200 && postJson.getStatusCode() < 300) {
+                    String response = new String(postJson.getResponseBody());
+                    return Boolean.parseBoolean(response.trim());
+                } else {
+                    return null;
+                }
+            } catch (Exception x) {
+                //if (verbose) {
+                //System.out.println("Latent Service is inaccessible. "+x.getMessage());
+                //}
+                return null;
+            }
+
+        });
     }
 
     private JSONObject latentJson(LatentDepth latentDepth) {
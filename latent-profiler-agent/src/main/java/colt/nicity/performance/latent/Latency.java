@@ -22,51 +22,92 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Latency {
 
-    private static Latency latency;
+    private static volatile Latency latency;
 
-    synchronized public static Latency singleton() {
-        if (latency == null) {
-            LatentGraph latentGraph = new LatentGraph();
-            latency = new Latency(latentGraph, 1024);
+    public static Latency singleton() {
+        Latency got = latency;
+        if (got == null) {
+            synchronized (Latency.class) {
+                got = latency;
+                if (got == null) {
+                    got = new Latency(new LatentGraph(), 1024);
+                    latency = got;
+                }
+            }
         }
-        return latency;
+        return got;
     }
-    private final ThreadLocal<LatentStack> latentStacks;
+
+    /**
+     * Instrumented methods look their latent up by the id handed out when the agent instrumented them. Classes may be retransformed
+     * after they are loaded and a retransform cannot add fields, so the id is inlined as a constant instead of cached in a static field.
+     */
+    public static Latent latent(int id) {
+        return singleton().latentGraph.latent(id);
+    }
+
+    private final LatentStacks latentStacks;
     private final LatentGraph latentGraph;
     private final Enabled enable = new Enabled(true);
 
     private Latency(final LatentGraph latentGraph, final int maxDepth) {
         this.latentGraph = latentGraph;
+        this.latentStacks = new LatentStacks(latentGraph, maxDepth);
+    }
 
-        latentStacks = new ThreadLocal<LatentStack>() {
-            @Override
-            protected LatentStack initialValue() {
-                return new LatentStack(latentGraph, maxDepth);
-            }
-        };
+    /**
+     * @return the calling thread's stack if it is inside an instrumented method, null otherwise. Never creates a stack.
+     */
+    LatentStack capturable() {
+        if (!enable.enabled) {
+            return null;
+        }
+        LatentStack stack = latentStacks.peek();
+        return stack != null && stack.parent() != null ? stack : null;
+    }
+
+    LatentStack stack() {
+        return latentStacks.get();
     }
 
     public LatentGraph getLatentGraph(boolean enabled) {
-        if (!this.enable.enabled != enabled) {
-            singleton.clear();
+        if (this.enable.enabled != enabled) {
+            latentGraph.clear();
         }
         this.enable.enabled = enabled;
         return latentGraph;
     }
 
-    private ConcurrentHashMap<String, Latent> singleton = new ConcurrentHashMap<>();
-    public Latent enter(Latent latent, String interfaceName, String className, String methodName, String tracerId) {
-        if (latent == null) {
-            String key = className + "." + methodName;
-            Latent got = singleton.get(key);
-            if (got == null) {
-                got = new Latent(enable, latentStacks, interfaceName, className, methodName);
-                Latent had = singleton.putIfAbsent(key, got);
-                if (had != null) {
-                    got = had;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Latent>> singleton = new ConcurrentHashMap<>();
+
+    /**
+     * Resolves the latent for a method once, instrumented classes inline its id so enter and exit never look it up by name.
+     */
+    public Latent latent(String interfaceName, String className, String methodName) {
+        ConcurrentHashMap<String, Latent> methods = singleton.get(className);
+        if (methods == null) {
+            methods = new ConcurrentHashMap<>();
+            ConcurrentHashMap<String, Latent> had = singleton.putIfAbsent(className, methods);
+            if (had != null) {
+                methods = had;
+            }
+        }
+        Latent got = methods.get(methodName);
+        if (got == null) {
+            synchronized (methods) {
+                got = methods.get(methodName);
+                if (got == null) {
+                    got = new Latent(enable, latentStacks, latentGraph, interfaceName, className, methodName);
+                    methods.put(methodName, got);
                 }
             }
-            latent = got;
+        }
+        return got;
+    }
+
+    public Latent enter(Latent latent, String interfaceName, String className, String methodName, String tracerId) {
+        if (latent == null) {
+            latent = latent(interfaceName, className, methodName);
         }
         latent.enter(tracerId);
         return latent;
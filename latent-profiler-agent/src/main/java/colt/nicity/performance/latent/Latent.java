@@ -16,37 +16,55 @@
 package colt.nicity.performance.latent;
 
 import colt.nicity.performance.latent.Latency.Enabled;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- *
+ * Counters for one instrumented method. Counts are striped so concurrent exits never lose an increment. The latencies are decayed
+ * gauges and a racing exit may overwrite another's sample, which only costs one sample of smoothing.
  */
 public class Latent {
 
     private final Enabled enabled;
-    private final ThreadLocal<LatentStack> latentStacks;
+    private final LatentStacks latentStacks;
     private final String interfaceName;
     private final String className;
     private final String methodName;
     private final int hashCode;
-    private long called;
-    private long successlatency;
-    private long failed;
-    private long failedlatency;
-
-    Latent(Enabled enabled, ThreadLocal<LatentStack> latentStacks, String interfaceName, String className, String methodName) {
+    private final LongAdder called = new LongAdder();
+    private volatile long successlatency;
+    private final LongAdder failed = new LongAdder();
+    private volatile long failedlatency;
+    private final LatentHistogram latencyHistogram = new LatentHistogram();
+    final int id;
+
+    Latent(Enabled enabled,
+        LatentStacks latentStacks,
+        LatentGraph latentGraph,
+        String interfaceName,
+        String className,
+        String methodName) {
         this.enabled = enabled;
         this.latentStacks = latentStacks;
         this.interfaceName = interfaceName;
         this.className = className;
         this.methodName = methodName;
         hashCode = interfaceName.hashCode() + className.hashCode() + methodName.hashCode();
+        this.id = latentGraph.register(this);
+    }
+
+    /**
+     * @return the id instrumented code resolves this latent by or 0 if the graph was full when it was created.
+     */
+    public int getId() {
+        return id;
     }
 
     public void clear() {
-        called = 0;
+        called.reset();
         successlatency = 0;
-        failed = 0;
+        failed.reset();
         failedlatency = 0;
+        latencyHistogram.clear();
     }
 
     public String getInterfaceName() {
@@ -62,7 +80,7 @@ public class Latent {
     }
 
     public long getCalled() {
-        return called;
+        return called.sum();
     }
 
     public long getSuccesslatency() {
@@ -70,13 +88,24 @@ public class Latent {
     }
 
     public long getFailed() {
-        return failed;
+        return failed.sum();
     }
 
     public long getFailedlatency() {
         return failedlatency;
     }
 
+    /**
+     * @return every success and failure latency recorded since the last clear.
+     */
+    public LatentHistogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    public void enter() {
+        enter(null);
+    }
+
     void enter(String tracerId) {
         if (enabled.enabled) {
             latentStacks.get().enter(this, tracerId);
@@ -85,18 +114,26 @@ public class Latent {
 
     public void exit() {
         if (enabled.enabled) {
-            called++;
-            successlatency = latentStacks.get().exit(this, successlatency);
+            called.increment();
+            long elapse = latentStacks.get().exit(this);
+            latencyHistogram.record(elapse);
+            successlatency = decay(successlatency, elapse);
         }
     }
 
     public void failed() {
         if (enabled.enabled) {
-            failed++;
-            failedlatency = latentStacks.get().failed(this, failedlatency);
+            failed.increment();
+            long elapse = latentStacks.get().failed(this);
+            latencyHistogram.record(elapse);
+            failedlatency = decay(failedlatency, elapse);
         }
     }
 
+    private static long decay(long latency, long elapse) {
+        return (latency > 0 ? latency / 2 : latency) + elapse;
+    }
+
     @Override
     public String toString() {
         return className + "." + methodName + " latency=" + Math.max(successlatency, failedlatency);
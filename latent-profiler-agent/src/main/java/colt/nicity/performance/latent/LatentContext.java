@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 jonathan.colt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package colt.nicity.performance.latent;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RunnableScheduledFuture;
+
+/**
+ * Carries the caller's latent frame across a thread hop. The agent rewrites the executor entry points to capture every task submitted
+ * from inside an instrumented method, and the places executors run tasks to adopt whatever was captured for the task they are about to
+ * run. Tasks themselves are never replaced, so executors, their subclasses and their callers see exactly the objects they were given.
+ *
+ * Captures are kept in a side table keyed by task identity that only holds its tasks weakly, a task that is removed or dropped without
+ * ever running costs nothing once it is collected. One shot tasks are forgotten when they run, periodic ones are kept.
+ */
+public final class LatentContext {
+
+    private static final ConcurrentHashMap<TaskKey, Adopting> CAPTURED = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Object> COLLECTED = new ReferenceQueue<>();
+
+    private LatentContext() {
+    }
+
+    /**
+     * Called where an executor accepts a task. Only does anything if the caller is inside an instrumented method. A ForkJoinTask runs
+     * itself through exec where nothing would adopt for it, except the async tasks of CompletableFuture whose exec runs them through
+     * here.
+     */
+    public static void capture(Object task) {
+        if (task == null || task instanceof Adopting
+            || (task instanceof ForkJoinTask && !(task instanceof CompletableFuture.AsynchronousCompletionTask))) {
+            return;
+        }
+        LatentStack stack = Latency.singleton().capturable();
+        if (stack == null) {
+            if (!CAPTURED.isEmpty()) {
+                // resubmitted from outside any instrumented method, it no longer belongs to where it was first captured
+                CAPTURED.remove(new TaskKey(task, null));
+            }
+            return;
+        }
+        expunge();
+        CAPTURED.put(new TaskKey(task, COLLECTED), new Adopting(stack.parent(), stack.parentDepth()));
+    }
+
+    /**
+     * Called where an executor runs a task in place of task.run().
+     */
+    public static void run(Runnable task) {
+        LatentStack adopted = adopt(task);
+        try {
+            task.run();
+        } finally {
+            release(adopted);
+        }
+    }
+
+    /**
+     * Called where an executor runs a task in place of task.call().
+     */
+    public static <V> V call(Callable<V> task) throws Exception {
+        LatentStack adopted = adopt(task);
+        try {
+            return task.call();
+        } finally {
+            release(adopted);
+        }
+    }
+
+    /**
+     * @return the calling thread's stack if it adopted the frame captured for the task, null otherwise.
+     */
+    private static LatentStack adopt(Object task) {
+        if (task == null || CAPTURED.isEmpty()) {
+            return null;
+        }
+        TaskKey key = new TaskKey(task, null);
+        Adopting adopting = CAPTURED.get(key);
+        if (adopting == null) {
+            return null;
+        }
+        if (!(task instanceof RunnableScheduledFuture && ((RunnableScheduledFuture<?>) task).isPeriodic())) {
+            CAPTURED.remove(key, adopting);
+        }
+        return adopting.adopt();
+    }
+
+    private static void release(LatentStack adopted) {
+        if (adopted != null) {
+            adopted.release();
+        }
+    }
+
+    /**
+     * For executors that hand the task straight to a thread of its own and keep no reference to it, there wrapping is invisible and
+     * cheaper than the side table.
+     */
+    public static Runnable wrap(Runnable task) {
+        if (task == null || task instanceof Adopting) {
+            return task;
+        }
+        LatentStack stack = Latency.singleton().capturable();
+        return stack == null ? task : new LatentRunnable(task, stack.parent(), stack.parentDepth());
+    }
+
+    static boolean isCaptured(Object task) {
+        return CAPTURED.containsKey(new TaskKey(task, null));
+    }
+
+    private static void expunge() {
+        for (Object collected = COLLECTED.poll(); collected != null; collected = COLLECTED.poll()) {
+            CAPTURED.remove(collected);
+        }
+    }
+
+    private static final class TaskKey extends WeakReference<Object> {
+
+        private final int hashCode;
+
+        private TaskKey(Object task, ReferenceQueue<Object> collected) {
+            super(task, collected);
+            this.hashCode = System.identityHashCode(task);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof TaskKey)) {
+                return false;
+            }
+            Object task = get();
+            return task != null && task == ((TaskKey) obj).get();
+        }
+    }
+
+    private static class Adopting {
+
+        private final Latent parent;
+        private final int parentDepth;
+
+        private Adopting(Latent parent, int parentDepth) {
+            this.parent = parent;
+            this.parentDepth = parentDepth;
+        }
+
+        LatentStack adopt() {
+            LatentStack stack = Latency.singleton().stack();
+            return stack.adopt(parent, parentDepth) ? stack : null;
+        }
+    }
+
+    private static final class LatentRunnable extends Adopting implements Runnable {
+
+        private final Runnable task;
+
+        private LatentRunnable(Runnable task, Latent parent, int parentDepth) {
+            super(parent, parentDepth);
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            LatentStack stack = adopt();
+            try {
+                task.run();
+            } finally {
+                if (stack != null) {
+                    stack.release();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 jonathan.colt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package colt.nicity.performance.latent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Open addressed set of encoded edges. Only the owning thread adds, any thread may read. Readers may miss edges added concurrently
+ * but never see a torn one, missed edges are picked up on the next read.
+ */
+class LatentEdges {
+
+    private volatile AtomicLongArray table;
+    private int size;
+
+    LatentEdges(int capacity) {
+        table = new AtomicLongArray(Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1);
+    }
+
+    /**
+     * @param edge must not be 0
+     */
+    void add(long edge) {
+        AtomicLongArray t = table;
+        int mask = t.length() - 1;
+        int i = mix(edge) & mask;
+        while (true) {
+            long got = t.get(i);
+            if (got == edge) {
+                return;
+            }
+            if (got == 0) {
+                t.lazySet(i, edge);
+                size++;
+                if (size * 2 > t.length()) {
+                    grow(t);
+                }
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    void clear() {
+        table = new AtomicLongArray(table.length());
+        size = 0;
+    }
+
+    void forEach(EdgeCallback callback) {
+        AtomicLongArray t = table;
+        for (int i = 0; i < t.length(); i++) {
+            long edge = t.get(i);
+            if (edge != 0) {
+                callback.edge(edge);
+            }
+        }
+    }
+
+    private void grow(AtomicLongArray from) {
+        AtomicLongArray to = new AtomicLongArray(from.length() * 2);
+        int mask = to.length() - 1;
+        for (int i = 0; i < from.length(); i++) {
+            long edge = from.get(i);
+            if (edge != 0) {
+                int j = mix(edge) & mask;
+                while (to.get(j) != 0) {
+                    j = (j + 1) & mask;
+                }
+                to.lazySet(j, edge);
+            }
+        }
+        table = to;
+    }
+
+    private static int mix(long edge) {
+        long h = edge * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    interface EdgeCallback {
+
+        void edge(long edge);
+    }
+}
@@ -15,89 +15,103 @@
  */
 package colt.nicity.performance.latent;
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
+ * Call graph edges seen since the last clear. Each thread's LatentStack records the edges it walks into its own LatentEdges so nothing
+ * is allocated or shared on the hot path. Readers fold every thread's edges into one set.
  *
+ * An edge is encoded in a long: depth in the top 11 bits, the caller's latent id in the next 26 and the callee's latent id, or 0 for a
+ * root call, in the low 26.
  */
 public class LatentGraph {
 
-    private final Set<LatentEdge> graph = Collections.newSetFromMap(new ConcurrentHashMap<LatentEdge, Boolean>());
+    static final int MAX_DEPTH = (1 << 11) - 1;
+    static final int MAX_LATENTS = (1 << 26) - 1;
+
+    private final List<LatentStack> stacks = new CopyOnWriteArrayList<>();
+    private final LatentEdges graph = new LatentEdges(1024);
+    private volatile Latent[] latents = new Latent[1024];
+    private int nextLatentId = 1;
+    volatile int generation;
 
     public LatentGraph() {
     }
 
-    public void record(Latent[] latents, String[] tracerIds, int depth) {
-        LatentDepth latentDepth = new LatentDepth(latents[depth], depth);
-        if (depth == 0) {
-            graph.add(new LatentEdge(latentDepth, null));
-        } else {
-            graph.add(new LatentEdge(new LatentDepth(latents[depth - 1], depth - 1), latentDepth));
+    synchronized int register(Latent latent) {
+        int id = nextLatentId;
+        if (id > MAX_LATENTS) {
+            return 0;
         }
-    }
-
-    public Boolean latentDepths(LatentDepthCallback latentDepthCallback) {
-        for (LatentEdge edge : graph) {
-            if (latentDepthCallback != null && edge != null) {
-                LatentDepth from = edge.getFrom();
-                LatentDepth to = edge.getTo();
-                Boolean enabled = latentDepthCallback.calls(from, to);
-                if (enabled != null && !enabled) {
-                    return false;
-                }
-            }
+        nextLatentId++;
+        Latent[] l = latents;
+        if (id >= l.length) {
+            Latent[] grown = new Latent[l.length * 2];
+            System.arraycopy(l, 0, grown, 0, l.length);
+            l = grown;
         }
-        return true;
+        l[id] = latent;
+        latents = l;
+        return id;
     }
 
-    public void clear() {
-        graph.clear();
+    Latent latent(int id) {
+        return latents[id];
     }
 
-    static class LatentEdge {
-
-        private final LatentDepth from;
-        private final LatentDepth to;
-
-        public LatentEdge(LatentDepth from, LatentDepth to) {
-            this.from = from;
-            this.to = to;
-        }
+    void track(LatentStack stack) {
+        stacks.add(stack);
+    }
 
-        public LatentDepth getFrom() {
-            return from;
-        }
+    static long edge(int depth, int fromId, int toId) {
+        return ((long) depth << 52) | ((long) fromId << 26) | toId;
+    }
 
-        public LatentDepth getTo() {
-            return to;
+    public Boolean latentDepths(LatentDepthCallback latentDepthCallback) {
+        Latent[] l;
+        long[] edges;
+        synchronized (this) {
+            Iterator<LatentStack> iterator = stacks.iterator();
+            while (iterator.hasNext()) {
+                LatentStack stack = iterator.next();
+                if (stack.generation == generation) {
+                    stack.edges.forEach(graph::add);
+                }
+                if (!stack.isAlive()) {
+                    stacks.remove(stack);
+                }
+            }
+            l = latents;
+            int[] count = new int[1];
+            graph.forEach(edge -> count[0]++);
+            edges = new long[count[0]];
+            count[0] = 0;
+            graph.forEach(edge -> edges[count[0]++] = edge);
         }
-
-        @Override
-        public int hashCode() {
-            int hash = 7;
-            hash = 97 * hash + (this.from != null ? this.from.hashCode() : 0);
-            hash = 97 * hash + (this.to != null ? this.to.hashCode() : 0);
-            return hash;
+        if (latentDepthCallback == null) {
+            return true;
         }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (obj == null) {
-                return false;
-            }
-            if (getClass() != obj.getClass()) {
-                return false;
+        for (long edge : edges) {
+            int depth = (int) (edge >>> 52);
+            Latent from = l[(int) ((edge >>> 26) & MAX_LATENTS)];
+            int toId = (int) (edge & MAX_LATENTS);
+            Boolean enabled;
+            if (toId == 0) {
+                enabled = latentDepthCallback.calls(new LatentDepth(from, depth), null);
+            } else {
+                enabled = latentDepthCallback.calls(new LatentDepth(from, depth - 1), new LatentDepth(l[toId], depth));
             }
-            final LatentEdge other = (LatentEdge) obj;
-            if (this.from != other.from && (this.from == null || !this.from.equals(other.from))) {
+            if (enabled != null && !enabled) {
                 return false;
             }
-            if (this.to != other.to && (this.to == null || !this.to.equals(other.to))) {
-                return false;
-            }
-            return true;
         }
+        return true;
+    }
+
+    public synchronized void clear() {
+        generation++;
+        graph.clear();
     }
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 jonathan.colt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package colt.nicity.performance.latent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size log bucketed latency histogram. Each power of two range of nanos is split into 4 linear sub buckets so a recorded value
+ * is off by at most 25%. Values below 4 nanos get exact buckets, 256 buckets cover every positive long.
+ *
+ * The bucket layout is part of the wire format, upena decodes it with the same arithmetic.
+ */
+public class LatentHistogram {
+
+    public static final int BUCKETS = 256;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public static int bucket(long nanos) {
+        if (nanos < 4) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (msb - 2)) & 3;
+        return ((msb - 1) << 2) + sub;
+    }
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    public long count(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * @param callback handed every non empty bucket
+     */
+    public void buckets(BucketCallback callback) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            if (count > 0) {
+                callback.bucket(i, count);
+            }
+        }
+    }
+
+    public interface BucketCallback {
+
+        void bucket(int bucket, long count);
+    }
+}
@@ -16,22 +16,71 @@
 package colt.nicity.performance.latent;
 
 /**
+ * Per thread call stack. Nothing on enter or exit allocates once the thread's edge set has grown to cover the paths it walks.
  *
+ * A stack may adopt the frame of the thread that handed it work, see LatentContext. Its outermost calls are then recorded as called by
+ * that frame, at that frame's depth, instead of as new roots.
  */
 public class LatentStack {
 
     private final LatentGraph latentGraph;
+    private final Thread owner;
     private final Latent[] stack;
     private final String[] tracerIds;
     private final long[] enters;
     private int depth;
+    private Latent adoptedParent;
+    private int adoptedDepth;
+    volatile LatentEdges edges;
+    volatile int generation;
 
     public LatentStack(LatentGraph latentGraph, int maxDepth) {
         this.latentGraph = latentGraph;
+        this.owner = Thread.currentThread();
+        maxDepth = Math.min(maxDepth, LatentGraph.MAX_DEPTH);
         stack = new Latent[maxDepth];
         tracerIds = new String[maxDepth];
         enters = new long[maxDepth];
         depth = 0;
+        edges = new LatentEdges(64);
+        generation = latentGraph.generation;
+    }
+
+    boolean isAlive() {
+        return owner.isAlive();
+    }
+
+    /**
+     * @return the innermost frame a task handed off from this thread should be attributed to, null if there is none.
+     */
+    Latent parent() {
+        return depth > 0 ? stack[depth - 1] : adoptedParent;
+    }
+
+    /**
+     * @return the absolute depth calls made from parent() are recorded at, one deeper than parent() itself. Hand that to adopt.
+     */
+    int parentDepth() {
+        return adoptedDepth + depth;
+    }
+
+    /**
+     * @param parentDepth as returned by the handing thread's parentDepth(), the depth this stack's outermost calls are recorded at.
+     * @return false if this stack is already busy or the parent is too deep to adopt, in which case the task runs unattributed.
+     */
+    boolean adopt(Latent parent, int parentDepth) {
+        // the deepest edge this stack can record sits at parentDepth + stack.length - 1 and must still fit the edge's depth bits
+        if (depth != 0 || adoptedParent != null || parentDepth + stack.length - 1 > LatentGraph.MAX_DEPTH) {
+            return false;
+        }
+        adoptedParent = parent;
+        adoptedDepth = parentDepth;
+        return true;
+    }
+
+    void release() {
+        adoptedParent = null;
+        adoptedDepth = 0;
     }
 
     public void enter(Latent latent, String tracerId) {
@@ -41,32 +90,50 @@ public class LatentStack {
         depth++;
     }
 
-    public long exit(Latent latent, long latency) {
+    /**
+     * @return nanos elapsed since the matching enter.
+     */
+    public long exit(Latent latent) {
+        if (depth == 0) {
+            return 0; // entered while disabled
+        }
         depth--;
-        latency = sample(latency, enters[depth]);
-        latentGraph.record(stack, tracerIds, depth);
+        long elapse = System.nanoTime() - enters[depth];
+        record();
         if (stack[depth] == latent) {
             stack[depth] = null;
+            tracerIds[depth] = null;
         } else {
             System.out.println("Should be impossible. Likely some one forgot to us try {} finally {}");
         }
-        return latency;
+        return elapse;
     }
 
-    public long failed(Latent latent, long latency) {
-        return exit(latent, latency);
+    public long failed(Latent latent) {
+        return exit(latent);
     }
 
-    public long failed(Latent latent, long latency, Throwable t) {
-        return exit(latent, latency);
+    public long failed(Latent latent, Throwable t) {
+        return exit(latent);
     }
 
-    private long sample(long latency, long entered) {
-        if (latency > 0) {
-            latency /= 2;
-        } // decay
-        long elapse = System.nanoTime() - entered;
-        latency += elapse;
-        return latency;
+    private void record() {
+        int currentGeneration = latentGraph.generation;
+        if (currentGeneration != generation) {
+            edges = new LatentEdges(64);
+            generation = currentGeneration;
+        }
+        int toId = stack[depth].id;
+        if (toId == 0) {
+            return;
+        }
+        if (depth == 0 && (adoptedParent == null || adoptedParent.id == 0)) {
+            edges.add(LatentGraph.edge(0, toId, 0));
+        } else {
+            int fromId = depth == 0 ? adoptedParent.id : stack[depth - 1].id;
+            if (fromId != 0) {
+                edges.add(LatentGraph.edge(adoptedDepth + depth, fromId, toId));
+            }
+        }
     }
 }
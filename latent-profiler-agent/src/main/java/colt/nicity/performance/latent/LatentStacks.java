@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013 jonathan.colt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package colt.nicity.performance.latent;
+
+/**
+ * The per thread stacks. Unlike a ThreadLocal with an initial value, peek lets async hand offs look for a caller frame without giving
+ * every thread that merely submits work a stack of its own.
+ */
+class LatentStacks {
+
+    private final ThreadLocal<LatentStack> stacks = new ThreadLocal<>();
+    private final LatentGraph latentGraph;
+    private final int maxDepth;
+
+    LatentStacks(LatentGraph latentGraph, int maxDepth) {
+        this.latentGraph = latentGraph;
+        this.maxDepth = maxDepth;
+    }
+
+    LatentStack get() {
+        LatentStack stack = stacks.get();
+        if (stack == null) {
+            stack = new LatentStack(latentGraph, maxDepth);
+            latentGraph.track(stack);
+            stacks.set(stack);
+        }
+        return stack;
+    }
+
+    LatentStack peek() {
+        return stacks.get();
+    }
+}
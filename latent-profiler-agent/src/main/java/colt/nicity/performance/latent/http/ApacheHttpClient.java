@@ -24,6 +24,7 @@ import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.StatusLine;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
@@ -67,6 +68,18 @@ public class ApacheHttpClient {
         }
     }
 
+    public HttpResponse postBytes(String path, byte[] body, String contentType) {
+        try {
+            PostMethod post = new PostMethod(path);
+            post.setRequestEntity(new ByteArrayRequestEntity(body, contentType));
+            post.setRequestHeader(CONTENT_TYPE_HEADER_NAME, contentType);
+            return execute(post);
+        } catch (Exception e) {
+            throw new RuntimeException("Error executing POST request to: "
+                + client.getHostConfiguration().getHostURL() + " path: " + path + " bytes: " + body.length, e);
+        }
+    }
+
     // package scoped so OauthHttpClient can use
     HttpResponse execute(HttpMethod method) throws IOException {
 
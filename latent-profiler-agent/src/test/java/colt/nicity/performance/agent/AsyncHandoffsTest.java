@@ -0,0 +1,175 @@
+package colt.nicity.performance.agent;
+
+import colt.nicity.performance.latent.Latency;
+import colt.nicity.performance.latent.Latent;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class AsyncHandoffsTest {
+
+    private static final String MINI = MiniExecutor.class.getName();
+
+    private final Latent outer = Latency.singleton().latent("I", "AsyncHandoffsTest", "outer");
+    private final Latent inner = Latency.singleton().latent("I", "AsyncHandoffsTest", "inner");
+
+    private Mini executor;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        Latency.singleton().getLatentGraph(true).clear();
+        // the same rules ThreadPoolExecutor gets, capture where a task is accepted and adopt where it is run
+        AsyncHandoffs.Handoff handoff = new AsyncHandoffs.Handoff(new String[]{"execute(Ljava/lang/Runnable;"},
+            new String[]{"runOne("}, new String[0]);
+        byte[] instrumented = AsyncHandoffs.instrument(MINI.replace('.', '/'), classfile(MINI), handoff);
+        executor = (Mini) new Instrumented(instrumented).loadClass(MINI).newInstance();
+    }
+
+    @Test
+    public void testQueuedTasksKeepTheirIdentity() throws Exception {
+        Runnable a = this::work;
+        Runnable b = this::work;
+        outer.enter();
+        executor.execute(a);
+        executor.execute(b);
+        outer.exit();
+
+        Assert.assertTrue(executor.remove(a));
+        List<Runnable> never = executor.shutdownNow();
+        Assert.assertEquals(never.size(), 1);
+        Assert.assertSame(never.get(0), b);
+    }
+
+    @Test
+    public void testRunAdoptsCapturedFrame() throws Exception {
+        Runnable task = this::work;
+        outer.enter();
+        executor.execute(task);
+        outer.exit();
+
+        Thread worker = new Thread(() -> Assert.assertSame(executor.runOne(), task));
+        worker.start();
+        worker.join();
+        Set<String> edges = edges();
+        Assert.assertTrue(edges.contains("outer@0->inner@1"), edges.toString());
+    }
+
+    @Test
+    public void testJdkTargetsInstrument() throws Exception {
+        for (String className : Arrays.asList("java/util/concurrent/ThreadPoolExecutor",
+            "java/util/concurrent/ScheduledThreadPoolExecutor",
+            "java/util/concurrent/ForkJoinPool",
+            "java/util/concurrent/ForkJoinTask$RunnableExecuteAction",
+            "java/util/concurrent/ForkJoinTask$AdaptedCallable",
+            "java/util/concurrent/CompletableFuture$AsyncSupply",
+            "java/util/concurrent/CompletableFuture$ThreadPerTaskExecutor")) {
+            Assert.assertTrue(AsyncHandoffs.isTarget(className), className);
+            byte[] original = classfile(className.replace('/', '.'));
+            Assert.assertFalse(Arrays.equals(AsyncHandoffs.instrument(className, original), original), className);
+        }
+    }
+
+    private void work() {
+        inner.enter();
+        inner.exit();
+    }
+
+    private static Set<String> edges() {
+        Set<String> edges = new ConcurrentSkipListSet<>();
+        Latency.singleton().getLatentGraph(true).latentDepths((from, to) -> {
+            edges.add(from.getLatent().getMethodName() + "@" + from.getDepth() + "->"
+                + (to == null ? "null" : to.getLatent().getMethodName() + "@" + to.getDepth()));
+            return true;
+        });
+        return edges;
+    }
+
+    private static byte[] classfile(String className) throws IOException {
+        try (InputStream in = ClassLoader.getSystemResourceAsStream(className.replace('.', '/') + ".class")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Defines the instrumented executor, everything else including the latent classes comes from the test's class loader.
+     */
+    private static class Instrumented extends ClassLoader {
+
+        private final byte[] classfile;
+
+        Instrumented(byte[] classfile) {
+            super(AsyncHandoffsTest.class.getClassLoader());
+            this.classfile = classfile;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(MINI)) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> loaded = findLoadedClass(name);
+            return loaded != null ? loaded : defineClass(name, classfile, 0, classfile.length);
+        }
+    }
+
+    public interface Mini {
+
+        void execute(Runnable task);
+
+        boolean remove(Runnable task);
+
+        List<Runnable> shutdownNow();
+
+        Runnable runOne();
+    }
+
+    /**
+     * Shaped like ThreadPoolExecutor: a queue the caller can take its own tasks back out of and a worker that runs them.
+     */
+    public static class MiniExecutor implements Mini {
+
+        private final Deque<Runnable> queue = new ArrayDeque<>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            queue.add(task);
+        }
+
+        @Override
+        public synchronized boolean remove(Runnable task) {
+            return queue.remove(task);
+        }
+
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            List<Runnable> drained = new ArrayList<>(queue);
+            queue.clear();
+            return drained;
+        }
+
+        @Override
+        public Runnable runOne() {
+            Runnable task;
+            synchronized (this) {
+                task = queue.poll();
+            }
+            task.run();
+            return task;
+        }
+    }
+}
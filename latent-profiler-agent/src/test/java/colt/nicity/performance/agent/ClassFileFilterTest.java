@@ -0,0 +1,147 @@
+package colt.nicity.performance.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.Callable;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ClassFileFilterTest {
+
+    private final ClassFileFilter filter = new ClassFileFilter(new String[] { " java.util.concurrent " });
+
+    @Test
+    public void testConcreteImplementation() throws Exception {
+        Assert.assertTrue(filter.matches(classfile(Implementation.class)));
+        Assert.assertFalse(filter.matches(classfile(NoInterfaces.class)));
+        Assert.assertFalse(new ClassFileFilter(new String[] { "javax.sql" }).matches(classfile(Implementation.class)));
+    }
+
+    @Test
+    public void testLongAndDoubleTakeTwoSlots() throws Exception {
+        // a walk that miscounts the two slot entries misreads every entry after them
+        Assert.assertTrue(filter.matches(classfile(WideConstants.class)));
+    }
+
+    @Test
+    public void testInterfacesAndAnnotationsAreSkipped() throws Exception {
+        Assert.assertFalse(filter.matches(classfile(SubInterface.class)));
+        Assert.assertFalse(filter.matches(classfile(Marker.class)));
+    }
+
+    @Test
+    public void testNeverMatchesOurOwnInterfaces() throws Exception {
+        Assert.assertFalse(new ClassFileFilter(new String[] { "colt.nicity" }).matches(classfile(OwnImplementation.class)));
+    }
+
+    @Test
+    public void testModuleAndPackageEntries() throws Exception {
+        Assert.assertTrue(filter.matches(handmade(0x0021, true)));
+        Assert.assertFalse(filter.matches(handmade(0x8000, false)), "module-info implements nothing");
+    }
+
+    @Test
+    public void testGarbage() throws Exception {
+        Assert.assertFalse(filter.matches(new byte[0]));
+        Assert.assertFalse(filter.matches(new byte[] { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0, 0, 52, 0, 5, 1 }));
+        byte[] unknownTag = handmade(0x0021, true);
+        unknownTag[10] = 99;
+        Assert.assertFalse(filter.matches(unknownTag));
+    }
+
+    /**
+     * A class file shaped like a module-info: Module and Package entries ahead of the class entries.
+     */
+    private static byte[] handmade(int access, boolean implement) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(53);
+        out.writeShort(10);
+        out.writeByte(1); // #1 Utf8
+        out.writeUTF("a.module");
+        out.writeByte(19); // #2 Module
+        out.writeShort(1);
+        out.writeByte(20); // #3 Package
+        out.writeShort(1);
+        out.writeByte(1); // #4 Utf8
+        out.writeUTF("module-info");
+        out.writeByte(7); // #5 Class
+        out.writeShort(4);
+        out.writeByte(6); // #6 Double, #7 unusable
+        out.writeDouble(1.5d);
+        out.writeByte(1); // #8 Utf8
+        out.writeUTF("java/util/concurrent/Callable");
+        out.writeByte(7); // #9 Class
+        out.writeShort(8);
+        out.writeShort(access);
+        out.writeShort(5);
+        out.writeShort(0);
+        if (implement) {
+            out.writeShort(1);
+            out.writeShort(9);
+        } else {
+            out.writeShort(0);
+        }
+        out.writeShort(0); // fields
+        out.writeShort(0); // methods
+        out.writeShort(0); // attributes
+        return bytes.toByteArray();
+    }
+
+    private static byte[] classfile(Class<?> clazz) throws IOException {
+        String name = clazz.getName();
+        try (InputStream in = clazz.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    static class Implementation implements Runnable, Callable<String> {
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public String call() {
+            return "";
+        }
+    }
+
+    static class NoInterfaces {
+    }
+
+    static class WideConstants implements Callable<Double> {
+
+        private long big = 1234567890123L;
+        private double precise = 1.5e300;
+
+        @Override
+        public Double call() {
+            return big * precise;
+        }
+    }
+
+    interface SubInterface extends Callable<String> {
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Marker {
+    }
+
+    interface Own {
+    }
+
+    static class OwnImplementation implements Own {
+    }
+}
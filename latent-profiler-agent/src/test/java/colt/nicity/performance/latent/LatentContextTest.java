@@ -0,0 +1,123 @@
+package colt.nicity.performance.latent;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LatentContextTest {
+
+    private final Latent outer = Latency.singleton().latent("I", "LatentContextTest", "outer");
+    private final Latent inner = Latency.singleton().latent("I", "LatentContextTest", "inner");
+    private final Runnable task = () -> {
+        inner.enter();
+        inner.exit();
+    };
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        Latency.singleton().getLatentGraph(true).clear();
+    }
+
+    @Test
+    public void testRunAdoptsCapturedFrame() throws Exception {
+        outer.enter();
+        LatentContext.capture(task);
+        outer.exit();
+        Assert.assertTrue(LatentContext.isCaptured(task));
+
+        onAnotherThread(() -> LatentContext.run(task));
+        Assert.assertTrue(edges().contains("outer@0->inner@1"), edges().toString());
+        Assert.assertFalse(LatentContext.isCaptured(task), "one shot tasks are forgotten once run");
+    }
+
+    @Test
+    public void testCallAdoptsCapturedFrame() throws Exception {
+        Callable<String> callable = () -> {
+            task.run();
+            return "called";
+        };
+        outer.enter();
+        LatentContext.capture(callable);
+        outer.exit();
+
+        String[] result = new String[1];
+        onAnotherThread(() -> {
+            try {
+                result[0] = LatentContext.call(callable);
+            } catch (Exception x) {
+                throw new RuntimeException(x);
+            }
+        });
+        Assert.assertEquals(result[0], "called");
+        Assert.assertTrue(edges().contains("outer@0->inner@1"), edges().toString());
+    }
+
+    @Test
+    public void testResubmittedFromOutsideIsForgotten() throws Exception {
+        outer.enter();
+        LatentContext.capture(task);
+        outer.exit();
+        Assert.assertTrue(LatentContext.isCaptured(task));
+        LatentContext.capture(task);
+        Assert.assertFalse(LatentContext.isCaptured(task));
+
+        onAnotherThread(() -> LatentContext.run(task));
+        Assert.assertTrue(edges().contains("inner@0->null"), edges().toString());
+    }
+
+    @Test
+    public void testWrapAdoptsCallerFrame() throws Exception {
+        Assert.assertSame(LatentContext.wrap(task), task, "nothing to carry outside an instrumented method");
+        outer.enter();
+        Runnable wrapped = LatentContext.wrap(task);
+        outer.exit();
+        Assert.assertNotSame(wrapped, task);
+        Assert.assertSame(LatentContext.wrap(wrapped), wrapped);
+
+        onAnotherThread(wrapped);
+        Assert.assertTrue(edges().contains("outer@0->inner@1"), edges().toString());
+    }
+
+    @Test
+    public void testNestedAdoptionKeepsAbsoluteDepth() throws Exception {
+        Runnable second = () -> {
+            inner.enter();
+            LatentContext.capture(task);
+            inner.exit();
+        };
+        outer.enter();
+        LatentContext.capture(second);
+        outer.exit();
+
+        onAnotherThread(() -> LatentContext.run(second));
+        onAnotherThread(() -> LatentContext.run(task));
+        Set<String> edges = edges();
+        Assert.assertTrue(edges.contains("outer@0->inner@1"), edges.toString());
+        Assert.assertTrue(edges.contains("inner@1->inner@2"), edges.toString());
+    }
+
+    private static void onAnotherThread(Runnable runnable) throws InterruptedException {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+    }
+
+    private static Set<String> edges() {
+        Set<String> edges = new ConcurrentSkipListSet<>();
+        Latency.singleton().getLatentGraph(true).latentDepths((from, to) -> {
+            edges.add(name(from) + "->" + name(to));
+            return true;
+        });
+        return edges;
+    }
+
+    private static String name(LatentDepth latentDepth) {
+        if (latentDepth == null) {
+            return "null";
+        }
+        return (latentDepth.getLatent() == null ? "null" : latentDepth.getLatent().getMethodName()) + "@" + latentDepth.getDepth();
+    }
+}
@@ -0,0 +1,58 @@
+package colt.nicity.performance.latent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LatentHistogramTest {
+
+    @Test
+    public void testSmallValuesHaveExactBuckets() throws Exception {
+        for (int nanos = 0; nanos < 8; nanos++) {
+            Assert.assertEquals(LatentHistogram.bucket(nanos), nanos);
+        }
+        Assert.assertEquals(LatentHistogram.bucket(-1), 0, "clock skew lands in the first bucket");
+        Assert.assertEquals(LatentHistogram.bucket(Long.MIN_VALUE), 0);
+    }
+
+    @Test
+    public void testPowersOfTwoStartTheirRange() throws Exception {
+        for (int power = 2; power < 63; power++) {
+            long nanos = 1L << power;
+            Assert.assertEquals(LatentHistogram.bucket(nanos), (power - 1) << 2, "2^" + power);
+            Assert.assertEquals(LatentHistogram.bucket(nanos - 1), ((power - 1) << 2) - 1, "2^" + power + "-1");
+        }
+        Assert.assertEquals(LatentHistogram.bucket(Long.MAX_VALUE), (61 << 2) + 3);
+        Assert.assertTrue(LatentHistogram.bucket(Long.MAX_VALUE) < LatentHistogram.BUCKETS);
+    }
+
+    @Test
+    public void testBucketsNeverGoBackwards() throws Exception {
+        int last = 0;
+        for (long nanos = 0; nanos < 1_000_000; nanos++) {
+            int bucket = LatentHistogram.bucket(nanos);
+            Assert.assertTrue(bucket == last || bucket == last + 1, String.valueOf(nanos));
+            last = bucket;
+        }
+    }
+
+    @Test
+    public void testRecordAndClear() throws Exception {
+        LatentHistogram histogram = new LatentHistogram();
+        histogram.record(3);
+        histogram.record(3);
+        histogram.record(1L << 20);
+
+        List<Long> buckets = new ArrayList<>();
+        histogram.buckets((bucket, count) -> {
+            buckets.add((long) bucket);
+            buckets.add(count);
+        });
+        Assert.assertEquals(buckets, Arrays.asList(3L, 2L, (long) LatentHistogram.bucket(1L << 20), 1L));
+
+        histogram.clear();
+        histogram.buckets((bucket, count) -> Assert.fail("cleared but bucket " + bucket + " has " + count));
+    }
+}
@@ -0,0 +1,40 @@
+package colt.nicity.performance.latent;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LatentStackTest {
+
+    private final Latent parent = Latency.singleton().latent("I", "LatentStackTest", "parent");
+
+    @Test
+    public void testParentDepthIsWhereAdoptedCallsAreRecorded() throws Exception {
+        LatentStack stack = new LatentStack(new LatentGraph(), 8);
+        Assert.assertNull(stack.parent());
+        stack.enter(parent, null);
+        Assert.assertSame(stack.parent(), parent);
+        Assert.assertEquals(stack.parentDepth(), 1, "parent itself is a root at depth 0");
+        stack.exit(parent);
+
+        Assert.assertTrue(stack.adopt(parent, 5));
+        Assert.assertSame(stack.parent(), parent);
+        Assert.assertEquals(stack.parentDepth(), 5);
+        stack.release();
+        Assert.assertNull(stack.parent());
+    }
+
+    @Test
+    public void testAdoptBounds() throws Exception {
+        LatentStack stack = new LatentStack(new LatentGraph(), 8);
+        Assert.assertTrue(stack.adopt(parent, LatentGraph.MAX_DEPTH - 7), "the deepest call lands exactly on MAX_DEPTH");
+        stack.release();
+        Assert.assertFalse(stack.adopt(parent, LatentGraph.MAX_DEPTH - 6));
+
+        Assert.assertTrue(stack.adopt(parent, 1));
+        Assert.assertFalse(stack.adopt(parent, 1), "already adopted");
+        stack.release();
+        stack.enter(parent, null);
+        Assert.assertFalse(stack.adopt(parent, 1), "busy");
+        stack.exit(parent);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.upena.uba.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Striped;
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.mlogger.core.ValueType;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Host wide, content addressed copies of resolved artifacts. Every instance on the host that deploys the same artifact gets a hard link
+ * to one copy instead of its own copy of the bytes. The copy is never written to again but is not marked read only, as the permissions
+ * live on the inode it shares with every instance's link.
+ *
+ * Only files that deployables treat as read only (jars and the tarball itself) go through the cache. Exploded tarballs are still per
+ * instance because deployables write into their service root.
+ *
+ * A cached file whose only link is the cache's own is unused. Unused files are evicted once they are older than maxUnusedMillis, and
+ * oldest first while the cache holds more than maxBytes. Files still linked by an instance are never evicted.
+ */
+public class ArtifactCache {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    private static final long EVICT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final File root;
+    private final long maxBytes;
+    private final long maxUnusedMillis;
+    private final Cache<String, String> sha1s = CacheBuilder.newBuilder().maximumSize(10_000).build();
+    private final Striped<Lock> locks = Striped.lock(64);
+    private final AtomicLong lastEvicted = new AtomicLong();
+
+    public ArtifactCache(File root, long maxBytes, long maxUnusedMillis) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+        this.maxUnusedMillis = maxUnusedMillis;
+    }
+
+    /**
+     * Places the file in dir, named as it is in the local repository.
+     */
+    public File linkToDirectory(File resolved, File dir) throws IOException {
+        return link(resolved, new File(dir, resolved.getName()));
+    }
+
+    public File link(File resolved, File target) throws IOException {
+        String sha1 = sha1(resolved);
+        File cached = new File(new File(root, sha1.substring(0, 2)), sha1 + "-" + resolved.getName());
+        boolean added;
+        // held until the link exists so eviction can not remove the cached copy out from under us
+        Lock lock = locks.get(cached.getName());
+        lock.lock();
+        try {
+            added = cache(resolved, sha1, cached);
+            java.nio.file.Files.deleteIfExists(target.toPath());
+            try {
+                java.nio.file.Files.createLink(target.toPath(), cached.toPath());
+                LOG.inc("artifactCache>linked");
+            } catch (IOException | UnsupportedOperationException x) {
+                // cache and instance live on different file systems
+                FileUtils.copyFile(cached, target, true);
+                LOG.inc("artifactCache>copied");
+            }
+        } finally {
+            lock.unlock();
+        }
+        long now = System.currentTimeMillis();
+        long evicted = lastEvicted.get();
+        if (added && now - evicted > EVICT_INTERVAL_MILLIS && lastEvicted.compareAndSet(evicted, now)) {
+            evict(now);
+        }
+        return target;
+    }
+
+    private boolean cache(File resolved, String sha1, File cached) throws IOException {
+        if (cached.exists()) {
+            LOG.inc("artifactCache>hit");
+            return false;
+        }
+        LOG.inc("artifactCache>miss");
+        File parent = cached.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Failed trying to mkdirs for " + parent);
+        }
+        File tmp = new File(parent, cached.getName() + ".tmp");
+        // not preserving the date so the age eviction goes by is when we cached it
+        FileUtils.copyFile(resolved, tmp, false);
+        if (!sha1.equals(Files.hash(tmp, Hashing.sha1()).toString())) {
+            FileUtils.deleteQuietly(tmp);
+            throw new IOException("Content changed while caching " + resolved);
+        }
+        java.nio.file.Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * @return how many cached files were removed.
+     */
+    public int evict(long now) {
+        List<File> unused = new ArrayList<>();
+        long totalBytes = 0;
+        File[] dirs = root.listFiles(File::isDirectory);
+        for (File dir : dirs == null ? new File[0] : dirs) {
+            File[] files = dir.listFiles(File::isFile);
+            for (File file : files == null ? new File[0] : files) {
+                totalBytes += file.length();
+                if (links(file) <= 1) {
+                    unused.add(file);
+                }
+            }
+        }
+        Collections.sort(unused, Comparator.comparingLong(File::lastModified));
+
+        int evicted = 0;
+        for (File file : unused) {
+            if (totalBytes <= maxBytes && now - file.lastModified() < maxUnusedMillis) {
+                break;
+            }
+            long length = file.length();
+            if (evict(file)) {
+                totalBytes -= length;
+                evicted++;
+                LOG.inc("artifactCache>evicted");
+            }
+        }
+        LOG.set(ValueType.VALUE, "artifactCache>bytes", totalBytes);
+        return evicted;
+    }
+
+    private boolean evict(File file) {
+        String name = file.getName();
+        Lock lock = locks.get(name.endsWith(".tmp") ? name.substring(0, name.length() - 4) : name);
+        lock.lock();
+        try {
+            // an instance may have linked it since we looked
+            return links(file) <= 1 && file.delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int links(File file) {
+        try {
+            return (Integer) java.nio.file.Files.getAttribute(file.toPath(), "unix:nlink");
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException x) {
+            // without hard links every instance got its own copy so nothing shares the cached one
+            return 1;
+        }
+    }
+
+    private String sha1(File file) throws IOException {
+        // the local repository only ever replaces files so path, size and mtime identify the content
+        String identity = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        String sha1 = sha1s.getIfPresent(identity);
+        if (sha1 == null) {
+            sha1 = Files.hash(file, Hashing.sha1()).toString();
+            sha1s.put(identity, sha1);
+        }
+        return sha1;
+    }
+}
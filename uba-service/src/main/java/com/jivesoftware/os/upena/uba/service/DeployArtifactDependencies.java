@@ -4,7 +4,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import org.apache.commons.io.FileUtils;
 import org.eclipse.aether.RepositorySystem;
 import org.eclipse.aether.RepositorySystemSession;
 import org.eclipse.aether.artifact.Artifact;
@@ -18,6 +17,7 @@ import org.eclipse.aether.resolution.ArtifactResult;
 public class DeployArtifactDependencies implements DependencyVisitor {
 
     private final DeployLog deployLog;
+    private final ArtifactCache artifactCache;
     private final RepositorySystem system;
     private final RepositorySystemSession session;
     private final List<RemoteRepository> remoteRepos;
@@ -25,11 +25,13 @@ public class DeployArtifactDependencies implements DependencyVisitor {
     private final AtomicBoolean deployed = new AtomicBoolean(true);
 
     public DeployArtifactDependencies(DeployLog deployLog,
+            ArtifactCache artifactCache,
             RepositorySystem system,
             RepositorySystemSession session,
             List<RemoteRepository> remoteRepos,
             File libDir) {
         this.deployLog = deployLog;
+        this.artifactCache = artifactCache;
         this.system = system;
         this.session = session;
         this.remoteRepos = remoteRepos;
@@ -57,7 +59,7 @@ public class DeployArtifactDependencies implements DependencyVisitor {
         if (artifactResult != null) {
             artifact = artifactResult.getArtifact();
             try {
-                FileUtils.copyFileToDirectory(artifact.getFile(), libDir, true);
+                artifactCache.linkToDirectory(artifact.getFile(), libDir);
                 deployLog.log("Deployer", "deployed " + artifact.getFile() + " to " + libDir, null);
             } catch (IOException ex) {
                 deployLog.log("Deployer", "failed to deploy " + artifact.getFile() + " to " + libDir, ex);
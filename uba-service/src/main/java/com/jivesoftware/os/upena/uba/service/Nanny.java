@@ -43,6 +43,8 @@ public class Nanny {
     private final PasswordStore passwordStore;
     private final UpenaClient upenaClient;
     private final RepositoryProvider repositoryProvider;
+    private final ArtifactCache artifactCache;
+    private final ExecutorService resolveExecutor;
     private final InstancePath instancePath;
     private final DeployableValidator deployableValidator;
     private final DeployLog deployLog;
@@ -66,6 +68,8 @@ public class Nanny {
     public Nanny(PasswordStore passwordStore,
         UpenaClient upenaClient,
         RepositoryProvider repositoryProvider,
+        ArtifactCache artifactCache,
+        ExecutorService resolveExecutor,
         InstanceDescriptor instanceDescriptor,
         InstancePath instancePath,
         DeployableValidator deployableValidator,
@@ -78,6 +82,8 @@ public class Nanny {
         this.passwordStore = passwordStore;
         this.upenaClient = upenaClient;
         this.repositoryProvider = repositoryProvider;
+        this.artifactCache = artifactCache;
+        this.resolveExecutor = resolveExecutor;
         this.instanceDescriptor = new AtomicReference<>(instanceDescriptor);
         this.instancePath = instancePath;
         this.deployableValidator = deployableValidator;
@@ -249,6 +255,8 @@ public class Nanny {
 
                             NannyDeployCallable deployTask = new NannyDeployCallable(
                                 repositoryProvider,
+                                artifactCache,
+                                resolveExecutor,
                                 ubaCoordinate,
                                 instanceDescriptor.get(),
                                 instancePath,
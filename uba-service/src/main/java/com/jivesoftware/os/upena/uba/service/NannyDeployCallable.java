@@ -38,14 +38,20 @@ import org.eclipse.aether.resolution.ArtifactResult;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 class NannyDeployCallable implements Callable<Boolean> {
 
     private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
 
     private final RepositoryProvider repositoryProvider;
+    private final ArtifactCache artifactCache;
+    private final ExecutorService resolveExecutor;
     private final UbaCoordinate ubaCoordinate;
     private final InstanceDescriptor id;
     private final InstancePath instancePath;
@@ -54,9 +60,13 @@ class NannyDeployCallable implements Callable<Boolean> {
     private final DeployableValidator deployableValidator;
     private final DeployableScriptInvoker invokeScript;
     private final UbaLog ubaLog;
+    // plugins resolve in parallel but every tar.gz links to the same artifact file and explodes through the same artifact.tar
+    private final Object explodeLock = new Object();
 
     public NannyDeployCallable(
         RepositoryProvider repositoryProvider,
+        ArtifactCache artifactCache,
+        ExecutorService resolveExecutor,
         UbaCoordinate ubaCoordinate,
         InstanceDescriptor id,
         InstancePath instancePath,
@@ -67,6 +77,8 @@ class NannyDeployCallable implements Callable<Boolean> {
         UbaLog ubaLog) {
 
         this.repositoryProvider = repositoryProvider;
+        this.artifactCache = artifactCache;
+        this.resolveExecutor = resolveExecutor;
         this.ubaCoordinate = ubaCoordinate;
         this.id = id;
         this.instancePath = instancePath;
@@ -147,7 +159,7 @@ class NannyDeployCallable implements Callable<Boolean> {
             return false;
         }
 
-        RepositorySystem system = repositoryProvider.newRepositorySystem();
+        RepositorySystem system = repositoryProvider.repositorySystem();
         RepositorySystemSession session = repositoryProvider.newRepositorySystemSession(system);
 
         String[] repos = id.repository.split(",");
@@ -160,9 +172,19 @@ class NannyDeployCallable implements Callable<Boolean> {
             if (deployablecoordinates.length > 1) {
                 LOG.info(" Deploying plugins:" + (deployablecoordinates.length - 1));
 
+                File pluginDir = pluginlibDir;
+                List<Future<Boolean>> plugins = new ArrayList<>();
                 for (int i = 1; i < deployablecoordinates.length; i++) {
-                    LOG.info(" Deploying plugin:" + deployablecoordinates[i]);
-                    successfulDeploy |= deploy(deployablecoordinates[i], remoteRepos, system, session, pluginlibDir);
+                    String pluginCoordinate = deployablecoordinates[i];
+                    LOG.info(" Deploying plugin:" + pluginCoordinate);
+                    plugins.add(resolveExecutor.submit(() -> deploy(pluginCoordinate, remoteRepos, system, session, pluginDir)));
+                }
+                for (Future<Boolean> plugin : plugins) {
+                    try {
+                        successfulDeploy |= plugin.get();
+                    } catch (InterruptedException | ExecutionException x) {
+                        deployLog.log("Nanny", "failed to deploy plugin.", x);
+                    }
                 }
 
                 LOG.info(" Deployed all plugins? " + successfulDeploy);
@@ -191,6 +213,7 @@ class NannyDeployCallable implements Callable<Boolean> {
         ArtifactResult artifactResult;
         try {
             LOG.info(" Resolving: " + deployablecoordinate);
+            repositoryProvider.fetchFromPeers(system, session, artifact, remoteRepos, deployLog);
             artifactResult = system.resolveArtifact(session, artifactRequest);
             artifact = artifactResult.getArtifact();
             LOG.info(artifact + " resolved to  " + artifact.getFile());
@@ -203,15 +226,18 @@ class NannyDeployCallable implements Callable<Boolean> {
         try {
 
             if (packaging.equals("tar.gz") || packaging.equals("tgz")) {
-                File tarGzip = instancePath.artifactFile("." + packaging);
-                LOG.info(" Upacking:" + tarGzip);
-                FileUtils.copyFile(artifact.getFile(), tarGzip, true);
-                deployLog.log("Nanny", "deployed " + tarGzip, null);
-                if (!explodeArtifact(tarGzip)) {
-                    return false;
+                synchronized (explodeLock) {
+                    File tarGzip = instancePath.artifactFile("." + packaging);
+                    LOG.info(" Upacking:" + tarGzip);
+                    artifactCache.link(artifact.getFile(), tarGzip);
+                    deployLog.log("Nanny", "deployed " + tarGzip, null);
+                    if (!explodeArtifact(tarGzip)) {
+                        return false;
+                    }
                 }
             }
             artifact = new DefaultArtifact(groupId + ":" + artifactId + ":" + version);
+            repositoryProvider.fetchFromPeers(system, session, artifact, remoteRepos, deployLog);
             artifactRequest = new ArtifactRequest();
             artifactRequest.setArtifact(artifact);
             artifactRequest.setRepositories(remoteRepos);
@@ -219,12 +245,13 @@ class NannyDeployCallable implements Callable<Boolean> {
             artifact = artifactResult.getArtifact();
 
             deployLog.log("Nanny", "deployed " + artifact.getFile() + " to " + dir, null);
-            FileUtils.copyFileToDirectory(artifact.getFile(), dir, true);
+            artifactCache.linkToDirectory(artifact.getFile(), dir);
             CollectRequest collectRequest = new CollectRequest();
             collectRequest.setRoot(new Dependency(artifact, ""));
             collectRequest.setRepositories(remoteRepos);
             CollectResult collectResult = system.collectDependencies(session, collectRequest);
-            DeployArtifactDependencies deployArtifactDependencies = new DeployArtifactDependencies(deployLog, system, session, remoteRepos, dir);
+            DeployArtifactDependencies deployArtifactDependencies = new DeployArtifactDependencies(deployLog, artifactCache, system, session,
+                remoteRepos, dir);
             collectResult.getRoot().accept(deployArtifactDependencies);
             boolean successfulDeploy = deployArtifactDependencies.successfulDeploy();
             deployLog.log("Nanny", "success " + successfulDeploy, null);
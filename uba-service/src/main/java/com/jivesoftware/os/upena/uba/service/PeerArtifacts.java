@@ -0,0 +1,388 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.upena.uba.service;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.repository.RepositoryPolicy;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.resolution.ArtifactResult;
+
+/**
+ * Lets upena nodes act as a cooperative cache for release artifacts. Before aether goes to the origin repositories for an artifact the
+ * host asks its ring peers' embedded repos (/repo/*) for it, pulls ranges of it from every peer that holds it in parallel and only
+ * publishes it into the local repo once it matches the sha1 the origin publishes for it.
+ *
+ * The origin is still asked for the tiny .sha1, which is what makes it safe to take the bytes from any peer. It is resolved through aether
+ * so the origins' authentication and proxies apply as they would to the artifact. Peers advertise what they hold through the repo
+ * endpoint's ETag, which is the sha1 aether (or this class) wrote beside the artifact. Only a few peers, picked at random, are asked.
+ */
+public class PeerArtifacts {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    private static final Pattern SHA1 = Pattern.compile("([0-9a-fA-F]{40})");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    private static final int MAX_PROBED_PEERS = 4;
+
+    public interface Peers {
+
+        /**
+         * @return the base url of every other node's embedded repo, for example https://host:1175/repo/
+         */
+        List<String> repoUrls() throws Exception;
+    }
+
+    private final Peers peers;
+    private final int chunkBytes;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final SSLSocketFactory peerSocketFactory;
+    private final ExecutorService executor;
+
+    public PeerArtifacts(Peers peers,
+        int parallelism,
+        int chunkBytes,
+        int connectTimeoutMillis,
+        int readTimeoutMillis,
+        boolean allowSelfSignedCerts) throws Exception {
+        this.peers = peers;
+        this.chunkBytes = chunkBytes;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        // the content is verified against the origin's sha1 so a peer's certificate is not what we are trusting
+        this.peerSocketFactory = allowSelfSignedCerts ? trustingSocketFactory() : null;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism),
+            new ThreadFactoryBuilder().setNameFormat("peer-artifacts-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Places the artifact in the local repo when one or more peers hold the same bytes the origin repositories publish.
+     *
+     * @return false when the artifact should be resolved from the origin as usual.
+     */
+    public boolean fetch(File localRepo,
+        RepositorySystem system,
+        RepositorySystemSession session,
+        Artifact artifact,
+        List<RemoteRepository> origins,
+        CommandLog deployLog) {
+        if (artifact.isSnapshot() || !isExactVersion(artifact.getVersion())) {
+            return false;
+        }
+        String path = path(artifact);
+        File target = new File(localRepo, path);
+        if (target.isFile()) {
+            return false;
+        }
+
+        Path tmp = null;
+        try {
+            List<String> repoUrls = probed(peers.repoUrls());
+            if (repoUrls.isEmpty()) {
+                return false;
+            }
+            String sha1 = originSha1(system, session, artifact, origins);
+            if (sha1 == null) {
+                LOG.inc("peerArtifacts>noOriginSha1");
+                return false;
+            }
+
+            List<Future<Long>> probes = new ArrayList<>();
+            for (String repoUrl : repoUrls) {
+                probes.add(executor.submit(() -> probe(repoUrl + path, sha1)));
+            }
+            List<String> holders = new ArrayList<>();
+            long length = -1;
+            for (int i = 0; i < probes.size(); i++) {
+                Long got = probes.get(i).get();
+                if (got != null && (length == -1 || got == length)) {
+                    length = got;
+                    holders.add(repoUrls.get(i) + path);
+                }
+            }
+            if (holders.isEmpty()) {
+                LOG.inc("peerArtifacts>miss");
+                return false;
+            }
+
+            File dir = target.getParentFile();
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Failed trying to mkdirs for " + dir);
+            }
+            tmp = Files.createTempFile(dir.toPath(), "." + target.getName() + ".", ".peer");
+            long start = System.currentTimeMillis();
+            download(holders, length, tmp);
+
+            String actual = com.google.common.io.Files.hash(tmp.toFile(), Hashing.sha1()).toString();
+            if (!actual.equals(sha1)) {
+                LOG.inc("peerArtifacts>mismatch");
+                deployLog.log("Nanny", "peers served " + path + " with sha1:" + actual + " but the origin has sha1:" + sha1, null);
+                return false;
+            }
+            worldReadable(tmp);
+            Files.move(tmp, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            writeSha1(target, sha1);
+
+            LOG.inc("peerArtifacts>hit");
+            deployLog.log("Nanny", "fetched " + path + " (" + length + " bytes) from " + holders.size() + " peers in "
+                + (System.currentTimeMillis() - start) + "millis", null);
+            return true;
+        } catch (Exception x) {
+            LOG.inc("peerArtifacts>failed");
+            deployLog.log("Nanny", "failed to fetch " + path + " from peers, falling back to the origin.", x);
+            return false;
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException x) {
+                    LOG.warn("Failed to remove " + tmp, x);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return at most MAX_PROBED_PEERS of the peers in random order, so a large ring doesn't see a HEAD from every node for every artifact
+     * and the ranges spread over different holders from node to node.
+     */
+    static List<String> probed(List<String> repoUrls) {
+        List<String> shuffled = new ArrayList<>(repoUrls);
+        Collections.shuffle(shuffled);
+        return shuffled.size() > MAX_PROBED_PEERS ? shuffled.subList(0, MAX_PROBED_PEERS) : shuffled;
+    }
+
+    /**
+     * Fills tmp with length bytes taken in chunkBytes ranges, spread round robin over the holders.
+     */
+    void download(List<String> holders, long length, Path tmp) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(tmp.toFile(), "rw")) {
+            file.setLength(length);
+            FileChannel channel = file.getChannel();
+            List<Future<Void>> chunks = new ArrayList<>();
+            int chunk = 0;
+            for (long offset = 0; offset < length; offset += chunkBytes, chunk++) {
+                long first = offset;
+                long last = Math.min(length, offset + chunkBytes) - 1;
+                int preferred = chunk % holders.size();
+                chunks.add(executor.submit(() -> {
+                    IOException failure = null;
+                    // spread the chunks across holders and move on to the next holder when one fails
+                    for (int attempt = 0; attempt < holders.size(); attempt++) {
+                        try {
+                            range(holders.get((preferred + attempt) % holders.size()), first, last, channel);
+                            return null;
+                        } catch (IOException x) {
+                            failure = x;
+                        }
+                    }
+                    throw failure;
+                }));
+            }
+            for (Future<Void> future : chunks) {
+                future.get();
+            }
+            channel.force(false);
+        }
+    }
+
+    private void range(String url, long first, long last, FileChannel channel) throws IOException {
+        HttpURLConnection connection = open(url, "GET");
+        try {
+            connection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+            if (connection.getResponseCode() != 206) {
+                throw new IOException(url + " answered " + connection.getResponseCode() + " to a range request.");
+            }
+            Matcher matcher = CONTENT_RANGE.matcher(String.valueOf(connection.getHeaderField("Content-Range")));
+            if (!matcher.matches() || Long.parseLong(matcher.group(1)) != first || Long.parseLong(matcher.group(2)) != last) {
+                throw new IOException(url + " answered with the wrong range " + connection.getHeaderField("Content-Range"));
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long position = first;
+            try (InputStream in = connection.getInputStream()) {
+                int read;
+                while ((read = in.read(buffer)) != -1 && position <= last) {
+                    ByteBuffer bb = ByteBuffer.wrap(buffer, 0, (int) Math.min(read, last - position + 1));
+                    while (bb.hasRemaining()) {
+                        position += channel.write(bb, position);
+                    }
+                }
+            }
+            if (position != last + 1) {
+                throw new IOException(url + " ended the range " + first + "-" + last + " at " + position);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the length of the artifact when the peer holds it with the expected sha1, otherwise null.
+     */
+    private Long probe(String url, String sha1) {
+        try {
+            HttpURLConnection connection = open(url, "HEAD");
+            try {
+                if (connection.getResponseCode() != 200) {
+                    return null;
+                }
+                String etag = connection.getHeaderField("ETag");
+                long length = connection.getContentLengthLong();
+                return etag != null && etag.replace("\"", "").equalsIgnoreCase(sha1) && length > 0 ? length : null;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException x) {
+            LOG.debug("Peer " + url + " could not be asked for the artifact.", x);
+            return null;
+        }
+    }
+
+    /**
+     * A checksum has no checksum of its own, so aether is told not to look for one.
+     */
+    private String originSha1(RepositorySystem system, RepositorySystemSession session, Artifact artifact, List<RemoteRepository> origins) {
+        DefaultRepositorySystemSession sha1Session = new DefaultRepositorySystemSession(session);
+        sha1Session.setChecksumPolicy(RepositoryPolicy.CHECKSUM_POLICY_IGNORE);
+        Artifact sha1Artifact = new DefaultArtifact(artifact.getGroupId(), artifact.getArtifactId(), artifact.getClassifier(),
+            artifact.getExtension() + ".sha1", artifact.getVersion());
+        try {
+            ArtifactResult result = system.resolveArtifact(sha1Session, new ArtifactRequest(sha1Artifact, origins, null));
+            byte[] bytes = Files.readAllBytes(result.getArtifact().getFile().toPath());
+            Matcher matcher = SHA1.matcher(new String(bytes, StandardCharsets.US_ASCII));
+            return matcher.find() ? matcher.group(1).toLowerCase() : null;
+        } catch (ArtifactResolutionException | IOException x) {
+            LOG.debug("Origins could not be asked for the sha1 of " + artifact, x);
+            return null;
+        }
+    }
+
+    private HttpURLConnection open(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (peerSocketFactory != null && connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(peerSocketFactory);
+            ((HttpsURLConnection) connection).setHostnameVerifier(TRUSTING_HOSTNAMES);
+        }
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    private static void writeSha1(File target, String sha1) throws IOException {
+        File sha1File = new File(target.getParentFile(), target.getName() + ".sha1");
+        Path tmp = Files.createTempFile(target.getParentFile().toPath(), "." + sha1File.getName() + ".", ".peer");
+        Files.write(tmp, sha1.getBytes(StandardCharsets.US_ASCII));
+        worldReadable(tmp);
+        Files.move(tmp, sha1File.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Temp files are created owner only, what is moved into the repo must stay readable like everything else aether puts there.
+     */
+    private static void worldReadable(Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+        } catch (UnsupportedOperationException x) {
+            file.toFile().setReadable(true, false);
+        }
+    }
+
+    static String path(Artifact artifact) {
+        StringBuilder path = new StringBuilder();
+        path.append(artifact.getGroupId().replace('.', '/')).append('/')
+            .append(artifact.getArtifactId()).append('/')
+            .append(artifact.getBaseVersion()).append('/')
+            .append(artifact.getArtifactId()).append('-').append(artifact.getVersion());
+        if (!artifact.getClassifier().isEmpty()) {
+            path.append('-').append(artifact.getClassifier());
+        }
+        if (!artifact.getExtension().isEmpty()) {
+            path.append('.').append(artifact.getExtension());
+        }
+        return path.toString();
+    }
+
+    private static boolean isExactVersion(String version) {
+        return !version.isEmpty()
+            && version.indexOf('[') == -1
+            && version.indexOf('(') == -1
+            && version.indexOf(',') == -1
+            && !version.equals("LATEST")
+            && !version.equals("RELEASE");
+    }
+
+    private static final HostnameVerifier TRUSTING_HOSTNAMES = (hostname, session) -> true;
+
+    private static SSLSocketFactory trustingSocketFactory() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context.getSocketFactory();
+    }
+}
@@ -9,6 +9,7 @@ import org.eclipse.aether.ConfigurationProperties;
 import org.eclipse.aether.DefaultRepositorySystemSession;
 import org.eclipse.aether.RepositorySystem;
 import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.connector.basic.BasicRepositoryConnectorFactory;
 import org.eclipse.aether.impl.DefaultServiceLocator;
 import org.eclipse.aether.repository.LocalRepository;
@@ -22,9 +23,50 @@ import org.eclipse.aether.transport.http.HttpTransporterFactory;
 public class RepositoryProvider {
 
     private final AtomicReference<File> localPathToRepo;
+    private final PeerArtifacts peerArtifacts;
+
+    private volatile RepositorySystem repositorySystem;
 
     public RepositoryProvider(AtomicReference<File> localPathToRepo) {
+        this(localPathToRepo, null);
+    }
+
+    /**
+     * @param peerArtifacts null when artifacts should only ever come from the origin repositories.
+     */
+    public RepositoryProvider(AtomicReference<File> localPathToRepo, PeerArtifacts peerArtifacts) {
         this.localPathToRepo = localPathToRepo;
+        this.peerArtifacts = peerArtifacts;
+    }
+
+    /**
+     * Gives ring peers a chance to supply the artifact before aether resolves it from the origin repositories.
+     */
+    public void fetchFromPeers(RepositorySystem system,
+        RepositorySystemSession session,
+        Artifact artifact,
+        List<RemoteRepository> remoteRepos,
+        CommandLog deployLog) {
+        if (peerArtifacts != null) {
+            peerArtifacts.fetch(localPathToRepo.get(), system, session, artifact, remoteRepos, deployLog);
+        }
+    }
+
+    /**
+     * The repository system is thread safe and costly to wire up so every deploy on the host shares one.
+     */
+    public RepositorySystem repositorySystem() {
+        RepositorySystem system = repositorySystem;
+        if (system == null) {
+            synchronized (this) {
+                system = repositorySystem;
+                if (system == null) {
+                    system = newRepositorySystem();
+                    repositorySystem = system;
+                }
+            }
+        }
+        return system;
     }
 
     public RepositorySystem newRepositorySystem() {
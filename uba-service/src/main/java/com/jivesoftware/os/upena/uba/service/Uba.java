@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
@@ -37,6 +38,8 @@ public class Uba {
     private final PasswordStore passwordStore;
     private final UpenaClient upenaClient;
     final RepositoryProvider repositoryProvider;
+    private final ArtifactCache artifactCache;
+    private final ExecutorService resolveExecutor;
     final UbaCoordinate coordinate;
     private final UbaTree ubaTree;
     private final DeployableScriptInvoker invokeScript;
@@ -46,6 +49,7 @@ public class Uba {
     public Uba(PasswordStore passwordStore,
         UpenaClient upenaClient,
         RepositoryProvider repositoryProvider,
+        ArtifactCache artifactCache,
         UbaCoordinate ubaCoordinate,
         UbaTree ubaTree,
         UbaLog ubaLog) {
@@ -53,6 +57,16 @@ public class Uba {
         this.passwordStore = passwordStore;
         this.upenaClient = upenaClient;
         this.repositoryProvider = repositoryProvider;
+        this.artifactCache = artifactCache;
+        this.resolveExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                long id = count.incrementAndGet();
+                return new Thread(r, "Artifact resolver thread-" + id);
+            }
+        });
         this.coordinate = ubaCoordinate;
         this.ubaTree = ubaTree;
         this.invokeScript = new DeployableScriptInvoker(Executors.newCachedThreadPool(new ThreadFactory() {
@@ -130,6 +144,8 @@ public class Uba {
         return new Nanny(passwordStore,
             upenaClient,
             repositoryProvider,
+            artifactCache,
+            resolveExecutor,
             instanceDescriptor,
             instancePath,
             new DeployableValidator(),
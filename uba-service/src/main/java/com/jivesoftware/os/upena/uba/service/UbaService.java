@@ -17,6 +17,7 @@ package com.jivesoftware.os.upena.uba.service;
 
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.mlogger.core.ValueType;
 import com.jivesoftware.os.routing.bird.shared.InstanceChanged;
 import com.jivesoftware.os.routing.bird.shared.InstanceDescriptor;
 import com.jivesoftware.os.routing.bird.shared.InstanceDescriptorsRequest;
@@ -34,6 +35,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 public class UbaService {
 
@@ -43,17 +45,21 @@ public class UbaService {
     private final Uba uba;
     private final String hostKey;
     private final Map<String, Nanny> nannies = new ConcurrentHashMap<>();
+    private final ExecutorService nannyExecutor;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
 
     public UbaService(
         PasswordStore passwordStore,
         UpenaClient upenaClient,
         Uba uba,
-        String hostKey) {
+        String hostKey,
+        ExecutorService nannyExecutor) {
 
         this.passwordStore = passwordStore;
         this.upenaClient = upenaClient;
         this.uba = uba;
         this.hostKey = hostKey;
+        this.nannyExecutor = nannyExecutor;
     }
 
     public Iterable<Entry<String, Nanny>> iterateNannies() {
@@ -123,18 +129,18 @@ public class UbaService {
 
             Set<String> unexpectedPlayerKeys = new HashSet<>(nannies.keySet());
             unexpectedPlayerKeys.removeAll(expectedPlayer);
-            if (!unexpectedPlayerKeys.isEmpty()) {
-                for (String unexpectedPlayerKey : unexpectedPlayerKeys) {
-                    Nanny nanny = nannies.get(unexpectedPlayerKey);
+            for (String unexpectedPlayerKey : unexpectedPlayerKeys) {
+                // destroying can wait on an in flight redeploy so it must not hold up roll call
+                submit(unexpectedPlayerKey, nanny -> {
                     LOG.info("Destroying service:" + nanny);
                     try {
                         nanny.destroy();
                         nanny.stop();
-                        nannies.remove(unexpectedPlayerKey);
+                        nannies.remove(unexpectedPlayerKey, nanny);
                     } catch (InterruptedException | ExecutionException x) {
                         LOG.error("Failed to destroy " + nanny.getInstanceDescriptor(), x);
                     }
-                }
+                });
             }
 
             for (Nanny newPlayer : newPlayers) {
@@ -156,19 +162,63 @@ public class UbaService {
         }
     }
 
+    /**
+     * Hands each nanny to the nanny executor and returns without waiting. A nanny that is still busy from a previous tick, typically
+     * blocked on a slow redeploy, is skipped so it never holds up status checks for the other instances on this host.
+     */
     public List<String> nanny() throws Exception {
-        for (Nanny nanny : rollCall().values()) {
-            nanny.nanny(uba.coordinate);
-        }
+        nanny(rollCall().keySet());
         return new ArrayList<>();
     }
 
     public UbaReport report() throws Exception {
         UbaReport report = new UbaReport();
-        for (Nanny nanny : rollCall().values()) {
+        Map<String, Nanny> rollCall = rollCall();
+        for (Nanny nanny : rollCall.values()) {
             report.nannyReports.add(nanny.report());
-            nanny.nanny(uba.coordinate);
         }
+        nanny(rollCall.keySet());
         return report;
     }
+
+    private void nanny(Set<String> nannyKeys) {
+        for (String nannyKey : nannyKeys) {
+            submit(nannyKey, nanny -> nanny.nanny(uba.coordinate));
+        }
+        LOG.set(ValueType.VALUE, "nanny>inFlight", inFlight.size());
+    }
+
+    private void submit(String nannyKey, NannyTask task) {
+        Nanny nanny = nannies.get(nannyKey);
+        if (nanny == null) {
+            return;
+        }
+        if (!inFlight.add(nannyKey)) {
+            LOG.inc("nanny>skipped>inFlight");
+            return;
+        }
+        try {
+            nannyExecutor.submit(() -> {
+                long start = System.currentTimeMillis();
+                try {
+                    task.run(nanny);
+                } catch (Exception x) {
+                    LOG.error("Nanny failure for " + nanny.getInstanceDescriptor(), x);
+                } finally {
+                    inFlight.remove(nannyKey);
+                    InstanceDescriptor id = nanny.getInstanceDescriptor();
+                    LOG.set(ValueType.VALUE, "nanny>" + id.serviceName + ">" + id.instanceName + ">millis",
+                        System.currentTimeMillis() - start);
+                }
+            });
+        } catch (RuntimeException x) {
+            inFlight.remove(nannyKey);
+            throw x;
+        }
+    }
+
+    private interface NannyTask {
+
+        void run(Nanny nanny) throws Exception;
+    }
 }
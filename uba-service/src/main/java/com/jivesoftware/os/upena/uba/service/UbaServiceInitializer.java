@@ -18,6 +18,7 @@ package com.jivesoftware.os.upena.uba.service;
 import com.jivesoftware.os.routing.bird.http.client.OAuthSigner;
 import com.jivesoftware.os.uba.shared.PasswordStore;
 import java.io.File;
+import java.util.concurrent.Executors;
 
 public class UbaServiceInitializer {
 
@@ -28,15 +29,21 @@ public class UbaServiceInitializer {
         String workingDir,
         UbaCoordinate ubaCoordinate,
         OAuthSigner signer,
-        UbaLog ubaLog) throws Exception {
+        UbaLog ubaLog,
+        int nannyParallelism,
+        long artifactCacheMaxBytes,
+        long artifactCacheMaxUnusedMillis) throws Exception {
 
         File root = new File(new File(workingDir), "services/");
         if (!root.exists() && !root.mkdirs()) {
             throw new RuntimeException("Failed trying to mkdirs for " + root);
         }
         UbaTree tree = new UbaTree(root, new String[]{"cluster", "service", "release", "instance"});
-        Uba uba = new Uba(passwordStore, upenaClient, repositoryProvider, ubaCoordinate, tree, ubaLog);
-        UbaService conductorService = new UbaService(passwordStore, upenaClient, uba, hostKey);
+        Uba uba = new Uba(passwordStore, upenaClient, repositoryProvider,
+            new ArtifactCache(new File(new File(workingDir), "artifact-cache/"), artifactCacheMaxBytes, artifactCacheMaxUnusedMillis),
+            ubaCoordinate, tree, ubaLog);
+        UbaService conductorService = new UbaService(passwordStore, upenaClient, uba, hostKey,
+            Executors.newWorkStealingPool(nannyParallelism));
         return conductorService;
     }
 
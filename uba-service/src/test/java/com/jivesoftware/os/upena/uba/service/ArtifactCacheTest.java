@@ -0,0 +1,99 @@
+package com.jivesoftware.os.upena.uba.service;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ArtifactCacheTest {
+
+    private File dir;
+    private File cacheRoot;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        cacheRoot = new File(dir, "artifact-cache");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testLinkedCopiesAreSharedAndWritable() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheRoot, Long.MAX_VALUE, Long.MAX_VALUE);
+        File resolved = file("repo/a.jar", "a");
+
+        File one = cache.linkToDirectory(resolved, mkdir("one"));
+        File two = cache.linkToDirectory(resolved, mkdir("two"));
+
+        Assert.assertEquals(Files.toString(one, StandardCharsets.UTF_8), "a");
+        Assert.assertEquals(Files.toString(two, StandardCharsets.UTF_8), "a");
+        Assert.assertEquals(cached().length, 1);
+        Assert.assertTrue(cached()[0].canWrite(), "the cached inode is shared with instances and must keep its permissions");
+    }
+
+    @Test
+    public void testEvictsOnlyUnusedPastAge() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheRoot, Long.MAX_VALUE, TimeUnit.DAYS.toMillis(1));
+        File used = cache.linkToDirectory(file("repo/used.jar", "used"), mkdir("instance"));
+        File unused = new File(mkdir("gone"), "unused.jar");
+        cache.link(file("repo/unused.jar", "unused"), unused);
+        Assert.assertTrue(unused.delete());
+
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(cache.evict(now), 0, "nothing is old enough yet");
+
+        Assert.assertEquals(cache.evict(now + TimeUnit.DAYS.toMillis(2)), 1);
+        Assert.assertEquals(cached().length, 1);
+        Assert.assertTrue(cached()[0].getName().endsWith("-used.jar"));
+        Assert.assertTrue(used.exists());
+    }
+
+    @Test
+    public void testEvictsOldestUnusedPastMaxBytes() throws Exception {
+        ArtifactCache cache = new ArtifactCache(cacheRoot, 10, Long.MAX_VALUE);
+        long now = System.currentTimeMillis();
+        File gone = mkdir("gone");
+        for (int i = 0; i < 3; i++) {
+            File target = new File(gone, i + ".jar");
+            cache.link(file("repo/" + i + ".jar", "0123456789"), target);
+            Assert.assertTrue(target.delete());
+        }
+        Assert.assertEquals(cached().length, 3);
+        for (File cached : cached()) {
+            String name = cached.getName();
+            int i = name.charAt(name.length() - 5) - '0';
+            Assert.assertTrue(cached.setLastModified(now - TimeUnit.MINUTES.toMillis(10 - i)));
+        }
+
+        Assert.assertEquals(cache.evict(now), 2);
+        File[] kept = cached();
+        Assert.assertEquals(kept.length, 1);
+        Assert.assertTrue(kept[0].getName().endsWith("-2.jar"), kept[0].getName());
+    }
+
+    private File file(String path, String content) throws Exception {
+        File file = new File(dir, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private File mkdir(String name) {
+        File file = new File(dir, name);
+        Assert.assertTrue(file.mkdirs());
+        return file;
+    }
+
+    private File[] cached() {
+        return FileUtils.listFiles(cacheRoot, null, true).toArray(new File[0]);
+    }
+}
@@ -0,0 +1,187 @@
+package com.jivesoftware.os.upena.uba.service;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PeerArtifactsTest {
+
+    private static final String PATH = "com/example/a/1.0/a-1.0.jar";
+    private static final String OTHER_SHA1 = Hashing.sha1().hashString("other", StandardCharsets.UTF_8).toString();
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private final byte[] jar = new byte[10_500];
+    private Logged deployLog;
+    private File dir;
+    private HttpServer server;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        new Random(7).nextBytes(jar);
+        deployLog = new Logged();
+        dir = Files.createTempDir();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        String sha1 = Hashing.sha1().hashBytes(jar).toString();
+        server.createContext("/good/", exchange -> serve(exchange, jar, sha1, false));
+        server.createContext("/wrong/", exchange -> serve(exchange, jar, sha1, true));
+        server.createContext("/liar/", exchange -> serve(exchange, jar, OTHER_SHA1, false));
+        server.createContext("/down/", exchange -> {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        server.stop(0);
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testPath() throws Exception {
+        Assert.assertEquals(PeerArtifacts.path(new DefaultArtifact("com.example:a:jar:1.0")), PATH);
+        Assert.assertEquals(PeerArtifacts.path(new DefaultArtifact("com.example:a:tar.gz:dist:1.0")),
+            "com/example/a/1.0/a-1.0-dist.tar.gz");
+        Assert.assertEquals(PeerArtifacts.path(new DefaultArtifact("com.example:a:pom:1.0-20160101.120000-3")),
+            "com/example/a/1.0-SNAPSHOT/a-1.0-20160101.120000-3.pom", "timestamped snapshots live in the base version's directory");
+    }
+
+    @Test
+    public void testProbesAFewPeers() throws Exception {
+        List<String> peers = Arrays.asList("a", "b", "c", "d", "e", "f", "g");
+        List<String> probed = PeerArtifacts.probed(peers);
+        Assert.assertEquals(probed.size(), 4);
+        Assert.assertEquals(new HashSet<>(probed).size(), 4);
+        Assert.assertTrue(peers.containsAll(probed));
+        Assert.assertEquals(new HashSet<>(PeerArtifacts.probed(Arrays.asList("a", "b"))), new HashSet<>(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void testDownloadAssemblesRangesAndMovesPastBadHolders() throws Exception {
+        PeerArtifacts peerArtifacts = new PeerArtifacts(Collections::emptyList, 3, 1_000, 5_000, 5_000, false);
+        File tmp = new File(dir, "tmp");
+        peerArtifacts.download(Arrays.asList(url("down") + PATH, url("good") + PATH, url("wrong") + PATH), jar.length, tmp.toPath());
+        Assert.assertEquals(java.nio.file.Files.readAllBytes(tmp.toPath()), jar);
+    }
+
+    @Test
+    public void testFetchPublishesVerifiedArtifact() throws Exception {
+        File localRepo = new File(dir, "local");
+        PeerArtifacts peerArtifacts = new PeerArtifacts(() -> Arrays.asList(url("down"), url("good")), 2, 4_000, 5_000, 5_000, false);
+        Assert.assertTrue(fetch(peerArtifacts, localRepo, Hashing.sha1().hashBytes(jar).toString()));
+
+        File target = new File(localRepo, PATH);
+        Assert.assertEquals(java.nio.file.Files.readAllBytes(target.toPath()), jar);
+        Assert.assertEquals(Files.toString(new File(localRepo, PATH + ".sha1"), StandardCharsets.US_ASCII),
+            Hashing.sha1().hashBytes(jar).toString());
+        Assert.assertEquals(PosixFilePermissions.toString(java.nio.file.Files.getPosixFilePermissions(target.toPath())), "rw-r--r--");
+    }
+
+    @Test
+    public void testFetchRefusesBytesTheOriginDoesNotVouchFor() throws Exception {
+        File localRepo = new File(dir, "local");
+        PeerArtifacts peerArtifacts = new PeerArtifacts(() -> Collections.singletonList(url("good")), 2, 4_000, 5_000, 5_000, false);
+        Assert.assertFalse(fetch(peerArtifacts, localRepo, OTHER_SHA1));
+        Assert.assertTrue(deployLog.log.isEmpty(), "no peer holds what the origin publishes");
+
+        peerArtifacts = new PeerArtifacts(() -> Collections.singletonList(url("liar")), 2, 4_000, 5_000, 5_000, false);
+        Assert.assertFalse(fetch(peerArtifacts, localRepo, OTHER_SHA1));
+        Assert.assertTrue(deployLog.log.get(0).startsWith("peers served " + PATH), deployLog.log.toString());
+        Assert.assertFalse(new File(localRepo, PATH).exists());
+        Assert.assertEquals(new File(localRepo, PATH).getParentFile().list((d, name) -> name.endsWith(".peer")).length, 0);
+    }
+
+    private boolean fetch(PeerArtifacts peerArtifacts, File localRepo, String originSha1) throws Exception {
+        File origin = new File(dir, "origin");
+        File sha1 = new File(origin, PATH + ".sha1");
+        Files.createParentDirs(sha1);
+        Files.write(originSha1 + "  a-1.0.jar", sha1, StandardCharsets.US_ASCII);
+
+        RepositoryProvider repositoryProvider = new RepositoryProvider(new AtomicReference<>(localRepo));
+        RepositorySystem system = repositoryProvider.newRepositorySystem();
+        RepositorySystemSession session = repositoryProvider.newRepositorySystemSession(system);
+        RemoteRepository remote = new RemoteRepository.Builder("origin", "default", origin.toURI().toString()).build();
+        return peerArtifacts.fetch(localRepo, system, session, new DefaultArtifact("com.example:a:jar:1.0"),
+            Collections.singletonList(remote), deployLog);
+    }
+
+    private String url(String context) {
+        return "http://localhost:" + server.getAddress().getPort() + "/" + context + "/";
+    }
+
+    /**
+     * Just enough of the repo endpoint: the sha1 as ETag, Content-Length on HEAD and single ranges on GET.
+     */
+    private static void serve(HttpExchange exchange, byte[] bytes, String sha1, boolean wrongRange) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("ETag", "\"" + sha1 + "\"");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(bytes.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            Matcher matcher = RANGE.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+            Assert.assertTrue(matcher.matches());
+            int first = Integer.parseInt(matcher.group(1));
+            int last = Integer.parseInt(matcher.group(2));
+            int shift = wrongRange ? 1 : 0;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + (first + shift) + "-" + (last + shift) + "/" + bytes.length);
+            exchange.sendResponseHeaders(206, last - first + 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes, first, last - first + 1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static class Logged implements CommandLog {
+
+        private final List<String> log = new ArrayList<>();
+
+        @Override
+        public void log(String context, String message, Throwable t) {
+            log.add(message);
+        }
+
+        @Override
+        public void captured(String context, String message, Throwable t) {
+            log.add(message);
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public List<String> commitedLog() {
+            return log;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.jivesoftware.os.upena.uba.service;
+
+import com.google.common.io.Files;
+import com.jivesoftware.os.routing.bird.shared.InstanceDescriptor;
+import com.jivesoftware.os.routing.bird.shared.InstanceDescriptorsRequest;
+import com.jivesoftware.os.routing.bird.shared.InstanceDescriptorsResponse;
+import com.jivesoftware.os.uba.shared.NannyReport;
+import com.jivesoftware.os.uba.shared.UbaReport;
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class UbaServiceTest {
+
+    private File root;
+    private ExecutorService nannyExecutor;
+    private AtomicInteger rollCalls;
+    private Map<String, StubNanny> stubs;
+    private UbaService ubaService;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        root = Files.createTempDir();
+        nannyExecutor = Executors.newCachedThreadPool();
+        rollCalls = new AtomicInteger();
+        stubs = new HashMap<>();
+        UpenaClient upenaClient = new UpenaClient() {
+            @Override
+            public InstanceDescriptorsResponse instanceDescriptor(InstanceDescriptorsRequest request) {
+                rollCalls.incrementAndGet();
+                InstanceDescriptorsResponse response = new InstanceDescriptorsResponse(request.hostKey, false);
+                for (StubNanny stub : stubs.values()) {
+                    response.instanceDescriptors.add(stub.getInstanceDescriptor());
+                }
+                return response;
+            }
+
+            @Override
+            public void updateKeyPair(String instanceKey, String publicKey) {
+            }
+        };
+        Uba uba = new Uba(null, upenaClient, null, null, null, null, null) {
+            @Override
+            public Collection<InstancePathAndDescriptor> getOnDiskInstances() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            InstancePath instancePath(InstanceDescriptor id) {
+                return path(id);
+            }
+
+            @Override
+            Nanny newNanny(InstanceDescriptor id, InstancePath instancePath) {
+                return stubs.get(id.instanceKey);
+            }
+        };
+        ubaService = new UbaService(null, upenaClient, uba, "host", nannyExecutor);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        for (StubNanny stub : stubs.values()) {
+            stub.release.countDown();
+        }
+        nannyExecutor.shutdownNow();
+        FileUtils.deleteQuietly(root);
+    }
+
+    @Test
+    public void testBusyNannyIsSkippedWhileOthersTick() throws Exception {
+        StubNanny slow = stub("slow", true);
+        StubNanny fast = stub("fast", false);
+
+        ubaService.nanny();
+        await(() -> slow.ticks.get() == 1 && fast.ticks.get() == 1);
+
+        nannyUntil(() -> fast.ticks.get() >= 3);
+        Assert.assertEquals(slow.ticks.get(), 1, "a nanny still busy from an earlier tick is skipped, not queued");
+
+        slow.release.countDown();
+        nannyUntil(() -> slow.ticks.get() == 2);
+    }
+
+    @Test
+    public void testReportRollsCallOnce() throws Exception {
+        StubNanny a = stub("a", false);
+        StubNanny b = stub("b", false);
+
+        UbaReport report = ubaService.report();
+        Assert.assertEquals(rollCalls.get(), 1);
+        Assert.assertEquals(report.nannyReports.size(), 2);
+        await(() -> a.ticks.get() == 1 && b.ticks.get() == 1);
+    }
+
+    private StubNanny stub(String instanceKey, boolean blocks) throws Exception {
+        InstanceDescriptor id = new InstanceDescriptor("dc", "rack", "host", "cluster", "cluster", "service", "service",
+            "releaseGroup", "releaseGroup", instanceKey, stubs.size() + 1, "1.0", "repo", null, -1, true);
+        StubNanny stub = new StubNanny(id, path(id), blocks);
+        stubs.put(instanceKey, stub);
+        return stub;
+    }
+
+    private InstancePath path(InstanceDescriptor id) {
+        return new InstancePath(root, new NameAndKey[] {
+            new NameAndKey(id.clusterName, id.clusterKey),
+            new NameAndKey(id.serviceName, id.serviceKey),
+            new NameAndKey(id.releaseGroupName, id.releaseGroupKey),
+            new NameAndKey(Integer.toString(id.instanceName), id.instanceKey)
+        });
+    }
+
+    private void nannyUntil(BooleanSupplier condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            ubaService.nanny();
+            Thread.sleep(10);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private static class StubNanny extends Nanny {
+
+        private final boolean blocks;
+        private final AtomicInteger ticks = new AtomicInteger();
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        StubNanny(InstanceDescriptor id, InstancePath instancePath, boolean blocks) {
+            super(null, null, null, null, null, id, instancePath, null, null, null, null, null, null);
+            this.blocks = blocks;
+        }
+
+        @Override
+        public boolean ensureCerts(InstanceDescriptor id) {
+            return false;
+        }
+
+        @Override
+        public void setInstanceDescriptor(UbaCoordinate ubaCoordinate, InstanceDescriptor id) {
+        }
+
+        @Override
+        public NannyReport report() {
+            return new NannyReport("ok", getInstanceDescriptor(), Collections.emptyList());
+        }
+
+        @Override
+        public String nanny(UbaCoordinate ubaCoordinate) throws InterruptedException {
+            ticks.incrementAndGet();
+            if (blocks) {
+                release.await();
+            }
+            return "";
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.jivesoftware.os.upena.deployable;
 import com.google.common.base.Joiner;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.upena.deployable.profiler.model.FrameTree;
 import com.sun.jdi.AbsentInformationException;
 import com.sun.jdi.ArrayReference;
 import com.sun.jdi.ArrayType;
@@ -57,6 +58,7 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -67,6 +69,16 @@ public class JDIAPI {
 
     private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
 
+    private final SamplingLimits samplingLimits;
+
+    public JDIAPI() {
+        this(new SamplingLimits(20, TimeUnit.MINUTES.toMillis(10), 2, TimeUnit.SECONDS.toMillis(10)));
+    }
+
+    public JDIAPI(SamplingLimits samplingLimits) {
+        this.samplingLimits = samplingLimits;
+    }
+
     public enum ThreadDumpLineType {
         thread, monitor, location, eod
     }
@@ -252,6 +264,219 @@ public class JDIAPI {
         return sb.toString();
     }
 
+    /**
+     * Guardrails applied to every wall clock sampling run regardless of what was asked for.
+     */
+    public static class SamplingLimits {
+
+        public final int maxSamplesPerSecond;
+        public final long maxDurationMillis;
+        public final int maxPausePercent;
+        public final long maxTotalPauseMillis;
+
+        /**
+         * @param maxSamplesPerSecond upper bound on the sampling rate.
+         * @param maxDurationMillis upper bound on how long a run may sample.
+         * @param maxPausePercent samples are skipped while the target has spent more than this percent of the run suspended.
+         * @param maxTotalPauseMillis a run stops once the target has been suspended this long in total.
+         */
+        public SamplingLimits(int maxSamplesPerSecond, long maxDurationMillis, int maxPausePercent, long maxTotalPauseMillis) {
+            this.maxSamplesPerSecond = maxSamplesPerSecond;
+            this.maxDurationMillis = maxDurationMillis;
+            this.maxPausePercent = maxPausePercent;
+            this.maxTotalPauseMillis = maxTotalPauseMillis;
+        }
+    }
+
+    private static final long SAMPLER_IDLE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final ConcurrentHashMap<String, WallClockSampler> samplers = new ConcurrentHashMap<>();
+
+    /**
+     * Samplers that are not running and have not been asked for within an hour are dropped along with the frames they hold.
+     */
+    public WallClockSampler sampler(String hostName, int port) {
+        long now = System.currentTimeMillis();
+        samplers.values().removeIf(sampler -> !sampler.isRunning() && now - sampler.lastAccessed > SAMPLER_IDLE_MILLIS);
+        WallClockSampler sampler = samplers.computeIfAbsent(hostName.trim() + ":" + port,
+            (key) -> new WallClockSampler(hostName.trim(), port, samplingLimits));
+        sampler.lastAccessed = now;
+        return sampler;
+    }
+
+    /**
+     * Periodically suspends the target over its debug port, captures every thread's frames and folds them into a FrameTree. The
+     * target only stays suspended while frames are fetched, names are resolved after it resumes.
+     */
+    public static class WallClockSampler {
+
+        private final String hostName;
+        private final int port;
+        private final SamplingLimits limits;
+        private final FrameTree frameTree = new FrameTree();
+        private final AtomicBoolean running = new AtomicBoolean();
+        private volatile boolean stop;
+        private volatile long samples;
+        private volatile long skipped;
+        private volatile long pauseNanos;
+        private volatile long maxPauseNanos;
+        private volatile String status = "idle";
+        private volatile long lastAccessed = System.currentTimeMillis();
+
+        public WallClockSampler(String hostName, int port, SamplingLimits limits) {
+            this.hostName = hostName;
+            this.port = port;
+            this.limits = limits;
+        }
+
+        public FrameTree getFrameTree() {
+            return frameTree;
+        }
+
+        public boolean isRunning() {
+            return running.get();
+        }
+
+        public void stop() {
+            stop = true;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getPauseMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(pauseNanos);
+        }
+
+        public long getMaxPauseMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxPauseNanos);
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * Blocks until the run completes, is stopped or exhausts its pause budget.
+         */
+        public void run(int samplesPerSecond, long durationMillis) throws Exception {
+            if (!running.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                int rate = Math.max(1, Math.min(samplesPerSecond, limits.maxSamplesPerSecond));
+                long duration = Math.max(0, Math.min(durationMillis, limits.maxDurationMillis));
+                long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+
+                stop = false;
+                samples = 0;
+                skipped = 0;
+                pauseNanos = 0;
+                maxPauseNanos = 0;
+                frameTree.clear();
+                status = "attaching";
+
+                VirtualMachine vm = attach(hostName, port);
+                try {
+                    long start = System.nanoTime();
+                    long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+                    status = "sampling at " + rate + "/sec for " + duration + "millis";
+                    long next = start;
+                    while (!stop && System.nanoTime() < end) {
+                        long now = System.nanoTime();
+                        if (now < next) {
+                            TimeUnit.NANOSECONDS.sleep(next - now);
+                            continue;
+                        }
+                        // a slow sample pushes the schedule back rather than bursting to catch up
+                        next = Math.max(next + intervalNanos, now);
+
+                        if (pauseNanos >= TimeUnit.MILLISECONDS.toNanos(limits.maxTotalPauseMillis)) {
+                            status = "stopped, target was suspended for " + getPauseMillis() + "millis in total";
+                            return;
+                        }
+                        if (pauseNanos * 100 > (now - start) * limits.maxPausePercent) {
+                            skipped++;
+                            continue;
+                        }
+                        sample(vm);
+                    }
+                    status = stop ? "stopped" : "done";
+                } finally {
+                    vm.dispose();
+                }
+            } catch (Exception x) {
+                status = "failed " + x.getMessage();
+                throw x;
+            } finally {
+                running.set(false);
+            }
+        }
+
+        private void sample(VirtualMachine vm) {
+            List<ThreadReference> threads = vm.allThreads();
+            List<Object[]> stacks = new ArrayList<>(threads.size());
+            long suspended = System.nanoTime();
+            vm.suspend();
+            try {
+                for (ThreadReference thread : threads) {
+                    int threadStatus = thread.status();
+                    if (threadStatus == ThreadReference.THREAD_STATUS_ZOMBIE || threadStatus == ThreadReference.THREAD_STATUS_NOT_STARTED) {
+                        continue;
+                    }
+                    try {
+                        List<Location> locations = new ArrayList<>();
+                        for (StackFrame frame : thread.frames()) {
+                            locations.add(frame.location());
+                        }
+                        stacks.add(new Object[]{threadStatus, locations});
+                    } catch (Exception x) {
+                        // thread went away or can't be walked, skip it for this sample
+                    }
+                }
+            } finally {
+                vm.resume();
+                long paused = System.nanoTime() - suspended;
+                pauseNanos += paused;
+                maxPauseNanos = Math.max(maxPauseNanos, paused);
+            }
+
+            for (Object[] stack : stacks) {
+                int threadStatus = (Integer) stack[0];
+                @SuppressWarnings("unchecked")
+                List<Location> locations = (List<Location>) stack[1];
+                List<String> frames = new ArrayList<>(locations.size() + 1);
+                frames.add("[" + (threadStatus < 0 ? "UNKNOWN" : STATUS[threadStatus]) + "]");
+                for (int i = locations.size() - 1; i >= 0; i--) {
+                    Location location = locations.get(i);
+                    frames.add(location.declaringType().name() + "." + location.method().name());
+                }
+                frameTree.add(frames);
+            }
+            samples++;
+        }
+    }
+
+    private static VirtualMachine attach(String hostName, int port) throws Exception {
+        VirtualMachineManager virtualMachineManager = Bootstrap.virtualMachineManager();
+        for (AttachingConnector attachingConnector : virtualMachineManager.attachingConnectors()) {
+            if (attachingConnector.transport().name().equals("dt_socket")) {
+                Map<String, Connector.Argument> defaultArguments = attachingConnector.defaultArguments();
+                ((Connector.StringArgument) defaultArguments.get("hostname")).setValue(hostName);
+                ((Connector.IntegerArgument) defaultArguments.get("port")).setValue(port);
+                VirtualMachine vm = attachingConnector.attach(defaultArguments);
+                LOG.info("Attached to process '" + vm.name() + "'");
+                return vm;
+            }
+        }
+        throw new Exception("Failed to connect to " + hostName + ":" + port);
+    }
+
     private final ConcurrentHashMap<String, BreakpointDebugger> breakpointDebugger = new ConcurrentHashMap<>();
 
     public BreakpointDebugger create(String hostName, int port) {
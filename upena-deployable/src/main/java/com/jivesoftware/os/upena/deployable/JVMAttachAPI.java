@@ -1,34 +1,175 @@
 package com.jivesoftware.os.upena.deployable;
 
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
 import com.sun.tools.attach.VirtualMachine;
 import com.sun.tools.attach.VirtualMachineDescriptor;
 import java.io.File;
-import java.util.List;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Loads the latent profiler agent into instances running on this host through the attach api. Instances are found by their instance
+ * key, uba runs every instance out of a directory named after its key so the key shows up in either the command line or user.dir.
+ *
+ * The user.dir of a jvm is read from /proc when possible and otherwise by attaching once, either way it is remembered per pid until
+ * that pid goes away so looking up an instance never attaches to every jvm on the host.
  *
  * @author jonathan.colt
  */
 public class JVMAttachAPI {
 
-    public static void main(String[] args) throws Exception {
-        // attach to target VM
-        List<VirtualMachineDescriptor> list = VirtualMachine.list();
-        VirtualMachine vm = VirtualMachine.attach(list.get(0));
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    /**
+     * Mirrors colt.nicity.performance.agent.LatentAgent.PREFIXES_PROPERTY.
+     */
+    public static final String LATENT_PREFIXES_PROPERTY = "latent.profiler.prefixes";
+    /**
+     * Mirrors colt.nicity.performance.agent.LatentAgent.ASYNC_PROPERTY.
+     */
+    public static final String LATENT_ASYNC_PROPERTY = "latent.profiler.async";
+
+    private final String latentAgentJar;
+    private final UserDirs userDirs;
+    private final String self = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+    private final Map<String, String> instancePids = new ConcurrentHashMap<>();
+    private final Map<String, String> pidUserDirs = new ConcurrentHashMap<>();
+
+    public JVMAttachAPI(String latentAgentJar) {
+        this(latentAgentJar, JVMAttachAPI::userDir);
+        LOG.info("Attach api available via {}", VirtualMachine.class.getName());
+    }
+
+    JVMAttachAPI(String latentAgentJar, UserDirs userDirs) {
+        this.latentAgentJar = latentAgentJar;
+        this.userDirs = userDirs;
+    }
+
+    public boolean hasLatentAgent() {
+        return latentAgentJar != null && new File(latentAgentJar).isFile();
+    }
+
+    /**
+     * @return the arguments LatentAgent.agentmain expects to attach, the same ones the -javaagent flag takes. The agent splits them on ':'
+     * so any in the names are replaced.
+     */
+    public static String latentAttachArgs(String clusterName, String serviceName, String version, String prefixes, boolean followAsync) {
+        return "attach:localhost:"
+            + agentName(clusterName) + ":"
+            + agentName(serviceName) + ":"
+            + agentName(version) + ":"
+            + prefixes.replaceAll("[\\s:]", "")
+            + (followAsync ? ":async" : "");
+    }
+
+    private static String agentName(String name) {
+        return name == null ? "unknown" : name.replace(':', '_');
+    }
+
+    /**
+     * @return the instance's system properties, the latent agent publishes its state as LATENT_*_PROPERTY while it is loaded.
+     */
+    public Properties systemProperties(String instanceKey) throws Exception {
+        VirtualMachine vm = attach(instanceKey);
+        try {
+            return vm.getSystemProperties();
+        } finally {
+            vm.detach();
+        }
+    }
 
-        // get system properties in target VM
-        Properties props = vm.getSystemProperties();
+    /**
+     * @param agentArgs one of the commands understood by LatentAgent.agentmain
+     */
+    public void latentAgent(String instanceKey, String agentArgs) throws Exception {
+        if (!hasLatentAgent()) {
+            throw new IllegalStateException("No latent agent jar available. Please set -Dupena.profiler.agentJar");
+        }
+        VirtualMachine vm = attach(instanceKey);
+        try {
+            vm.loadAgent(latentAgentJar, agentArgs);
+            LOG.info("Loaded latent agent into {} with {}", instanceKey, agentArgs);
+        } finally {
+            vm.detach();
+        }
+    }
 
-        // construct path to management agent
-        String home = props.getProperty("java.home");
-        String agent = home + File.separator + "lib" + File.separator
-            + "management-agent.jar";
+    private VirtualMachine attach(String instanceKey) throws Exception {
+        Map<String, String> running = new LinkedHashMap<>();
+        for (VirtualMachineDescriptor descriptor : VirtualMachine.list()) {
+            running.put(descriptor.id(), descriptor.displayName());
+        }
+        String pid = pid(instanceKey, running);
+        if (pid == null) {
+            throw new IllegalStateException("There is no jvm for instance " + instanceKey + " running on this host.");
+        }
+        return VirtualMachine.attach(pid);
+    }
+
+    /**
+     * @param running display name by pid of every jvm on the host.
+     * @return the pid of the jvm running the instance or null.
+     */
+    String pid(String instanceKey, Map<String, String> running) {
+        pidUserDirs.keySet().retainAll(running.keySet());
+        instancePids.values().retainAll(running.keySet());
+
+        String pid = instancePids.get(instanceKey);
+        if (pid != null) {
+            return pid;
+        }
+        for (Map.Entry<String, String> entry : running.entrySet()) {
+            if (entry.getValue().contains(instanceKey)) {
+                instancePids.put(instanceKey, entry.getKey());
+                return entry.getKey();
+            }
+        }
+        for (String candidate : running.keySet()) {
+            if (candidate.equals(self)) {
+                continue;
+            }
+            String userDir = pidUserDirs.computeIfAbsent(candidate, key -> Objects.toString(userDirs.userDir(key), ""));
+            if (userDir.contains(instanceKey)) {
+                instancePids.put(instanceKey, candidate);
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static String userDir(String pid) {
+        Path cwd = Paths.get("/proc", pid, "cwd");
+        try {
+            return Files.readSymbolicLink(cwd).toString();
+        } catch (Exception x) {
+            LOG.debug("No /proc for jvm {}, attaching to read user.dir.", pid);
+        }
+        try {
+            VirtualMachine vm = VirtualMachine.attach(pid);
+            try {
+                return vm.getSystemProperties().getProperty("user.dir");
+            } finally {
+                vm.detach();
+            }
+        } catch (Exception x) {
+            LOG.debug("Skipping jvm " + pid + " we cannot attach to.", x);
+            return null;
+        }
+    }
 
-        // load agent into target VM
-        vm.loadAgent(agent, "com.sun.management.jmxremote.port=5000");
+    interface UserDirs {
 
-        // detach
-        vm.detach();
+        /**
+         * @return null if it can not be determined.
+         */
+        String userDir(String pid);
     }
 }
@@ -16,6 +16,7 @@
 package com.jivesoftware.os.upena.deployable;
 
 import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
 import com.jivesoftware.os.upena.service.UpenaStore;
@@ -37,10 +38,14 @@ import org.eclipse.aether.resolution.VersionRangeResult;
 
 import java.io.File;
 import java.io.FileReader;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author jonathan.colt
@@ -51,16 +56,38 @@ public class UpenaAutoRelease {
 
     private final RepositoryProvider repositoryProvider;
     private final UpenaStore upenaStore;
+    private final ExecutorService releaser = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("upena-auto-release-%d").setDaemon(true).build());
+    private final Set<File> queued = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
     public UpenaAutoRelease(RepositoryProvider repositoryProvider, UpenaStore upenaStore) {
         this.repositoryProvider = repositoryProvider;
         this.upenaStore = upenaStore;
     }
 
+    /**
+     * Queues the pom for release processing so the upload that delivered it isn't held up resolving versions. A pom uploaded again while
+     * it is still queued is only processed once.
+     */
     public void uploaded(File pom) {
+        if (queued.add(pom)) {
+            LOG.inc("autoRelease>queued");
+            releaser.submit(() -> {
+                queued.remove(pom);
+                release(pom);
+            });
+        } else {
+            LOG.inc("autoRelease>coalesced");
+        }
+    }
+
+    private void release(File pom) {
         try {
             MavenXpp3Reader reader = new MavenXpp3Reader();
-            Model model = reader.read(new FileReader(pom));
+            Model model;
+            try (FileReader fileReader = new FileReader(pom)) {
+                model = reader.read(fileReader);
+            }
 
             RepositorySystem system = repositoryProvider.newRepositorySystem();
             DefaultRepositorySystemSession session = repositoryProvider.newRepositorySystemSession(system);
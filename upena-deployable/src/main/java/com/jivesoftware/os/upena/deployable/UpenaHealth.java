@@ -11,11 +11,13 @@ import com.jivesoftware.os.amza.service.AmzaService;
 import com.jivesoftware.os.amza.service.ring.AmzaRingReader;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.mlogger.core.ValueType;
 import com.jivesoftware.os.routing.bird.http.client.HttpRequestHelper;
 import com.jivesoftware.os.routing.bird.http.client.HttpRequestHelperUtils;
 import com.jivesoftware.os.routing.bird.shared.BoundedExecutor;
 import com.jivesoftware.os.routing.bird.shared.InstanceDescriptor;
 import com.jivesoftware.os.upena.deployable.region.SparseCircularHitsBucketBuffer;
+import com.jivesoftware.os.upena.service.JenkinsHash;
 import com.jivesoftware.os.upena.service.UpenaConfigStore;
 import com.jivesoftware.os.upena.shared.HostKey;
 import com.jivesoftware.os.upena.uba.service.Nanny;
@@ -25,12 +27,15 @@ import java.awt.Color;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author jonathan.colt
@@ -102,6 +107,59 @@ public class UpenaHealth {
     public final ConcurrentMap<RingHost, Long> lastExecuted = Maps.newConcurrentMap();
     public final Map<String, InstanceSparseCircularHitsBucketBuffer> instanceHealthHistory = new ConcurrentHashMap<>();
 
+    private final AtomicLong nannySeq = new AtomicLong();
+    private final ConcurrentMap<String, NannySeq> nannySeqs = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, InstanceHealth> instanceHealths = Maps.newConcurrentMap();
+    private final ConcurrentMap<RingHost, Set<String>> ringHostInstanceKeys = Maps.newConcurrentMap();
+    private final AtomicLong snapshotVersion = new AtomicLong();
+
+    /**
+     * O(1) lookup against the last health reported for an instance by whichever node runs it. Never fans out, callers are expected to
+     * check InstanceHealth.ageMillis() against how stale an answer they are willing to act on.
+     *
+     * @return null if no node has reported the instance.
+     */
+    public InstanceHealth instanceHealth(String instanceKey) {
+        return instanceHealths.get(instanceKey);
+    }
+
+    public long snapshotVersion() {
+        return snapshotVersion.get();
+    }
+
+    /**
+     * Folds this nodes nanny health straight into the snapshot without a round trip through the health endpoint.
+     */
+    public void refreshLocalHealth() throws Exception {
+        updateSnapshot(ringHost, buildNodeHealth(), System.currentTimeMillis());
+    }
+
+    private void updateSnapshot(RingHost reportingHost, NodeHealth nodeHealth, long timestamp) {
+        Set<String> instanceKeys = new HashSet<>();
+        for (NannyHealth nannyHealth : nodeHealth.nannyHealths) {
+            String instanceKey = nannyHealth.instanceDescriptor.instanceKey;
+            instanceKeys.add(instanceKey);
+            instanceHealths.put(instanceKey, new InstanceHealth(reportingHost.getHost() + ":" + reportingHost.getPort(),
+                nannyHealth.serviceHealth.version,
+                nannyHealth.serviceHealth.fullyOnline,
+                nannyHealth.serviceHealth.health,
+                timestamp));
+        }
+        Set<String> previous = ringHostInstanceKeys.put(reportingHost, instanceKeys);
+        if (previous != null) {
+            String reportedBy = reportingHost.getHost() + ":" + reportingHost.getPort();
+            for (String instanceKey : previous) {
+                if (!instanceKeys.contains(instanceKey)) {
+                    // only forget it if it did not move to another node
+                    instanceHealths.computeIfPresent(instanceKey, (key, got) -> got.reportedBy.equals(reportedBy) ? null : got);
+                }
+            }
+        }
+        snapshotVersion.incrementAndGet();
+        LOG.set(ValueType.VALUE, "health>snapshot>instances", instanceHealths.size());
+    }
+
     public ConcurrentMap<RingHost, NodeHealth> buildClusterHealth() throws Exception {
         for (RingMemberAndHost ringMemberAndHost : amzaService.getRingReader().getRing(AmzaRingReader.SYSTEM_RING, 30_000L).entries) {
             RingHost ringHost = ringMemberAndHost.ringHost;
@@ -112,9 +170,16 @@ public class UpenaHealth {
                         try {
                             HttpRequestHelper requestHelper = HttpRequestHelperUtils.buildRequestHelper(upenaSSLConfig.sslEnable,
                                 upenaSSLConfig.allowSelfSignedCerts, upenaSSLConfig.signer, ringHost.getHost(), ringHost.getPort());
-                            UpenaHealth.NodeHealth nodeHealth = requestHelper.executeGetRequest(
-                                "/upena/health/instance", UpenaHealth.NodeHealth.class, null);
+                            UpenaHealth.NodeHealth previous = nodeHealths.get(ringHost);
+                            long since = previous == null ? 0 : previous.seq;
+                            long epoch = previous == null ? 0 : previous.epoch;
+                            // deploy logs only ride along on a full fetch, deltas carry forward the ones we already hold
+                            UpenaHealth.NodeHealth got = requestHelper.executeGetRequest(
+                                "/upena/health/instance?since=" + since + "&epoch=" + epoch + "&logs=" + (since == 0),
+                                UpenaHealth.NodeHealth.class, null);
+                            UpenaHealth.NodeHealth nodeHealth = got.delta ? mergeDelta(previous, got, System.currentTimeMillis()) : got;
                             nodeHealths.put(ringHost, nodeHealth);
+                            updateSnapshot(ringHost, nodeHealth, System.currentTimeMillis());
 
                             for (UpenaHealth.NannyHealth nannyHealth : nodeHealth.nannyHealths) {
                                 instanceHealthHistory.compute(nannyHealth.instanceDescriptor.instanceKey, (instanceKey, instance) -> {
@@ -147,6 +212,78 @@ public class UpenaHealth {
         return nodeHealths;
     }
 
+    /**
+     * Applies a delta on top of the last document we hold for the node and returns a new document. Neither input is modified as the
+     * previous document may still be read by the UI. Nannies absent from the delta are carried over with their uptime recomputed
+     * locally so it does not freeze between changes, changed nannies keep the deploy log we already hold as deltas are fetched
+     * without logs.
+     */
+    static NodeHealth mergeDelta(NodeHealth previous, NodeHealth delta, long now) {
+        Map<String, NannyHealth> held = new HashMap<>();
+        if (previous != null) {
+            for (NannyHealth nannyHealth : previous.nannyHealths) {
+                held.put(nannyHealth.instanceDescriptor.instanceKey, nannyHealth);
+            }
+        }
+        Map<String, NannyHealth> changed = new HashMap<>();
+        for (NannyHealth nannyHealth : delta.nannyHealths) {
+            changed.put(nannyHealth.instanceDescriptor.instanceKey, nannyHealth);
+        }
+
+        NodeHealth merged = new NodeHealth(delta.hostKey, delta.host, delta.port);
+        merged.health = delta.health;
+        merged.epoch = delta.epoch;
+        merged.seq = delta.seq;
+        merged.instanceKeys = new ArrayList<>(delta.instanceKeys);
+        merged.nannyHealths = new ArrayList<>(delta.instanceKeys.size());
+        for (String instanceKey : delta.instanceKeys) {
+            NannyHealth was = held.get(instanceKey);
+            NannyHealth got = changed.get(instanceKey);
+            if (got != null) {
+                NannyHealth nannyHealth = got.copy();
+                if (nannyHealth.log == null && was != null) {
+                    nannyHealth.log = was.log;
+                }
+                merged.nannyHealths.add(nannyHealth);
+            } else if (was != null) {
+                NannyHealth nannyHealth = was.copy();
+                if (nannyHealth.startTimeMillis > 0) {
+                    nannyHealth.uptime = shortHumanReadableUptime(now - nannyHealth.startTimeMillis);
+                }
+                merged.nannyHealths.add(nannyHealth);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Only what describes the nanny's state goes into the fingerprint. Uptime, deploy logs and health check timestamps move on every
+     * pass and would otherwise bump the seq of every nanny every time.
+     */
+    static long fingerprint(ObjectMapper mapper, NannyHealth nannyHealth) throws Exception {
+        List<Object> stable = new ArrayList<>();
+        stable.add(nannyHealth.instanceDescriptor);
+        stable.add(nannyHealth.status);
+        stable.add(nannyHealth.startTimeMillis);
+        stable.add(nannyHealth.unexpectedRestart);
+        stable.add(nannyHealth.configIsStale);
+        stable.add(nannyHealth.healthConfigIsStale);
+        ServiceHealth serviceHealth = nannyHealth.serviceHealth;
+        if (serviceHealth != null) {
+            stable.add(serviceHealth.version);
+            stable.add(serviceHealth.fullyOnline);
+            stable.add(serviceHealth.health);
+            if (serviceHealth.healthChecks != null) {
+                for (Health health : serviceHealth.healthChecks) {
+                    stable.add(health.name);
+                    stable.add(health.health);
+                    stable.add(health.status);
+                }
+            }
+        }
+        return JenkinsHash.hash(mapper.writeValueAsBytes(stable));
+    }
+
     private static class InstanceSparseCircularHitsBucketBuffer {
 
         public final InstanceDescriptor instanceDescriptor;
@@ -184,6 +321,55 @@ public class UpenaHealth {
     }
 
     public NodeHealth buildNodeHealth() throws Exception {
+        return buildNodeHealth(0, startupTime, true);
+    }
+
+    /**
+     * @param since only nannies that changed after this sequence are included. The full document is returned when the caller's epoch
+     * does not match ours, as our sequences restarted with us.
+     * @param includeLogs when false the deploy logs are left out.
+     */
+    public NodeHealth buildNodeHealth(long since, long epoch, boolean includeLogs) throws Exception {
+        NodeHealth nodeHealth;
+        // stamping is serialized so a document never advertises a seq newer than the nanny states it carries
+        synchronized (nannySeqs) {
+            nodeHealth = buildFullNodeHealth();
+            Set<String> instanceKeys = new HashSet<>();
+            for (NannyHealth nannyHealth : nodeHealth.nannyHealths) {
+                String instanceKey = nannyHealth.instanceDescriptor.instanceKey;
+                instanceKeys.add(instanceKey);
+                long fingerprint = fingerprint(mapper, nannyHealth);
+                NannySeq stamped = nannySeqs.compute(instanceKey,
+                    (key, existing) -> existing != null && existing.fingerprint == fingerprint
+                        ? existing
+                        : new NannySeq(fingerprint, nannySeq.incrementAndGet()));
+                nannyHealth.seq = stamped.seq;
+                nodeHealth.instanceKeys.add(instanceKey);
+            }
+            nannySeqs.keySet().retainAll(instanceKeys);
+            nodeHealth.epoch = startupTime;
+            nodeHealth.seq = nannySeq.get();
+        }
+
+        if (since > 0 && epoch == startupTime) {
+            List<NannyHealth> changed = new ArrayList<>();
+            for (NannyHealth nannyHealth : nodeHealth.nannyHealths) {
+                if (nannyHealth.seq > since) {
+                    changed.add(nannyHealth);
+                }
+            }
+            nodeHealth.nannyHealths = changed;
+            nodeHealth.delta = true;
+        }
+        if (!includeLogs) {
+            for (NannyHealth nannyHealth : nodeHealth.nannyHealths) {
+                nannyHealth.log = null;
+            }
+        }
+        return nodeHealth;
+    }
+
+    private NodeHealth buildFullNodeHealth() throws Exception {
         NodeHealth nodeHealth = new NodeHealth(ringHostKey.getKey(), ringHost.getHost(), ringHost.getPort());
 
         for (Map.Entry<String, Nanny> nanny : ubaService.iterateNannies()) {
@@ -217,6 +403,7 @@ public class UpenaHealth {
             }
 
             NannyHealth nannyHealth = new NannyHealth(uptime, id, log, serviceHealth);
+            nannyHealth.startTimeMillis = n.getStartTimeMillis() > 0 ? n.getStartTimeMillis() : -1;
             if (nanny.getValue().getUnexpectedRestartTimestamp() > -1) {
                 nannyHealth.unexpectedRestart = nanny.getValue().getUnexpectedRestartTimestamp();
             }
@@ -233,12 +420,47 @@ public class UpenaHealth {
         return nodeHealth;
     }
 
+    static public class InstanceHealth {
+        public final String reportedBy;
+        public final String version;
+        public final boolean fullyOnline;
+        public final double health;
+        public final long timestamp;
+
+        public InstanceHealth(String reportedBy, String version, boolean fullyOnline, double health, long timestamp) {
+            this.reportedBy = reportedBy;
+            this.version = version;
+            this.fullyOnline = fullyOnline;
+            this.health = health;
+            this.timestamp = timestamp;
+        }
+
+        public long ageMillis() {
+            return Math.max(0, System.currentTimeMillis() - timestamp);
+        }
+    }
+
+    private static class NannySeq {
+
+        private final long fingerprint;
+        private final long seq;
+
+        private NannySeq(long fingerprint, long seq) {
+            this.fingerprint = fingerprint;
+            this.seq = seq;
+        }
+    }
+
     static public class NodeHealth {
         public double health = 1d;
         public String hostKey;
         public String host;
         public int port;
         public List<NannyHealth> nannyHealths = new ArrayList<>();
+        public long epoch;
+        public long seq;
+        public boolean delta;
+        public List<String> instanceKeys = new ArrayList<>();
 
         public NodeHealth() {
         }
@@ -259,6 +481,8 @@ public class UpenaHealth {
         public long unexpectedRestart = -1;
         public Map<String, String> configIsStale = new HashMap<>();
         public Map<String, String> healthConfigIsStale = new HashMap<>();
+        public long startTimeMillis = -1;
+        public long seq;
 
         public NannyHealth() {
         }
@@ -269,6 +493,17 @@ public class UpenaHealth {
             this.log = log;
             this.serviceHealth = serviceHealth;
         }
+
+        NannyHealth copy() {
+            NannyHealth copy = new NannyHealth(uptime, instanceDescriptor, log, serviceHealth);
+            copy.status = status;
+            copy.unexpectedRestart = unexpectedRestart;
+            copy.configIsStale = configIsStale;
+            copy.healthConfigIsStale = healthConfigIsStale;
+            copy.startTimeMillis = startTimeMillis;
+            copy.seq = seq;
+            return copy;
+        }
     }
 
     static public class ServiceHealth {
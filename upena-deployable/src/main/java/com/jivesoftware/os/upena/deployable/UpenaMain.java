@@ -23,6 +23,7 @@ import com.google.common.base.Optional;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.template.soy.SoyFileSet;
 import com.google.template.soy.base.SoySyntaxException;
 import com.google.template.soy.tofu.SoyTofu;
@@ -31,6 +32,8 @@ import com.jivesoftware.os.amza.api.partition.PartitionProperties;
 import com.jivesoftware.os.amza.api.ring.RingHost;
 import com.jivesoftware.os.amza.api.ring.RingMember;
 import com.jivesoftware.os.amza.api.ring.RingMemberAndHost;
+import com.jivesoftware.os.amza.api.scan.RowsChanged;
+import com.jivesoftware.os.amza.api.wal.WALKey;
 import com.jivesoftware.os.amza.berkeleydb.BerkeleyDBWALIndexProvider;
 import com.jivesoftware.os.amza.lab.pointers.LABPointerIndexConfig;
 import com.jivesoftware.os.amza.lab.pointers.LABPointerIndexWALIndexProvider;
@@ -96,8 +99,6 @@ import com.jivesoftware.os.routing.bird.shared.InstanceDescriptorsRequest;
 import com.jivesoftware.os.routing.bird.shared.InstanceDescriptorsResponse;
 import com.jivesoftware.os.routing.bird.shared.TenantsServiceConnectionDescriptorProvider;
 import com.jivesoftware.os.uba.shared.PasswordStore;
-import com.jivesoftware.os.upena.deployable.UpenaHealth.NannyHealth;
-import com.jivesoftware.os.upena.deployable.UpenaHealth.NodeHealth;
 import com.jivesoftware.os.upena.deployable.aws.AWSClientFactory;
 import com.jivesoftware.os.upena.deployable.endpoints.api.UpenaConnectivityEndpoints;
 import com.jivesoftware.os.upena.deployable.endpoints.api.UpenaEndpoints;
@@ -187,9 +188,11 @@ import com.jivesoftware.os.upena.deployable.soy.SoyDataUtils;
 import com.jivesoftware.os.upena.deployable.soy.SoyRenderer;
 import com.jivesoftware.os.upena.deployable.soy.SoyService;
 import com.jivesoftware.os.upena.service.ChaosService;
+import com.jivesoftware.os.upena.service.ConfigWatches;
 import com.jivesoftware.os.upena.service.DiscoveredRoutes;
 import com.jivesoftware.os.upena.service.HostKeyProvider;
 import com.jivesoftware.os.upena.service.InstanceHealthly;
+import com.jivesoftware.os.upena.service.RouteWatches;
 import com.jivesoftware.os.upena.service.SessionStore;
 import com.jivesoftware.os.upena.service.UpenaConfigStore;
 import com.jivesoftware.os.upena.service.UpenaService;
@@ -199,6 +202,7 @@ import com.jivesoftware.os.upena.shared.HostKey;
 import com.jivesoftware.os.upena.shared.Instance;
 import com.jivesoftware.os.upena.shared.InstanceKey;
 import com.jivesoftware.os.upena.shared.PathToRepo;
+import com.jivesoftware.os.upena.uba.service.PeerArtifacts;
 import com.jivesoftware.os.upena.uba.service.RepositoryProvider;
 import com.jivesoftware.os.upena.uba.service.SelfSigningCertGenerator;
 import com.jivesoftware.os.upena.uba.service.UbaCoordinate;
@@ -227,7 +231,6 @@ import java.util.Random;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -289,6 +292,37 @@ public class UpenaMain {
         "    -Dmanual.peers=<upenaPeer1Host:port,upenaPeer2Host:port,...>",
         "",
         "    -Damza.snappy.enabled=true",
+        "    -Dupena.store.binary.enabled=false",
+        "         (only enable once every upena node in the ring can read binary rows.) ",
+        "    -Dupena.log.queueCapacity=10000",
+        "    -Dupena.log.batchSize=500",
+        "    -Dupena.log.lingerMillis=10",
+        "    -Dupena.log.flushTimeoutMillis=30000",
+        "         (change and health log events are queued and written in batches, events past queueCapacity are dropped.) ",
+        "    -Duba.nanny.parallelism=<availableProcessors>",
+        "         (how many instances on this host are nannied concurrently.) ",
+        "    -Duba.artifactCache.maxBytes=10737418240",
+        "    -Duba.artifactCache.maxUnusedMillis=604800000",
+        "         (artifacts no instance links to are evicted once older than maxUnusedMillis, or oldest first past maxBytes.) ",
+        "    -Dupena.health.snapshot.refreshMillis=5000",
+        "    -Dupena.health.snapshot.maxStaleMillis=60000",
+        "         (instances whose last health report is older than this are treated as unhealthy during releases.) ",
+        "    -Dupena.profiler.maxServices=256",
+        "    -Dupena.profiler.idleEvictMillis=86400000",
+        "    -Dupena.profiler.segments=60,36,48",
+        "         (how many 1 minute, 10 minute and 1 hour profile segments to retain per service version.) ",
+        "    -Dupena.proxy.threads=2",
+        "    -Dupena.proxy.bufferBytes=16384",
+        "    -Dupena.proxy.idleTimeoutMillis=1800000",
+        "         (selector threads shared by every proxy, the direct buffer per tunnel direction and how long a silent tunnel is kept.) ",
+        "    -Dupena.profiler.agentJar=<path to latent-profiler-agent.jar>",
+        "         (lets the profiler attach the latent agent to instances running on this host without a restart.) ",
+        "    -Dupena.sampler.maxSamplesPerSecond=20",
+        "    -Dupena.sampler.maxDurationMillis=600000",
+        "    -Dupena.sampler.maxPausePercent=2",
+        "    -Dupena.sampler.maxTotalPauseMillis=10000",
+        "         (guardrails for wall clock sampling over the debug port, samples are skipped while a target has been suspended",
+        "          for more than maxPausePercent of the run and the run stops after maxTotalPauseMillis of suspension.) ",
         "    -Damza.port=1175",
         "    -Damza.loopback.port=1174",
         "    -Damza.loopback.strict=true",
@@ -300,12 +334,22 @@ public class UpenaMain {
         "    -Dokta.roles.directory=<pathToRoles> ",
         "          (one role file per okta user that you want to have root access)",
         "",
+        "    -Dexpire.deployable.session.after.minutes=60",
+        "    -Dexpire.deployable.idle.session.after.minutes=30",
+        "    -Dupena.session.maxSessions=100000",
+        "    -Dupena.session.tickMillis=1000",
+        "         (deployable sessions and access tokens are expired on a tickMillis wheel, the soonest to expire are evicted past maxSessions.) ",
+        "",
         "    -Dmin.service.port=10000",
         "    -Dmax.service.port=32767",
         "         (adjust range to avoid port collision.) ",
         "",
         "    -DpathToRepo=<path>",
         "         (when using upena as a artifact repository. Default is new File(System.getProperty(\"user.home\"), \".m2\")) ",
+        "    -Dupena.peerArtifacts.enabled=true",
+        "    -Dupena.peerArtifacts.parallelism=8",
+        "    -Dupena.peerArtifacts.chunkBytes=8388608",
+        "         (fetch release artifacts from other upena nodes' repos, verified against the origin's sha1, before the origin.) ",
         "",
         "     Only applicable if you are in aws.",
         "          -Daws.region=<region>",
@@ -385,11 +429,22 @@ public class UpenaMain {
 
         JDIAPI jvmapi = null;
         try {
-            jvmapi = new JDIAPI();
+            jvmapi = new JDIAPI(new JDIAPI.SamplingLimits(
+                Integer.parseInt(System.getProperty("upena.sampler.maxSamplesPerSecond", "20")),
+                Long.parseLong(System.getProperty("upena.sampler.maxDurationMillis", String.valueOf(TimeUnit.MINUTES.toMillis(10)))),
+                Integer.parseInt(System.getProperty("upena.sampler.maxPausePercent", "2")),
+                Long.parseLong(System.getProperty("upena.sampler.maxTotalPauseMillis", "10000"))));
         } catch (NoClassDefFoundError x) {
             LOG.warn("Failed to local tools.jar. Please manually add to classpath. Breakpoint debugger will be disabled.");
         }
 
+        JVMAttachAPI jvmAttachAPI = null;
+        try {
+            jvmAttachAPI = new JVMAttachAPI(System.getProperty("upena.profiler.agentJar"));
+        } catch (NoClassDefFoundError x) {
+            LOG.warn("Failed to local tools.jar. Please manually add to classpath. Attaching the latent profiler will be disabled.");
+        }
+
         String hostname = args[0];
 
         int loopbackPort = Integer.parseInt(System.getProperty("amza.loopback.port", "1174"));
@@ -549,6 +604,8 @@ public class UpenaMain {
         AmzaStats amzaSystemStats = new AmzaStats();
         AmzaStats amzaStats = new AmzaStats();
 
+        AtomicReference<UpenaStore> upenaStoreReference = new AtomicReference<>();
+        AtomicReference<UpenaConfigStore> upenaConfigStoreReference = new AtomicReference<>();
         AmzaService amzaService = startAmza(workingDir,
             amzaSystemStats,
             amzaStats,
@@ -560,6 +617,8 @@ public class UpenaMain {
             stripedTakeClient,
             ringClient,
             topologyProvider,
+            upenaStoreReference,
+            upenaConfigStoreReference,
             clusterDiscoveryName,
             multicastGroup,
             multicastPort);
@@ -576,6 +635,7 @@ public class UpenaMain {
 
         boolean snappyEnabled = Boolean.parseBoolean(System.getProperty("amza.snappy.enabled", "true"));
         UpenaConfigStore upenaConfigStore = new UpenaConfigStore(orderIdProvider, storeMapper, amzaService, embeddedClientProvider, snappyEnabled);
+        upenaConfigStoreReference.set(upenaConfigStore);
 
         LOG.info("-----------------------------------------------------------------------");
         LOG.info("|      Upena Config Store Online");
@@ -583,6 +643,7 @@ public class UpenaMain {
 
         ExecutorService instanceChangedThreads = BoundedExecutor.newBoundedExecutor(32, "instance-changed");
 
+        boolean binaryValuesEnabled = Boolean.parseBoolean(System.getProperty("upena.store.binary.enabled", "false"));
         AtomicReference<UbaService> ubaServiceReference = new AtomicReference<>();
         UpenaStore upenaStore = new UpenaStore(
             storeMapper,
@@ -606,8 +667,22 @@ public class UpenaMain {
             },
             amzaService,
             embeddedClientProvider,
-            snappyEnabled
+            orderIdProvider,
+            Integer.parseInt(System.getProperty("upena.log.queueCapacity", "10000")),
+            Integer.parseInt(System.getProperty("upena.log.batchSize", "500")),
+            Long.parseLong(System.getProperty("upena.log.lingerMillis", "10")),
+            snappyEnabled,
+            binaryValuesEnabled
         );
+        upenaStoreReference.set(upenaStore);
+        long logFlushTimeoutMillis = Long.parseLong(System.getProperty("upena.log.flushTimeoutMillis", "30000"));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                upenaStore.flushLogs(logFlushTimeoutMillis);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }, "upena-log-flush"));
 
         ChaosService chaosService = new ChaosService(upenaStore);
         SecureRandom random = new SecureRandom();
@@ -628,26 +703,33 @@ public class UpenaMain {
 
         SessionStore sessionStore = new SessionStore(
             TimeUnit.MINUTES.toMillis(Integer.parseInt(System.getProperty("expire.deployable.session.after.minutes", "60"))),
-            TimeUnit.MINUTES.toMillis(Integer.parseInt(System.getProperty("expire.deployable.idle.session.after.minutes", "30")))
+            TimeUnit.MINUTES.toMillis(Integer.parseInt(System.getProperty("expire.deployable.idle.session.after.minutes", "30"))),
+            Integer.parseInt(System.getProperty("upena.session.maxSessions", "100000")),
+            Long.parseLong(System.getProperty("upena.session.tickMillis", "1000"))
         );
 
+        long healthSnapshotMaxStaleMillis = Long.parseLong(System.getProperty("upena.health.snapshot.maxStaleMillis", "60000"));
         AtomicReference<UpenaHealth> upenaHealthProvider = new AtomicReference<>();
         InstanceHealthly instanceHealthly = (key, version) -> {
             UpenaHealth upenaHealth = upenaHealthProvider.get();
             if (upenaHealth == null) {
                 return false;
             }
-            ConcurrentMap<RingHost, NodeHealth> ringHostNodeHealth = upenaHealth.buildClusterHealth();
-            for (NodeHealth nodeHealth : ringHostNodeHealth.values()) {
-                for (NannyHealth nannyHealth : nodeHealth.nannyHealths) {
-                    if (nannyHealth.instanceDescriptor.instanceKey.equals(key.getKey())) {
-                        return nannyHealth.serviceHealth.fullyOnline ? nannyHealth.serviceHealth.version.equals(version) : false;
-                    }
-                }
+            UpenaHealth.InstanceHealth instanceHealth = upenaHealth.instanceHealth(key.getKey());
+            if (instanceHealth == null || instanceHealth.ageMillis() > healthSnapshotMaxStaleMillis) {
+                return false;
             }
-            return false;
+            return instanceHealth.fullyOnline ? instanceHealth.version.equals(version) : false;
         };
         UpenaService upenaService = new UpenaService(passwordStore, sessionStore, upenaStore, chaosService, instanceHealthly);
+        RouteWatches routeWatches = new RouteWatches(upenaService::connectionRequest,
+            key -> upenaStore.instances.get(key),
+            serviceName -> upenaStore.topology.serviceKey(serviceName),
+            mapper,
+            BoundedExecutor.newBoundedExecutor(16, "route-watches"));
+        upenaStore.routeWatches = routeWatches;
+        ConfigWatches configWatches = new ConfigWatches(upenaConfigStore::bundle, BoundedExecutor.newBoundedExecutor(16, "config-watches"));
+        upenaConfigStore.configWatches = configWatches;
 
         LOG.info("-----------------------------------------------------------------------");
         LOG.info("|      Upena Service Online");
@@ -655,7 +737,25 @@ public class UpenaMain {
 
         File defaultPathToRepo = new File(new File(System.getProperty("user.dir"), ".m2"), "repository");
         PathToRepo localPathToRepo = new PathToRepo(new File(System.getProperty("pathToRepo", defaultPathToRepo.getAbsolutePath())));
-        RepositoryProvider repositoryProvider = new RepositoryProvider(localPathToRepo);
+        PeerArtifacts peerArtifacts = null;
+        if (Boolean.parseBoolean(System.getProperty("upena.peerArtifacts.enabled", "true"))) {
+            String peerScheme = sslEnable ? "https://" : "http://";
+            peerArtifacts = new PeerArtifacts(() -> {
+                List<String> repoUrls = new ArrayList<>();
+                for (RingMemberAndHost entry : amzaService.getRingReader().getRing(AmzaRingReader.SYSTEM_RING, -1).entries) {
+                    if (!(entry.ringHost.getHost().equals(hostname) && entry.ringHost.getPort() == port)) {
+                        repoUrls.add(peerScheme + entry.ringHost.getHost() + ":" + entry.ringHost.getPort() + "/repo/");
+                    }
+                }
+                return repoUrls;
+            },
+                Integer.parseInt(System.getProperty("upena.peerArtifacts.parallelism", "8")),
+                Integer.parseInt(System.getProperty("upena.peerArtifacts.chunkBytes", String.valueOf(8 * 1024 * 1024))),
+                5_000,
+                30_000,
+                sslAutoGenerateSelfSignedCert);
+        }
+        RepositoryProvider repositoryProvider = new RepositoryProvider(localPathToRepo, peerArtifacts);
 
         Host host = new Host(publicHost, datacenter, rack, hostname, port, workingDir, null, null);
         HostKey hostKey = new HostKeyProvider().getNodeKey(upenaStore.hosts, host);
@@ -721,11 +821,29 @@ public class UpenaMain {
                 loopbackPort
             ),
             null,
-            ubaLog);
+            ubaLog,
+            Integer.parseInt(System.getProperty("uba.nanny.parallelism", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+            Long.parseLong(System.getProperty("uba.artifactCache.maxBytes", String.valueOf(10L * 1024 * 1024 * 1024))),
+            Long.parseLong(System.getProperty("uba.artifactCache.maxUnusedMillis", String.valueOf(TimeUnit.DAYS.toMillis(7)))));
 
         UpenaHealth upenaHealth = new UpenaHealth(amzaService, upenaSSLConfig, upenaConfigStore, ubaService,
             new RingHost(datacenter, rack, hostname, port), hostKey);
         upenaHealthProvider.set(upenaHealth);
+        long healthSnapshotRefreshMillis = Long.parseLong(System.getProperty("upena.health.snapshot.refreshMillis", "5000"));
+        // local health is folded in on its own cadence so a slow nanny pass never holds the snapshot back
+        Executors.newScheduledThreadPool(1, new ThreadFactoryBuilder().setNameFormat("upena-health-snapshot-%d").setDaemon(true).build())
+            .scheduleWithFixedDelay(() -> {
+                try {
+                    upenaHealth.refreshLocalHealth();
+                } catch (Exception x) {
+                    LOG.warn("Failed to refresh local health snapshot.", x);
+                }
+                try {
+                    upenaHealth.buildClusterHealth();
+                } catch (Exception x) {
+                    LOG.warn("Failed to refresh health snapshot.", x);
+                }
+            }, 0, healthSnapshotRefreshMillis, TimeUnit.MILLISECONDS);
 
         DiscoveredRoutes discoveredRoutes = new DiscoveredRoutes();
         ShiroRequestHelper shiroRequestHelper = new ShiroRequestHelper(TimeUnit.DAYS.toMillis(1)); // TODO expose Sys prop?
@@ -845,6 +963,7 @@ public class UpenaMain {
             storeMapper,
             mapper,
             jvmapi,
+            jvmAttachAPI,
             amzaService,
             localPathToRepo,
             repositoryProvider,
@@ -891,7 +1010,9 @@ public class UpenaMain {
             .addInjectable(upenaConfigStore)
             .addInjectable(upenaStore)
             .addInjectable(upenaHealth)
-            .addInjectable(UpenaService.class, upenaService);
+            .addInjectable(UpenaService.class, upenaService)
+            .addInjectable(RouteWatches.class, routeWatches)
+            .addInjectable(ConfigWatches.class, configWatches);
 
         InitializeRestfulServer initializeLoopbackRestfulServer = new InitializeRestfulServer(
             Boolean.parseBoolean(System.getProperty("amza.loopback.strict", "true")),
@@ -914,7 +1035,7 @@ public class UpenaMain {
         LOG.info("-----------------------------------------------------------------------");
 
         if (ubaService != null) {
-            Executors.newScheduledThreadPool(1).scheduleWithFixedDelay(() -> {
+            Executors.newScheduledThreadPool(1, new ThreadFactoryBuilder().setNameFormat("uba-nanny-%d").build()).scheduleWithFixedDelay(() -> {
                 try {
                     ubaService.nanny();
                 } catch (Exception ex) {
@@ -1009,6 +1130,7 @@ public class UpenaMain {
         ObjectMapper storeMapper,
         ObjectMapper mapper,
         JDIAPI jvmapi,
+        JVMAttachAPI jvmAttachAPI,
         AmzaService amzaService,
         PathToRepo localPathToRepo,
         RepositoryProvider repositoryProvider,
@@ -1162,9 +1284,13 @@ public class UpenaMain {
             ModulesPluginEndpoints.class,
             new ModulesPluginRegion(mapper, repositoryProvider, "soy.upena.page.modulesPluginRegion", renderer, upenaStore), null, "read");
 
+        UpenaProxyEngine proxyEngine = new UpenaProxyEngine(
+            Integer.parseInt(System.getProperty("upena.proxy.threads", "2")),
+            Integer.parseInt(System.getProperty("upena.proxy.bufferBytes", String.valueOf(16 * 1024))),
+            Long.parseLong(System.getProperty("upena.proxy.idleTimeoutMillis", String.valueOf(TimeUnit.MINUTES.toMillis(30)))));
         PluginHandle proxy = new PluginHandle("random", null, "Proxies", "/ui/proxy",
             ProxyPluginEndpoints.class,
-            new ProxyPluginRegion("soy.upena.page.proxyPluginRegion", renderer), null, "read", "debug");
+            new ProxyPluginRegion("soy.upena.page.proxyPluginRegion", renderer, proxyEngine), null, "read", "debug");
 
         PluginHandle ring = new PluginHandle("leaf", null, "Upena", "/ui/ring",
             UpenaRingPluginEndpoints.class,
@@ -1175,12 +1301,19 @@ public class UpenaMain {
             LoadBalancersPluginEndpoints.class,
             new LoadBalancersPluginRegion("soy.upena.page.loadBalancersPluginRegion", renderer, upenaStore, awsClientFactory), null, "read", "debug");
 
-        ServicesCallDepthStack servicesCallDepthStack = new ServicesCallDepthStack();
+        int[] profilerSegments = profilerSegments(System.getProperty("upena.profiler.segments", "60,36,48"));
+        ServicesCallDepthStack servicesCallDepthStack = new ServicesCallDepthStack(
+            Integer.parseInt(System.getProperty("upena.profiler.maxServices", "256")),
+            Long.parseLong(System.getProperty("upena.profiler.idleEvictMillis", String.valueOf(TimeUnit.DAYS.toMillis(1)))),
+            profilerSegments[0],
+            profilerSegments[1],
+            profilerSegments[2]);
         PerfService perfService = new PerfService(servicesCallDepthStack);
 
         PluginHandle profiler = new PluginHandle("hourglass", null, "Profiler", "/ui/profiler",
             ProfilerPluginEndpoints.class,
-            new ProfilerPluginRegion("soy.upena.page.profilerPluginRegion", renderer, new VisualizeProfile(new NameUtils(), servicesCallDepthStack)), null,
+            new ProfilerPluginRegion("soy.upena.page.profilerPluginRegion", renderer, new VisualizeProfile(new NameUtils(), servicesCallDepthStack),
+                upenaStore, jvmAttachAPI), null,
             "read",
             "debug");
 
@@ -1304,6 +1437,8 @@ public class UpenaMain {
         TenantAwareHttpClient<String> systemTakeClient,
         TenantAwareHttpClient<String> stripedTakeClient,
         TenantAwareHttpClient<String> ringClient, AtomicReference<Callable<RingTopology>> topologyProvider,
+        AtomicReference<UpenaStore> upenaStoreReference,
+        AtomicReference<UpenaConfigStore> upenaConfigStoreReference,
         String clusterDiscoveryName,
         String multicastGroup,
         int multicastPort) throws Exception {
@@ -1425,6 +1560,14 @@ public class UpenaMain {
             rowsTakerFactory,
             Optional.absent(),
             rowsChanged -> {
+                UpenaStore upenaStore = upenaStoreReference.get();
+                if (upenaStore != null) {
+                    upenaStore.rowsChanged(rowsChanged.getVersionedPartitionName().getPartitionName(), changedKeys(rowsChanged));
+                }
+                UpenaConfigStore upenaConfigStore = upenaConfigStoreReference.get();
+                if (upenaConfigStore != null) {
+                    upenaConfigStore.rowsChanged(rowsChanged.getVersionedPartitionName().getPartitionName(), changedKeys(rowsChanged));
+                }
             },
             (i, s) -> {
                 return executors;
@@ -1458,6 +1601,34 @@ public class UpenaMain {
         return amzaService;
     }
 
+    private static int[] profilerSegments(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("-Dupena.profiler.segments expects 3 comma separated counts (minute,10 minute,hour) but was:"
+                + value);
+        }
+        int[] segments = new int[3];
+        for (int i = 0; i < 3; i++) {
+            try {
+                segments[i] = Integer.parseInt(parts[i].trim());
+            } catch (NumberFormatException x) {
+                throw new IllegalArgumentException("-Dupena.profiler.segments has a count that is not a number:" + value, x);
+            }
+            if (segments[i] < 1) {
+                throw new IllegalArgumentException("-Dupena.profiler.segments counts must be at least 1 but was:" + value);
+            }
+        }
+        return segments;
+    }
+
+    private static List<byte[]> changedKeys(RowsChanged rowsChanged) {
+        List<byte[]> keys = new ArrayList<>(rowsChanged.getApply().size());
+        for (WALKey walKey : rowsChanged.getApply().keySet()) {
+            keys.add(walKey.key);
+        }
+        return keys;
+    }
+
     private void injectAmza(AmzaInterner amzaInterner,
         AmzaStats amzaStats,
         UpenaJerseyEndpoints jerseyEndpoints,
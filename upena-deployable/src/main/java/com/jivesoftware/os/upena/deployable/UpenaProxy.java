@@ -15,21 +15,18 @@
  */
 package com.jivesoftware.os.upena.deployable;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.mlogger.core.ValueType;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * A tcp tunnel from a local port to a remote host and port. The bytes are moved by the shared UpenaProxyEngine, this only holds the
+ * listening socket and the tunnel's metrics.
  *
  * @author jonathan.colt
  */
@@ -37,15 +34,27 @@ public class UpenaProxy {
 
     private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
 
-    private final ExecutorService proxyThreads = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("proxy-%d").build());
-
+    private final UpenaProxyEngine engine;
     private final int localPort;
     private final String remoteHost;
     private final int remotePort;
     private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong active = new AtomicLong();
     private final AtomicLong proxied = new AtomicLong();
-
-    public UpenaProxy(int localPort, String remoteHost, int remotePort) {
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong idleClosed = new AtomicLong();
+    private final AtomicLong stopped = new AtomicLong();
+    private final AtomicLong bytesToRemote = new AtomicLong();
+    private final AtomicLong bytesToClient = new AtomicLong();
+    private volatile InetSocketAddress remoteAddress;
+    private ServerSocketChannel server;
+    private long sampledTimestamp = System.currentTimeMillis();
+    private long sampledBytes;
+    private long bytesPerSecond;
+
+    public UpenaProxy(UpenaProxyEngine engine, int localPort, String remoteHost, int remotePort) {
+        this.engine = engine;
         this.localPort = localPort;
         this.remoteHost = remoteHost;
         this.remotePort = remotePort;
@@ -67,85 +76,142 @@ public class UpenaProxy {
         return running.get();
     }
 
+    /**
+     * @return how many connections have been proxied to completion, both ends closed their side.
+     */
     public long getProxied() {
         return proxied.get();
     }
 
-    public void start() throws IOException {
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getActive() {
+        return active.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getIdleClosed() {
+        return idleClosed.get();
+    }
+
+    /**
+     * @return how many tunnels were still open when the proxy was stopped.
+     */
+    public long getStopped() {
+        return stopped.get();
+    }
+
+    public long getBytesToRemote() {
+        return bytesToRemote.get();
+    }
+
+    public long getBytesToClient() {
+        return bytesToClient.get();
+    }
+
+    /**
+     * @return bytes per second in both directions since the previous sample, samples are taken at most once a second.
+     */
+    public synchronized long getBytesPerSecond() {
+        long now = System.currentTimeMillis();
+        if (now - sampledTimestamp >= 1_000) {
+            long bytes = bytesToRemote.get() + bytesToClient.get();
+            bytesPerSecond = (bytes - sampledBytes) * 1_000 / (now - sampledTimestamp);
+            sampledBytes = bytes;
+            sampledTimestamp = now;
+        }
+        return bytesPerSecond;
+    }
+
+    public synchronized void start() throws IOException {
         if (running.compareAndSet(false, true)) {
-            proxyThreads.submit(() -> {
-                try (ServerSocket ss = new ServerSocket(localPort)) {
-                    ss.setSoTimeout(1_000);
-                    LOG.info("Proxy bound on {} to {}:{}", localPort, remoteHost, remotePort);
-
-                    byte[] request = new byte[1024];
-                    byte[] reply = new byte[4096];
-
-                    while (running.get()) {
-                        try {
-                            Socket client = ss.accept();
-                            proxyThreads.submit(() -> {
-                                try {
-                                    try (InputStream streamFromClient = client.getInputStream()) {
-                                        try (OutputStream streamToClient = client.getOutputStream()) {
-                                            try (Socket server = new Socket(remoteHost, remotePort)) {
-                                                try (InputStream streamFromServer = server.getInputStream()) {
-
-                                                    AtomicBoolean error = new AtomicBoolean();
-                                                    OutputStream streamToServer = server.getOutputStream();
-                                                    proxyThreads.submit(() -> {
-                                                        int bytesRead;
-                                                        try {
-                                                            while ((bytesRead = streamFromClient.read(request)) != -1) {
-                                                                streamToServer.write(request, 0, bytesRead);
-                                                                streamToServer.flush();
-                                                            }
-                                                        } catch (IOException e) {
-                                                            error.set(true);
-                                                        }
-
-                                                        try {
-                                                            streamToServer.close();
-                                                        } catch (IOException e) {
-                                                            error.set(true);
-                                                        }
-                                                    });
-
-                                                    int bytesRead;
-                                                    while ((bytesRead = streamFromServer.read(reply)) != -1 && !error.get()) {
-                                                        streamToClient.write(reply, 0, bytesRead);
-                                                        streamToClient.flush();
-                                                    }
-
-                                                    proxied.incrementAndGet();
-                                                }
-                                            }
-                                        }
-                                    }
-                                } catch (IOException e) {
-                                    LOG.error("Proxy Error.", e);
-                                } finally {
-                                    try {
-                                        if (client != null) {
-                                            client.close();
-                                        }
-                                    } catch (IOException e) {
-                                    }
-                                }
-                            });
-                        } catch (SocketTimeoutException x) {
-                        }
-                    }
-                } catch (Exception x) {
-                    running.compareAndSet(true, false);
-                    LOG.error("Proxy Error.", x);
+            try {
+                server = ServerSocketChannel.open();
+                server.configureBlocking(false);
+                server.bind(new InetSocketAddress(localPort));
+            } catch (IOException x) {
+                running.set(false);
+                if (server != null) {
+                    server.close();
                 }
-            });
+                throw x;
+            }
+            engine.listen(this, server);
+            LOG.info("Proxy bound on {} to {}:{}", localPort, remoteHost, remotePort);
         }
     }
 
-    public void stop() {
-        running.compareAndSet(true, false);
+    public synchronized void stop() {
+        if (running.compareAndSet(true, false)) {
+            engine.close(this, server);
+            server = null;
+        }
+    }
+
+    InetSocketAddress remoteAddress() {
+        InetSocketAddress address = remoteAddress;
+        if (address == null || address.isUnresolved()) {
+            address = new InetSocketAddress(remoteHost, remotePort);
+            remoteAddress = address;
+        }
+        return address;
+    }
+
+    void unresolve() {
+        remoteAddress = null; // the remote may have moved, look it up again on the next connection
+    }
+
+    void accepted() {
+        accepted.incrementAndGet();
+        LOG.inc("proxy>" + localPort + ">accepted");
+    }
+
+    void opened() {
+        LOG.set(ValueType.VALUE, "proxy>" + localPort + ">active", active.incrementAndGet());
     }
 
+    void closed(Closed how) {
+        LOG.set(ValueType.VALUE, "proxy>" + localPort + ">active", active.decrementAndGet());
+        switch (how) {
+            case COMPLETED:
+                proxied.incrementAndGet();
+                break;
+            case FAILED:
+                failed();
+                break;
+            case IDLE:
+                idleClosed.incrementAndGet();
+                LOG.inc("proxy>" + localPort + ">idleClosed");
+                break;
+            case STOPPED:
+                stopped.incrementAndGet();
+                LOG.inc("proxy>" + localPort + ">stopped");
+                break;
+        }
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+        LOG.inc("proxy>" + localPort + ">failed");
+    }
+
+    /**
+     * Why a tunnel was closed, each is counted on its own.
+     */
+    enum Closed {
+        COMPLETED, FAILED, IDLE, STOPPED
+    }
+
+    void transferred(boolean toRemote, int bytes) {
+        if (toRemote) {
+            bytesToRemote.addAndGet(bytes);
+        } else {
+            bytesToClient.addAndGet(bytes);
+        }
+    }
 }
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2016 jonathan.colt.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jivesoftware.os.upena.deployable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carries every UpenaProxy tunnel on a handful of selector threads. Accepts happen on the first selector and each accepted connection
+ * is pinned to one selector, round robin, for its lifetime.
+ *
+ * Each direction of a tunnel owns one direct buffer. A side is only read once everything previously read from it has been written to
+ * its peer, so a slow reader throttles a fast writer through tcp instead of through upena's heap. A tunnel with no traffic in either
+ * direction for idleTimeoutMillis is closed.
+ *
+ * @author jonathan.colt
+ */
+public class UpenaProxyEngine {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    private final int bufferBytes;
+    private final long idleTimeoutMillis;
+    private final Loop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public UpenaProxyEngine(int threads, int bufferBytes, long idleTimeoutMillis) throws IOException {
+        this.bufferBytes = bufferBytes;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.loops = new Loop[Math.max(1, threads)];
+        ExecutorService selectorThreads = Executors.newFixedThreadPool(loops.length,
+            new ThreadFactoryBuilder().setNameFormat("proxy-selector-%d").setDaemon(true).build());
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(Selector.open());
+            selectorThreads.submit(loops[i]);
+        }
+    }
+
+    void listen(UpenaProxy proxy, ServerSocketChannel server) {
+        loops[0].submit(() -> server.register(loops[0].selector, SelectionKey.OP_ACCEPT, proxy));
+    }
+
+    void close(UpenaProxy proxy, ServerSocketChannel server) {
+        loops[0].submit(() -> closeQuietly(server));
+        for (Loop loop : loops) {
+            loop.submit(() -> {
+                for (SelectionKey key : loop.selector.keys()) {
+                    if (key.attachment() instanceof Side && ((Side) key.attachment()).tunnel.proxy == proxy) {
+                        ((Side) key.attachment()).tunnel.close(UpenaProxy.Closed.STOPPED);
+                    }
+                }
+            });
+        }
+    }
+
+    private void accept(UpenaProxy proxy, ServerSocketChannel server) throws IOException {
+        SocketChannel client;
+        while ((client = server.accept()) != null) {
+            proxy.accepted();
+            SocketChannel remote = null;
+            try {
+                client.configureBlocking(false);
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                remote = SocketChannel.open();
+                remote.configureBlocking(false);
+                remote.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                InetSocketAddress address = proxy.remoteAddress();
+                boolean connected = remote.connect(address);
+                Tunnel tunnel = new Tunnel(proxy, client, remote, connected);
+                Loop loop = loops[Math.abs(nextLoop.getAndIncrement() % loops.length)];
+                loop.submit(() -> tunnel.register(loop.selector));
+            } catch (IOException | RuntimeException x) { // an unresolvable remote throws UnresolvedAddressException
+                proxy.failed();
+                proxy.unresolve();
+                LOG.warn("Proxy on {} failed to connect to {}:{}",
+                    new Object[]{proxy.getLocalPort(), proxy.getRemoteHost(), proxy.getRemotePort()}, x);
+                closeQuietly(client);
+                closeQuietly(remote);
+            }
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException x) {
+                // closing anyway
+            }
+        }
+    }
+
+    private interface Task {
+
+        void run() throws IOException;
+    }
+
+    private class Loop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+        Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void submit(Task task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+            while (true) {
+                try {
+                    selector.select(1_000);
+                    Task task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (IOException x) {
+                            LOG.warn("Proxy selector task failed.", x);
+                        }
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        handle(key);
+                    }
+                    selector.selectedKeys().clear();
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheck >= 1_000) {
+                        lastIdleCheck = now;
+                        closeIdle(now);
+                    }
+                } catch (ClosedSelectorException x) {
+                    return;
+                } catch (Throwable t) {
+                    LOG.error("Proxy selector failed, carrying on.", t);
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Object attachment = key.attachment();
+            if (attachment instanceof UpenaProxy) {
+                try {
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept((UpenaProxy) attachment, (ServerSocketChannel) key.channel());
+                    }
+                } catch (IOException | CancelledKeyException x) {
+                    LOG.warn("Proxy accept failed.", x);
+                }
+                return;
+            }
+            Side side = (Side) attachment;
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.isConnectable()) {
+                    side.tunnel.connected();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    side.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    side.peer.flush();
+                }
+            } catch (IOException | RuntimeException x) {
+                side.tunnel.close(UpenaProxy.Closed.FAILED);
+            }
+        }
+
+        private void closeIdle(long now) {
+            List<Tunnel> idle = new ArrayList<>();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Side) {
+                    Tunnel tunnel = ((Side) key.attachment()).tunnel;
+                    if (now - tunnel.lastActivity > idleTimeoutMillis && !idle.contains(tunnel)) {
+                        idle.add(tunnel);
+                    }
+                }
+            }
+            for (Tunnel tunnel : idle) {
+                tunnel.close(UpenaProxy.Closed.IDLE);
+            }
+        }
+    }
+
+    private class Tunnel {
+
+        private final UpenaProxy proxy;
+        private final Side client;
+        private final Side remote;
+        private boolean connected;
+        private boolean closed;
+        private long lastActivity = System.currentTimeMillis();
+
+        Tunnel(UpenaProxy proxy, SocketChannel client, SocketChannel remote, boolean connected) {
+            this.proxy = proxy;
+            this.client = new Side(this, client, true);
+            this.remote = new Side(this, remote, false);
+            this.client.peer = this.remote;
+            this.remote.peer = this.client;
+            this.connected = connected;
+        }
+
+        void register(Selector selector) {
+            try {
+                client.key = client.channel.register(selector, 0, client);
+                remote.key = remote.channel.register(selector, 0, remote);
+            } catch (IOException | RuntimeException x) {
+                LOG.warn("Proxy on {} failed to register a tunnel.", new Object[]{proxy.getLocalPort()}, x);
+                closed = true;
+                closeQuietly(client.channel);
+                closeQuietly(remote.channel);
+                proxy.failed();
+                return;
+            }
+            proxy.opened();
+            if (connected) {
+                client.interest();
+                remote.interest();
+            } else {
+                remote.key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        }
+
+        void connected() throws IOException {
+            if (remote.channel.finishConnect()) {
+                connected = true;
+                client.interest();
+                remote.interest();
+            }
+        }
+
+        void closeIfDone() {
+            if (client.eof && remote.eof && client.buffer.position() == 0 && remote.buffer.position() == 0) {
+                close(UpenaProxy.Closed.COMPLETED);
+            }
+        }
+
+        void close(UpenaProxy.Closed how) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeQuietly(client.channel);
+            closeQuietly(remote.channel);
+            proxy.closed(how);
+        }
+    }
+
+    private class Side {
+
+        private final Tunnel tunnel;
+        private final SocketChannel channel;
+        private final boolean isClient;
+        /**
+         * Holds what was read from this side and is waiting to be written to the peer, always left in fill mode.
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferBytes);
+        private Side peer;
+        private SelectionKey key;
+        private boolean eof;
+        private boolean outputShutdown;
+
+        Side(Tunnel tunnel, SocketChannel channel, boolean isClient) {
+            this.tunnel = tunnel;
+            this.channel = channel;
+            this.isClient = isClient;
+        }
+
+        void read() throws IOException {
+            int read = channel.read(buffer);
+            if (read == -1) {
+                eof = true;
+            } else if (read > 0) {
+                tunnel.lastActivity = System.currentTimeMillis();
+            }
+            flush();
+        }
+
+        /**
+         * Writes what this side has buffered to the peer.
+         */
+        void flush() throws IOException {
+            if (buffer.position() > 0) {
+                buffer.flip();
+                int wrote = peer.channel.write(buffer);
+                buffer.compact();
+                if (wrote > 0) {
+                    tunnel.lastActivity = System.currentTimeMillis();
+                    tunnel.proxy.transferred(isClient, wrote);
+                }
+            }
+            if (eof && buffer.position() == 0 && !peer.outputShutdown) {
+                peer.outputShutdown = true;
+                peer.channel.shutdownOutput();
+            }
+            interest();
+            peer.interest();
+            tunnel.closeIfDone();
+        }
+
+        void interest() {
+            if (tunnel.closed || !tunnel.connected || !key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (!eof && buffer.position() == 0) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (peer.buffer.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+    }
+}
@@ -23,8 +23,10 @@ import com.jivesoftware.os.upena.deployable.UpenaHealth.NodeHealth;
 import io.swagger.annotations.Api;
 import javax.inject.Singleton;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 
@@ -49,9 +51,13 @@ public class UpenaHealthEndpoints {
     @GET
     @Consumes("application/json")
     @Path("/instance")
-    public Response getInstanceHealth() {
+    public Response getInstanceHealth(@QueryParam("since") Long since,
+        @QueryParam("epoch") @DefaultValue("0") long epoch,
+        @QueryParam("logs") Boolean logs) {
         try {
-            NodeHealth node = upenaHealth.buildNodeHealth();
+            NodeHealth node = since == null
+                ? upenaHealth.buildNodeHealth()
+                : upenaHealth.buildNodeHealth(since, epoch, logs != null && logs);
             return ResponseHelper.INSTANCE.jsonResponse(node);
         } catch (Exception x) {
             LOG.error("Failed getting instance health", x);
@@ -17,6 +17,10 @@ package com.jivesoftware.os.upena.deployable.endpoints.api;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
 import com.jivesoftware.os.upena.deployable.HeaderDecoration;
@@ -24,19 +28,37 @@ import com.jivesoftware.os.upena.deployable.UpenaAutoRelease;
 import com.jivesoftware.os.upena.shared.PathToRepo;
 import io.swagger.annotations.Api;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import javax.inject.Singleton;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
-import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.StreamingOutput;
 import org.apache.commons.io.FileUtils;
 
@@ -52,6 +74,10 @@ public class UpenaRepoEndpoints {
 
     private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
 
+    private static final int MAX_CACHED_BYTES = 64 * 1024;
+    private static final int UPLOAD_BUFFER_BYTES = 256 * 1024;
+    private static final Pattern CHECKSUM = Pattern.compile("[0-9a-fA-F]{32,128}");
+
     private final AmzaClusterName amzaClusterName;
 
     public static class AmzaClusterName {
@@ -67,7 +93,15 @@ public class UpenaRepoEndpoints {
     private final ObjectMapper mapper = new ObjectMapper();
     private final PathToRepo localPathToRepo;
     private final UpenaAutoRelease autoRelease;
-    
+    private final Cache<String, Cached> metadata = CacheBuilder.newBuilder()
+        .maximumWeight(16 * 1024 * 1024)
+        .weigher((String key, Cached value) -> key.length() + value.bytes.length)
+        .build();
+    private final Cache<String, Uploaded> uploads = CacheBuilder.newBuilder()
+        .maximumSize(10_000)
+        .expireAfterWrite(1, TimeUnit.HOURS)
+        .build();
+
     public UpenaRepoEndpoints(@Context AmzaClusterName amzaClusterName,
         @Context PathToRepo localPathToRepo,
         @Context UpenaAutoRelease autoRelease) {
@@ -78,54 +112,250 @@ public class UpenaRepoEndpoints {
         this.mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     }
 
+    /**
+     * Serves a file from the local repository. Artifacts are validated by the sha1 (or md5) maven writes beside them so a uba that already
+     * holds the bytes gets a 304, and a single byte range is honored so an interrupted download of a large tarball can be resumed.
+     */
     @GET
     @Path("/{subResources:.*}")
-    public Object pull(@PathParam("subResources") String subResources) {
+    public Object pull(@PathParam("subResources") String subResources,
+        @HeaderParam("Range") String range,
+        @HeaderParam("If-Range") String ifRange,
+        @Context Request request) {
         File f = new File(localPathToRepo.get(), subResources);
         try {
-            if (!f.exists()) {
+            if (!f.isFile()) {
                 return HeaderDecoration.decorate(Response.status(Response.Status.NOT_FOUND)).build();
             }
 
-            return (StreamingOutput) (OutputStream os) -> {
-                try {
+            long length = f.length();
+            Date lastModified = new Date(f.lastModified());
+            EntityTag etag = new EntityTag(etag(f));
+            ResponseBuilder notModified = request.evaluatePreconditions(lastModified, etag);
+            if (notModified != null) {
+                LOG.inc("repo>pull>notModified");
+                return HeaderDecoration.decorate(notModified).build();
+            }
+
+            MediaType type = f.getName().endsWith(".xml") || f.getName().endsWith(".pom")
+                ? MediaType.APPLICATION_XML_TYPE : MediaType.APPLICATION_OCTET_STREAM_TYPE;
+            Cached cached = cachedIfSmall(f);
+            if (cached != null) {
+                LOG.inc("repo>pull>cached");
+                return HeaderDecoration.decorate(Response.ok(cached.bytes, type))
+                    .tag(etag)
+                    .lastModified(lastModified)
+                    .build();
+            }
+
+            long[] bounds = range == null || !ifRangeMatches(ifRange, etag, lastModified) ? null : range(range, length);
+            if (bounds != null && bounds.length == 0) {
+                LOG.inc("repo>pull>unsatisfiable");
+                return HeaderDecoration.decorate(Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE))
+                    .header("Content-Range", "bytes */" + length)
+                    .build();
+            }
+
+            long offset = bounds == null ? 0 : bounds[0];
+            long count = bounds == null ? length : bounds[1] - bounds[0] + 1;
+            ResponseBuilder builder = bounds == null ? Response.ok() : Response.status(Response.Status.PARTIAL_CONTENT)
+                .header("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+            LOG.inc(bounds == null ? "repo>pull>full" : "repo>pull>partial");
 
-                    try {
-                        byte[] buf = new byte[8192];
-                        InputStream is = new FileInputStream(f);
-                        int c = 0;
-                        while ((c = is.read(buf, 0, buf.length)) > 0) {
-                            os.write(buf, 0, c);
-                            os.flush();
+            StreamingOutput stream = (OutputStream os) -> {
+                try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                    WritableByteChannel out = Channels.newChannel(os);
+                    long position = offset;
+                    long end = offset + count;
+                    while (position < end) {
+                        long transferred = channel.transferTo(position, end - position, out);
+                        if (transferred <= 0) {
+                            throw new IOException("Unexpected end of " + f + " at " + position + " of " + end);
                         }
-                        os.close();
-                        is.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                        position += transferred;
                     }
-                } catch (Exception e) {
-                    throw new WebApplicationException(e);
                 }
             };
+            return HeaderDecoration.decorate(builder.entity(stream).type(type))
+                .header("Accept-Ranges", "bytes")
+                .header("Content-Length", count)
+                .tag(etag)
+                .lastModified(lastModified)
+                .build();
         } catch (Exception x) {
             LOG.error("Failed to read " + f, x);
             return Response.serverError().build();
         }
     }
 
+    private String etag(File f) throws IOException {
+        if (!isChecksum(f)) {
+            for (String extension : new String[]{".sha1", ".md5"}) {
+                File checksumFile = new File(f.getParentFile(), f.getName() + extension);
+                // a checksum older than the file it describes belongs to a previous upload
+                if (checksumFile.isFile() && checksumFile.lastModified() >= f.lastModified()) {
+                    Cached cached = cachedIfSmall(checksumFile);
+                    String checksum = cached == null ? null : checksum(cached.bytes);
+                    if (checksum != null) {
+                        return checksum;
+                    }
+                }
+            }
+        }
+        return Long.toHexString(f.length()) + "-" + Long.toHexString(f.lastModified());
+    }
+
+    private static String checksum(byte[] bytes) {
+        // maven writes the bare hex digest, other tools append the file name
+        String checksum = new String(bytes, StandardCharsets.US_ASCII).trim();
+        int space = checksum.indexOf(' ');
+        checksum = space == -1 ? checksum : checksum.substring(0, space);
+        return CHECKSUM.matcher(checksum).matches() ? checksum.toLowerCase() : null;
+    }
+
+    private static boolean ifRangeMatches(String ifRange, EntityTag etag, Date lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals("\"" + etag.getValue() + "\"");
+        }
+        Date since = parseHttpDate(ifRange);
+        return since != null && lastModified.getTime() / 1000 <= since.getTime() / 1000;
+    }
+
+    private static Date parseHttpDate(String date) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(date);
+        } catch (ParseException x) {
+            return null;
+        }
+    }
+
+    /**
+     * @return null when the whole file should be served, an empty array when the range can't be satisfied, otherwise the inclusive first
+     * and last byte.
+     */
+    static long[] range(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            // multiple ranges are rare enough that the whole file is an acceptable answer
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if (first >= length) {
+                return new long[0];
+            }
+            return first > last ? null : new long[]{first, last};
+        } catch (NumberFormatException x) {
+            return null;
+        }
+    }
+
+    private static boolean isChecksum(File f) {
+        String name = f.getName();
+        return name.endsWith(".sha1") || name.endsWith(".md5");
+    }
+
+    /**
+     * maven-metadata.xml and checksums are tiny and are asked for by every resolve, so they are held in memory until the file changes.
+     */
+    private Cached cachedIfSmall(File f) throws IOException {
+        String name = f.getName();
+        if (!isChecksum(f) && !(name.startsWith("maven-metadata") && name.endsWith(".xml"))) {
+            return null;
+        }
+        long length = f.length();
+        if (length > MAX_CACHED_BYTES) {
+            return null;
+        }
+        long lastModified = f.lastModified();
+        String key = f.getAbsolutePath();
+        Cached cached = metadata.getIfPresent(key);
+        if (cached == null || cached.lastModified != lastModified || cached.bytes.length != length) {
+            cached = new Cached(lastModified, Files.readAllBytes(f.toPath()));
+            metadata.put(key, cached);
+            LOG.inc("repo>metadata>miss");
+        } else {
+            LOG.inc("repo>metadata>hit");
+        }
+        return cached;
+    }
+
+    private static class Cached {
+
+        private final long lastModified;
+        private final byte[] bytes;
+
+        Cached(long lastModified, byte[] bytes) {
+            this.lastModified = lastModified;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Streams the upload into a temp file beside its destination, hashing as it goes, and only moves it into place once it matches any
+     * checksum the client sent. Readers see either the previous file or the complete new one.
+     */
     @PUT
     @Path("/{subResources:.*}")
     public Response putFileInRepo(
         InputStream fileInputStream,
-        @PathParam("subResources") String subResources) {
+        @PathParam("subResources") String subResources,
+        @HeaderParam("X-Checksum-Sha1") String expectedSha1,
+        @HeaderParam("X-Checksum-Md5") String expectedMd5) {
 
         File f = new File(localPathToRepo.get(), subResources);
+        java.nio.file.Path tmp = null;
         try {
             FileUtils.forceMkdir(f.getParentFile());
-            saveFile(fileInputStream, f);
+            tmp = Files.createTempFile(f.getParentFile().toPath(), "." + f.getName() + ".", ".upload");
+            Digests digests = saveFile(fileInputStream, tmp);
+            worldReadable(tmp);
+
+            String mismatch = mismatch("sha1", expectedSha1, digests.sha1);
+            mismatch = mismatch != null ? mismatch : mismatch("md5", expectedMd5, digests.md5);
+            if (mismatch == null && isChecksum(f)) {
+                mismatch = verifyChecksumFile(f, tmp);
+            }
+            if (mismatch != null) {
+                LOG.inc("repo>put>mismatch");
+                LOG.warn("Rejected upload of {} {}", new Object[]{f, mismatch});
+                Files.deleteIfExists(tmp);
+                return HeaderDecoration.decorate(Response.status(Response.Status.BAD_REQUEST).entity(mismatch).type(MediaType.TEXT_PLAIN)).build();
+            }
+
+            Files.move(tmp, f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            tmp = null;
+            if (!isChecksum(f)) {
+                uploads.put(f.getAbsolutePath(), new Uploaded(f.lastModified(), digests));
+            }
+            LOG.inc("repo>put>uploaded");
         } catch (Exception x) {
             LOG.error("Failed to write " + f, x);
-            FileUtils.deleteQuietly(f);
+            LOG.inc("repo>put>failed");
+            if (tmp != null) {
+                FileUtils.deleteQuietly(tmp.toFile());
+            }
             return Response.serverError().build();
         }
 
@@ -136,17 +366,84 @@ public class UpenaRepoEndpoints {
         return HeaderDecoration.decorate(Response.ok("Success")).build();
     }
 
-    // save uploaded file to a defined location on the server
-    private void saveFile(InputStream uploadedInputStream, File file) {
-        try (OutputStream outpuStream = new FileOutputStream(file)) {
-            int read = 0;
-            byte[] bytes = new byte[1024];
+    /**
+     * Temp files are created owner only, the moved file must stay readable like every other file in the repo.
+     */
+    private static void worldReadable(java.nio.file.Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+        } catch (UnsupportedOperationException x) {
+            file.toFile().setReadable(true, false);
+        }
+    }
+
+    private static Digests saveFile(InputStream uploadedInputStream, java.nio.file.Path file) throws IOException {
+        Hasher sha1 = Hashing.sha1().newHasher();
+        Hasher md5 = Hashing.md5().newHasher();
+        try (FileOutputStream out = new FileOutputStream(file.toFile())) {
+            byte[] bytes = new byte[UPLOAD_BUFFER_BYTES];
+            int read;
             while ((read = uploadedInputStream.read(bytes)) != -1) {
-                outpuStream.write(bytes, 0, read);
+                out.write(bytes, 0, read);
+                sha1.putBytes(bytes, 0, read);
+                md5.putBytes(bytes, 0, read);
             }
-            outpuStream.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            out.getChannel().force(true);
+        }
+        return new Digests(sha1.hash().toString(), md5.hash().toString());
+    }
+
+    private static String mismatch(String algorithm, String expected, String actual) {
+        if (expected == null || expected.trim().isEmpty() || expected.trim().equalsIgnoreCase(actual)) {
+            return null;
+        }
+        return algorithm + " mismatch expected:" + expected.trim() + " actual:" + actual;
+    }
+
+    /**
+     * A checksum file must agree with the artifact it describes, otherwise the artifact was damaged on its way in.
+     */
+    private String verifyChecksumFile(File checksumFile, java.nio.file.Path uploaded) throws IOException {
+        String name = checksumFile.getName();
+        boolean sha1 = name.endsWith(".sha1");
+        File artifact = new File(checksumFile.getParentFile(), name.substring(0, name.lastIndexOf('.')));
+        if (!artifact.isFile()) {
+            return null;
+        }
+        String expected = checksum(Files.readAllBytes(uploaded));
+        if (expected == null) {
+            return "unparseable checksum file";
+        }
+        Uploaded recent = uploads.getIfPresent(artifact.getAbsolutePath());
+        String actual;
+        if (recent != null && recent.lastModified == artifact.lastModified()) {
+            actual = sha1 ? recent.digests.sha1 : recent.digests.md5;
+        } else {
+            actual = (sha1 ? com.google.common.io.Files.hash(artifact, Hashing.sha1())
+                : com.google.common.io.Files.hash(artifact, Hashing.md5())).toString();
+        }
+        return mismatch(sha1 ? "sha1" : "md5", expected, actual);
+    }
+
+    private static class Digests {
+
+        private final String sha1;
+        private final String md5;
+
+        Digests(String sha1, String md5) {
+            this.sha1 = sha1;
+            this.md5 = md5;
+        }
+    }
+
+    private static class Uploaded {
+
+        private final long lastModified;
+        private final Digests digests;
+
+        Uploaded(long lastModified, Digests digests) {
+            this.lastModified = lastModified;
+            this.digests = digests;
         }
     }
 
@@ -0,0 +1,74 @@
+package com.jivesoftware.os.upena.deployable.endpoints.loopback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * An If-None-Match header, which may list several entity tags or be * for any. Weak and strong tags are compared alike.
+ */
+class IfNoneMatch implements Predicate<String> {
+
+    static final IfNoneMatch NONE = new IfNoneMatch(false, Collections.emptyList());
+
+    final boolean any;
+    final List<String> tags;
+
+    private IfNoneMatch(boolean any, List<String> tags) {
+        this.any = any;
+        this.tags = tags;
+    }
+
+    static IfNoneMatch parse(String header) {
+        if (header == null || header.trim().isEmpty()) {
+            return NONE;
+        }
+        if (header.trim().equals("*")) {
+            return new IfNoneMatch(true, Collections.emptyList());
+        }
+        List<String> tags = new ArrayList<>();
+        int i = 0;
+        int length = header.length();
+        while (i < length) {
+            char c = header.charAt(i);
+            if (c == ',' || Character.isWhitespace(c)) {
+                i++;
+            } else if (header.startsWith("W/", i)) {
+                i += 2;
+            } else if (c == '"') {
+                int end = header.indexOf('"', i + 1);
+                if (end < 0) {
+                    break;
+                }
+                tags.add(header.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                // tolerate unquoted tags from sloppy clients
+                int end = header.indexOf(',', i);
+                end = end < 0 ? length : end;
+                String tag = header.substring(i, end).trim();
+                if (!tag.isEmpty()) {
+                    tags.add(tag);
+                }
+                i = end;
+            }
+        }
+        return new IfNoneMatch(false, tags);
+    }
+
+    /**
+     * @return true if the caller already holds the representation with this tag.
+     */
+    @Override
+    public boolean test(String tag) {
+        return any || tags.contains(tag);
+    }
+
+    /**
+     * @return a tag to echo in a 304 when the current tag is not known, or null if the caller sent none.
+     */
+    String firstTag() {
+        return tags.isEmpty() ? null : tags.get(0);
+    }
+}
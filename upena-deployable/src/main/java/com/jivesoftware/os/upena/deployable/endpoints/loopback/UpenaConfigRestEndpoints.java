@@ -19,16 +19,29 @@ import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
 import com.jivesoftware.os.routing.bird.deployable.config.shared.DeployableConfig;
 import com.jivesoftware.os.routing.bird.shared.ResponseHelper;
+import com.jivesoftware.os.upena.service.ConfigWatches;
 import com.jivesoftware.os.upena.service.UpenaConfigStore;
+import com.jivesoftware.os.upena.service.UpenaConfigStore.ConfigBundle;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Singleton;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -37,10 +50,16 @@ import javax.ws.rs.core.Response;
 public class UpenaConfigRestEndpoints {
 
     private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+    private static final long MIN_WATCH_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_WATCH_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
     private final UpenaConfigStore upenaConfigStore;
+    private final ConfigWatches configWatches;
 
-    public UpenaConfigRestEndpoints(@Context UpenaConfigStore upenaConfigStore) {
+    public UpenaConfigRestEndpoints(@Context UpenaConfigStore upenaConfigStore,
+        @Context ConfigWatches configWatches) {
         this.upenaConfigStore = upenaConfigStore;
+        this.configWatches = configWatches;
     }
 
     @POST
@@ -77,6 +96,39 @@ public class UpenaConfigRestEndpoints {
         }
     }
 
+    /**
+     * Bulk form of /get for tooling and the config ui. Unlike /get it never marks a config as fetched by the instance.
+     */
+    @POST
+    @Consumes("application/json")
+    @Path("/getAll")
+    public Response getAll(List<DeployableConfig> configs) {
+        try {
+            Map<String, List<String>> contextInstanceKeys = new HashMap<>();
+            for (DeployableConfig config : configs) {
+                contextInstanceKeys.computeIfAbsent(config.context, k -> new ArrayList<>()).add(config.instanceKey);
+            }
+            Map<String, Map<String, Map<String, String>>> contextProperties = new HashMap<>();
+            for (Map.Entry<String, List<String>> entry : contextInstanceKeys.entrySet()) {
+                contextProperties.put(entry.getKey(), upenaConfigStore.getAll(entry.getValue(), entry.getKey()));
+            }
+
+            List<DeployableConfig> got = new ArrayList<>(configs.size());
+            for (DeployableConfig config : configs) {
+                Map<String, String> properties = new HashMap<>(contextProperties.get(config.context).get(config.instanceKey));
+                if (config.properties != null && !config.properties.isEmpty()) {
+                    properties.keySet().retainAll(config.properties.keySet());
+                }
+                got.add(new DeployableConfig(config.context, config.instanceKey, config.instanceVersion, properties));
+            }
+            LOG.info("Got properties for " + got.size() + " configs");
+            return ResponseHelper.INSTANCE.jsonResponse(got);
+        } catch (Exception x) {
+            LOG.warn("Failed to get all: " + configs.size(), x);
+            return ResponseHelper.INSTANCE.errorResponse("Failed to get all " + configs.size(), x);
+        }
+    }
+
     @POST
     @Consumes("application/json")
     @Path("/remove")
@@ -116,4 +168,93 @@ public class UpenaConfigRestEndpoints {
             return ResponseHelper.INSTANCE.errorResponse("Failed to get " + instanceKey + " " + context, x);
         }
     }
+
+    /**
+     * Every context of an instance's config in one answer. The ETag is a hash of the whole bundle, a caller listing it (or *) in
+     * If-None-Match gets a 304 instead of the properties.
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/bundle/{instanceKey}")
+    public Response bundle(@PathParam("instanceKey") String instanceKey,
+        @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
+        try {
+            ConfigBundle bundle = upenaConfigStore.bundle(instanceKey);
+            IfNoneMatch knownHashes = IfNoneMatch.parse(ifNoneMatch);
+            if (!knownHashes.any || knownHashes.tags.contains(bundle.hash)) {
+                // a * only says the caller holds something, not what
+                upenaConfigStore.fetched(instanceKey, bundle);
+            }
+            return bundleResponse(knownHashes, bundle.hash, bundle);
+        } catch (Exception x) {
+            LOG.warn("Failed to get bundle for: " + instanceKey, x);
+            return ResponseHelper.INSTANCE.errorResponse("Failed to get bundle for " + instanceKey, x);
+        }
+    }
+
+    /**
+     * Long poll for an instance's config bundle. Answers as soon as the bundle differs from every If-None-Match hash the caller holds,
+     * otherwise parks until the config changes or the timeout, which answers 304 so the caller can simply poll again.
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/bundle/{instanceKey}/watch")
+    public void watchBundle(@PathParam("instanceKey") String instanceKey,
+        @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+        @QueryParam("timeoutMillis") @DefaultValue("60000") long timeoutMillis,
+        @Suspended AsyncResponse asyncResponse) {
+        try {
+            IfNoneMatch knownHashes = IfNoneMatch.parse(ifNoneMatch);
+            String knownHash = knownHashes.firstTag();
+            ConfigBundle current = upenaConfigStore.bundle(instanceKey);
+            if (knownHashes.tags.contains(current.hash)) {
+                upenaConfigStore.fetched(instanceKey, current);
+            }
+            ConfigWatches.Watch[] watch = new ConfigWatches.Watch[1];
+            asyncResponse.setTimeoutHandler(timedOut -> {
+                ConfigWatches.Watch w = watch[0];
+                if (w != null) {
+                    configWatches.cancel(w);
+                }
+                timedOut.resume(knownHash == null ? Response.notModified().build() : Response.notModified(new EntityTag(knownHash)).build());
+            });
+            // a zero timeout would suspend forever
+            asyncResponse.setTimeout(Math.max(MIN_WATCH_MILLIS, Math.min(timeoutMillis, MAX_WATCH_MILLIS)), TimeUnit.MILLISECONDS);
+            watch[0] = configWatches.watch(instanceKey, knownHashes, new ConfigWatches.Listener() {
+                @Override
+                public boolean isDone() {
+                    return asyncResponse.isDone();
+                }
+
+                @Override
+                public void changed(ConfigBundle bundle) {
+                    upenaConfigStore.fetched(instanceKey, bundle);
+                    asyncResponse.resume(Response.fromResponse(ResponseHelper.INSTANCE.jsonResponse(bundle))
+                        .tag(new EntityTag(bundle.hash))
+                        .build());
+                }
+
+                @Override
+                public void failed(Exception x) {
+                    asyncResponse.resume(ResponseHelper.INSTANCE.errorResponse("Failed to watch bundle for " + instanceKey, x));
+                }
+            });
+        } catch (Exception x) {
+            LOG.warn("Failed to watch bundle for: " + instanceKey, x);
+            asyncResponse.resume(ResponseHelper.INSTANCE.errorResponse("Failed to watch bundle for " + instanceKey, x));
+        }
+    }
+
+    /**
+     * @return a 304 when the caller already holds hash, otherwise the bundle tagged with its hash.
+     */
+    static Response bundleResponse(IfNoneMatch knownHashes, String hash, Object bundle) {
+        EntityTag tag = new EntityTag(hash);
+        if (knownHashes.test(hash)) {
+            LOG.inc("configBundle>notModified");
+            return Response.notModified(tag).build();
+        }
+        LOG.inc("configBundle>sent");
+        return Response.fromResponse(ResponseHelper.INSTANCE.jsonResponse(bundle)).tag(tag).build();
+    }
 }
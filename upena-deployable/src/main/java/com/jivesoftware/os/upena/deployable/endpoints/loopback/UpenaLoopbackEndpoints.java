@@ -28,19 +28,28 @@ import com.jivesoftware.os.routing.bird.shared.ResponseHelper;
 import com.jivesoftware.os.upena.deployable.HeaderDecoration;
 import com.jivesoftware.os.upena.deployable.UpenaHealth;
 import com.jivesoftware.os.upena.service.DiscoveredRoutes;
+import com.jivesoftware.os.upena.service.RouteWatches;
 import com.jivesoftware.os.upena.service.SessionStore;
 import com.jivesoftware.os.upena.service.SessionValidation;
 import com.jivesoftware.os.upena.service.UpenaService;
 import com.jivesoftware.os.upena.service.UpenaStore;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Singleton;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -56,24 +65,30 @@ public class UpenaLoopbackEndpoints {
 
     private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
 
+    private static final long MIN_WATCH_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_WATCH_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
     private final ObjectMapper mapper = new ObjectMapper();
     private final UpenaHealth upenaHealth;
     private final DiscoveredRoutes discoveredRoutes;
     private final UpenaService upenaService;
     private final UpenaStore upenaStore;
     private final SessionStore sessionStore;
+    private final RouteWatches routeWatches;
 
     public UpenaLoopbackEndpoints(@Context UpenaHealth upenaHealth,
         @Context DiscoveredRoutes discoveredRoutes,
         @Context UpenaService upenaService,
         @Context UpenaStore upenaStore,
-        @Context SessionStore sessionStore) {
+        @Context SessionStore sessionStore,
+        @Context RouteWatches routeWatches) {
 
         this.upenaHealth = upenaHealth;
         this.discoveredRoutes = discoveredRoutes;
         this.upenaService = upenaService;
         this.upenaStore = upenaStore;
         this.sessionStore = sessionStore;
+        this.routeWatches = routeWatches;
         this.mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     }
 
@@ -92,6 +107,54 @@ public class UpenaLoopbackEndpoints {
         }
     }
 
+    /**
+     * Long poll for routes. Answers as soon as the routes differ from every If-None-Match tag the caller holds, otherwise parks until a
+     * routing change or the timeout, which answers 304 so the caller can simply poll again.
+     */
+    @POST
+    @Consumes("application/json")
+    @Path("/request/connections/watch")
+    public void watchConnections(ConnectionDescriptorsRequest connectionsRequest,
+        @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+        @QueryParam("timeoutMillis") @DefaultValue("60000") long timeoutMillis,
+        @Suspended AsyncResponse asyncResponse) {
+        try {
+            IfNoneMatch knownTags = IfNoneMatch.parse(ifNoneMatch);
+            String knownTag = knownTags.firstTag();
+            RouteWatches.Watch[] watch = new RouteWatches.Watch[1];
+            asyncResponse.setTimeoutHandler(timedOut -> {
+                RouteWatches.Watch w = watch[0];
+                if (w != null) {
+                    routeWatches.cancel(w);
+                }
+                timedOut.resume(knownTag == null ? Response.notModified().build() : Response.notModified(new EntityTag(knownTag)).build());
+            });
+            // a zero timeout would suspend forever
+            asyncResponse.setTimeout(Math.max(MIN_WATCH_MILLIS, Math.min(timeoutMillis, MAX_WATCH_MILLIS)), TimeUnit.MILLISECONDS);
+            watch[0] = routeWatches.watch(connectionsRequest, knownTags, new RouteWatches.Listener() {
+                @Override
+                public boolean isDone() {
+                    return asyncResponse.isDone();
+                }
+
+                @Override
+                public void changed(ConnectionDescriptorsResponse response, String tag) {
+                    asyncResponse.resume(Response.fromResponse(ResponseHelper.INSTANCE.jsonResponse(response))
+                        .tag(new EntityTag(tag))
+                        .build());
+                }
+
+                @Override
+                public void failed(Exception x) {
+                    asyncResponse.resume(ResponseHelper.INSTANCE.errorResponse("Failed to watchConnections for:" + connectionsRequest, x));
+                }
+            });
+        } catch (Exception x) {
+            LOG.warn("Failed to watchConnections:" + connectionsRequest, x);
+            asyncResponse.resume(ResponseHelper.INSTANCE.errorResponse("Failed to watchConnections for:" + connectionsRequest, x));
+        }
+    }
+
     @GET
     @Consumes("application/json")
     @Path("/request/keyStorePassword/{instanceKey}")
@@ -14,6 +14,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -70,6 +71,36 @@ public class JVMPluginEndpoints {
         });
     }
 
+    @GET
+    @Path("/sampling/{instanceKey}")
+    @Produces(MediaType.TEXT_HTML)
+    public Response jmvSampling(@Context HttpServletRequest httpRequest, @PathParam("instanceKey") String instanceKey) {
+        return shiroRequestHelper.call("jvmSampling", (csrfToken) -> {
+            String rendered = soyService.renderPlugin(httpRequest.getRemoteUser(), csrfToken, pluginRegion,
+                new JVMPluginRegionInput("", "", instanceKey, "sampling"));
+            return Response.ok(rendered);
+        });
+    }
+
+    @GET
+    @Path("/collapsed")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response jmvCollapsed(@Context HttpServletRequest httpRequest,
+        @QueryParam("host") @DefaultValue("") String host,
+        @QueryParam("port") @DefaultValue("0") int port) {
+        return shiroRequestHelper.call("jvmCollapsed", (csrfToken) -> {
+            if (host.trim().isEmpty() || port <= 0) {
+                return Response.status(Response.Status.BAD_REQUEST).entity("host and port are required.").type(MediaType.TEXT_PLAIN_TYPE);
+            }
+            StringBuilder collapsed = new StringBuilder();
+            if (pluginRegion == null || !pluginRegion.collapsed(host, port, collapsed)) {
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity("Wall clock sampling is not available on this node.")
+                    .type(MediaType.TEXT_PLAIN_TYPE);
+            }
+            return Response.ok(collapsed.toString(), MediaType.TEXT_PLAIN_TYPE);
+        });
+    }
+
     @POST
     @Produces(MediaType.TEXT_HTML)
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
@@ -77,10 +108,12 @@ public class JVMPluginEndpoints {
         @FormParam("csrfToken") String csrfToken,
         @FormParam("host") @DefaultValue("") String host,
         @FormParam("port") @DefaultValue("") String port,
-        @FormParam("action") @DefaultValue("") String action) {
+        @FormParam("action") @DefaultValue("") String action,
+        @FormParam("samplesPerSecond") @DefaultValue("10") int samplesPerSecond,
+        @FormParam("durationSeconds") @DefaultValue("60") int durationSeconds) {
         return shiroRequestHelper.csrfCall(csrfToken, "jvm/actions", (csrfToken1) -> {
             String rendered = soyService.renderPlugin(httpRequest.getRemoteUser(), csrfToken1, pluginRegion,
-                new JVMPluginRegionInput(host, port, "", action));
+                new JVMPluginRegionInput(host, port, "", action, samplesPerSecond, durationSeconds));
             return Response.ok(rendered);
         });
     }
@@ -14,6 +14,7 @@ import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -41,7 +42,8 @@ public class ProfilerPluginEndpoints {
 
     @GET
     @Produces(MediaType.TEXT_HTML)
-    public Response profiler(@Context HttpServletRequest httpRequest) {
+    public Response profiler(@Context HttpServletRequest httpRequest,
+        @QueryParam("instanceKey") @DefaultValue("") String instanceKey) {
         return shiroRequestHelper.call("profiler", (csrfToken) -> {
 
             String rendered = soyService.renderPlugin(httpRequest.getRemoteUser(),
@@ -58,7 +60,12 @@ public class ProfilerPluginEndpoints {
                     VStrategies.Background.alpha.name(),
                     VStrategies.StackOrder.ascending.name(),
                     0,
-                    0));
+                    0,
+                    0,
+                    instanceKey,
+                    "",
+                    "",
+                    false));
             return Response.ok(rendered);
         });
     }
@@ -78,8 +85,13 @@ public class ProfilerPluginEndpoints {
         @FormParam("coloring") @DefaultValue("heat") String coloring,
         @FormParam("background") @DefaultValue("alpha") String background,
         @FormParam("stackOrder") @DefaultValue("ascending") String stackOrder,
+        @FormParam("windowMinutes") @DefaultValue("0") int windowMinutes,
         @FormParam("x") @DefaultValue("0") int mouseX,
-        @FormParam("y") @DefaultValue("0") int mouseY) {
+        @FormParam("y") @DefaultValue("0") int mouseY,
+        @FormParam("instanceKey") @DefaultValue("") String instanceKey,
+        @FormParam("agentAction") @DefaultValue("") String agentAction,
+        @FormParam("prefixes") @DefaultValue("") String prefixes,
+        @FormParam("followAsync") @DefaultValue("false") boolean followAsync) {
         return shiroRequestHelper.csrfCall(csrfToken, "profiler/action", (csrfToken1) -> {
             String rendered = soyService.renderPlugin(httpRequest.getRemoteUser(),
                 csrfToken1,
@@ -94,8 +106,13 @@ public class ProfilerPluginEndpoints {
                     coloring,
                     background,
                     stackOrder,
+                    windowMinutes,
                     mouseX,
-                    mouseY));
+                    mouseY,
+                    instanceKey,
+                    agentAction,
+                    prefixes,
+                    followAsync));
             return Response.ok(rendered);
         });
     }
@@ -15,7 +15,7 @@
  */
 package com.jivesoftware.os.upena.deployable.profiler.model;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -31,7 +31,7 @@ public class CallClass {
 
     public CallClass(String className) {
         this.classMethods = new ConcurrentHashMap<>();
-        this.calls = new HashSet<>();
+        this.calls = Collections.newSetFromMap(new ConcurrentHashMap<>());
         this.name = (className == null) ? "unnamedClass" : className;
     }
 
@@ -51,6 +51,13 @@ public class CallClass {
         calls.add(new Call(className, methodName));
     }
 
+    void merge(CallClass other) {
+        calls.addAll(other.calls);
+        for (ClassMethod classMethod : other.classMethods.values()) {
+            getOrCreateClassMethod(classMethod.getMethodName()).merge(classMethod);
+        }
+    }
+
     public ClassMethod getOrCreateClassMethod(String methodName) {
         ClassMethod classMethod = classMethods.get(methodName);
         if (classMethod == null) {
@@ -103,6 +110,14 @@ public class CallClass {
         return v;
     }
 
+    public LatencyHistogram getLatencyHistogram() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (ClassMethod classMethod : classMethods.values()) {
+            merged.merge(classMethod.latencyHistogram);
+        }
+        return merged;
+    }
+
     @Override
     public int hashCode() {
         int hash = 3;
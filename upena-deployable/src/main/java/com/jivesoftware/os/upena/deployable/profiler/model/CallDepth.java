@@ -41,6 +41,12 @@ public class CallDepth {
         return node;
     }
 
+    void merge(CallDepth other) {
+        for (CallClass callClass : other.classNameToCallClass.values()) {
+            getOrCreateCallClass(callClass.getName()).merge(callClass);
+        }
+    }
+
     public CallClass[] getCopy() {
         return classNameToCallClass.values().toArray(new CallClass[0]);
     }
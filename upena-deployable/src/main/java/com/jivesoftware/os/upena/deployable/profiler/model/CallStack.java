@@ -13,6 +13,7 @@ import com.jivesoftware.os.upena.deployable.profiler.sample.LatentSample.LatentN
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -32,6 +33,13 @@ public class CallStack {
     }
 
     public boolean call(LatentSample latentSample) {
+        return call(latentSample, Collections.emptyList());
+    }
+
+    /**
+     * Applies a sample to this stack and adds whatever changed since the previous sample to each of the segments.
+     */
+    boolean call(LatentSample latentSample, List<CallStack> segments) {
         lastSampleTimestampMillis.set(System.currentTimeMillis());
         if (enabled.get()) {
             LatentNode from = latentSample.from;
@@ -40,11 +48,15 @@ public class CallStack {
             CallDepth fromDepth = getCallDepth(from.stackDepth);
             CallClass fromClass = fromDepth.getOrCreateCallClass(getClassName(from));
             ClassMethod fromMethod = fromClass.getOrCreateClassMethod(from.methodName);
-            fromMethod.update(from.stackDepth,
+            ClassMethod.Delta fromDelta = fromMethod.update(from.stackDepth,
                 from.callCount,
                 from.callLatency,
                 from.failedCount,
-                from.failedLatency);
+                from.failedLatency,
+                from.latencyHistogram);
+            for (CallStack segment : segments) {
+                segment.accumulate(from, fromDelta);
+            }
 
             if (to != null) {
                 fromClass.calls(getClassName(to), to.methodName);
@@ -52,11 +64,16 @@ public class CallStack {
                 CallDepth toDepth = getCallDepth(to.stackDepth);
                 CallClass toClass = toDepth.getOrCreateCallClass(getClassName(to));
                 ClassMethod toMethod = toClass.getOrCreateClassMethod(to.methodName);
-                toMethod.update(to.stackDepth,
+                ClassMethod.Delta toDelta = toMethod.update(to.stackDepth,
                     to.callCount,
                     to.callLatency,
                     to.failedCount,
-                    to.failedLatency);
+                    to.failedLatency,
+                    to.latencyHistogram);
+                for (CallStack segment : segments) {
+                    segment.getCallDepth(from.stackDepth).getOrCreateCallClass(getClassName(from)).calls(getClassName(to), to.methodName);
+                    segment.accumulate(to, toDelta);
+                }
             }
             return true;
         } else {
@@ -64,6 +81,27 @@ public class CallStack {
         }
     }
 
+    private void accumulate(LatentNode node, ClassMethod.Delta delta) {
+        lastSampleTimestampMillis.set(System.currentTimeMillis());
+        getCallDepth(node.stackDepth)
+            .getOrCreateCallClass(getClassName(node))
+            .getOrCreateClassMethod(node.methodName)
+            .accumulate(node.stackDepth, delta);
+    }
+
+    /**
+     * Folds another stack into this one, summing counts and histograms.
+     */
+    void merge(CallStack other) {
+        for (Map.Entry<Integer, CallDepth> entry : other.callsAtDepth.entrySet()) {
+            getCallDepth(entry.getKey()).merge(entry.getValue());
+        }
+        long otherLast = other.lastSampleTimestampMillis.get();
+        if (otherLast > lastSampleTimestampMillis.get()) {
+            lastSampleTimestampMillis.set(otherLast);
+        }
+    }
+
     private String getClassName(LatentNode node) {
         return node.interfaceName;
 
@@ -8,8 +8,9 @@
  */
 package com.jivesoftware.os.upena.deployable.profiler.model;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -21,19 +22,72 @@ public class ClassMethod {
     long successlatency;
     long failed;
     long failedlatency;
+    volatile LatencyHistogram latencyHistogram = new LatencyHistogram();
     private final Set<Integer> stackDepths;
 
     public ClassMethod(String methodName) {
-        this.stackDepths = new HashSet<>();
+        this.stackDepths = Collections.newSetFromMap(new ConcurrentHashMap<>());
         this.methodName = methodName;
     }
 
-    final void update(int stackDepth, long called, long successlatency, long failed, long failedlatency) {
+    /**
+     * Replaces this method's counters with the cumulative counters an agent reported.
+     *
+     * @return what changed since the previous report. Counters that went backwards mean the agent restarted or cleared and are taken
+     * as is.
+     */
+    final synchronized Delta update(int stackDepth,
+        long called,
+        long successlatency,
+        long failed,
+        long failedlatency,
+        long[] latencyHistogram) {
         this.stackDepths.add(stackDepth);
+        Delta delta = new Delta(called >= this.called ? called - this.called : called,
+            successlatency,
+            failed >= this.failed ? failed - this.failed : failed,
+            failedlatency,
+            null);
         this.called = called;
         this.successlatency = successlatency;
         this.failed = failed;
         this.failedlatency = failedlatency;
+        if (latencyHistogram != null) {
+            // agents send everything recorded since they started so the latest snapshot replaces rather than adds
+            LatencyHistogram reported = LatencyHistogram.fromSparse(latencyHistogram);
+            delta.latencyHistogram = reported.since(this.latencyHistogram);
+            this.latencyHistogram = reported;
+        }
+        return delta;
+    }
+
+    /**
+     * Adds a delta to this method. Used by time windowed segments which sum what happened while they were current.
+     */
+    final synchronized void accumulate(int stackDepth, Delta delta) {
+        this.stackDepths.add(stackDepth);
+        this.called += delta.called;
+        this.successlatency = delta.successlatency;
+        this.failed += delta.failed;
+        this.failedlatency = delta.failedlatency;
+        if (delta.latencyHistogram != null) {
+            LatencyHistogram merged = new LatencyHistogram();
+            merged.merge(this.latencyHistogram);
+            merged.merge(delta.latencyHistogram);
+            this.latencyHistogram = merged;
+        }
+    }
+
+    final synchronized void merge(ClassMethod other) {
+        this.stackDepths.addAll(other.stackDepths);
+        this.called += other.called;
+        this.successlatency = Math.max(this.successlatency, other.successlatency);
+        this.failed += other.failed;
+        this.failedlatency = Math.max(this.failedlatency, other.failedlatency);
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.merge(this.latencyHistogram);
+        merged.merge(other.latencyHistogram);
+        this.latencyHistogram = merged;
     }
 
     public String getMethodName() {
@@ -56,8 +110,29 @@ public class ClassMethod {
         return failedlatency;
     }
 
+    public LatencyHistogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
     public Set<Integer> getStackDepths() {
         return stackDepths;
     }
 
+    static class Delta {
+
+        final long called;
+        final long successlatency;
+        final long failed;
+        final long failedlatency;
+        LatencyHistogram latencyHistogram;
+
+        Delta(long called, long successlatency, long failed, long failedlatency, LatencyHistogram latencyHistogram) {
+            this.called = called;
+            this.successlatency = successlatency;
+            this.failed = failed;
+            this.failedlatency = failedlatency;
+            this.latencyHistogram = latencyHistogram;
+        }
+    }
+
 }
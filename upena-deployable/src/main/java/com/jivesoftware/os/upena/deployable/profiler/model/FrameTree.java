@@ -0,0 +1,116 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 1999-$year$ Jive Software. All rights reserved.
+ *
+ * This software is the proprietary information of Jive Software. Use is subject to license terms.
+ */
+package com.jivesoftware.os.upena.deployable.profiler.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Stacks sampled from a running jvm folded into a tree as they arrive. Can be emitted in the collapsed stack format understood by the
+ * usual flame graph tools or laid out as flame graph rectangles.
+ */
+public class FrameTree {
+
+    private final Node root = new Node("all");
+
+    /**
+     * @param stack outermost frame first
+     */
+    public synchronized void add(List<String> stack) {
+        Node node = root;
+        node.total++;
+        for (String frame : stack) {
+            node = node.children.computeIfAbsent(frame, Node::new);
+            node.total++;
+        }
+        node.self++;
+    }
+
+    public synchronized long samples() {
+        return root.total;
+    }
+
+    public synchronized void clear() {
+        root.children.clear();
+        root.total = 0;
+        root.self = 0;
+    }
+
+    /**
+     * One line per distinct stack: frames joined by ';' followed by a space and the number of samples that ended there.
+     */
+    public synchronized void collapsed(StringBuilder out) {
+        for (Node child : root.children.values()) {
+            collapsed(child, child.name, out);
+        }
+    }
+
+    private void collapsed(Node node, String path, StringBuilder out) {
+        if (node.self > 0) {
+            out.append(path).append(' ').append(node.self).append('\n');
+        }
+        for (Node child : node.children.values()) {
+            collapsed(child, path + ';' + child.name, out);
+        }
+    }
+
+    /**
+     * Lays the tree out root on top. Each rectangle carries depth, left and width as percent of all samples, the frame name and its
+     * sample count. Frames narrower than minPercent are left out along with everything they called.
+     */
+    public synchronized List<Map<String, String>> flames(double minPercent) {
+        List<Map<String, String>> flames = new ArrayList<>();
+        if (root.total > 0) {
+            flames(root, 0, 0, minPercent, flames);
+        }
+        return flames;
+    }
+
+    private void flames(Node node, int depth, long offset, double minPercent, List<Map<String, String>> flames) {
+        double width = 100d * node.total / root.total;
+        if (width < minPercent) {
+            return;
+        }
+        Map<String, String> flame = new HashMap<>();
+        flame.put("depth", String.valueOf(depth));
+        flame.put("left", String.format(Locale.ROOT, "%.3f", 100d * offset / root.total));
+        flame.put("width", String.format(Locale.ROOT, "%.3f", width));
+        flame.put("name", node.name);
+        flame.put("samples", String.valueOf(node.total));
+        flame.put("color", color(node.name));
+        flames.add(flame);
+
+        long childOffset = offset;
+        for (Node child : node.children.values()) {
+            flames(child, depth + 1, childOffset, minPercent, flames);
+            childOffset += child.total;
+        }
+    }
+
+    private static String color(String name) {
+        int hash = name.hashCode() & 0x7fffffff;
+        return "hsl(" + (hash % 55) + "," + (60 + hash % 30) + "%," + (55 + (hash >> 8) % 20) + "%)";
+    }
+
+    private static class Node {
+
+        private final String name;
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        private long total;
+        private long self;
+
+        private Node(String name) {
+            this.name = name;
+        }
+    }
+}
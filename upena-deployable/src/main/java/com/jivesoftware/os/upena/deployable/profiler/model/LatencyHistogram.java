@@ -0,0 +1,115 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 1999-$year$ Jive Software. All rights reserved.
+ *
+ * This software is the proprietary information of Jive Software. Use is subject to license terms.
+ */
+package com.jivesoftware.os.upena.deployable.profiler.model;
+
+/**
+ * Mergeable mirror of the agent's colt.nicity.performance.latent.LatentHistogram. Each power of two range of nanos is split into 4
+ * linear sub buckets, so quantiles are reported as the upper bound of their bucket and are off by at most 25%.
+ *
+ * @author jonathan.colt
+ */
+public class LatencyHistogram {
+
+    public static final int BUCKETS = 256;
+
+    private final long[] counts = new long[BUCKETS];
+
+    public LatencyHistogram() {
+    }
+
+    /**
+     * @param sparse alternating bucket, count pairs as sent by the agent. May be null.
+     */
+    public static LatencyHistogram fromSparse(long[] sparse) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        if (sparse != null) {
+            for (int i = 0; i + 1 < sparse.length; i += 2) {
+                int bucket = (int) sparse[i];
+                if (bucket >= 0 && bucket < BUCKETS) {
+                    histogram.counts[bucket] += sparse[i + 1];
+                }
+            }
+        }
+        return histogram;
+    }
+
+    public static long upperBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int msb = (bucket >>> 2) + 1;
+        int sub = bucket & 3;
+        long lower = (long) (4 + sub) << (msb - 2);
+        return lower + (1L << (msb - 2)) - 1;
+    }
+
+    public void merge(LatencyHistogram other) {
+        if (other == null) {
+            return;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+    }
+
+    /**
+     * @return what was recorded after previous was taken, or a copy of this histogram if previous holds counts this one does not
+     * which happens when the agent restarted.
+     */
+    public LatencyHistogram since(LatencyHistogram previous) {
+        LatencyHistogram delta = new LatencyHistogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            long d = counts[i] - (previous == null ? 0 : previous.counts[i]);
+            if (d < 0) {
+                delta = new LatencyHistogram();
+                delta.merge(this);
+                return delta;
+            }
+            delta.counts[i] = d;
+        }
+        return delta;
+    }
+
+    public long count() {
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        return count;
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return nanos at or below which the quantile of calls completed, or 0 when nothing was recorded.
+     */
+    public long quantile(double quantile) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return max();
+    }
+
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+}
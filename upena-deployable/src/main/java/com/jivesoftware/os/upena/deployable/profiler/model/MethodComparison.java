@@ -0,0 +1,45 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 1999-$year$ Jive Software. All rights reserved.
+ *
+ * This software is the proprietary information of Jive Software. Use is subject to license terms.
+ */
+package com.jivesoftware.os.upena.deployable.profiler.model;
+
+/**
+ * One method's counters and latency quantiles in two time windows. Quantiles are in nanos and zero when the method was not called.
+ *
+ * @author jonathan.colt
+ */
+public class MethodComparison {
+
+    public final String className;
+    public final String methodName;
+    public final long calledA;
+    public final long failedA;
+    public final long p50A;
+    public final long p99A;
+    public final long maxA;
+    public final long calledB;
+    public final long failedB;
+    public final long p50B;
+    public final long p99B;
+    public final long maxB;
+
+    MethodComparison(String className, String methodName, ClassMethod a, ClassMethod b) {
+        this.className = className;
+        this.methodName = methodName;
+        this.calledA = a == null ? 0 : a.getCalled();
+        this.failedA = a == null ? 0 : a.getFailed();
+        this.p50A = a == null ? 0 : a.getLatencyHistogram().quantile(0.5);
+        this.p99A = a == null ? 0 : a.getLatencyHistogram().quantile(0.99);
+        this.maxA = a == null ? 0 : a.getLatencyHistogram().max();
+        this.calledB = b == null ? 0 : b.getCalled();
+        this.failedB = b == null ? 0 : b.getFailed();
+        this.p50B = b == null ? 0 : b.getLatencyHistogram().quantile(0.5);
+        this.p99B = b == null ? 0 : b.getLatencyHistogram().quantile(0.99);
+        this.maxB = b == null ? 0 : b.getLatencyHistogram().max();
+    }
+}
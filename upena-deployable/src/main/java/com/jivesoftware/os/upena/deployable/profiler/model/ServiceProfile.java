@@ -0,0 +1,109 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 1999-$year$ Jive Software. All rights reserved.
+ *
+ * This software is the proprietary information of Jive Software. Use is subject to license terms.
+ */
+package com.jivesoftware.os.upena.deployable.profiler.model;
+
+import com.jivesoftware.os.upena.deployable.profiler.sample.LatentSample;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Everything profiled for one cluster, service and version. The live stack holds the latest cumulative counters the agent reported,
+ * the tiers hold what changed per minute, per ten minutes and per hour in fixed size rings so memory stays bounded no matter how long
+ * the service runs.
+ *
+ * @author jonathan.colt
+ */
+public class ServiceProfile {
+
+    private static final long[] TIER_SEGMENT_MILLIS = {
+        TimeUnit.MINUTES.toMillis(1),
+        TimeUnit.MINUTES.toMillis(10),
+        TimeUnit.HOURS.toMillis(1)
+    };
+
+    final CallStack live;
+    private final Tier[] tiers;
+
+    /**
+     * @param segmentsPerTier how many one minute, ten minute and one hour segments to retain.
+     */
+    public ServiceProfile(AtomicBoolean enabled, int[] segmentsPerTier) {
+        this.live = new CallStack(enabled);
+        this.tiers = new Tier[TIER_SEGMENT_MILLIS.length];
+        for (int i = 0; i < tiers.length; i++) {
+            tiers[i] = new Tier(TIER_SEGMENT_MILLIS[i], Math.max(1, segmentsPerTier[i]));
+        }
+    }
+
+    boolean call(LatentSample latentSample, long nowMillis) {
+        List<CallStack> segments = new ArrayList<>(tiers.length);
+        for (Tier tier : tiers) {
+            segments.add(tier.current(nowMillis));
+        }
+        return live.call(latentSample, segments);
+    }
+
+    /**
+     * Sums the segments of the finest tier that still retains fromMillis. The window is widened to that tier's segment boundaries.
+     */
+    CallStack window(long fromMillis, long toMillis, long nowMillis) {
+        Tier tier = tiers[tiers.length - 1];
+        for (Tier t : tiers) {
+            if (t.oldestRetained(nowMillis) <= fromMillis) {
+                tier = t;
+                break;
+            }
+        }
+        CallStack window = new CallStack(new AtomicBoolean(true));
+        for (CallStack segment : tier.covering(fromMillis, toMillis)) {
+            window.merge(segment);
+        }
+        return window;
+    }
+
+    private static class Tier {
+
+        private final long segmentMillis;
+        private final CallStack[] ring;
+        private final long[] segmentStarts;
+
+        Tier(long segmentMillis, int segments) {
+            this.segmentMillis = segmentMillis;
+            this.ring = new CallStack[segments];
+            this.segmentStarts = new long[segments];
+        }
+
+        synchronized CallStack current(long nowMillis) {
+            long start = nowMillis - (nowMillis % segmentMillis);
+            int i = (int) ((start / segmentMillis) % ring.length);
+            if (ring[i] == null || segmentStarts[i] != start) {
+                ring[i] = new CallStack(new AtomicBoolean(true));
+                segmentStarts[i] = start;
+            }
+            return ring[i];
+        }
+
+        long oldestRetained(long nowMillis) {
+            long start = nowMillis - (nowMillis % segmentMillis);
+            return start - (ring.length - 1) * segmentMillis;
+        }
+
+        synchronized List<CallStack> covering(long fromMillis, long toMillis) {
+            List<CallStack> covering = new ArrayList<>();
+            for (int i = 0; i < ring.length; i++) {
+                if (ring[i] != null && segmentStarts[i] < toMillis && segmentStarts[i] + segmentMillis > fromMillis) {
+                    covering.add(ring[i]);
+                }
+            }
+            return covering;
+        }
+    }
+}
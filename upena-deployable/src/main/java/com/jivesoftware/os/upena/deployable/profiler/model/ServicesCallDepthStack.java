@@ -15,38 +15,77 @@
  */
 package com.jivesoftware.os.upena.deployable.profiler.model;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.jivesoftware.os.upena.deployable.profiler.sample.LatentSample;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
 
 /**
+ * Profiles keyed by "cluster service version". Idle versions are evicted and the number of versions retained is capped so redeploys
+ * cannot grow the heap without bound.
  *
  * @author jonathan.colt
  */
 public class ServicesCallDepthStack {
 
-    private final ConcurrentHashMap<String, CallStack> depthStacks;
+    private final Cache<String, ServiceProfile> depthStacks;
+    private final int[] segmentsPerTier;
+    private final LongSupplier clock;
 
     public ServicesCallDepthStack() {
-        this.depthStacks = new ConcurrentHashMap<>();
+        this(256, TimeUnit.DAYS.toMillis(1), 60, 36, 48);
+    }
+
+    /**
+     * @param maxServices service versions to retain, least recently sampled or viewed are evicted first.
+     * @param idleEvictMillis evict a service version after it has gone this long without a sample or a view.
+     * @param minuteSegments one minute segments to retain.
+     * @param tenMinuteSegments ten minute segments to retain.
+     * @param hourSegments one hour segments to retain.
+     */
+    public ServicesCallDepthStack(int maxServices, long idleEvictMillis, int minuteSegments, int tenMinuteSegments, int hourSegments) {
+        this(maxServices, idleEvictMillis, minuteSegments, tenMinuteSegments, hourSegments, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock decides which segment a sample lands in and which segments a window covers.
+     */
+    ServicesCallDepthStack(int maxServices,
+        long idleEvictMillis,
+        int minuteSegments,
+        int tenMinuteSegments,
+        int hourSegments,
+        LongSupplier clock) {
+        this.depthStacks = CacheBuilder.newBuilder()
+            .maximumSize(maxServices)
+            .expireAfterAccess(idleEvictMillis, TimeUnit.MILLISECONDS)
+            .build();
+        this.segmentsPerTier = new int[]{minuteSegments, tenMinuteSegments, hourSegments};
+        this.clock = clock;
     }
 
     public CallStack callStackForServiceName(String serviceName) {
-        return depthStacks.get(serviceName);
+        ServiceProfile profile = serviceName == null ? null : depthStacks.getIfPresent(serviceName);
+        return profile == null ? null : profile.live;
     }
 
     public List<Map<String, String>> getServiceNames() {
         List<Map<String, String>> serviceNames = new ArrayList<>();
-        for (Map.Entry<String, CallStack> e : depthStacks.entrySet()) {
+        for (Map.Entry<String, ServiceProfile> e : depthStacks.asMap().entrySet()) {
+            CallStack callStack = e.getValue().live;
             Map<String, String> serviceProperties = new HashMap<>();
             serviceProperties.put("name", e.getKey());
-            serviceProperties.put("enabled", String.valueOf(e.getValue().enabled.get()));
-            serviceProperties.put("age", String.valueOf(System.currentTimeMillis() - e.getValue().lastSampleTimestampMillis.get()));
+            serviceProperties.put("enabled", String.valueOf(callStack.enabled.get()));
+            serviceProperties.put("age", String.valueOf(System.currentTimeMillis() - callStack.lastSampleTimestampMillis.get()));
             serviceNames.add(serviceProperties);
         }
 
@@ -58,25 +97,93 @@ public class ServicesCallDepthStack {
 
     public boolean call(LatentSample latentSample) {
         String key = latentSample.clusterName + " " + latentSample.serviceName + " " + latentSample.serviceVersion;
-        return getOrCreateCallStack(key).call(latentSample);
+        return getOrCreateProfile(key).call(latentSample, clock.getAsLong());
     }
 
+    /**
+     * Applies a frame worth of samples resolving each service's call stack once instead of once per sample.
+     *
+     * @return false if any of the sampled services has profiling disabled.
+     */
+    public boolean calls(List<LatentSample> latentSamples) {
+        long now = clock.getAsLong();
+        boolean enabled = true;
+        ServiceProfile profile = null;
+        String lastKey = null;
+        for (LatentSample latentSample : latentSamples) {
+            String key = latentSample.clusterName + " " + latentSample.serviceName + " " + latentSample.serviceVersion;
+            if (!key.equals(lastKey)) {
+                profile = getOrCreateProfile(key);
+                lastKey = key;
+            }
+            enabled &= profile.call(latentSample, now);
+        }
+        return enabled;
+    }
+
+    /**
+     * @return everything reported since the service version was first seen.
+     */
     public CallDepth[] getCopy(String serviceName) {
-        if (serviceName == null) {
+        CallStack callStack = callStackForServiceName(serviceName);
+        if (callStack == null) {
             return new CallDepth[0];
         }
-        return depthStacks.get(serviceName).getCopy();
+        return callStack.getCopy();
     }
 
-    private CallStack getOrCreateCallStack(String key) {
-        CallStack got = depthStacks.get(key);
-        if (got == null) {
-            got = new CallStack(new AtomicBoolean(true));
-            CallStack had = depthStacks.putIfAbsent(key, got);
-            if (had != null) {
-                got = had;
+    /**
+     * @return what happened between fromMillis and toMillis, widened to the boundaries of the finest retained segments.
+     */
+    public CallDepth[] getWindow(String serviceName, long fromMillis, long toMillis) {
+        ServiceProfile profile = serviceName == null ? null : depthStacks.getIfPresent(serviceName);
+        if (profile == null) {
+            return new CallDepth[0];
+        }
+        return profile.window(fromMillis, toMillis, clock.getAsLong()).getCopy();
+    }
+
+    public CallDepth[] getLastMinutes(String serviceName, int minutes) {
+        long now = clock.getAsLong();
+        return getWindow(serviceName, now - TimeUnit.MINUTES.toMillis(minutes), now);
+    }
+
+    /**
+     * Lines up every method seen in either window.
+     */
+    public List<MethodComparison> compare(String serviceName, long aFromMillis, long aToMillis, long bFromMillis, long bToMillis) {
+        Map<String, ClassMethod[]> methods = new TreeMap<>();
+        collect(getWindow(serviceName, aFromMillis, aToMillis), methods, 0);
+        collect(getWindow(serviceName, bFromMillis, bToMillis), methods, 1);
+
+        List<MethodComparison> comparisons = new ArrayList<>(methods.size());
+        for (Map.Entry<String, ClassMethod[]> entry : methods.entrySet()) {
+            String[] classAndMethod = entry.getKey().split("\t", 2);
+            comparisons.add(new MethodComparison(classAndMethod[0], classAndMethod[1], entry.getValue()[0], entry.getValue()[1]));
+        }
+        return comparisons;
+    }
+
+    private void collect(CallDepth[] callDepths, Map<String, ClassMethod[]> methods, int side) {
+        for (CallDepth callDepth : callDepths) {
+            for (CallClass callClass : callDepth.getCopy()) {
+                for (ClassMethod classMethod : callClass.getClassMethods().values()) {
+                    ClassMethod[] sides = methods.computeIfAbsent(callClass.getName() + "\t" + classMethod.getMethodName(),
+                        k -> new ClassMethod[2]);
+                    if (sides[side] == null) {
+                        sides[side] = new ClassMethod(classMethod.getMethodName());
+                    }
+                    sides[side].merge(classMethod);
+                }
             }
         }
-        return got;
+    }
+
+    private ServiceProfile getOrCreateProfile(String key) {
+        try {
+            return depthStacks.get(key, () -> new ServiceProfile(new AtomicBoolean(true), segmentsPerTier));
+        } catch (ExecutionException x) {
+            throw new RuntimeException("Failed to create profile for " + key, x);
+        }
     }
 }
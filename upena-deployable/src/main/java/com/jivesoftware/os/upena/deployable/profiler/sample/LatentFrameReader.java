@@ -0,0 +1,181 @@
+/*
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 1999-$year$ Jive Software. All rights reserved.
+ *
+ * This software is the proprietary information of Jive Software. Use is subject to license terms.
+ */
+package com.jivesoftware.os.upena.deployable.profiler.sample;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteStreams;
+import com.jivesoftware.os.upena.deployable.profiler.sample.LatentSample.LatentNode;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decodes the batched binary frames posted by the latent profiler agent (see colt.nicity.performance.agent.LatentFrame).
+ *
+ * Class, interface and method names are sent once per agent session and referenced by id afterwards, so each session's dictionary is
+ * retained here until the session has been quiet for an hour.
+ *
+ * Frames arrive from the network so every count is checked against the bytes left before anything is allocated for it, and a frame
+ * may not inflate past MAX_FRAME_BYTES.
+ */
+public class LatentFrameReader {
+
+    public static final int MAGIC = 0x4C544631;
+    public static final int VERSION = 2;
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    public static final int MAX_BUCKETS = 256;
+
+    private static final int MIN_NAME_BYTES = 2;
+    private static final int MIN_NODE_BYTES = 4 * 4 + 8 * 4;
+    private static final int BUCKET_BYTES = 1 + 8;
+
+    private final Cache<Long, List<String>> sessionNames = CacheBuilder.newBuilder()
+        .expireAfterAccess(1, TimeUnit.HOURS)
+        .build();
+
+    /**
+     * @throws DictionaryMismatchException when the frame references names this reader never saw. The agent must resend its dictionary.
+     * @throws IOException when the frame is malformed, truncated or inflates past MAX_FRAME_BYTES.
+     */
+    public List<LatentSample> read(byte[] frame) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflate(frame)))) {
+            int magic = in.readInt();
+            if (magic != MAGIC) {
+                throw new IOException("Not a latent frame. magic:" + Integer.toHexString(magic));
+            }
+            int version = in.readByte();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported latent frame version:" + version);
+            }
+            long sessionId = in.readLong();
+            String clusterName = in.readUTF();
+            String serviceName = in.readUTF();
+            String serviceVersion = in.readUTF();
+            long sampleTimestampEpochMillis = in.readLong();
+
+            int dictionaryBase = in.readInt();
+            if (dictionaryBase < 0) {
+                throw new IOException("Latent frame has a negative dictionary base:" + dictionaryBase);
+            }
+            int newNameCount = count(in, "name", MIN_NAME_BYTES);
+            List<String> names = sessionNames.getIfPresent(sessionId);
+            if (names == null) {
+                if (dictionaryBase != 0) {
+                    throw new DictionaryMismatchException(sessionId, dictionaryBase, 0);
+                }
+                names = new ArrayList<>();
+            }
+            List<String> frameNames;
+            synchronized (names) {
+                if (dictionaryBase > names.size()) {
+                    throw new DictionaryMismatchException(sessionId, dictionaryBase, names.size());
+                }
+                // a frame may be resent after a lost ack so names we already hold are fine, anything past them is new.
+                frameNames = new ArrayList<>(names.subList(0, dictionaryBase));
+                for (int i = 0; i < newNameCount; i++) {
+                    frameNames.add(in.readUTF());
+                }
+                if (frameNames.size() > names.size()) {
+                    names.addAll(frameNames.subList(names.size(), frameNames.size()));
+                }
+            }
+            sessionNames.put(sessionId, names);
+
+            int edgeCount = count(in, "edge", (version >= 2 ? MIN_NODE_BYTES + 2 : MIN_NODE_BYTES) + 1);
+            List<LatentSample> samples = new ArrayList<>(edgeCount);
+            for (int i = 0; i < edgeCount; i++) {
+                LatentSample sample = new LatentSample();
+                sample.clusterName = clusterName;
+                sample.serviceName = serviceName;
+                sample.serviceVersion = serviceVersion;
+                sample.sampleTimestampEpochMillis = sampleTimestampEpochMillis;
+                sample.from = readNode(in, version, frameNames);
+                sample.to = in.readBoolean() ? readNode(in, version, frameNames) : null;
+                samples.add(sample);
+            }
+            return samples;
+        }
+    }
+
+    private LatentNode readNode(DataInputStream in, int version, List<String> names) throws IOException {
+        LatentNode node = new LatentNode();
+        node.stackDepth = in.readInt();
+        node.interfaceName = name(in.readInt(), names);
+        node.className = name(in.readInt(), names);
+        node.methodName = name(in.readInt(), names);
+        node.callCount = in.readLong();
+        node.callLatency = in.readLong();
+        node.failedCount = in.readLong();
+        node.failedLatency = in.readLong();
+        if (version >= 2) {
+            int buckets = in.readShort();
+            if (buckets < 0 || buckets > MAX_BUCKETS) {
+                throw new IOException("Latent frame node has " + buckets + " histogram buckets, at most " + MAX_BUCKETS + " exist.");
+            }
+            if ((long) buckets * BUCKET_BYTES > in.available()) {
+                throw new IOException("Latent frame is truncated, " + buckets + " histogram buckets need more than the "
+                    + in.available() + " bytes left.");
+            }
+            long[] latencyHistogram = new long[buckets * 2];
+            for (int i = 0; i < buckets; i++) {
+                latencyHistogram[i * 2] = in.readUnsignedByte();
+                latencyHistogram[i * 2 + 1] = in.readLong();
+            }
+            node.latencyHistogram = latencyHistogram;
+        }
+        return node;
+    }
+
+    private static byte[] inflate(byte[] frame) throws IOException {
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(frame))) {
+            byte[] inflated = ByteStreams.toByteArray(ByteStreams.limit(gzip, MAX_FRAME_BYTES + 1L));
+            if (inflated.length > MAX_FRAME_BYTES) {
+                throw new IOException("Latent frame inflates past " + MAX_FRAME_BYTES + " bytes.");
+            }
+            return inflated;
+        }
+    }
+
+    /**
+     * Reads a count and checks the bytes left in the frame could hold that many entries of at least minBytes each.
+     */
+    private static int count(DataInputStream in, String what, int minBytes) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Latent frame has a negative " + what + " count:" + count);
+        }
+        if ((long) count * minBytes > in.available()) {
+            throw new IOException("Latent frame is truncated, " + count + " " + what + "s need more than the " + in.available()
+                + " bytes left.");
+        }
+        return count;
+    }
+
+    private String name(int id, List<String> names) throws IOException {
+        if (id == -1) {
+            return null;
+        }
+        if (id < 0 || id >= names.size()) {
+            throw new IOException("Latent frame referenced unknown name id:" + id);
+        }
+        return names.get(id);
+    }
+
+    public static class DictionaryMismatchException extends IOException {
+
+        public DictionaryMismatchException(long sessionId, int expected, int known) {
+            super("Latent frame for session:" + sessionId + " expects " + expected + " names but only " + known + " are known.");
+        }
+    }
+}
@@ -30,6 +30,10 @@ public class LatentSample {
         public long failedLatency;
         public long callCount;
         public long callLatency;
+        /**
+         * Alternating LatencyHistogram bucket, count pairs. Only sent in binary frames.
+         */
+        public long[] latencyHistogram;
 
         @Override
         public String toString() {
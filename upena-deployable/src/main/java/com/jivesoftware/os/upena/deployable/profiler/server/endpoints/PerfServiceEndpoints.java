@@ -9,12 +9,19 @@
 package com.jivesoftware.os.upena.deployable.profiler.server.endpoints;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jivesoftware.os.upena.deployable.profiler.model.MethodComparison;
+import com.jivesoftware.os.upena.deployable.profiler.sample.LatentFrameReader;
+import com.jivesoftware.os.upena.deployable.profiler.sample.LatentFrameReader.DictionaryMismatchException;
 import com.jivesoftware.os.upena.deployable.profiler.sample.LatentSample;
 import java.io.IOException;
+import java.util.List;
 import javax.inject.Singleton;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -27,6 +34,7 @@ import javax.ws.rs.core.Response;
 public class PerfServiceEndpoints {
 
     static ObjectMapper mapper = new ObjectMapper();
+    static LatentFrameReader frameReader = new LatentFrameReader();
 
     private final PerfService perfService;
 
@@ -41,6 +49,43 @@ public class PerfServiceEndpoints {
         return Response.ok(String.valueOf(enabled), MediaType.TEXT_PLAIN_TYPE).build();
     }
 
+    @POST
+    @Path("/latents/frame")
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    public Response ingressLatentFrame(byte[] frame) throws IOException {
+        List<LatentSample> samples;
+        try {
+            samples = frameReader.read(frame);
+        } catch (DictionaryMismatchException x) {
+            return Response.status(Response.Status.CONFLICT).entity(x.getMessage()).type(MediaType.TEXT_PLAIN_TYPE).build();
+        } catch (IOException x) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(x.getMessage()).type(MediaType.TEXT_PLAIN_TYPE).build();
+        }
+        boolean enabled = perfService.getCallDepthStack().calls(samples);
+        return Response.ok(String.valueOf(enabled), MediaType.TEXT_PLAIN_TYPE).build();
+    }
+
+    /**
+     * Compares each method's calls and latency quantiles between two windows given in epoch millis.
+     */
+    @GET
+    @Path("/compare")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response compare(@QueryParam("serviceName") String serviceName,
+        @QueryParam("aFrom") Long aFrom,
+        @QueryParam("aTo") Long aTo,
+        @QueryParam("bFrom") Long bFrom,
+        @QueryParam("bTo") Long bTo) throws IOException {
+        if (serviceName == null || aFrom == null || aTo == null || bFrom == null || bTo == null) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                .entity("serviceName, aFrom, aTo, bFrom and bTo are all required.")
+                .type(MediaType.TEXT_PLAIN_TYPE)
+                .build();
+        }
+        List<MethodComparison> comparisons = perfService.getCallDepthStack().compare(serviceName, aFrom, aTo, bFrom, bTo);
+        return Response.ok(mapper.writeValueAsString(comparisons), MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
     @Path("/render")
     @POST
     @Produces("image/png")
@@ -9,6 +9,7 @@
 package com.jivesoftware.os.upena.deployable.profiler.visualize;
 
 import com.google.common.base.Joiner;
+import com.jivesoftware.os.upena.deployable.profiler.model.LatencyHistogram;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -25,6 +26,7 @@ public class NameUtils {
             shortClassName,
             "depths: " + Joiner.on(",").join(callArea.depths.toArray()),
             "latency: " + latencyString(callArea.callClass.getSuccesslatency()),
+            quantilesString(callArea.callClass.getLatencyHistogram()),
             "called: " + callArea.callClass.getCalled(),
             "total: " + latencyString(callArea.callClass.getCalled() * callArea.callClass.getSuccesslatency()),
             "calledBy: " + callArea.calledByCount
@@ -43,6 +45,7 @@ public class NameUtils {
         return new String[]{
             methodName + "(" + Joiner.on(", ").join(simpleArgs(args)) + ")",
             "latency: " + latencyString(methodArea.classMethod.getSuccesslatency()),
+            quantilesString(methodArea.classMethod.getLatencyHistogram()),
             "called: " + methodArea.classMethod.getCalled(),
             "total: " + latencyString(methodArea.classMethod.getCalled() * methodArea.classMethod.getSuccesslatency())};
     }
@@ -64,6 +67,12 @@ public class NameUtils {
         }
     }
 
+    String quantilesString(LatencyHistogram histogram) {
+        return "p50: " + latencyString(histogram.quantile(0.5))
+            + " p99: " + latencyString(histogram.quantile(0.99))
+            + " max: " + latencyString(histogram.max());
+    }
+
     String latencyString(long nanos) {
         long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
         if (micros == 0) {
@@ -45,6 +45,42 @@ public class VStrategies {
                 return nameUtils.latencyString(value);
             }
         }),
+        p50(new ValueStrategy() {
+
+            @Override
+            public long value(VisualizeProfile.InterfaceArea callArea) {
+                return TimeUnit.MILLISECONDS.toNanos(1) + callArea.callClass.getLatencyHistogram().quantile(0.5);
+            }
+
+            @Override
+            public String name(long value) {
+                return nameUtils.latencyString(value) + " p50";
+            }
+        }),
+        p99(new ValueStrategy() {
+
+            @Override
+            public long value(VisualizeProfile.InterfaceArea callArea) {
+                return TimeUnit.MILLISECONDS.toNanos(1) + callArea.callClass.getLatencyHistogram().quantile(0.99);
+            }
+
+            @Override
+            public String name(long value) {
+                return nameUtils.latencyString(value) + " p99";
+            }
+        }),
+        max(new ValueStrategy() {
+
+            @Override
+            public long value(VisualizeProfile.InterfaceArea callArea) {
+                return TimeUnit.MILLISECONDS.toNanos(1) + callArea.callClass.getLatencyHistogram().max();
+            }
+
+            @Override
+            public String name(long value) {
+                return nameUtils.latencyString(value) + " max";
+            }
+        }),
         called(new ValueStrategy() {
 
             @Override
@@ -146,6 +182,42 @@ public class VStrategies {
                 return nameUtils.latencyString(value);
             }
         }),
+        p50(new ValueStrategy() {
+
+            @Override
+            public long value(VisualizeProfile.InterfaceArea callArea) {
+                return TimeUnit.MILLISECONDS.toNanos(1) + callArea.callClass.getLatencyHistogram().quantile(0.5);
+            }
+
+            @Override
+            public String name(long value) {
+                return nameUtils.latencyString(value) + " p50";
+            }
+        }),
+        p99(new ValueStrategy() {
+
+            @Override
+            public long value(VisualizeProfile.InterfaceArea callArea) {
+                return TimeUnit.MILLISECONDS.toNanos(1) + callArea.callClass.getLatencyHistogram().quantile(0.99);
+            }
+
+            @Override
+            public String name(long value) {
+                return nameUtils.latencyString(value) + " p99";
+            }
+        }),
+        max(new ValueStrategy() {
+
+            @Override
+            public long value(VisualizeProfile.InterfaceArea callArea) {
+                return TimeUnit.MILLISECONDS.toNanos(1) + callArea.callClass.getLatencyHistogram().max();
+            }
+
+            @Override
+            public String name(long value) {
+                return nameUtils.latencyString(value) + " max";
+            }
+        }),
         called(new ValueStrategy() {
             @Override
             public long value(VisualizeProfile.InterfaceArea callArea) {
@@ -262,7 +334,50 @@ public class VStrategies {
                 long v = (Long) value;
                 return nameUtils.nanoIndexToString(v);
             }
-        }), called(new BarStrategy() {
+        }),
+        p50(new BarStrategy() {
+
+            @Override
+            public Object value(VisualizeProfile.InterfaceArea callArea) {
+                long tn = TimeUnit.MILLISECONDS.toNanos(1) + callArea.callClass.getLatencyHistogram().quantile(0.5);
+                return nameUtils.nanosToIndex(tn);
+            }
+
+            @Override
+            public String name(Object value) {
+                long v = (Long) value;
+                return nameUtils.nanoIndexToString(v) + " p50";
+            }
+        }),
+        p99(new BarStrategy() {
+
+            @Override
+            public Object value(VisualizeProfile.InterfaceArea callArea) {
+                long tn = TimeUnit.MILLISECONDS.toNanos(1) + callArea.callClass.getLatencyHistogram().quantile(0.99);
+                return nameUtils.nanosToIndex(tn);
+            }
+
+            @Override
+            public String name(Object value) {
+                long v = (Long) value;
+                return nameUtils.nanoIndexToString(v) + " p99";
+            }
+        }),
+        max(new BarStrategy() {
+
+            @Override
+            public Object value(VisualizeProfile.InterfaceArea callArea) {
+                long tn = TimeUnit.MILLISECONDS.toNanos(1) + callArea.callClass.getLatencyHistogram().max();
+                return nameUtils.nanosToIndex(tn);
+            }
+
+            @Override
+            public String name(Object value) {
+                long v = (Long) value;
+                return nameUtils.nanoIndexToString(v) + " max";
+            }
+        }),
+        called(new BarStrategy() {
             @Override
             public Object value(VisualizeProfile.InterfaceArea callArea) {
                 long called = Math.max(callArea.callClass.getCalled(), callArea.callClass.getFailed());
@@ -92,7 +92,13 @@ public class VisualizeProfile {
         selectedServiceName.set(serviceName);
     }
 
-    public CallDepth[] callStack(String serviceName) {
+    /**
+     * @param windowMinutes 0 for everything since the service version was first seen.
+     */
+    public CallDepth[] callStack(String serviceName, int windowMinutes) {
+        if (windowMinutes > 0) {
+            return servicesCallDepthStack.getLastMinutes(serviceName, windowMinutes);
+        }
         return servicesCallDepthStack.getCopy(serviceName);
     }
 
@@ -106,6 +112,7 @@ public class VisualizeProfile {
         Colorings coloring,
         Background background,
         StackOrder stackOrder,
+        int windowMinutes,
         XY_I mp) {
 
         String serviceName = selectedServiceName.get();
@@ -126,7 +133,7 @@ public class VisualizeProfile {
             return null;
         }
 
-        CallDepth[] copy = servicesCallDepthStack.getCopy(serviceName);
+        CallDepth[] copy = callStack(serviceName, windowMinutes);
         int totalDepth = copy.length;
         if (totalDepth == 0) {
             return null;
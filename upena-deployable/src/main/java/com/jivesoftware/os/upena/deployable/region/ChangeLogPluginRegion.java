@@ -81,7 +81,7 @@ public class ChangeLogPluginRegion implements PageRegion<ChangeLogPluginRegionIn
 
             final List<Map<String, String>> rows = new ArrayList<>();
             AtomicLong i = new AtomicLong();
-            upenaStore.changeLog(TimeUnit.DAYS.toMillis(2), // TODO expose?
+            upenaStore.changeLog(whenAgoMillis(input.when, TimeUnit.DAYS.toMillis(2)),
                 0,
                 100, // TODO expose?
                 input.who,
@@ -146,4 +146,32 @@ public class ChangeLogPluginRegion implements PageRegion<ChangeLogPluginRegionIn
 
         return sb.toString();
     }
+
+    /**
+     * Parses the when filter, a number followed by m, h, d or w (e.g. 90d). Anything else means defaultMillis.
+     */
+    public static long whenAgoMillis(String when, long defaultMillis) {
+        if (when == null || when.trim().length() < 2) {
+            return defaultMillis;
+        }
+        String trimmed = when.trim().toLowerCase();
+        long amount;
+        try {
+            amount = Long.parseLong(trimmed.substring(0, trimmed.length() - 1).trim());
+        } catch (NumberFormatException x) {
+            return defaultMillis;
+        }
+        switch (trimmed.charAt(trimmed.length() - 1)) {
+            case 'm':
+                return TimeUnit.MINUTES.toMillis(amount);
+            case 'h':
+                return TimeUnit.HOURS.toMillis(amount);
+            case 'd':
+                return TimeUnit.DAYS.toMillis(amount);
+            case 'w':
+                return TimeUnit.DAYS.toMillis(amount * 7);
+            default:
+                return defaultMillis;
+        }
+    }
 }
@@ -81,13 +81,18 @@ public class ConfigPluginRegion implements PageRegion<ConfigPluginRegionInput> {
             }
         }
 
+        Map<String, Map<String, String>> allServiceDefaults = configStore.getAll(instanceKeys, "default");
+        Map<String, Map<String, String>> allServiceOverrides = configStore.getAll(instanceKeys, "override");
+        Map<String, Map<String, String>> allHealthDefaults = configStore.getAll(instanceKeys, "default-health");
+        Map<String, Map<String, String>> allHealthOverrides = configStore.getAll(instanceKeys, "override-health");
+
         for (String instanceKey : instanceKeys) {
             Instance instance = upenaStore.instances.get(new InstanceKey(instanceKey));
             if (instance != null) {
-                Map<String, String> serviceDefaults = configStore.get(instanceKey, "default", null, false);
-                Map<String, String> serviceOverrides = configStore.get(instanceKey, "override", null, false);
-                Map<String, String> healthDefaults = configStore.get(instanceKey, "default-health", null, false);
-                Map<String, String> healthOverrides = configStore.get(instanceKey, "override-health", null, false);
+                Map<String, String> serviceDefaults = allServiceDefaults.get(instanceKey);
+                Map<String, String> serviceOverrides = allServiceOverrides.get(instanceKey);
+                Map<String, String> healthDefaults = allHealthDefaults.get(instanceKey);
+                Map<String, String> healthOverrides = allHealthOverrides.get(instanceKey);
 
                 boolean modifiedServiceOverrides = false;
                 boolean modifiedHealthOverrides = false;
@@ -260,19 +265,22 @@ public class ConfigPluginRegion implements PageRegion<ConfigPluginRegionInput> {
                     }
                 }
 
-                for (Map.Entry<InstanceKey, TimestampedValue<Instance>> entrySet : found.entrySet()) {
-                    InstanceKey key = entrySet.getKey();
-                    TimestampedValue<Instance> timestampedValue = entrySet.getValue();
-                    Instance i = timestampedValue.getValue();
+                List<String> instanceKeys = new ArrayList<>(found.size());
+                for (InstanceKey key : found.keySet()) {
+                    instanceKeys.add(key.getKey());
+                }
+                Map<String, Map<String, String>> overriddenServiceMaps = input.service
+                    ? configStore.getAll(instanceKeys, "override") : Collections.emptyMap();
+                Map<String, Map<String, String>> overriddenHealthMaps = input.health
+                    ? configStore.getAll(instanceKeys, "override-health") : Collections.emptyMap();
 
+                for (InstanceKey key : found.keySet()) {
                     if (input.service) {
-                        Map<String, String> overriddenServiceMap = configStore.get(key.getKey(), "override", null, false);
-                        append(exportImportCluster.config, key, overriddenServiceMap);
+                        append(exportImportCluster.config, key, overriddenServiceMaps.get(key.getKey()));
 
                     }
                     if (input.health) {
-                        Map<String, String> overriddenHealtheMap = configStore.get(key.getKey(), "override-health", null, false);
-                        append(exportImportCluster.healthConfig, key, overriddenHealtheMap);
+                        append(exportImportCluster.healthConfig, key, overriddenHealthMaps.get(key.getKey()));
                     }
                 }
             }
@@ -581,36 +589,38 @@ public class ConfigPluginRegion implements PageRegion<ConfigPluginRegionInput> {
                 found = upenaStore.instances.find(false, filter);
             }
 
+            Map<InstanceKey, Instance> live = new HashMap<>();
             for (Map.Entry<InstanceKey, TimestampedValue<Instance>> entrySet : found.entrySet()) {
-                InstanceKey key = entrySet.getKey();
-                TimestampedValue<Instance> timestampedValue = entrySet.getValue();
-                if (timestampedValue.getTombstoned()) {
-                    continue;
+                if (!entrySet.getValue().getTombstoned()) {
+                    live.put(entrySet.getKey(), entrySet.getValue().getValue());
                 }
-                Instance i = timestampedValue.getValue();
-                if (remoteConfigPort > -1) {
-
-                    ReleaseGroup releaseGroup = upenaStore.releaseGroups.get(i.releaseGroupKey);
-                    String version = releaseGroup.version;
-
-                    HttpRequestHelper requestHelper = HttpRequestHelperUtils.buildRequestHelper(upenaSSLConfig.sslEnable, upenaSSLConfig.allowSelfSignedCerts,
-                        upenaSSLConfig.signer, remoteConfigHost, remoteConfigPort);
-                    DeployableConfig get = new DeployableConfig("default" + suffix, key.getKey(), version, new HashMap<>());
-                    DeployableConfig gotDefault = requestHelper.executeRequest(get, "/upenaConfig/get", DeployableConfig.class, null);
-                    DeployableConfig getOverride = new DeployableConfig("override" + suffix, key.getKey(), version, new HashMap<>());
-                    DeployableConfig gotOverride = requestHelper.executeRequest(getOverride, "/upenaConfig/get", DeployableConfig.class, null);
-
-                    filterProperties(requestHelper, key, i, properties,
-                        gotDefault != null ? gotDefault.properties : Collections.emptyMap(),
-                        gotOverride != null ? gotOverride.properties : Collections.emptyMap(),
-                        propertyContains, valueContains);
-                } else {
+            }
 
-                    Map<String, String> defaultHealthMaps = configStore.get(key.getKey(), "default" + suffix, null, false);
-                    Map<String, String> overriddenHealtheMap = configStore.get(key.getKey(), "override" + suffix, null, false);
-                    filterProperties(null, key, i, properties, defaultHealthMaps, overriddenHealtheMap, propertyContains,
-                        valueContains);
+            HttpRequestHelper requestHelper = null;
+            Map<String, Map<String, String>> defaultMaps;
+            Map<String, Map<String, String>> overriddenMaps;
+            if (remoteConfigPort > -1) {
+                requestHelper = HttpRequestHelperUtils.buildRequestHelper(upenaSSLConfig.sslEnable, upenaSSLConfig.allowSelfSignedCerts,
+                    upenaSSLConfig.signer, remoteConfigHost, remoteConfigPort);
+                defaultMaps = remoteGetAll(requestHelper, live, "default" + suffix);
+                overriddenMaps = remoteGetAll(requestHelper, live, "override" + suffix);
+            } else {
+                List<String> instanceKeys = new ArrayList<>(live.size());
+                for (InstanceKey key : live.keySet()) {
+                    instanceKeys.add(key.getKey());
                 }
+                defaultMaps = configStore.getAll(instanceKeys, "default" + suffix);
+                overriddenMaps = configStore.getAll(instanceKeys, "override" + suffix);
+            }
+
+            for (Map.Entry<InstanceKey, Instance> entry : live.entrySet()) {
+                InstanceKey key = entry.getKey();
+                Map<String, String> defaultMap = defaultMaps.get(key.getKey());
+                Map<String, String> overriddenMap = overriddenMaps.get(key.getKey());
+                filterProperties(requestHelper, key, entry.getValue(), properties,
+                    defaultMap != null ? defaultMap : Collections.emptyMap(),
+                    overriddenMap != null ? overriddenMap : Collections.emptyMap(),
+                    propertyContains, valueContains);
             }
 
             if (overridden) {
@@ -635,6 +645,47 @@ public class ConfigPluginRegion implements PageRegion<ConfigPluginRegionInput> {
         return properties;
     }
 
+    /**
+     * One /upenaConfig/getAll for every instance, falling back to a /upenaConfig/get per instance for upenas which predate it.
+     */
+    private Map<String, Map<String, String>> remoteGetAll(HttpRequestHelper requestHelper,
+        Map<InstanceKey, Instance> instances,
+        String context) throws Exception {
+
+        Map<ReleaseGroupKey, String> versions = new HashMap<>();
+        List<DeployableConfig> gets = new ArrayList<>(instances.size());
+        for (Map.Entry<InstanceKey, Instance> entry : instances.entrySet()) {
+            String version = versions.get(entry.getValue().releaseGroupKey);
+            if (version == null) {
+                version = upenaStore.releaseGroups.get(entry.getValue().releaseGroupKey).version;
+                versions.put(entry.getValue().releaseGroupKey, version);
+            }
+            gets.add(new DeployableConfig(context, entry.getKey().getKey(), version, new HashMap<>()));
+        }
+
+        Map<String, Map<String, String>> results = new HashMap<>();
+        DeployableConfig[] gotAll;
+        try {
+            gotAll = requestHelper.executeRequest(gets, "/upenaConfig/getAll", DeployableConfig[].class, null);
+        } catch (Exception x) {
+            LOG.debug("Bulk config get failed, falling back to a get per instance.", x);
+            gotAll = null;
+        }
+        if (gotAll != null) {
+            for (DeployableConfig got : gotAll) {
+                results.put(got.instanceKey, got.properties);
+            }
+        } else {
+            for (DeployableConfig get : gets) {
+                DeployableConfig got = requestHelper.executeRequest(get, "/upenaConfig/get", DeployableConfig.class, null);
+                if (got != null) {
+                    results.put(get.instanceKey, got.properties);
+                }
+            }
+        }
+        return results;
+    }
+
     private void filterProperties(HttpRequestHelper requestHelper,
         InstanceKey key,
         Instance instance,
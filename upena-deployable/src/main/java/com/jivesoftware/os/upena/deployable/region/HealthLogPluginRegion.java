@@ -81,7 +81,7 @@ public class HealthLogPluginRegion implements PageRegion<HealthLogPluginRegionIn
 
             final List<Map<String, String>> rows = new ArrayList<>();
             AtomicLong i = new AtomicLong();
-            upenaStore.healthLog(TimeUnit.DAYS.toMillis(2), // TODO expose?
+            upenaStore.healthLog(ChangeLogPluginRegion.whenAgoMillis(input.when, TimeUnit.DAYS.toMillis(2)),
                 0,
                 100, // TODO expose?
                 input.who,
@@ -2,10 +2,12 @@ package com.jivesoftware.os.upena.deployable.region;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
 import com.jivesoftware.os.upena.deployable.JDIAPI;
 import com.jivesoftware.os.upena.deployable.JDIAPI.ThreadDumpLineType;
+import com.jivesoftware.os.upena.deployable.JDIAPI.WallClockSampler;
 import com.jivesoftware.os.upena.deployable.region.JVMPluginRegion.JVMPluginRegionInput;
 import com.jivesoftware.os.upena.deployable.soy.SoyRenderer;
 import com.jivesoftware.os.upena.service.UpenaStore;
@@ -13,8 +15,12 @@ import com.jivesoftware.os.upena.shared.Host;
 import com.jivesoftware.os.upena.shared.Instance;
 import com.jivesoftware.os.upena.shared.InstanceKey;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.apache.shiro.SecurityUtils;
 
 // soy.page.jvmPluginRegion
@@ -26,6 +32,8 @@ public class JVMPluginRegion implements PageRegion<JVMPluginRegionInput> {
     private final SoyRenderer renderer;
     private final UpenaStore upenaStore;
     private final JDIAPI jvm;
+    private final ExecutorService samplerThreads = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("wall-clock-sampler-%d").build());
 
     public JVMPluginRegion(String template,
         SoyRenderer renderer,
@@ -48,12 +56,20 @@ public class JVMPluginRegion implements PageRegion<JVMPluginRegionInput> {
         String port;
         final String instanceKey;
         final String action;
+        final int samplesPerSecond;
+        final int durationSeconds;
 
         public JVMPluginRegionInput(String host, String port, String instanceKey, String action) {
+            this(host, port, instanceKey, action, 10, 60);
+        }
+
+        public JVMPluginRegionInput(String host, String port, String instanceKey, String action, int samplesPerSecond, int durationSeconds) {
             this.host = host;
             this.port = port;
             this.instanceKey = instanceKey;
             this.action = action;
+            this.samplesPerSecond = samplesPerSecond;
+            this.durationSeconds = durationSeconds;
         }
 
         @Override
@@ -76,8 +92,49 @@ public class JVMPluginRegion implements PageRegion<JVMPluginRegionInput> {
         Map<String, Object> data = Maps.newHashMap();
         data.put("host", input.host);
         data.put("port", input.port);
+        data.put("samplesPerSecond", String.valueOf(input.samplesPerSecond));
+        data.put("durationSeconds", String.valueOf(input.durationSeconds));
         try {
 
+            if (input.action.equals("startSampling")) {
+                WallClockSampler sampler = jvm.sampler(input.host, Integer.parseInt(input.port));
+                if (!sampler.isRunning()) {
+                    samplerThreads.submit(() -> {
+                        try {
+                            sampler.run(input.samplesPerSecond, TimeUnit.SECONDS.toMillis(input.durationSeconds));
+                        } catch (Exception x) {
+                            log.error("Wall clock sampling of {}:{} failed", new Object[]{input.host, input.port}, x);
+                        }
+                        return null;
+                    });
+                }
+            }
+
+            if (input.action.equals("stopSampling")) {
+                jvm.sampler(input.host, Integer.parseInt(input.port)).stop();
+            }
+
+            if (input.action.equals("startSampling") || input.action.equals("stopSampling") || input.action.equals("sampling")) {
+                WallClockSampler sampler = jvm.sampler(input.host, Integer.parseInt(input.port));
+                Map<String, Object> sampling = new HashMap<>();
+                sampling.put("running", String.valueOf(sampler.isRunning()));
+                sampling.put("status", sampler.getStatus());
+                sampling.put("samples", String.valueOf(sampler.getSamples()));
+                sampling.put("skipped", String.valueOf(sampler.getSkipped()));
+                sampling.put("pauseMillis", String.valueOf(sampler.getPauseMillis()));
+                sampling.put("maxPauseMillis", String.valueOf(sampler.getMaxPauseMillis()));
+                List<Map<String, String>> flames = sampler.getFrameTree().flames(0.1);
+                int height = 0;
+                for (Map<String, String> flame : flames) {
+                    int top = Integer.parseInt(flame.get("depth")) * 16;
+                    flame.put("top", String.valueOf(top));
+                    height = Math.max(height, top + 16);
+                }
+                sampling.put("flames", flames);
+                sampling.put("height", String.valueOf(height));
+                data.put("sampling", sampling);
+            }
+
             if (input.action.equals("memoryHisto")) {
                 List<Map<String, String>> lines = new ArrayList<>();
                 jvm.memoryHisto(input.host, Integer.parseInt(input.port), (String name) -> {
@@ -110,6 +167,20 @@ public class JVMPluginRegion implements PageRegion<JVMPluginRegionInput> {
         return renderer.render(template, data);
     }
 
+    /**
+     * Writes what the last wall clock sampling run of host:port collected in collapsed stack format.
+     *
+     * @return false if this node can not sample.
+     */
+    public boolean collapsed(String host, int port, StringBuilder out) {
+        SecurityUtils.getSubject().checkPermission("debug");
+        if (jvm == null) {
+            return false;
+        }
+        jvm.sampler(host, port).getFrameTree().collapsed(out);
+        return true;
+    }
+
     @Override
     public String getTitle() {
         return "JVM";
@@ -4,6 +4,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.upena.deployable.JVMAttachAPI;
 import com.jivesoftware.os.upena.deployable.profiler.model.CallClass;
 import com.jivesoftware.os.upena.deployable.profiler.model.CallDepth;
 import com.jivesoftware.os.upena.deployable.profiler.model.ClassMethod;
@@ -19,15 +20,23 @@ import com.jivesoftware.os.upena.deployable.profiler.visualize.paint.IImage;
 import com.jivesoftware.os.upena.deployable.profiler.visualize.paint.XY_I;
 import com.jivesoftware.os.upena.deployable.region.ProfilerPluginRegion.ProfilerPluginRegionInput;
 import com.jivesoftware.os.upena.deployable.soy.SoyRenderer;
+import com.jivesoftware.os.upena.service.UpenaStore;
+import com.jivesoftware.os.upena.shared.Cluster;
+import com.jivesoftware.os.upena.shared.Instance;
+import com.jivesoftware.os.upena.shared.InstanceKey;
+import com.jivesoftware.os.upena.shared.ReleaseGroup;
+import com.jivesoftware.os.upena.shared.Service;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import javax.imageio.ImageIO;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.SecurityUtils;
 
 /**
  *
@@ -40,13 +49,19 @@ public class ProfilerPluginRegion implements PageRegion<ProfilerPluginRegionInpu
     private final String template;
     private final SoyRenderer renderer;
     private final VisualizeProfile visualizeProfile;
+    private final UpenaStore upenaStore;
+    private final JVMAttachAPI jvmAttachAPI;
 
     public ProfilerPluginRegion(String template,
         SoyRenderer renderer,
-        VisualizeProfile visualizeProfile) {
+        VisualizeProfile visualizeProfile,
+        UpenaStore upenaStore,
+        JVMAttachAPI jvmAttachAPI) {
         this.template = template;
         this.renderer = renderer;
         this.visualizeProfile = visualizeProfile;
+        this.upenaStore = upenaStore;
+        this.jvmAttachAPI = jvmAttachAPI;
     }
 
     @Override
@@ -66,8 +81,13 @@ public class ProfilerPluginRegion implements PageRegion<ProfilerPluginRegionInpu
         String coloring;
         String background;
         String stackOrder;
+        int windowMinutes;
         int mouseX;
         int mouseY;
+        String instanceKey;
+        String agentAction;
+        String prefixes;
+        boolean followAsync;
 
         public ProfilerPluginRegionInput(boolean enabled,
             String serviceName,
@@ -79,8 +99,13 @@ public class ProfilerPluginRegion implements PageRegion<ProfilerPluginRegionInpu
             String coloring,
             String background,
             String stackOrder,
+            int windowMinutes,
             int mouseX,
-            int mouseY) {
+            int mouseY,
+            String instanceKey,
+            String agentAction,
+            String prefixes,
+            boolean followAsync) {
             this.enabled = enabled;
             this.serviceName = serviceName;
             this.height = height;
@@ -91,8 +116,13 @@ public class ProfilerPluginRegion implements PageRegion<ProfilerPluginRegionInpu
             this.coloring = coloring;
             this.background = background;
             this.stackOrder = stackOrder;
+            this.windowMinutes = windowMinutes;
             this.mouseX = mouseX;
             this.mouseY = mouseY;
+            this.instanceKey = instanceKey;
+            this.agentAction = agentAction;
+            this.prefixes = prefixes;
+            this.followAsync = followAsync;
         }
 
         @Override
@@ -125,9 +155,12 @@ public class ProfilerPluginRegion implements PageRegion<ProfilerPluginRegionInpu
             data.put("backgrounds", Lists.transform(Arrays.asList(Background.values()), Enum::name));
             data.put("stackOrder", String.valueOf(input.stackOrder));
             data.put("stackOrders", Lists.transform(Arrays.asList(StackOrder.values()), Enum::name));
+            data.put("windowMinutes", String.valueOf(input.windowMinutes));
+            data.put("windowsMinutes", Arrays.asList("0", "1", "5", "15", "60", "360", "1440"));
             data.put("mouseX", String.valueOf(input.mouseX));
             data.put("mouseY", String.valueOf(input.mouseY));
             data.put("age", "");
+            data.put("agent", agent(input));
 
             visualizeProfile.setServicName(input.serviceName);
             IImage ii = visualizeProfile.render(data,
@@ -140,6 +173,7 @@ public class ProfilerPluginRegion implements PageRegion<ProfilerPluginRegionInpu
                 Colorings.valueOf(input.coloring),
                 Background.valueOf(input.background),
                 StackOrder.valueOf(input.stackOrder),
+                input.windowMinutes,
                 new XY_I(input.mouseX, input.mouseY));
 
             if (ii != null) {
@@ -156,7 +190,7 @@ public class ProfilerPluginRegion implements PageRegion<ProfilerPluginRegionInpu
             }
 
             List<Map<String, Object>> calls = Lists.newArrayList();
-            CallDepth[] callDepths = visualizeProfile.callStack(input.serviceName);
+            CallDepth[] callDepths = visualizeProfile.callStack(input.serviceName, input.windowMinutes);
             if (callDepths != null) {
                 for (int i = 0; i < callDepths.length; i++) {
                     CallDepth callDepth = callDepths[i];
@@ -196,6 +230,56 @@ public class ProfilerPluginRegion implements PageRegion<ProfilerPluginRegionInpu
         return renderer.render(template, data);
     }
 
+    private Map<String, Object> agent(ProfilerPluginRegionInput input) {
+        Map<String, Object> agent = Maps.newHashMap();
+        agent.put("instanceKey", input.instanceKey);
+        agent.put("prefixes", input.prefixes);
+        agent.put("followAsync", String.valueOf(input.followAsync));
+        if (jvmAttachAPI == null) {
+            agent.put("status", "The attach api is not available. Please add tools.jar to upena's classpath.");
+            return agent;
+        }
+        if (!jvmAttachAPI.hasLatentAgent()) {
+            agent.put("status", "No latent agent jar available. Please set -Dupena.profiler.agentJar.");
+            return agent;
+        }
+        if (input.instanceKey.isEmpty()) {
+            return agent;
+        }
+        try {
+            SecurityUtils.getSubject().checkPermission("debug");
+            String prefixes = input.prefixes.replaceAll("[\\s:]", "");
+            if (input.agentAction.equals("attach")) {
+                Instance instance = upenaStore.instances.get(new InstanceKey(input.instanceKey));
+                if (instance == null) {
+                    throw new IllegalArgumentException("There is no instance for key " + input.instanceKey);
+                }
+                Cluster cluster = upenaStore.clusters.get(instance.clusterKey);
+                Service service = upenaStore.services.get(instance.serviceKey);
+                ReleaseGroup releaseGroup = upenaStore.releaseGroups.get(instance.releaseGroupKey);
+                jvmAttachAPI.latentAgent(input.instanceKey, JVMAttachAPI.latentAttachArgs(
+                    cluster == null ? null : cluster.name,
+                    service == null ? null : service.name,
+                    releaseGroup == null ? null : releaseGroup.version,
+                    prefixes,
+                    input.followAsync));
+            } else if (input.agentAction.equals("add") || input.agentAction.equals("remove")) {
+                jvmAttachAPI.latentAgent(input.instanceKey, input.agentAction + ":" + prefixes);
+            } else if (input.agentAction.equals("detach")) {
+                jvmAttachAPI.latentAgent(input.instanceKey, "detach");
+            }
+            Properties properties = jvmAttachAPI.systemProperties(input.instanceKey);
+            String instrumenting = properties.getProperty(JVMAttachAPI.LATENT_PREFIXES_PROPERTY);
+            agent.put("status", instrumenting == null ? "Not attached." : "Attached.");
+            agent.put("instrumenting", instrumenting == null ? "" : instrumenting);
+            agent.put("async", String.valueOf(Boolean.parseBoolean(properties.getProperty(JVMAttachAPI.LATENT_ASYNC_PROPERTY))));
+        } catch (Exception x) {
+            log.warn("Latent agent {} failed for {}", new Object[]{input.agentAction, input.instanceKey}, x);
+            agent.put("status", "Failed: " + x.getMessage());
+        }
+        return agent;
+    }
+
     @Override
     public String getTitle() {
         return "Profiler";
@@ -4,6 +4,7 @@ import com.google.common.collect.Maps;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
 import com.jivesoftware.os.upena.deployable.UpenaProxy;
+import com.jivesoftware.os.upena.deployable.UpenaProxyEngine;
 import com.jivesoftware.os.upena.deployable.region.ProxyPluginRegion.ProxyInput;
 import com.jivesoftware.os.upena.deployable.soy.SoyRenderer;
 import java.io.IOException;
@@ -13,6 +14,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.io.FileUtils;
 import org.apache.shiro.SecurityUtils;
 
 /**
@@ -25,13 +27,16 @@ public class ProxyPluginRegion implements PageRegion<ProxyInput> {
 
     private final String template;
     private final SoyRenderer renderer;
+    private final UpenaProxyEngine proxyEngine;
 
     private final Map<String, UpenaProxy> proxies = new ConcurrentHashMap<>();
 
     public ProxyPluginRegion(String template,
-        SoyRenderer renderer) {
+        SoyRenderer renderer,
+        UpenaProxyEngine proxyEngine) {
         this.template = template;
         this.renderer = renderer;
+        this.proxyEngine = proxyEngine;
     }
 
     @Override
@@ -76,7 +81,7 @@ public class ProxyPluginRegion implements PageRegion<ProxyInput> {
                 }
             }
 
-            return new UpenaProxy(localPort, remoteHost, remotePort);
+            return new UpenaProxy(proxyEngine, localPort, remoteHost, remotePort);
         });
         p.start();
         return p;
@@ -90,7 +95,7 @@ public class ProxyPluginRegion implements PageRegion<ProxyInput> {
         try {
             if (input.action.equals("add")) {
                 UpenaProxy p = proxies.computeIfAbsent(key(input.remoteHost, input.remotePort), (String t) -> {
-                    return new UpenaProxy(input.localPort, input.remoteHost, input.remotePort);
+                    return new UpenaProxy(proxyEngine, input.localPort, input.remoteHost, input.remotePort);
                 });
                 p.start();
             } else if (input.action.equals("remove")) {
@@ -109,6 +114,12 @@ public class ProxyPluginRegion implements PageRegion<ProxyInput> {
                 row.put("remotePort", String.valueOf(p.getRemotePort()));
                 row.put("running", String.valueOf(p.isRunnig()));
                 row.put("proxied", String.valueOf(p.getProxied()));
+                row.put("active", String.valueOf(p.getActive()));
+                row.put("failed", String.valueOf(p.getFailed()));
+                row.put("idleClosed", String.valueOf(p.getIdleClosed()));
+                row.put("bytesToRemote", FileUtils.byteCountToDisplaySize(p.getBytesToRemote()));
+                row.put("bytesToClient", FileUtils.byteCountToDisplaySize(p.getBytesToClient()));
+                row.put("throughput", FileUtils.byteCountToDisplaySize(p.getBytesPerSecond()) + "/s");
                 rows.add(row);
             }
 
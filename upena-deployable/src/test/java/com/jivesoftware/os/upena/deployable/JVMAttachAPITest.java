@@ -0,0 +1,75 @@
+package com.jivesoftware.os.upena.deployable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class JVMAttachAPITest {
+
+    @Test
+    public void testLatentAttachArgs() throws Exception {
+        Assert.assertEquals(JVMAttachAPI.latentAttachArgs("prod", "search", "com.acme:search:1.2", " com.acme , org.foo", true),
+            "attach:localhost:prod:search:com.acme_search_1.2:com.acme,org.foo:async");
+        Assert.assertEquals(JVMAttachAPI.latentAttachArgs(null, null, null, "com.acme", false),
+            "attach:localhost:unknown:unknown:unknown:com.acme");
+    }
+
+    @Test
+    public void testDisplayNameWinsWithoutReadingUserDirs() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        JVMAttachAPI api = new JVMAttachAPI(null, pid -> {
+            reads.incrementAndGet();
+            return "/";
+        });
+        Map<String, String> running = running("1", "other.Main", "2", "com.acme.Main /services/c/s/r/instance-a");
+
+        Assert.assertEquals(api.pid("instance-a", running), "2");
+        Assert.assertEquals(reads.get(), 0);
+    }
+
+    @Test
+    public void testUserDirIsReadOncePerPid() throws Exception {
+        Map<String, String> userDirs = new HashMap<>();
+        userDirs.put("1", "/services/c/s/r/instance-a");
+        userDirs.put("2", "/services/c/s/r/instance-b");
+        AtomicInteger reads = new AtomicInteger();
+        JVMAttachAPI api = new JVMAttachAPI(null, pid -> {
+            reads.incrementAndGet();
+            return userDirs.get(pid);
+        });
+        Map<String, String> running = running("1", "Main", "2", "Main", "3", "Main");
+
+        Assert.assertEquals(api.pid("instance-b", running), "2");
+        Assert.assertEquals(api.pid("instance-a", running), "1");
+        Assert.assertNull(api.pid("instance-c", running));
+        Assert.assertEquals(reads.get(), 3, "each jvm is looked at once");
+
+        Assert.assertNull(api.pid("instance-c", running));
+        Assert.assertEquals(api.pid("instance-b", running), "2");
+        Assert.assertEquals(reads.get(), 3);
+    }
+
+    @Test
+    public void testForgetsPidsThatWentAway() throws Exception {
+        Map<String, String> userDirs = new HashMap<>();
+        userDirs.put("1", "/services/c/s/r/instance-a");
+        JVMAttachAPI api = new JVMAttachAPI(null, userDirs::get);
+
+        Assert.assertEquals(api.pid("instance-a", running("1", "Main")), "1");
+
+        // restarted under a new pid
+        userDirs.put("4", "/services/c/s/r/instance-a");
+        Assert.assertEquals(api.pid("instance-a", running("4", "Main")), "4");
+    }
+
+    private static Map<String, String> running(String... pidAndDisplayNames) {
+        Map<String, String> running = new LinkedHashMap<>();
+        for (int i = 0; i < pidAndDisplayNames.length; i += 2) {
+            running.put(pidAndDisplayNames[i], pidAndDisplayNames[i + 1]);
+        }
+        return running;
+    }
+}
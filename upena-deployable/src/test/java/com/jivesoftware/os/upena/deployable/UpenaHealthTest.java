@@ -0,0 +1,106 @@
+package com.jivesoftware.os.upena.deployable;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jivesoftware.os.routing.bird.shared.InstanceDescriptor;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class UpenaHealthTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testMergeDeltaLeavesPreviousUntouched() throws Exception {
+        long now = System.currentTimeMillis();
+        UpenaHealth.NannyHealth a = nanny("a", now - TimeUnit.MINUTES.toMillis(5), 1d);
+        a.log = Collections.singletonList("deployed a");
+        UpenaHealth.NannyHealth b = nanny("b", now - TimeUnit.MINUTES.toMillis(5), 1d);
+        b.log = Collections.singletonList("deployed b");
+        UpenaHealth.NannyHealth gone = nanny("gone", now, 1d);
+        UpenaHealth.NodeHealth previous = node(1, Arrays.asList(a, b, gone), "a", "b", "gone");
+
+        UpenaHealth.NannyHealth changedB = nanny("b", now - TimeUnit.MINUTES.toMillis(5), 0.5d);
+        UpenaHealth.NodeHealth delta = node(2, Collections.singletonList(changedB), "a", "b", "c");
+        delta.delta = true;
+
+        UpenaHealth.NodeHealth merged = UpenaHealth.mergeDelta(previous, delta, now + TimeUnit.HOURS.toMillis(1));
+
+        Assert.assertNotSame(merged, previous);
+        Assert.assertNotSame(merged, delta);
+        Assert.assertFalse(merged.delta);
+        Assert.assertEquals(merged.seq, 2);
+        Assert.assertEquals(merged.instanceKeys, Arrays.asList("a", "b", "c"));
+        Assert.assertEquals(merged.nannyHealths.size(), 2, "c was never sent and gone was dropped");
+
+        UpenaHealth.NannyHealth mergedA = merged.nannyHealths.get(0);
+        Assert.assertNotSame(mergedA, a);
+        Assert.assertEquals(mergedA.uptime, UpenaHealth.shortHumanReadableUptime(TimeUnit.MINUTES.toMillis(65)));
+        Assert.assertEquals(a.uptime, "up", "the held document must not be modified");
+        Assert.assertEquals(mergedA.log, a.log);
+
+        UpenaHealth.NannyHealth mergedB = merged.nannyHealths.get(1);
+        Assert.assertEquals(mergedB.serviceHealth.health, 0.5d);
+        Assert.assertEquals(mergedB.log, b.log, "deltas come without logs so the held ones are kept");
+        Assert.assertNull(changedB.log);
+
+        Assert.assertEquals(previous.nannyHealths.size(), 3);
+        Assert.assertEquals(delta.nannyHealths, Collections.singletonList(changedB));
+    }
+
+    @Test
+    public void testMergeDeltaWithoutPrevious() throws Exception {
+        UpenaHealth.NannyHealth a = nanny("a", -1, 1d);
+        UpenaHealth.NodeHealth delta = node(3, Collections.singletonList(a), "a", "b");
+
+        UpenaHealth.NodeHealth merged = UpenaHealth.mergeDelta(null, delta, System.currentTimeMillis());
+        Assert.assertEquals(merged.nannyHealths.size(), 1);
+        Assert.assertEquals(merged.nannyHealths.get(0).instanceDescriptor.instanceKey, "a");
+    }
+
+    @Test
+    public void testFingerprintIgnoresVolatileFields() throws Exception {
+        UpenaHealth.NannyHealth nanny = nanny("a", 1000, 1d);
+        UpenaHealth.Health check = new UpenaHealth.Health();
+        check.name = "disk";
+        check.health = 1d;
+        check.timestamp = 1;
+        nanny.serviceHealth.healthChecks.add(check);
+        long fingerprint = UpenaHealth.fingerprint(mapper, nanny);
+
+        nanny.uptime = "later";
+        nanny.log = Collections.singletonList("more log");
+        nanny.seq = 42;
+        check.timestamp = 2;
+        check.description = "checked again";
+        Assert.assertEquals(UpenaHealth.fingerprint(mapper, nanny), fingerprint);
+
+        check.health = 0.2d;
+        Assert.assertNotEquals(UpenaHealth.fingerprint(mapper, nanny), fingerprint);
+        check.health = 1d;
+        nanny.status = "restarting";
+        Assert.assertNotEquals(UpenaHealth.fingerprint(mapper, nanny), fingerprint);
+    }
+
+    private static UpenaHealth.NodeHealth node(long seq, List<UpenaHealth.NannyHealth> nannies, String... instanceKeys) {
+        UpenaHealth.NodeHealth node = new UpenaHealth.NodeHealth("hostKey", "host", 1175);
+        node.epoch = 1;
+        node.seq = seq;
+        node.nannyHealths = nannies;
+        node.instanceKeys = Arrays.asList(instanceKeys);
+        return node;
+    }
+
+    private static UpenaHealth.NannyHealth nanny(String instanceKey, long startTimeMillis, double health) {
+        InstanceDescriptor instanceDescriptor = new InstanceDescriptor("dc", "rack", "publicHost", "clusterKey", "cluster", "serviceKey",
+            "service", "releaseGroupKey", "releaseGroup", instanceKey, 1, "1.0", "repo", null, -1, true);
+        UpenaHealth.ServiceHealth serviceHealth = new UpenaHealth.ServiceHealth();
+        serviceHealth.health = health;
+        UpenaHealth.NannyHealth nanny = new UpenaHealth.NannyHealth("up", instanceDescriptor, null, serviceHealth);
+        nanny.startTimeMillis = startTimeMillis;
+        return nanny;
+    }
+}
@@ -0,0 +1,153 @@
+package com.jivesoftware.os.upena.deployable;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class UpenaProxyEngineTest {
+
+    private ExecutorService threads;
+    private ServerSocket echo;
+    private final List<UpenaProxy> proxies = new ArrayList<>();
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        threads = Executors.newCachedThreadPool();
+        echo = new ServerSocket(0);
+        threads.submit(() -> {
+            while (true) {
+                Socket socket = echo.accept();
+                threads.submit(() -> {
+                    try (Socket s = socket) {
+                        InputStream in = s.getInputStream();
+                        OutputStream out = s.getOutputStream();
+                        byte[] buffer = new byte[8192];
+                        for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+                            out.write(buffer, 0, read);
+                        }
+                    }
+                    return null;
+                });
+            }
+        });
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        for (UpenaProxy proxy : proxies) {
+            proxy.stop();
+        }
+        echo.close();
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentEchoRoundTrips() throws Exception {
+        UpenaProxy proxy = proxy(new UpenaProxyEngine(2, 16 * 1024, TimeUnit.MINUTES.toMillis(1)), "localhost", echo.getLocalPort());
+        int tunnels = 300;
+        int bytes = 1024 * 1024;
+        List<Future<Boolean>> roundTrips = new ArrayList<>();
+        for (int i = 0; i < tunnels; i++) {
+            long seed = i;
+            roundTrips.add(threads.submit(() -> roundTrip(proxy.getLocalPort(), seed, bytes)));
+        }
+        for (Future<Boolean> roundTrip : roundTrips) {
+            Assert.assertTrue(roundTrip.get(60, TimeUnit.SECONDS));
+        }
+        await(proxy::getProxied, tunnels);
+        Assert.assertEquals(proxy.getAccepted(), tunnels);
+        Assert.assertEquals(proxy.getActive(), 0);
+        Assert.assertEquals(proxy.getFailed(), 0);
+        Assert.assertEquals(proxy.getBytesToRemote(), (long) tunnels * bytes);
+        Assert.assertEquals(proxy.getBytesToClient(), (long) tunnels * bytes);
+    }
+
+    @Test
+    public void testIdleAndStoppedAreNotCountedAsProxied() throws Exception {
+        UpenaProxyEngine engine = new UpenaProxyEngine(1, 1024, 500);
+        UpenaProxy idle = proxy(engine, "localhost", echo.getLocalPort());
+        try (Socket socket = new Socket("localhost", idle.getLocalPort())) {
+            await(idle::getIdleClosed, 1);
+            Assert.assertEquals(socket.getInputStream().read(), -1);
+        }
+        Assert.assertEquals(idle.getProxied(), 0);
+
+        UpenaProxy stopped = proxy(new UpenaProxyEngine(1, 1024, TimeUnit.MINUTES.toMillis(1)), "localhost", echo.getLocalPort());
+        try (Socket socket = new Socket("localhost", stopped.getLocalPort())) {
+            await(stopped::getActive, 1);
+            stopped.stop();
+            await(stopped::getStopped, 1);
+            Assert.assertEquals(socket.getInputStream().read(), -1);
+        }
+        Assert.assertEquals(stopped.getProxied(), 0);
+        Assert.assertEquals(stopped.getActive(), 0);
+    }
+
+    @Test
+    public void testUnresolvableRemoteClosesTheClient() throws Exception {
+        UpenaProxy proxy = proxy(new UpenaProxyEngine(1, 1024, TimeUnit.MINUTES.toMillis(1)), "no.such.host.invalid", 1);
+        try (Socket socket = new Socket("localhost", proxy.getLocalPort())) {
+            socket.setSoTimeout(10_000);
+            Assert.assertEquals(socket.getInputStream().read(), -1);
+        }
+        await(proxy::getFailed, 1);
+        Assert.assertEquals(proxy.getActive(), 0);
+    }
+
+    private UpenaProxy proxy(UpenaProxyEngine engine, String remoteHost, int remotePort) throws IOException {
+        int localPort;
+        try (ServerSocket free = new ServerSocket(0)) {
+            localPort = free.getLocalPort();
+        }
+        UpenaProxy proxy = new UpenaProxy(engine, localPort, remoteHost, remotePort);
+        proxy.start();
+        proxies.add(proxy);
+        return proxy;
+    }
+
+    private boolean roundTrip(int port, long seed, int bytes) throws Exception {
+        byte[] sent = new byte[bytes];
+        new Random(seed).nextBytes(sent);
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", port));
+            socket.setSoTimeout(30_000);
+            Future<?> writer = threads.submit((Callable<Void>) () -> {
+                OutputStream out = socket.getOutputStream();
+                out.write(sent);
+                out.flush();
+                socket.shutdownOutput();
+                return null;
+            });
+            byte[] received = new byte[bytes];
+            new DataInputStream(socket.getInputStream()).readFully(received);
+            writer.get();
+            return socket.getInputStream().read() == -1 && Arrays.equals(sent, received);
+        }
+    }
+
+    private static void await(LongSupplier value, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (value.getAsLong() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(value.getAsLong(), expected);
+    }
+}
@@ -0,0 +1,111 @@
+package com.jivesoftware.os.upena.deployable.endpoints.api;
+
+import com.google.common.hash.Hashing;
+import com.jivesoftware.os.upena.shared.PathToRepo;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import javax.ws.rs.core.Response;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class UpenaRepoEndpointsTest {
+
+    private static final String JAR = "com/example/a/1.0/a-1.0.jar";
+
+    private File repo;
+    private UpenaRepoEndpoints endpoints;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        repo = Files.createTempDirectory("repo").toFile();
+        endpoints = new UpenaRepoEndpoints(new UpenaRepoEndpoints.AmzaClusterName("test"), new PathToRepo(repo), null);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        FileUtils.deleteQuietly(repo);
+    }
+
+    @Test
+    public void testUploadIsMovedIntoPlaceReadable() throws Exception {
+        Assert.assertEquals(put(JAR, "jar", sha1("jar")).getStatus(), 200);
+
+        File jar = new File(repo, JAR);
+        Assert.assertEquals(FileUtils.readFileToString(jar, StandardCharsets.UTF_8), "jar");
+        Assert.assertEquals(PosixFilePermissions.toString(Files.getPosixFilePermissions(jar.toPath())), "rw-r--r--");
+        Assert.assertEquals(jar.getParentFile().list().length, 1, "no temp file is left behind");
+    }
+
+    @Test
+    public void testMismatchedUploadKeepsPreviousFile() throws Exception {
+        Assert.assertEquals(put(JAR, "jar", null).getStatus(), 200);
+
+        Response rejected = put(JAR, "damaged", sha1("jar"));
+        Assert.assertEquals(rejected.getStatus(), 400);
+        Assert.assertEquals(rejected.getEntity(), "sha1 mismatch expected:" + sha1("jar") + " actual:" + sha1("damaged"));
+        Assert.assertEquals(FileUtils.readFileToString(new File(repo, JAR), StandardCharsets.UTF_8), "jar");
+        Assert.assertEquals(new File(repo, JAR).getParentFile().list().length, 1);
+    }
+
+    @Test
+    public void testChecksumFileMustAgreeWithItsArtifact() throws Exception {
+        Assert.assertEquals(put(JAR, "jar", null).getStatus(), 200);
+        Assert.assertEquals(put(JAR + ".sha1", sha1("jar"), null).getStatus(), 200);
+
+        Response rejected = put(JAR + ".sha1", sha1("other"), null);
+        Assert.assertEquals(rejected.getStatus(), 400);
+        Assert.assertEquals(rejected.getEntity(), "sha1 mismatch expected:" + sha1("other") + " actual:" + sha1("jar"),
+            "expected is what the checksum file claims, actual is the artifact's digest");
+        Assert.assertEquals(FileUtils.readFileToString(new File(repo, JAR + ".sha1"), StandardCharsets.UTF_8), sha1("jar"));
+    }
+
+    @Test
+    public void testBoundedRange() throws Exception {
+        Assert.assertEquals(UpenaRepoEndpoints.range("bytes=0-99", 1000), new long[]{0, 99});
+        Assert.assertEquals(UpenaRepoEndpoints.range("bytes= 10-10", 1000), new long[]{10, 10});
+        Assert.assertEquals(UpenaRepoEndpoints.range("bytes=900-5000", 1000), new long[]{900, 999}, "last is clamped to the file");
+    }
+
+    @Test
+    public void testOpenEndedRange() throws Exception {
+        Assert.assertEquals(UpenaRepoEndpoints.range("bytes=400-", 1000), new long[]{400, 999});
+        Assert.assertEquals(UpenaRepoEndpoints.range("bytes=0-", 1000), new long[]{0, 999});
+    }
+
+    @Test
+    public void testSuffixRange() throws Exception {
+        Assert.assertEquals(UpenaRepoEndpoints.range("bytes=-100", 1000), new long[]{900, 999});
+        Assert.assertEquals(UpenaRepoEndpoints.range("bytes=-5000", 1000), new long[]{0, 999}, "a suffix longer than the file is all of it");
+    }
+
+    @Test
+    public void testUnsatisfiableRange() throws Exception {
+        Assert.assertEquals(UpenaRepoEndpoints.range("bytes=1000-", 1000).length, 0);
+        Assert.assertEquals(UpenaRepoEndpoints.range("bytes=1000-2000", 1000).length, 0);
+        Assert.assertEquals(UpenaRepoEndpoints.range("bytes=-0", 1000).length, 0);
+        Assert.assertEquals(UpenaRepoEndpoints.range("bytes=0-", 0).length, 0);
+    }
+
+    @Test
+    public void testWholeFileWhenRangeIsIgnored() throws Exception {
+        Assert.assertNull(UpenaRepoEndpoints.range("bytes=0-9,20-29", 1000), "multiple ranges");
+        Assert.assertNull(UpenaRepoEndpoints.range("items=0-9", 1000));
+        Assert.assertNull(UpenaRepoEndpoints.range("bytes=10", 1000));
+        Assert.assertNull(UpenaRepoEndpoints.range("bytes=a-b", 1000));
+        Assert.assertNull(UpenaRepoEndpoints.range("bytes=20-10", 1000), "last before first is syntactically invalid");
+    }
+
+    private Response put(String path, String content, String sha1) {
+        return endpoints.putFileInRepo(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), path, sha1, null);
+    }
+
+    private static String sha1(String content) {
+        return Hashing.sha1().hashString(content, StandardCharsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,41 @@
+package com.jivesoftware.os.upena.deployable.endpoints.loopback;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class IfNoneMatchTest {
+
+    @Test
+    public void testMissingHeaderKnowsNothing() throws Exception {
+        Assert.assertFalse(IfNoneMatch.parse(null).test("a"));
+        Assert.assertFalse(IfNoneMatch.parse(" ").test("a"));
+        Assert.assertNull(IfNoneMatch.parse(null).firstTag());
+    }
+
+    @Test
+    public void testSingleAndListedTags() throws Exception {
+        Assert.assertEquals(IfNoneMatch.parse("\"a\"").tags, Collections.singletonList("a"));
+
+        IfNoneMatch listed = IfNoneMatch.parse("\"a\", W/\"b\",\"c,d\"");
+        Assert.assertEquals(listed.tags, Arrays.asList("a", "b", "c,d"));
+        Assert.assertTrue(listed.test("b"));
+        Assert.assertTrue(listed.test("c,d"));
+        Assert.assertFalse(listed.test("c"));
+        Assert.assertEquals(listed.firstTag(), "a");
+    }
+
+    @Test
+    public void testWildcardMatchesAnything() throws Exception {
+        IfNoneMatch any = IfNoneMatch.parse(" * ");
+        Assert.assertTrue(any.test("whatever"));
+        Assert.assertNull(any.firstTag());
+    }
+
+    @Test
+    public void testToleratesSloppyHeaders() throws Exception {
+        Assert.assertEquals(IfNoneMatch.parse("a, b").tags, Arrays.asList("a", "b"));
+        Assert.assertEquals(IfNoneMatch.parse("\"a\", \"b").tags, Collections.singletonList("a"));
+    }
+}
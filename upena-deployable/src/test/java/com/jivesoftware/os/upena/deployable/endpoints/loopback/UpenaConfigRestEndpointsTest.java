@@ -0,0 +1,37 @@
+package com.jivesoftware.os.upena.deployable.endpoints.loopback;
+
+import java.util.Collections;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Response;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class UpenaConfigRestEndpointsTest {
+
+    private final Object bundle = Collections.singletonMap("hash", "h2");
+
+    @Test
+    public void testHeldHashIsNotModified() throws Exception {
+        Response response = UpenaConfigRestEndpoints.bundleResponse(IfNoneMatch.parse("\"h1\", W/\"h2\""), "h2", bundle);
+        Assert.assertEquals(response.getStatus(), Response.Status.NOT_MODIFIED.getStatusCode());
+        Assert.assertEquals(response.getEntityTag(), new EntityTag("h2"));
+        Assert.assertNull(response.getEntity());
+    }
+
+    @Test
+    public void testAnyIsNotModified() throws Exception {
+        Response response = UpenaConfigRestEndpoints.bundleResponse(IfNoneMatch.parse("*"), "h2", bundle);
+        Assert.assertEquals(response.getStatus(), Response.Status.NOT_MODIFIED.getStatusCode());
+        Assert.assertEquals(response.getEntityTag(), new EntityTag("h2"));
+    }
+
+    @Test
+    public void testOtherHashesGetTheTaggedBundle() throws Exception {
+        for (String ifNoneMatch : new String[] { null, "\"h1\"", "\"h1\", \"h3\"" }) {
+            Response response = UpenaConfigRestEndpoints.bundleResponse(IfNoneMatch.parse(ifNoneMatch), "h2", bundle);
+            Assert.assertEquals(response.getStatus(), Response.Status.OK.getStatusCode(), String.valueOf(ifNoneMatch));
+            Assert.assertEquals(response.getEntityTag(), new EntityTag("h2"));
+            Assert.assertNotNull(response.getEntity());
+        }
+    }
+}
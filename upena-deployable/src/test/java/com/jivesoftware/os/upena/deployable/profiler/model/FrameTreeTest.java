@@ -0,0 +1,65 @@
+package com.jivesoftware.os.upena.deployable.profiler.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class FrameTreeTest {
+
+    @Test
+    public void testCollapsed() throws Exception {
+        FrameTree frameTree = new FrameTree();
+        frameTree.add(Arrays.asList("[RUNNING]", "Main.main", "A.a"));
+        frameTree.add(Arrays.asList("[RUNNING]", "Main.main", "A.a"));
+        frameTree.add(Arrays.asList("[RUNNING]", "Main.main", "B.b"));
+        frameTree.add(Arrays.asList("[RUNNING]", "Main.main"));
+        frameTree.add(Arrays.asList("[WAIT]", "Thread.run"));
+
+        StringBuilder collapsed = new StringBuilder();
+        frameTree.collapsed(collapsed);
+        Assert.assertEquals(collapsed.toString(), "[RUNNING];Main.main 1\n"
+            + "[RUNNING];Main.main;A.a 2\n"
+            + "[RUNNING];Main.main;B.b 1\n"
+            + "[WAIT];Thread.run 1\n");
+        Assert.assertEquals(frameTree.samples(), 5);
+
+        frameTree.clear();
+        collapsed.setLength(0);
+        frameTree.collapsed(collapsed);
+        Assert.assertEquals(collapsed.toString(), "");
+        Assert.assertEquals(frameTree.samples(), 0);
+    }
+
+    @Test
+    public void testFlames() throws Exception {
+        FrameTree frameTree = new FrameTree();
+        Assert.assertTrue(frameTree.flames(0).isEmpty());
+
+        frameTree.add(Arrays.asList("Main.main", "A.a"));
+        frameTree.add(Arrays.asList("Main.main", "A.a"));
+        frameTree.add(Arrays.asList("Main.main", "B.b"));
+        frameTree.add(Arrays.asList("Other.run"));
+
+        List<Map<String, String>> flames = frameTree.flames(0);
+        Assert.assertEquals(flames.size(), 5);
+        assertFlame(flames.get(0), "all", "0", "0.000", "100.000", "4");
+        assertFlame(flames.get(1), "Main.main", "1", "0.000", "75.000", "3");
+        assertFlame(flames.get(2), "A.a", "2", "0.000", "50.000", "2");
+        assertFlame(flames.get(3), "B.b", "2", "50.000", "25.000", "1");
+        assertFlame(flames.get(4), "Other.run", "1", "75.000", "25.000", "1");
+
+        List<Map<String, String>> wide = frameTree.flames(30);
+        Assert.assertEquals(wide.size(), 3, "frames under 30% and their callees are left out");
+        Assert.assertEquals(wide.get(2).get("name"), "A.a");
+    }
+
+    private static void assertFlame(Map<String, String> flame, String name, String depth, String left, String width, String samples) {
+        Assert.assertEquals(flame.get("name"), name);
+        Assert.assertEquals(flame.get("depth"), depth);
+        Assert.assertEquals(flame.get("left"), left);
+        Assert.assertEquals(flame.get("width"), width);
+        Assert.assertEquals(flame.get("samples"), samples);
+    }
+}
@@ -0,0 +1,75 @@
+package com.jivesoftware.os.upena.deployable.profiler.model;
+
+import colt.nicity.performance.latent.LatentHistogram;
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testUpperBoundAgreesWithTheAgentsBuckets() throws Exception {
+        List<Long> values = new ArrayList<>();
+        for (long nanos = 0; nanos < 8; nanos++) {
+            values.add(nanos);
+        }
+        for (int power = 3; power < 63; power++) {
+            values.add((1L << power) - 1);
+            values.add(1L << power);
+            values.add((1L << power) + 1);
+        }
+        values.add(Long.MAX_VALUE);
+
+        for (long nanos : values) {
+            int bucket = LatentHistogram.bucket(nanos);
+            long upperBound = LatencyHistogram.upperBound(bucket);
+            Assert.assertTrue(nanos <= upperBound, nanos + " is above its bucket's bound " + upperBound);
+            Assert.assertTrue(upperBound - nanos <= nanos / 4, nanos + " is reported as " + upperBound + ", more than 25% off");
+            if (bucket > 0) {
+                Assert.assertTrue(LatencyHistogram.upperBound(bucket - 1) < nanos, nanos + " belongs in an earlier bucket");
+            }
+        }
+        Assert.assertEquals(LatencyHistogram.upperBound(LatentHistogram.bucket(Long.MAX_VALUE)), Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testQuantiles() throws Exception {
+        Assert.assertEquals(new LatencyHistogram().quantile(0.5), 0);
+
+        LatencyHistogram histogram = LatencyHistogram.fromSparse(new long[] {
+            LatentHistogram.bucket(2), 50,
+            LatentHistogram.bucket(1_000), 49,
+            LatentHistogram.bucket(1_000_000), 1 });
+        Assert.assertEquals(histogram.count(), 100);
+        Assert.assertEquals(histogram.quantile(0), 2);
+        Assert.assertEquals(histogram.quantile(0.5), 2);
+        Assert.assertEquals(histogram.quantile(0.99), LatencyHistogram.upperBound(LatentHistogram.bucket(1_000)));
+        Assert.assertEquals(histogram.quantile(1), LatencyHistogram.upperBound(LatentHistogram.bucket(1_000_000)));
+        Assert.assertEquals(histogram.quantile(1), histogram.max());
+    }
+
+    @Test
+    public void testSinceSubtractsPrevious() throws Exception {
+        LatencyHistogram previous = LatencyHistogram.fromSparse(new long[] { 10, 5, 20, 1 });
+        LatencyHistogram current = LatencyHistogram.fromSparse(new long[] { 10, 7, 20, 1, 30, 2 });
+
+        LatencyHistogram delta = current.since(previous);
+        Assert.assertEquals(delta.count(), 4);
+        Assert.assertEquals(delta.quantile(0), LatencyHistogram.upperBound(10));
+        Assert.assertEquals(delta.quantile(0.5), LatencyHistogram.upperBound(10));
+        Assert.assertEquals(delta.quantile(1), LatencyHistogram.upperBound(30));
+        Assert.assertEquals(current.since(null).count(), 10);
+    }
+
+    @Test
+    public void testSinceTreatsAnyBucketGoingBackwardsAsARestart() throws Exception {
+        LatencyHistogram previous = LatencyHistogram.fromSparse(new long[] { 10, 5, 20, 3 });
+        LatencyHistogram current = LatencyHistogram.fromSparse(new long[] { 10, 9, 20, 2 });
+
+        LatencyHistogram delta = current.since(previous);
+        Assert.assertEquals(delta.count(), 11, "the agent restarted so everything it holds is new");
+        Assert.assertEquals(delta.quantile(0), LatencyHistogram.upperBound(10));
+        Assert.assertEquals(delta.quantile(1), LatencyHistogram.upperBound(20));
+    }
+}
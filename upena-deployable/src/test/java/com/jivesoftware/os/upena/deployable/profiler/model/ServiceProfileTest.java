@@ -0,0 +1,69 @@
+package com.jivesoftware.os.upena.deployable.profiler.model;
+
+import com.jivesoftware.os.upena.deployable.profiler.sample.LatentSample;
+import com.jivesoftware.os.upena.deployable.profiler.sample.LatentSample.LatentNode;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ServiceProfileTest {
+
+    // hour aligned so every tier's segments start on it
+    private static final long BASE = TimeUnit.DAYS.toMillis(1000);
+
+    @Test
+    public void testPreviousRevolutionIsNotCounted() throws Exception {
+        ServiceProfile profile = new ServiceProfile(new AtomicBoolean(true), new int[] { 3, 3, 3 });
+        profile.call(sample("m", 1), BASE);
+        profile.call(sample("m", 3), BASE + minutes(4));
+
+        // the ring holds minutes 3, 4 and 5 but minute 3's slot still holds BASE's segment from the previous revolution
+        long now = BASE + minutes(5);
+        Assert.assertEquals(called(profile.window(BASE + minutes(3), BASE + minutes(6), now), "m"), 2);
+    }
+
+    @Test
+    public void testOlderWindowsFallThroughToCoarserTiers() throws Exception {
+        ServiceProfile profile = new ServiceProfile(new AtomicBoolean(true), new int[] { 3, 3, 3 });
+        profile.call(sample("m", 1), BASE);
+        profile.call(sample("m", 3), BASE + minutes(30));
+        long now = BASE + minutes(30);
+
+        Assert.assertEquals(called(profile.window(BASE + minutes(29), now + 1, now), "m"), 2, "minute tier");
+        Assert.assertEquals(called(profile.window(BASE + minutes(25), BASE + minutes(26), now), "m"), 0,
+            "the minute ring no longer reaches back, the ten minute segment [20, 30) is empty");
+        Assert.assertEquals(called(profile.window(BASE + minutes(20), BASE + minutes(31), now), "m"), 2, "ten minute tier");
+        Assert.assertEquals(called(profile.window(BASE, BASE + minutes(1), now), "m"), 3,
+            "only the hour tier still reaches BASE and its segment holds both samples");
+    }
+
+    static LatentSample sample(String methodName, long called) {
+        LatentNode node = new LatentNode();
+        node.interfaceName = "I";
+        node.className = "C";
+        node.methodName = methodName;
+        node.callCount = called;
+        LatentSample sample = new LatentSample();
+        sample.clusterName = "cluster";
+        sample.serviceName = "service";
+        sample.serviceVersion = "1.0";
+        sample.from = node;
+        return sample;
+    }
+
+    static long minutes(long minutes) {
+        return TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    private static long called(CallStack window, String methodName) {
+        long called = 0;
+        for (CallDepth callDepth : window.getCopy()) {
+            for (CallClass callClass : callDepth.getCopy()) {
+                ClassMethod method = callClass.getMethod(methodName);
+                called += method == null ? 0 : method.getCalled();
+            }
+        }
+        return called;
+    }
+}
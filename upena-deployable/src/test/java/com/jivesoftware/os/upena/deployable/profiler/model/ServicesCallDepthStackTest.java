@@ -0,0 +1,45 @@
+package com.jivesoftware.os.upena.deployable.profiler.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static com.jivesoftware.os.upena.deployable.profiler.model.ServiceProfileTest.minutes;
+import static com.jivesoftware.os.upena.deployable.profiler.model.ServiceProfileTest.sample;
+
+public class ServicesCallDepthStackTest {
+
+    private static final long BASE = TimeUnit.DAYS.toMillis(1000);
+
+    @Test
+    public void testCompareLinesUpMethodsSeenInEitherWindow() throws Exception {
+        AtomicLong clock = new AtomicLong(BASE);
+        ServicesCallDepthStack stack = new ServicesCallDepthStack(16, TimeUnit.DAYS.toMillis(1), 60, 36, 48, clock::get);
+        stack.calls(Arrays.asList(sample("onlyA", 1), sample("both", 1)));
+        clock.set(BASE + minutes(5));
+        stack.calls(Arrays.asList(sample("onlyB", 4), sample("both", 3)));
+        clock.set(BASE + minutes(6));
+
+        List<MethodComparison> comparisons = stack.compare("cluster service 1.0", BASE, BASE + minutes(1), BASE + minutes(5),
+            BASE + minutes(6));
+        Assert.assertEquals(comparisons.size(), 3);
+
+        assertComparison(comparisons.get(0), "both", 1, 2);
+        assertComparison(comparisons.get(1), "onlyA", 1, 0);
+        assertComparison(comparisons.get(2), "onlyB", 0, 4);
+        Assert.assertEquals(comparisons.get(2).p50A, 0, "a side the method is missing from reports zeros");
+        Assert.assertEquals(comparisons.get(2).maxA, 0);
+
+        Assert.assertTrue(stack.compare("unknown", BASE, BASE + minutes(1), BASE + minutes(5), BASE + minutes(6)).isEmpty());
+    }
+
+    private static void assertComparison(MethodComparison comparison, String methodName, long calledA, long calledB) {
+        Assert.assertEquals(comparison.className, "I");
+        Assert.assertEquals(comparison.methodName, methodName);
+        Assert.assertEquals(comparison.calledA, calledA, methodName);
+        Assert.assertEquals(comparison.calledB, calledB, methodName);
+    }
+}
@@ -0,0 +1,202 @@
+package com.jivesoftware.os.upena.deployable.profiler.sample;
+
+import colt.nicity.performance.agent.LatentFrame;
+import colt.nicity.performance.latent.Latency;
+import colt.nicity.performance.latent.Latent;
+import colt.nicity.performance.latent.LatentDepth;
+import com.jivesoftware.os.upena.deployable.profiler.sample.LatentFrameReader.DictionaryMismatchException;
+import com.jivesoftware.os.upena.deployable.profiler.sample.LatentSample.LatentNode;
+import com.jivesoftware.os.upena.deployable.profiler.server.endpoints.PerfServiceEndpoints;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import javax.ws.rs.core.Response;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LatentFrameReaderTest {
+
+    private final Random random = new Random();
+    private final Latent parent = Latency.singleton().latent("I", "LatentFrameReaderTest", "parent");
+    private final Latent child = Latency.singleton().latent("I", "LatentFrameReaderTest", "child");
+
+    @Test
+    public void testAgentFramesRoundTrip() throws Exception {
+        parent.enter();
+        child.enter();
+        child.exit();
+        parent.exit();
+
+        LatentFrame latentFrame = new LatentFrame(random.nextLong(), "cluster", "service", "1.0");
+        LatentFrameReader reader = new LatentFrameReader();
+        LatentFrame.Built built = latentFrame.build(42L, Arrays.asList(
+            new LatentDepth[] { new LatentDepth(parent, 0), new LatentDepth(child, 1) },
+            new LatentDepth[] { new LatentDepth(child, 1), null }));
+        List<LatentSample> samples = reader.read(built.frame);
+        latentFrame.acknowledge(built.names);
+
+        Assert.assertEquals(samples.size(), 2);
+        LatentSample sample = samples.get(0);
+        Assert.assertEquals(sample.clusterName, "cluster");
+        Assert.assertEquals(sample.serviceName, "service");
+        Assert.assertEquals(sample.serviceVersion, "1.0");
+        Assert.assertEquals(sample.sampleTimestampEpochMillis, 42L);
+        assertNode(sample.from, parent, 0);
+        assertNode(sample.to, child, 1);
+        assertNode(samples.get(1).from, child, 1);
+        Assert.assertNull(samples.get(1).to);
+
+        built = latentFrame.build(43L, Collections.singletonList(new LatentDepth[] { new LatentDepth(parent, 0), null }));
+        samples = reader.read(built.frame);
+        Assert.assertEquals(samples.size(), 1, "names acknowledged earlier are resolved from the session dictionary");
+        assertNode(samples.get(0).from, parent, 0);
+    }
+
+    @Test
+    public void testVersionOneFramesCarryNoHistogram() throws Exception {
+        byte[] frame = frame(1, random.nextLong(), 0, Arrays.asList("I", "C", "m"), 1, out -> {
+            writeNode(out, 3, 0, 10L);
+            out.writeBoolean(false);
+        });
+        List<LatentSample> samples = new LatentFrameReader().read(frame);
+
+        Assert.assertEquals(samples.size(), 1);
+        LatentNode from = samples.get(0).from;
+        Assert.assertEquals(from.stackDepth, 3);
+        Assert.assertEquals(from.interfaceName, "I");
+        Assert.assertEquals(from.className, "C");
+        Assert.assertEquals(from.methodName, "m");
+        Assert.assertEquals(from.callCount, 10L);
+        Assert.assertNull(from.latencyHistogram);
+        Assert.assertNull(samples.get(0).to);
+    }
+
+    @Test
+    public void testUnknownDictionaryIsAConflictUntilTheAgentResends() throws Exception {
+        parent.enter();
+        parent.exit();
+        List<LatentDepth[]> edges = Collections.singletonList(new LatentDepth[] { new LatentDepth(parent, 0), null });
+        LatentFrame latentFrame = new LatentFrame(random.nextLong(), "cluster", "service", "1.0");
+        latentFrame.acknowledge(latentFrame.build(1L, edges).names);
+
+        byte[] frame = latentFrame.build(2L, edges).frame;
+        try {
+            new LatentFrameReader().read(frame);
+            Assert.fail("a reader that never saw the session's names cannot decode it");
+        } catch (DictionaryMismatchException x) {
+        }
+        Response response = new PerfServiceEndpoints(null).ingressLatentFrame(frame);
+        Assert.assertEquals(response.getStatus(), Response.Status.CONFLICT.getStatusCode());
+
+        latentFrame.resetDictionary();
+        List<LatentSample> samples = new LatentFrameReader().read(latentFrame.build(3L, edges).frame);
+        assertNode(samples.get(0).from, parent, 0);
+    }
+
+    @Test
+    public void testMalformedFramesAreBadRequests() throws Exception {
+        List<byte[]> frames = Arrays.asList(
+            "not gzip".getBytes("UTF-8"),
+            frame(2, random.nextLong(), 0, Collections.emptyList(), Integer.MAX_VALUE, out -> {
+            }),
+            frame(2, random.nextLong(), 0, Collections.emptyList(), 1, out -> {
+                writeNode(out, 0, -1, 1L);
+                out.writeShort(LatentFrameReader.MAX_BUCKETS + 1);
+            }),
+            frame(2, random.nextLong(), 0, Collections.emptyList(), 1, out -> {
+                writeNode(out, 0, -1, 1L);
+                out.writeShort(LatentFrameReader.MAX_BUCKETS);
+            }),
+            frame(2, random.nextLong(), 0, Collections.emptyList(), 1, out -> {
+                writeNode(out, 0, -1, 1L);
+            }));
+        for (int i = 0; i < frames.size(); i++) {
+            try {
+                new LatentFrameReader().read(frames.get(i));
+                Assert.fail("frame " + i);
+            } catch (IOException x) {
+                Assert.assertFalse(x instanceof DictionaryMismatchException, "frame " + i);
+            }
+            Response response = new PerfServiceEndpoints(null).ingressLatentFrame(frames.get(i));
+            Assert.assertEquals(response.getStatus(), Response.Status.BAD_REQUEST.getStatusCode(), "frame " + i);
+        }
+    }
+
+    @Test
+    public void testFramesMayNotInflatePastTheCap() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            byte[] zeros = new byte[1024 * 1024];
+            for (int i = 0; i <= LatentFrameReader.MAX_FRAME_BYTES / zeros.length; i++) {
+                out.write(zeros);
+            }
+        }
+        try {
+            new LatentFrameReader().read(bytes.toByteArray());
+            Assert.fail();
+        } catch (IOException x) {
+            Assert.assertTrue(x.getMessage().contains("inflates"), x.getMessage());
+        }
+    }
+
+    private static void assertNode(LatentNode node, Latent latent, int depth) {
+        Assert.assertEquals(node.stackDepth, depth);
+        Assert.assertEquals(node.interfaceName, latent.getInterfaceName());
+        Assert.assertEquals(node.className, latent.getClassName());
+        Assert.assertEquals(node.methodName, latent.getMethodName());
+        Assert.assertEquals(node.callCount, latent.getCalled());
+        Assert.assertEquals(node.failedCount, latent.getFailed());
+
+        long[] expected = new long[node.latencyHistogram.length];
+        int[] i = new int[1];
+        latent.getLatencyHistogram().buckets((bucket, count) -> {
+            expected[i[0]++] = bucket;
+            expected[i[0]++] = count;
+        });
+        Assert.assertEquals(i[0], expected.length);
+        Assert.assertEquals(node.latencyHistogram, expected);
+    }
+
+    private static byte[] frame(int version, long sessionId, int dictionaryBase, List<String> names, int edgeCount, Body body)
+        throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(LatentFrameReader.MAGIC);
+            out.writeByte(version);
+            out.writeLong(sessionId);
+            out.writeUTF("cluster");
+            out.writeUTF("service");
+            out.writeUTF("1.0");
+            out.writeLong(1L);
+            out.writeInt(dictionaryBase);
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+            out.writeInt(edgeCount);
+            body.write(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeNode(DataOutputStream out, int depth, int firstNameId, long callCount) throws IOException {
+        out.writeInt(depth);
+        for (int i = 0; i < 3; i++) {
+            out.writeInt(firstNameId < 0 ? -1 : firstNameId + i);
+        }
+        out.writeLong(callCount);
+        out.writeLong(0L);
+        out.writeLong(0L);
+        out.writeLong(0L);
+    }
+
+    private interface Body {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.upena.service;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.mlogger.core.ValueType;
+import com.jivesoftware.os.upena.service.UpenaConfigStore.ConfigBundle;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Lets a deployable hold its config bundle indefinitely. A watch is parked until the config partition changes, at which point the
+ * instance's bundle is rebuilt and the listener is only told when its hash differs from the ones the client already holds.
+ *
+ * A change to known instances' rows only re-evaluates the watches of those instances. A change whose rows are not known re-evaluates
+ * every watch.
+ */
+public class ConfigWatches {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    private final Bundles bundles;
+    private final ExecutorService recheckExecutor;
+
+    private final AtomicLong version = new AtomicLong();
+    private final Set<Watch> parked = ConcurrentHashMap.newKeySet();
+
+    public ConfigWatches(Bundles bundles, ExecutorService recheckExecutor) {
+        this.bundles = bundles;
+        this.recheckExecutor = recheckExecutor;
+    }
+
+    /**
+     * @param knownHash true for the hashes of bundles the client already holds.
+     */
+    public Watch watch(String instanceKey, Predicate<String> knownHash, Listener listener) throws Exception {
+        Watch watch = new Watch(instanceKey, knownHash, listener);
+        check(watch);
+        return watch;
+    }
+
+    public void cancel(Watch watch) {
+        if (parked.remove(watch)) {
+            LOG.set(ValueType.VALUE, "configWatches>parked", parked.size());
+        }
+    }
+
+    public void configChanged() {
+        version.incrementAndGet();
+        LOG.inc("configWatches>changed");
+        for (Watch watch : parked) {
+            recheck(watch);
+        }
+        LOG.set(ValueType.VALUE, "configWatches>parked", parked.size());
+    }
+
+    /**
+     * @param instanceKeys the instances whose config rows changed.
+     */
+    public void configChanged(Collection<String> instanceKeys) {
+        version.incrementAndGet();
+        LOG.inc("configWatches>instancesChanged");
+        int rechecked = 0;
+        for (Watch watch : parked) {
+            if (instanceKeys.contains(watch.instanceKey)) {
+                recheck(watch);
+                rechecked++;
+            }
+        }
+        LOG.set(ValueType.VALUE, "configWatches>rechecked", rechecked);
+        LOG.set(ValueType.VALUE, "configWatches>parked", parked.size());
+    }
+
+    private void recheck(Watch watch) {
+        if (parked.remove(watch)) {
+            recheckExecutor.submit(() -> {
+                try {
+                    check(watch);
+                } catch (Exception x) {
+                    LOG.warn("Failed to recheck config for:" + watch.instanceKey, x);
+                    watch.listener.failed(x);
+                }
+            });
+        }
+    }
+
+    private void check(Watch watch) throws Exception {
+        while (!watch.listener.isDone()) {
+            long checkedVersion = version.get();
+            ConfigBundle bundle = bundles.bundle(watch.instanceKey);
+            if (!watch.knownHash.test(bundle.hash)) {
+                LOG.inc("configWatches>pushed");
+                watch.listener.changed(bundle);
+                return;
+            }
+            parked.add(watch);
+            // a change that landed while we were evaluating would have missed this watch
+            if (version.get() == checkedVersion || !parked.remove(watch)) {
+                LOG.set(ValueType.VALUE, "configWatches>parked", parked.size());
+                return;
+            }
+        }
+    }
+
+    public static class Watch {
+
+        private final String instanceKey;
+        private final Predicate<String> knownHash;
+        private final Listener listener;
+
+        private Watch(String instanceKey, Predicate<String> knownHash, Listener listener) {
+            this.instanceKey = instanceKey;
+            this.knownHash = knownHash;
+            this.listener = listener;
+        }
+    }
+
+    public interface Bundles {
+
+        ConfigBundle bundle(String instanceKey) throws Exception;
+    }
+
+    public interface Listener {
+
+        boolean isDone();
+
+        void changed(ConfigBundle bundle);
+
+        void failed(Exception x);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.upena.service;
+
+import com.google.common.primitives.UnsignedBytes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the postings of several terms into one stream of log row keys in key (newest first) order. Each term's postings are read a
+ * page at a time as the merge reaches them, so a query that stops early never reads more than a page past where it stopped.
+ */
+class LogPostings {
+
+    interface Pages {
+
+        /**
+         * @return up to limit keys in [from, to) in key order.
+         */
+        List<byte[]> read(byte[] from, byte[] to, int limit) throws Exception;
+    }
+
+    private static final Comparator<byte[]> ORDER = UnsignedBytes.lexicographicalComparator();
+
+    private final Pages pages;
+    private final int pageSize;
+    private final PriorityQueue<Cursor> cursors = new PriorityQueue<>(8, (a, b) -> ORDER.compare(a.rowKeys.peek(), b.rowKeys.peek()));
+    private byte[] last;
+
+    LogPostings(Pages pages, int pageSize) {
+        this.pages = pages;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * @param prefixLength how many leading bytes of each posting key to strip to get back the row key.
+     */
+    void add(byte[] from, byte[] to, int prefixLength) throws Exception {
+        Cursor cursor = new Cursor(from, to, prefixLength);
+        if (cursor.fill()) {
+            cursors.add(cursor);
+        }
+    }
+
+    /**
+     * @return up to max distinct row keys following those already returned, empty once every term is exhausted.
+     */
+    List<byte[]> next(int max) throws Exception {
+        List<byte[]> rowKeys = new ArrayList<>(Math.min(max, pageSize));
+        while (rowKeys.size() < max) {
+            Cursor cursor = cursors.poll();
+            if (cursor == null) {
+                break;
+            }
+            byte[] rowKey = cursor.rowKeys.poll();
+            if (last == null || ORDER.compare(last, rowKey) != 0) {
+                rowKeys.add(rowKey);
+                last = rowKey;
+            }
+            if (cursor.fill()) {
+                cursors.add(cursor);
+            }
+        }
+        return rowKeys;
+    }
+
+    private class Cursor {
+
+        private final byte[] to;
+        private final int prefixLength;
+        private final Deque<byte[]> rowKeys = new ArrayDeque<>();
+        private byte[] from;
+
+        Cursor(byte[] from, byte[] to, int prefixLength) {
+            this.from = from;
+            this.to = to;
+            this.prefixLength = prefixLength;
+        }
+
+        /**
+         * @return false once this term has no postings left.
+         */
+        boolean fill() throws Exception {
+            if (!rowKeys.isEmpty()) {
+                return true;
+            }
+            if (from == null) {
+                return false;
+            }
+            List<byte[]> page = pages.read(from, to, pageSize);
+            for (byte[] key : page) {
+                rowKeys.add(Arrays.copyOfRange(key, prefixLength, key.length));
+            }
+            if (page.size() < pageSize) {
+                from = null;
+            } else {
+                byte[] lastKey = page.get(page.size() - 1);
+                from = Arrays.copyOf(lastKey, lastKey.length + 1);
+            }
+            return !rowKeys.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.upena.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.mlogger.core.ValueType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps log writes off the caller's thread. Records are queued and a single writer drains the queue, lingering up to lingerMillis or
+ * batchSize records, and hands the whole batch to the committer, retrying a failed batch a few times. When the queue is full the record
+ * is dropped and counted rather than stalling the caller. Once closed records are committed on the caller's thread.
+ */
+class LogWriter<T> {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    private static final int COMMIT_ATTEMPTS = 3;
+    private static final long DROPPED_WARN_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    interface Committer<T> {
+
+        void commit(List<T> batch) throws Exception;
+    }
+
+    private final String name;
+    private final BlockingQueue<T> queue;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final long retryBackoffMillis;
+    private final Committer<T> committer;
+    private final ExecutorService writer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong droppedWarned = new AtomicLong();
+    private final AtomicLong droppedWarnedTimestamp = new AtomicLong();
+    private volatile boolean closed;
+
+    LogWriter(String name, int queueCapacity, int batchSize, long lingerMillis, long retryBackoffMillis, Committer<T> committer) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.retryBackoffMillis = retryBackoffMillis;
+        this.committer = committer;
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("upena-" + name + "-writer")
+            .setDaemon(true).build());
+        this.writer.submit(this::drain);
+    }
+
+    void record(T record) throws Exception {
+        if (closed) {
+            committer.commit(Collections.singletonList(record));
+        } else if (queue.offer(record)) {
+            LOG.inc(name + ">queued");
+            if (closed && queue.remove(record)) {
+                // raced close(), the writer may already be gone
+                committer.commit(Collections.singletonList(record));
+            }
+        } else {
+            LOG.inc(name + ">dropped");
+            dropped.incrementAndGet();
+            warnDropped();
+        }
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits for everything queued so far to be committed and stops the writer.
+     *
+     * @return false if the queue could not be drained within timeoutMillis.
+     */
+    boolean close(long timeoutMillis) throws InterruptedException {
+        closed = true;
+        writer.shutdown();
+        if (!writer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            LOG.warn("Gave up waiting on {} with {} events still queued.", name, queue.size());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A backed up writer drops events by the thousand, so drops are only summarized once a minute. The dropped counter has them all.
+     */
+    private void warnDropped() {
+        long now = System.currentTimeMillis();
+        long warnedTimestamp = droppedWarnedTimestamp.get();
+        if (now - warnedTimestamp >= DROPPED_WARN_INTERVAL_MILLIS && droppedWarnedTimestamp.compareAndSet(warnedTimestamp, now)) {
+            long total = dropped.get();
+            LOG.warn("Dropped {} events for {} since the last warning because {} events are waiting to be written.",
+                total - droppedWarned.getAndSet(total), name, queue.size());
+        }
+    }
+
+    private void drain() {
+        List<T> batch = new ArrayList<>(batchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                T first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long lingerUntil = System.currentTimeMillis() + lingerMillis;
+                while (batch.size() < batchSize) {
+                    T next = queue.poll();
+                    if (next == null) {
+                        long wait = lingerUntil - System.currentTimeMillis();
+                        if (closed || wait <= 0) {
+                            break;
+                        }
+                        // linger in slices so close() does not wait out a long linger
+                        next = queue.poll(Math.min(wait, 100), TimeUnit.MILLISECONDS);
+                        if (next == null) {
+                            continue;
+                        }
+                    }
+                    batch.add(next);
+                }
+                LOG.set(ValueType.VALUE, name + ">backlog", queue.size());
+                commitWithRetries(batch);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Throwable t) {
+                LOG.error("Log writer for {} failed, carrying on.", new Object[]{name}, t);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commitWithRetries(List<T> batch) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                committer.commit(batch);
+                LOG.inc(name + ">batches");
+                LOG.set(ValueType.VALUE, name + ">batchSize", batch.size());
+                return;
+            } catch (Exception x) {
+                if (attempt >= COMMIT_ATTEMPTS) {
+                    LOG.inc(name + ">failed");
+                    LOG.error("Failed to write {} events to {} after {} attempts.", new Object[]{batch.size(), name, attempt}, x);
+                    return;
+                }
+                LOG.warn("Failed to write {} events to {}, attempt {} of {}.",
+                    new Object[]{batch.size(), name, attempt, COMMIT_ATTEMPTS}, x);
+                Thread.sleep(retryBackoffMillis * attempt);
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.upena.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.mlogger.core.ValueType;
+import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptorsRequest;
+import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptorsResponse;
+import com.jivesoftware.os.upena.shared.Instance;
+import com.jivesoftware.os.upena.shared.InstanceKey;
+import com.jivesoftware.os.upena.shared.ServiceKey;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Lets a deployable hold its routes indefinitely. A watch is parked until amza reports a change to a partition that feeds routing, at
+ * which point its connection request is re-evaluated and the listener is only told when the answer actually differs from the tag the
+ * client already holds.
+ *
+ * Instances churn far more than anything else routing reads, so a change to known instance keys only re-evaluates the watches made by
+ * one of those instances or for the service one of them belongs to (or belonged to). Any other change re-evaluates every watch.
+ */
+public class RouteWatches {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    private final Routes routes;
+    private final Instances instances;
+    private final ServiceKeys serviceKeys;
+    private final ObjectMapper mapper;
+    private final ExecutorService recheckExecutor;
+
+    private final AtomicLong version = new AtomicLong();
+    private final Set<Watch> parked = ConcurrentHashMap.newKeySet();
+    private final Map<InstanceKey, ServiceKey> instanceServices = new ConcurrentHashMap<>();
+
+    public RouteWatches(Routes routes, Instances instances, ServiceKeys serviceKeys, ObjectMapper mapper, ExecutorService recheckExecutor) {
+        this.routes = routes;
+        this.instances = instances;
+        this.serviceKeys = serviceKeys;
+        this.mapper = mapper;
+        this.recheckExecutor = recheckExecutor;
+    }
+
+    /**
+     * @param knownTag true for the tags of routes the client already holds.
+     */
+    public Watch watch(ConnectionDescriptorsRequest request, Predicate<String> knownTag, Listener listener) throws Exception {
+        Watch watch = new Watch(request,
+            request.getInstanceId() == null ? null : new InstanceKey(request.getInstanceId()),
+            serviceKeys.serviceKey(request.getConnectToServiceNamed()),
+            knownTag,
+            listener);
+        check(watch);
+        return watch;
+    }
+
+    public void cancel(Watch watch) {
+        if (parked.remove(watch)) {
+            LOG.set(ValueType.VALUE, "routeWatches>parked", parked.size());
+        }
+    }
+
+    public void routesChanged() {
+        version.incrementAndGet();
+        LOG.inc("routeWatches>changed");
+        for (Watch watch : parked) {
+            recheck(watch);
+        }
+        LOG.set(ValueType.VALUE, "routeWatches>parked", parked.size());
+    }
+
+    public void instancesChanged(Collection<InstanceKey> keys) {
+        version.incrementAndGet();
+        LOG.inc("routeWatches>instancesChanged");
+        recheckExecutor.submit(() -> {
+            try {
+                Set<InstanceKey> changed = new HashSet<>(keys);
+                Set<ServiceKey> services = new HashSet<>();
+                for (InstanceKey key : changed) {
+                    Instance instance = instances.get(key);
+                    ServiceKey was = instance == null ? instanceServices.remove(key) : instanceServices.put(key, instance.serviceKey);
+                    if (instance == null && was == null) {
+                        // removed before we learned its service
+                        routesChanged();
+                        return;
+                    }
+                    if (instance != null && instance.serviceKey != null) {
+                        services.add(instance.serviceKey);
+                    }
+                    if (was != null) {
+                        services.add(was);
+                    }
+                }
+                int rechecked = 0;
+                for (Watch watch : parked) {
+                    if (changed.contains(watch.instanceKey) || services.contains(watch.serviceKey)) {
+                        recheck(watch);
+                        rechecked++;
+                    }
+                }
+                LOG.set(ValueType.VALUE, "routeWatches>rechecked", rechecked);
+                LOG.set(ValueType.VALUE, "routeWatches>parked", parked.size());
+            } catch (Exception x) {
+                LOG.warn("Failed to scope changed instances, rechecking every watch.", x);
+                routesChanged();
+            }
+        });
+    }
+
+    private void recheck(Watch watch) {
+        if (parked.remove(watch)) {
+            recheckExecutor.submit(() -> {
+                try {
+                    check(watch);
+                } catch (Exception x) {
+                    LOG.warn("Failed to recheck routes for:" + watch.request, x);
+                    watch.listener.failed(x);
+                }
+            });
+        }
+    }
+
+    public String tag(ConnectionDescriptorsResponse response) {
+        // the request uuid is echoed back in every response and must not count as a change
+        ObjectNode node = mapper.valueToTree(response);
+        node.remove("requestUuid");
+        return Long.toHexString(JenkinsHash.hash(node.toString()));
+    }
+
+    private void check(Watch watch) throws Exception {
+        while (!watch.listener.isDone()) {
+            long checkedVersion = version.get();
+            ConnectionDescriptorsResponse response = routes.connectionRequest(watch.request);
+            String tag = tag(response);
+            if (!watch.knownTag.test(tag)) {
+                LOG.inc("routeWatches>pushed");
+                watch.listener.changed(response, tag);
+                return;
+            }
+            parked.add(watch);
+            // a change that landed while we were evaluating would have missed this watch
+            if (version.get() == checkedVersion || !parked.remove(watch)) {
+                LOG.set(ValueType.VALUE, "routeWatches>parked", parked.size());
+                return;
+            }
+        }
+    }
+
+    public static class Watch {
+
+        private final ConnectionDescriptorsRequest request;
+        private final InstanceKey instanceKey;
+        private final ServiceKey serviceKey;
+        private final Predicate<String> knownTag;
+        private final Listener listener;
+
+        private Watch(ConnectionDescriptorsRequest request,
+            InstanceKey instanceKey,
+            ServiceKey serviceKey,
+            Predicate<String> knownTag,
+            Listener listener) {
+            this.request = request;
+            this.instanceKey = instanceKey;
+            this.serviceKey = serviceKey;
+            this.knownTag = knownTag;
+            this.listener = listener;
+        }
+    }
+
+    public interface Routes {
+
+        ConnectionDescriptorsResponse connectionRequest(ConnectionDescriptorsRequest request) throws Exception;
+    }
+
+    public interface Instances {
+
+        Instance get(InstanceKey key) throws Exception;
+    }
+
+    public interface ServiceKeys {
+
+        ServiceKey serviceKey(String serviceName) throws Exception;
+    }
+
+    public interface Listener {
+
+        boolean isDone();
+
+        void changed(ConnectionDescriptorsResponse response, String tag);
+
+        void failed(Exception x);
+    }
+}
@@ -1,15 +1,30 @@
 package com.jivesoftware.os.upena.service;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.mlogger.core.ValueType;
 import com.jivesoftware.os.routing.bird.server.session.RouteSessionValidator;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
 
 /**
+ * Sessions and the access tokens which can be exchanged for them are expired by a hashed timing wheel rather than when they are next
+ * presented. Every session sits in the wheel bucket for the tick at which it would expire. Touching a session only moves its idle
+ * deadline, so when its bucket comes around a session which has been touched since is simply placed in the bucket for its new deadline.
+ *
+ * The wheel's tick also drives the clock validation reads, so validating a session costs two map lookups and no allocation. Once more
+ * than maxSessions are tracked the sessions nearest to expiring are evicted first, which is the least recently used session unless
+ * it is about to hit its hard expiry. A bucket holds sessions from later revolutions and sessions touched since they were placed, so
+ * eviction walks the wheel a tick at a time and compares each session's deadline tick with the tick being walked.
  *
  * @author jonathan.colt
  */
@@ -23,10 +38,39 @@ public class SessionStore {
 
     private final long expireSessionAfterMillis;
     private final long expireIdleSessionAfterMillis;
+    private final int maxSessions;
+    private final long tickMillis;
+    private final Queue<Session>[] wheel;
+    private final AtomicInteger tracked = new AtomicInteger();
+
+    private final LongSupplier clock;
+    private volatile long now;
+    private long lastTick;
+
+    public SessionStore(long expireSessionAfterMillis, long expireIdleSessionAfterMillis, int maxSessions, long tickMillis) {
+        this(expireSessionAfterMillis, expireIdleSessionAfterMillis, maxSessions, tickMillis, System::currentTimeMillis);
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("session-expiry-%d").setDaemon(true).build())
+            .scheduleWithFixedDelay(this::tick, this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+    }
 
-    public SessionStore(long expireSessionAfterMillis, long expireIdleSessionAfterMillis) {
+    /**
+     * Nothing ticks a store made this way, the caller drives tick().
+     */
+    SessionStore(long expireSessionAfterMillis, long expireIdleSessionAfterMillis, int maxSessions, long tickMillis, LongSupplier clock) {
         this.expireSessionAfterMillis = expireSessionAfterMillis;
         this.expireIdleSessionAfterMillis = expireIdleSessionAfterMillis;
+        this.maxSessions = maxSessions;
+        this.tickMillis = Math.max(1, tickMillis);
+
+        @SuppressWarnings("unchecked")
+        Queue<Session>[] wheel = new Queue[512];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.wheel = wheel;
+        this.clock = clock;
+        this.now = clock.getAsLong();
+        this.lastTick = now / this.tickMillis;
     }
 
     public boolean isValid(SessionValidation session) {
@@ -36,18 +80,19 @@ public class SessionStore {
 
         String sessionId = session.get(RouteSessionValidator.SESSION_ID);
         String sessionToken = session.get(RouteSessionValidator.SESSION_TOKEN);
-        Session had = sessions.get(sessionToken);
+        Session had = sessionToken == null ? null : sessions.get(sessionToken);
         if (had != null) {
-            if (had.isValid(expireSessionAfterMillis, expireIdleSessionAfterMillis) ) {
+            long at = now;
+            if (had.isValid(at, expireSessionAfterMillis, expireIdleSessionAfterMillis)) {
                 if (had.sessionId.equals(sessionId)) {
-                    had.touch();
+                    had.touchedMillis = at;
                     return true;
                 } else {
                     LOG.warn("Validation of sessionId={} failed due to session mismatch.", sessionId);
                     return false;
                 }
             } else {
-                sessions.remove(sessionId);
+                sessions.remove(sessionToken, had);
                 return false;
             }
         }
@@ -56,11 +101,13 @@ public class SessionStore {
 
     public String exchangeAccessForSession(String sessionId, String accessToken) {
         Session availableSession = tokenAccessibleSessions.remove(accessToken);
+        long at = now;
         if (availableSession != null
-            && availableSession.isValid(expireSessionAfterMillis, expireIdleSessionAfterMillis)
+            && availableSession.isValid(at, expireSessionAfterMillis, expireIdleSessionAfterMillis)
             && availableSession.sessionId.equals(sessionId)) {
-            availableSession.touch();
+            availableSession.touchedMillis = at;
             sessions.putIfAbsent(availableSession.sessionToken, availableSession);
+            LOG.inc("sessions>exchanged");
             return availableSession.sessionToken;
         } else {
             return null;
@@ -70,7 +117,15 @@ public class SessionStore {
     public String generateAccessToken(String instanceKey) {
         String accessToken = nextSessionToken();
         String newSessionToken = nextSessionToken();
-        tokenAccessibleSessions.put(accessToken, new Session(System.currentTimeMillis(), instanceKey, newSessionToken));
+        Session session = new Session(now, instanceKey, newSessionToken, accessToken);
+        tokenAccessibleSessions.put(accessToken, session);
+        schedule(session, session.deadline(expireSessionAfterMillis, expireIdleSessionAfterMillis));
+        LOG.inc("sessions>created");
+
+        int over = tracked.incrementAndGet() - maxSessions;
+        if (maxSessions > 0 && over > 0) {
+            evict(over, session);
+        }
         return accessToken;
     }
 
@@ -78,33 +133,102 @@ public class SessionStore {
         return new BigInteger(130, random).toString(32);
     }
 
+    private void schedule(Session session, long deadline) {
+        // the bucket is processed once the tick after the deadline has started so isValid will agree the session is gone
+        wheel[(int) (deadlineTick(deadline) % wheel.length)].add(session);
+    }
+
+    private long deadlineTick(long deadline) {
+        return deadline / tickMillis + 1;
+    }
+
+    void tick() {
+        try {
+            long at = clock.getAsLong();
+            now = at;
+            long currentTick = at / tickMillis;
+            long fromTick = Math.max(lastTick + 1, currentTick - wheel.length + 1);
+            for (long t = fromTick; t <= currentTick; t++) {
+                Queue<Session> bucket = wheel[(int) (t % wheel.length)];
+                // sessions rescheduled a full revolution out land back in this bucket, only look at what was here already
+                for (int i = bucket.size(); i > 0; i--) {
+                    Session session = bucket.poll();
+                    if (session == null) {
+                        break;
+                    }
+                    long deadline = session.deadline(expireSessionAfterMillis, expireIdleSessionAfterMillis);
+                    if (deadline < at) {
+                        remove(session);
+                        LOG.inc("sessions>expired");
+                    } else {
+                        schedule(session, deadline);
+                    }
+                }
+            }
+            lastTick = currentTick;
+            LOG.set(ValueType.VALUE, "sessions>live", sessions.size());
+            LOG.set(ValueType.VALUE, "sessions>unredeemed", tokenAccessibleSessions.size());
+        } catch (Throwable t) {
+            LOG.error("Session expiry failed, carrying on.", t);
+        }
+    }
+
+    /**
+     * Sessions are evicted in the order of the tick they would expire in and the session being added is never evicted. A session found
+     * in a bucket ahead of its deadline, because it belongs to a later revolution or was touched, is moved to its deadline's bucket.
+     */
+    private void evict(int count, Session keep) {
+        long at = now;
+        long fromTick = at / tickMillis;
+        // no deadline lies further out than a session born or touched now would have
+        long toTick = deadlineTick(at + Math.min(expireSessionAfterMillis, expireIdleSessionAfterMillis));
+        for (long t = fromTick; t <= toTick && count > 0; t++) {
+            Queue<Session> bucket = wheel[(int) (t % wheel.length)];
+            for (int i = bucket.size(); i > 0 && count > 0; i--) {
+                Session session = bucket.poll();
+                if (session == null) {
+                    break;
+                }
+                long deadline = session.deadline(expireSessionAfterMillis, expireIdleSessionAfterMillis);
+                if (session != keep && deadlineTick(deadline) <= t) {
+                    remove(session);
+                    LOG.inc("sessions>evicted");
+                    count--;
+                } else {
+                    schedule(session, deadline);
+                }
+            }
+        }
+    }
+
+    private void remove(Session session) {
+        tokenAccessibleSessions.remove(session.accessToken, session);
+        sessions.remove(session.sessionToken, session);
+        tracked.decrementAndGet();
+    }
+
     private static class Session {
 
         private final long sessionBirthTimestampMillis;
-        private final AtomicLong touchedMillis;
+        private volatile long touchedMillis;
         public final String sessionId;
         public final String sessionToken;
+        public final String accessToken;
 
-        public Session(long sessionBirthTimestampMillis, String sessionId, String sessionToken) {
+        public Session(long sessionBirthTimestampMillis, String sessionId, String sessionToken, String accessToken) {
             this.sessionBirthTimestampMillis = sessionBirthTimestampMillis;
-            this.touchedMillis = new AtomicLong(sessionBirthTimestampMillis);
+            this.touchedMillis = sessionBirthTimestampMillis;
             this.sessionId = sessionId;
             this.sessionToken = sessionToken;
+            this.accessToken = accessToken;
         }
 
-        public void touch() {
-            touchedMillis.set(System.currentTimeMillis());
+        public long deadline(long expireSessionAfterMillis, long expireIdleSessionAfterMillis) {
+            return Math.min(sessionBirthTimestampMillis + expireSessionAfterMillis, touchedMillis + expireIdleSessionAfterMillis);
         }
 
-        public boolean isValid(long expireSessionAfterMillis, long expireIdleSessionAfterMillis) {
-            long now = System.currentTimeMillis();
-            if (sessionBirthTimestampMillis + expireSessionAfterMillis < now) {
-                return false;
-            }
-            if (touchedMillis.get() + expireIdleSessionAfterMillis < now) {
-                return false;
-            }
-            return true;
+        public boolean isValid(long now, long expireSessionAfterMillis, long expireIdleSessionAfterMillis) {
+            return deadline(expireSessionAfterMillis, expireIdleSessionAfterMillis) >= now;
         }
     }
 }
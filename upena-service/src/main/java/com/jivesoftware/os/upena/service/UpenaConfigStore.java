@@ -18,6 +18,10 @@ package com.jivesoftware.os.upena.service;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.Striped;
 import com.jivesoftware.os.amza.api.partition.Consistency;
 import com.jivesoftware.os.amza.api.partition.Durability;
 import com.jivesoftware.os.amza.api.partition.PartitionName;
@@ -27,31 +31,62 @@ import com.jivesoftware.os.amza.service.AmzaService;
 import com.jivesoftware.os.amza.service.EmbeddedClientProvider;
 import com.jivesoftware.os.amza.service.EmbeddedClientProvider.CheckOnline;
 import com.jivesoftware.os.amza.service.EmbeddedClientProvider.EmbeddedClient;
+import com.jivesoftware.os.amza.service.Partition.ScanRange;
 import com.jivesoftware.os.jive.utils.ordered.id.TimestampedOrderIdProvider;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
+/**
+ * Config rows are keyed "config/instanceKey/context" and hold a json map of properties.
+ *
+ * Decoded maps are cached along with the amza version of the row they came from. Any change to the config partition, local or taken
+ * from a peer, bumps a generation and entries from older generations are revalidated with a scan before they are used again,
+ * a row is only parsed when its version moved. Reads take no locks, read-modify-writes of a row are serialized on a lock
+ * striped by row key.
+ *
+ * A bundle is every context of an instance in one answer along with a sha1 over its content, so a deployable that already holds the
+ * current hash can be told nothing changed without being sent the properties again.
+ */
 public class UpenaConfigStore {
 
     public static final MetricLogger LOG = MetricLoggerFactory.getLogger();
 
+    private static final TypeReference<HashMap<String, String>> PROPERTIES = new TypeReference<HashMap<String, String>>() {
+    };
+    private static final long ABSENT = -1;
+
     private final TimestampedOrderIdProvider orderIdProvider;
     private final ObjectMapper mapper;
     private final AmzaService amzaService;
     private final EmbeddedClientProvider embeddedClientProvider;
+    private final Rows rows;
     private final Map<String, FetchedVersion> lastFetchedVersion = Maps.newConcurrentMap();
 
+    private final PartitionName partitionName = new PartitionName(false, "upena".getBytes(), ("upena-config").getBytes());
     private final PartitionProperties partitionProperties;
 
     private final ConcurrentMap<String, EmbeddedClient> clientMap = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, Parsed> parsed = Maps.newConcurrentMap();
+    private final AtomicLong generation = new AtomicLong();
+    private final Striped<Lock> keyLocks = Striped.lock(64);
+    private final ConcurrentMap<String, ConfigBundle> bundles = Maps.newConcurrentMap();
+
+    public volatile ConfigWatches configWatches;
 
     public UpenaConfigStore(TimestampedOrderIdProvider orderIdProvider,
         ObjectMapper mapper,
@@ -67,11 +102,23 @@ public class UpenaConfigStore {
             TimeUnit.DAYS.toMillis(30), TimeUnit.DAYS.toMillis(10), TimeUnit.DAYS.toMillis(30), TimeUnit.DAYS.toMillis(10),
             0, 0, 0, 0,
             false, Consistency.quorum, true, true, false, snappyEnabled ? RowType.snappy_primary : RowType.primary, "lab", -1, null, -1, -1);
+        this.rows = this::scan;
+    }
+
+    /**
+     * Reads through rows instead of the amza partition, writes are not supported.
+     */
+    UpenaConfigStore(TimestampedOrderIdProvider orderIdProvider, ObjectMapper mapper, Rows rows) {
+        this.orderIdProvider = orderIdProvider;
+        this.mapper = mapper;
+        this.amzaService = null;
+        this.embeddedClientProvider = null;
+        this.partitionProperties = null;
+        this.rows = rows;
     }
 
     private EmbeddedClient client() throws Exception {
 
-        PartitionName partitionName = new PartitionName(false, "upena".getBytes(), ("upena-config").getBytes());
         return clientMap.computeIfAbsent("upena", s -> {
             try {
                 amzaService.getRingWriter().ensureMaximalRing(partitionName.getRingName(), 30_000L); //TODO config
@@ -84,66 +131,183 @@ public class UpenaConfigStore {
         });
     }
 
+    private void scan(List<byte[][]> ranges, RowStream stream) throws Exception {
+        List<ScanRange> scanRanges = new ArrayList<>(ranges.size());
+        for (byte[][] range : ranges) {
+            scanRanges.add(new ScanRange(null, range[0], null, range[1]));
+        }
+        client().scan(scanRanges,
+            (byte[] prefix, byte[] rowKey, byte[] value, long timestamp, long version) -> stream.row(rowKey, value, version),
+            true);
+    }
+
+    /**
+     * Fed from the amza row change stream for both local commits and rows taken from peers.
+     *
+     * @param rawKeys the keys of the rows which changed, or null when they are not known.
+     */
+    public void rowsChanged(PartitionName partitionName, Collection<byte[]> rawKeys) {
+        if (this.partitionName.equals(partitionName)) {
+            Set<String> instanceKeys = null;
+            if (rawKeys != null) {
+                instanceKeys = new HashSet<>();
+                for (byte[] rawKey : rawKeys) {
+                    String instanceKey = instanceKey(new String(rawKey, StandardCharsets.UTF_8));
+                    if (instanceKey == null) {
+                        instanceKeys = null;
+                        break;
+                    }
+                    instanceKeys.add(instanceKey);
+                }
+            }
+            changed(instanceKeys);
+        }
+    }
+
+    /**
+     * @param instanceKeys the instances whose rows changed, or null to recheck every watch.
+     */
+    void changed(Set<String> instanceKeys) {
+        generation.incrementAndGet();
+        ConfigWatches w = configWatches;
+        if (w != null) {
+            if (instanceKeys == null) {
+                w.configChanged();
+            } else if (!instanceKeys.isEmpty()) {
+                w.configChanged(instanceKeys);
+            }
+        }
+    }
+
+    /**
+     * @return the instanceKey of a "config/instanceKey/context" row key or null if the key is not shaped like one.
+     */
+    static String instanceKey(String key) {
+        if (!key.startsWith("config/")) {
+            return null;
+        }
+        int end = key.indexOf('/', "config/".length());
+        return end < 0 ? null : key.substring("config/".length(), end);
+    }
 
     private String createTableName(String instanceKey, String context) {
         return "config/" + instanceKey + "/" + context;
     }
 
+    private Parsed properties(String key) throws Exception {
+        long atGeneration = generation.get();
+        Parsed cached = parsed.get(key);
+        if (cached != null && cached.generation == atGeneration) {
+            return cached;
+        }
+        return load(Collections.singletonList(key), atGeneration).get(key);
+    }
 
-    synchronized private byte[] get(String instanceKey, String context) throws Exception {
-        String key = createTableName(instanceKey, context);
-        return client().getValue(Consistency.none, null, key.getBytes(StandardCharsets.UTF_8));
+    private Map<String, Parsed> load(List<String> keys, long atGeneration) throws Exception {
+        Map<byte[], String> rowKeys = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        for (String key : keys) {
+            rowKeys.put(key.getBytes(StandardCharsets.UTF_8), key);
+        }
+        List<byte[][]> ranges = new ArrayList<>(rowKeys.size());
+        for (byte[] rowKey : rowKeys.keySet()) {
+            ranges.add(new byte[][] { rowKey, Arrays.copyOf(rowKey, rowKey.length + 1) });
+        }
+
+        Map<String, Parsed> loaded = new HashMap<>();
+        rows.scan(ranges, (rowKey, value, version) -> {
+            if (value != null) {
+                String key = new String(rowKey, StandardCharsets.UTF_8);
+                loaded.put(key, parse(key, value, version, atGeneration));
+            }
+            return true;
+        });
+
+        for (String key : keys) {
+            Parsed got = loaded.computeIfAbsent(key, k -> new Parsed(atGeneration, ABSENT, Collections.emptyMap()));
+            parsed.merge(key, got, (existing, update) -> existing.generation > update.generation ? existing : update);
+        }
+        return loaded;
     }
 
-    synchronized private void set(String instanceKey, String context, byte[] rawProperties) throws Exception {
-        String key = createTableName(instanceKey, context);
-        client().commit(Consistency.quorum, null,
-            commitKeyValueStream -> commitKeyValueStream.commit(key.getBytes(StandardCharsets.UTF_8), rawProperties, orderIdProvider.nextId(), false),
-            30_000, TimeUnit.MILLISECONDS);
+    private Parsed parse(String key, byte[] value, long version, long atGeneration) throws Exception {
+        Parsed cached = parsed.get(key);
+        if (cached != null && cached.version == version) {
+            return new Parsed(atGeneration, version, cached.properties);
+        }
+        LOG.inc("config>parsed");
+        return new Parsed(atGeneration, version, Collections.unmodifiableMap(mapper.readValue(value, PROPERTIES)));
     }
 
+    private void set(String key, Map<String, String> properties) throws Exception {
+        byte[] rawProperties = mapper.writeValueAsBytes(properties);
+        commit(key, rawProperties, false);
+    }
 
-    synchronized public void remove(String instanceKey, String context) throws Exception {
-        String key = createTableName(instanceKey, context);
+    private void commit(String key, byte[] rawProperties, boolean tombstone) throws Exception {
         client().commit(Consistency.quorum, null,
-            commitKeyValueStream -> commitKeyValueStream.commit(key.getBytes(StandardCharsets.UTF_8), null, orderIdProvider.nextId(), true),
+            commitKeyValueStream -> commitKeyValueStream.commit(key.getBytes(StandardCharsets.UTF_8), rawProperties, orderIdProvider.nextId(),
+                tombstone),
             30_000, TimeUnit.MILLISECONDS);
+        // don't wait on the change stream, anything cached before this commit has to be revalidated
+        String instanceKey = instanceKey(key);
+        changed(instanceKey == null ? null : Collections.singleton(instanceKey));
         lastFetchedVersion.remove(key);
     }
 
+    public void remove(String instanceKey, String context) throws Exception {
+        String key = createTableName(instanceKey, context);
+        Lock lock = keyLocks.get(key);
+        lock.lock();
+        try {
+            commit(key, null, true);
+            parsed.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
 
     public void putAll(String instanceKey, String context, Map<String, String> properties) throws Exception {
         String key = createTableName(instanceKey, context);
-        byte[] rawProperties = get(instanceKey, context);
-        if (rawProperties == null) {
-            set(instanceKey, context, mapper.writeValueAsBytes(properties));
-        } else {
-            Map<String, String> current = mapper.readValue(rawProperties, new TypeReference<HashMap<String, String>>() {
-            });
-            boolean changed = false;
-            for (Map.Entry<String, String> entry : properties.entrySet()) {
-                String existing = current.put(entry.getKey(), entry.getValue());
-                if (existing == null || !existing.equals(entry.getValue())) {
-                    changed = true;
+        Lock lock = keyLocks.get(key);
+        lock.lock();
+        try {
+            Parsed current = properties(key);
+            if (current.version == ABSENT) {
+                set(key, properties);
+            } else {
+                Map<String, String> updated = new HashMap<>(current.properties);
+                boolean changed = false;
+                for (Map.Entry<String, String> entry : properties.entrySet()) {
+                    String existing = updated.put(entry.getKey(), entry.getValue());
+                    if (existing == null || !existing.equals(entry.getValue())) {
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    set(key, updated);
                 }
             }
-            if (changed) {
-                set(instanceKey, context, mapper.writeValueAsBytes(current));
-            }
+        } finally {
+            lock.unlock();
         }
         lastFetchedVersion.remove(key);
     }
 
     public void remove(String instanceKey, String context, Set<String> keys) throws Exception {
         String key = createTableName(instanceKey, context);
-        byte[] rawProperties = get(instanceKey, context);
-        if (rawProperties != null) {
-            Map<String, String> current = mapper.readValue(rawProperties, new TypeReference<HashMap<String, String>>() {
-            });
-            for (String k : keys) {
-                current.remove(k);
+        Lock lock = keyLocks.get(key);
+        lock.lock();
+        try {
+            Parsed current = properties(key);
+            if (current.version != ABSENT) {
+                Map<String, String> updated = new HashMap<>(current.properties);
+                for (String k : keys) {
+                    updated.remove(k);
+                }
+                set(key, updated);
             }
-            set(instanceKey, context, mapper.writeValueAsBytes(current));
+        } finally {
+            lock.unlock();
         }
         lastFetchedVersion.remove(key);
     }
@@ -151,23 +315,23 @@ public class UpenaConfigStore {
     public Map<String, String> changesSinceLastFetch(String instanceKey, String context) throws Exception {
         String key = createTableName(instanceKey, context);
         FetchedVersion fetchedVersion = lastFetchedVersion.get(key);
-        if (fetchedVersion == null || fetchedVersion.rawProperties == null) {
+        if (fetchedVersion == null || fetchedVersion.properties == null) {
+            return Collections.emptyMap();
+        }
+        Parsed stored = properties(key);
+        if (stored.version == fetchedVersion.version) {
             return Collections.emptyMap();
         }
-        Map<String, String> current = mapper.readValue(fetchedVersion.rawProperties, new TypeReference<HashMap<String, String>>() {
-        });
 
         Map<String, String> changed = new HashMap<>();
-        Map<String, String> stored = get(instanceKey, context, null, false);
-
-        for (String c : current.keySet()) {
-            String currentValue = current.get(c);
-            String storedValue = stored.get(c);
+        for (Map.Entry<String, String> entry : fetchedVersion.properties.entrySet()) {
+            String currentValue = entry.getValue();
+            String storedValue = stored.properties.get(entry.getKey());
 
             if (storedValue == null) {
-                changed.put(c, currentValue + " is not null");
+                changed.put(entry.getKey(), currentValue + " is not null");
             } else if (!storedValue.equals(currentValue)) {
-                changed.put(c, currentValue + " is now " + storedValue);
+                changed.put(entry.getKey(), currentValue + " is now " + storedValue);
             }
         }
 
@@ -176,37 +340,186 @@ public class UpenaConfigStore {
     }
 
     public Map<String, String> get(String instanceKey, String context, List<String> keys, boolean cacheFetchedVersion) throws Exception {
-        Map<String, String> results = new HashMap<>();
         String key = createTableName(instanceKey, context);
-        byte[] rawProperties = get(instanceKey, context);
-        if (rawProperties != null) {
-            Map<String, String> current = mapper.readValue(rawProperties, new TypeReference<HashMap<String, String>>() {
-            });
-            if (keys != null && !keys.isEmpty()) {
-                for (String k : keys) {
-                    String v = current.get(k);
-                    if (v != null) {
-                        results.put(k, v);
-                    }
+        Parsed current = properties(key);
+        Map<String, String> results = new HashMap<>();
+        if (keys != null && !keys.isEmpty()) {
+            for (String k : keys) {
+                String v = current.properties.get(k);
+                if (v != null) {
+                    results.put(k, v);
                 }
-            } else {
-                results.putAll(current);
             }
+        } else {
+            results.putAll(current.properties);
         }
         if (cacheFetchedVersion) {
-            lastFetchedVersion.put(key, new FetchedVersion(System.currentTimeMillis(), rawProperties));
+            lastFetchedVersion.put(key, new FetchedVersion(System.currentTimeMillis(), current.version,
+                current.version == ABSENT ? null : current.properties));
         }
         return results;
     }
 
+    /**
+     * Every property of context for each of instanceKeys, rows which are not cached or are stale are read with a single scan.
+     *
+     * @return instanceKey to properties, instances without a row map to an empty map.
+     */
+    public Map<String, Map<String, String>> getAll(Collection<String> instanceKeys, String context) throws Exception {
+        long atGeneration = generation.get();
+        Map<String, Map<String, String>> results = new HashMap<>();
+        List<String> stale = new ArrayList<>();
+        for (String instanceKey : instanceKeys) {
+            String key = createTableName(instanceKey, context);
+            Parsed cached = parsed.get(key);
+            if (cached != null && cached.generation == atGeneration) {
+                results.put(instanceKey, new HashMap<>(cached.properties));
+            } else {
+                stale.add(key);
+            }
+        }
+        if (!stale.isEmpty()) {
+            Map<String, Parsed> loaded = load(stale, atGeneration);
+            for (String instanceKey : instanceKeys) {
+                Parsed got = loaded.get(createTableName(instanceKey, context));
+                if (got != null) {
+                    results.put(instanceKey, new HashMap<>(got.properties));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Every context stored for instanceKey. Answered from memory until the config partition changes.
+     */
+    public ConfigBundle bundle(String instanceKey) throws Exception {
+        long atGeneration = generation.get();
+        ConfigBundle cached = bundles.get(instanceKey);
+        if (cached != null && cached.generation == atGeneration) {
+            return cached;
+        }
+
+        String prefix = createTableName(instanceKey, "");
+        byte[] fromKey = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] toKey = Arrays.copyOf(fromKey, fromKey.length);
+        toKey[toKey.length - 1]++;
+        Map<String, Parsed> contexts = new TreeMap<>();
+        rows.scan(Collections.singletonList(new byte[][] { fromKey, toKey }), (rowKey, value, version) -> {
+            if (value != null) {
+                String key = new String(rowKey, StandardCharsets.UTF_8);
+                Parsed got = parse(key, value, version, atGeneration);
+                parsed.merge(key, got, (existing, update) -> existing.generation > update.generation ? existing : update);
+                contexts.put(key.substring(prefix.length()), got);
+            }
+            return true;
+        });
+
+        Map<String, Long> versions = new TreeMap<>();
+        Map<String, Map<String, String>> properties = new TreeMap<>();
+        for (Map.Entry<String, Parsed> entry : contexts.entrySet()) {
+            versions.put(entry.getKey(), entry.getValue().version);
+            properties.put(entry.getKey(), entry.getValue().properties);
+        }
+
+        String hash;
+        if (cached != null && cached.versions.equals(versions)) {
+            hash = cached.hash;
+        } else {
+            LOG.inc("config>bundle>hashed");
+            hash = hash(properties);
+        }
+
+        ConfigBundle bundle = new ConfigBundle(atGeneration, hash, Collections.unmodifiableMap(properties), versions);
+        bundles.merge(instanceKey, bundle, (existing, update) -> existing.generation > update.generation ? existing : update);
+        return bundle;
+    }
+
+    /**
+     * @return a sha1 over every context's properties, independent of the order the maps iterate in.
+     */
+    static String hash(Map<String, Map<String, String>> contexts) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Map.Entry<String, Map<String, String>> context : new TreeMap<>(contexts).entrySet()) {
+            hasher.putString(context.getKey(), StandardCharsets.UTF_8).putByte((byte) 0);
+            for (Map.Entry<String, String> property : new TreeMap<>(context.getValue()).entrySet()) {
+                hasher.putString(property.getKey(), StandardCharsets.UTF_8).putByte((byte) 0);
+                hasher.putString(String.valueOf(property.getValue()), StandardCharsets.UTF_8).putByte((byte) 0);
+            }
+            hasher.putByte((byte) 1);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Records that instanceKey now holds bundle, which is what changesSinceLastFetch compares against.
+     */
+    public void fetched(String instanceKey, ConfigBundle bundle) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : bundle.versions.entrySet()) {
+            lastFetchedVersion.put(createTableName(instanceKey, entry.getKey()),
+                new FetchedVersion(now, entry.getValue(), bundle.contexts.get(entry.getKey())));
+        }
+    }
+
+    /**
+     * Where config rows are read from, the amza partition outside of tests.
+     */
+    interface Rows {
+
+        /**
+         * @param ranges from inclusive, to exclusive row key pairs.
+         */
+        void scan(List<byte[][]> ranges, RowStream stream) throws Exception;
+    }
+
+    interface RowStream {
+
+        /**
+         * @param value null for a removed row.
+         */
+        boolean row(byte[] rowKey, byte[] value, long version) throws Exception;
+    }
+
+    public static class ConfigBundle {
+
+        public final String hash;
+        public final Map<String, Map<String, String>> contexts;
+
+        private final long generation;
+        private final Map<String, Long> versions;
+
+        ConfigBundle(long generation, String hash, Map<String, Map<String, String>> contexts, Map<String, Long> versions) {
+            this.generation = generation;
+            this.hash = hash;
+            this.contexts = contexts;
+            this.versions = versions;
+        }
+    }
+
+    private static class Parsed {
+
+        private final long generation;
+        private final long version;
+        private final Map<String, String> properties;
+
+        Parsed(long generation, long version, Map<String, String> properties) {
+            this.generation = generation;
+            this.version = version;
+            this.properties = properties;
+        }
+    }
+
     public static class FetchedVersion {
 
         public final long time;
-        public final byte[] rawProperties;
+        public final long version;
+        public final Map<String, String> properties;
 
-        public FetchedVersion(long time, byte[] rawProperties) {
+        public FetchedVersion(long time, long version, Map<String, String> properties) {
             this.time = time;
-            this.rawProperties = rawProperties;
+            this.version = version;
+            this.properties = properties;
         }
 
     }
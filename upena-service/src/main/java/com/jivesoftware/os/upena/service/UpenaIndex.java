@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.upena.service;
+
+import com.jivesoftware.os.upena.shared.Key;
+import com.jivesoftware.os.upena.shared.KeyValueFilter;
+import com.jivesoftware.os.upena.shared.Stored;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Declares a secondary index over an UpenaMap. Each stored value maps to at most one term and a filter that pins that term can be
+ * answered by reading only the rows recorded under it.
+ *
+ * Postings live in the same partition as the rows they index so a row and its postings are committed together. A posting key is a zero
+ * byte, the index name, a zero byte, the term, a zero byte and then the row key. Row keys are json and can never start with a zero byte.
+ * Postings hold no value. Two racing writes of one row can each leave a posting behind and only one of them matches the row that wins,
+ * so an indexed lookup reads the rows its postings point at and callers filter on the current row value.
+ */
+public class UpenaIndex<K extends Key, V extends Stored> {
+
+    public final String name;
+    private final ValueTerm<V> valueTerm;
+    private final FilterTerm<K, V> filterTerm;
+
+    public UpenaIndex(String name, ValueTerm<V> valueTerm, FilterTerm<K, V> filterTerm) {
+        this.name = name;
+        this.valueTerm = valueTerm;
+        this.filterTerm = filterTerm;
+    }
+
+    /**
+     * @return the term the value is indexed under or null if the value should not be indexed.
+     */
+    public String term(V value) {
+        return value == null ? null : valueTerm.term(value);
+    }
+
+    /**
+     * @return the term the filter requires or null if this index cannot narrow the filter.
+     */
+    public String term(KeyValueFilter<K, V> filter) {
+        return filter == null ? null : filterTerm.term(filter);
+    }
+
+    /**
+     * Emits the postings to write for value and the postings of existing, which value no longer has, to tombstone.
+     */
+    public static <K extends Key, V extends Stored> boolean postings(List<UpenaIndex<K, V>> indexes,
+        byte[] rawKey,
+        V value,
+        V existing,
+        PostingStream stream) throws Exception {
+        for (UpenaIndex<K, V> index : indexes) {
+            String term = index.term(value);
+            if (term != null && !stream.posting(postingKey(index.name, term, rawKey), false)) {
+                return false;
+            }
+            String had = index.term(existing);
+            if (had != null && !had.equals(term) && !stream.posting(postingKey(index.name, had, rawKey), true)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Streams the current rows the postings in postingRange point at, in row key order. A posting may be stale so the rows must still
+     * be filtered.
+     */
+    public static void rows(byte[][] postingRange, Scanner scanner, RowStream stream) throws Exception {
+        List<byte[][]> rowRanges = new ArrayList<>();
+        scanner.scan(Collections.singletonList(postingRange), false, (key, value, timestamp) -> {
+            byte[] rowKey = rowKey(key, postingRange[0]);
+            rowRanges.add(new byte[][] { rowKey, Arrays.copyOf(rowKey, rowKey.length + 1) });
+            return true;
+        });
+        if (!rowRanges.isEmpty()) {
+            scanner.scan(rowRanges, true, stream);
+        }
+    }
+
+    public static boolean isPosting(byte[] key) {
+        return key.length > 0 && key[0] == 0;
+    }
+
+    public static byte[] postingKey(String name, String term, byte[] rawKey) {
+        byte[] rawName = name.getBytes(StandardCharsets.UTF_8);
+        byte[] rawTerm = term.getBytes(StandardCharsets.UTF_8);
+        byte[] postingKey = new byte[1 + rawName.length + 1 + rawTerm.length + 1 + rawKey.length];
+        System.arraycopy(rawName, 0, postingKey, 1, rawName.length);
+        System.arraycopy(rawTerm, 0, postingKey, 1 + rawName.length + 1, rawTerm.length);
+        System.arraycopy(rawKey, 0, postingKey, 1 + rawName.length + 1 + rawTerm.length + 1, rawKey.length);
+        return postingKey;
+    }
+
+    /**
+     * @return the inclusive start and exclusive end of the postings for term.
+     */
+    public static byte[][] postingRange(String name, String term) {
+        byte[] from = postingKey(name, term, new byte[0]);
+        byte[] to = Arrays.copyOf(from, from.length);
+        to[to.length - 1]++;
+        return new byte[][] { from, to };
+    }
+
+    /**
+     * @return the key of the row a posting from postingRange points at.
+     */
+    public static byte[] rowKey(byte[] postingKey, byte[] from) {
+        return Arrays.copyOfRange(postingKey, from.length, postingKey.length);
+    }
+
+    public interface Scanner {
+
+        /**
+         * @param ranges inclusive start and exclusive end keys, in key order.
+         */
+        void scan(List<byte[][]> ranges, boolean hydrateValues, RowStream stream) throws Exception;
+    }
+
+    public interface RowStream {
+
+        boolean row(byte[] key, byte[] value, long timestamp) throws Exception;
+    }
+
+    public interface PostingStream {
+
+        boolean posting(byte[] postingKey, boolean tombstone) throws Exception;
+    }
+
+    public interface ValueTerm<VV> {
+
+        String term(VV value);
+    }
+
+    public interface FilterTerm<KK, VV> {
+
+        String term(KeyValueFilter<KK, VV> filter);
+    }
+}
@@ -4,6 +4,7 @@ import com.jivesoftware.os.upena.shared.Key;
 import com.jivesoftware.os.upena.shared.KeyValueFilter;
 import com.jivesoftware.os.upena.shared.Stored;
 import com.jivesoftware.os.upena.shared.TimestampedValue;
+import java.util.Collection;
 import java.util.concurrent.ConcurrentNavigableMap;
 
 /**
@@ -14,6 +15,11 @@ public interface UpenaMap<K extends Key, V extends Stored> {
 
     V get(K key) throws Exception;
 
+    /**
+     * @return the stored value of each of keys which has not been removed.
+     */
+    ConcurrentNavigableMap<K, TimestampedValue<V>> getAll(Collection<K> keys) throws Exception;
+
     void scan(Stream<K, V> stream) throws Exception;
 
     @SuppressWarnings("unchecked")
@@ -29,7 +29,6 @@ import com.jivesoftware.os.upena.shared.Host;
 import com.jivesoftware.os.upena.shared.HostKey;
 import com.jivesoftware.os.upena.shared.Instance;
 import com.jivesoftware.os.upena.shared.Instance.Port;
-import com.jivesoftware.os.upena.shared.InstanceFilter;
 import com.jivesoftware.os.upena.shared.InstanceKey;
 import com.jivesoftware.os.upena.shared.ReleaseGroup;
 import com.jivesoftware.os.upena.shared.ReleaseGroup.Type;
@@ -106,22 +105,14 @@ public class UpenaService {
             }
         }
 
-        ServiceKey[] serviceKey = new ServiceKey[1];
-        upenaStore.services.scan((key, value) -> {
-            if (value != null && value.name.equals(connectionsRequest.getConnectToServiceNamed())) {
-                serviceKey[0] = key;
-                return false;
-            }
-            return true;
-        });
-
-        Service service = serviceKey[0] == null ? null : upenaStore.services.get(serviceKey[0]);
+        ServiceKey serviceKey = upenaStore.topology.serviceKey(connectionsRequest.getConnectToServiceNamed());
+        Service service = serviceKey == null ? null : upenaStore.services.get(serviceKey);
         if (service == null) {
             return failedConnectionResponse(connectionsRequest,
                 "Undeclared service connectToServiceNamed:" + connectionsRequest.getConnectToServiceNamed());
         }
 
-        ServiceKey wantToConnectToServiceKey = serviceKey[0];
+        ServiceKey wantToConnectToServiceKey = serviceKey;
 
         ReleaseGroupKey releaseGroupKey = null;
         List<ConnectionDescriptor> primaryConnections = null;
@@ -191,9 +182,7 @@ public class UpenaService {
 
         if (releaseGroupKey.getKey() != null
             && releaseGroupKey.getKey().length() > 0) {
-            InstanceFilter explicitReleaseGroupFilter = new InstanceFilter(clusterKey,
-                null, wantToConnectToServiceKey, releaseGroupKey, null, 0, Integer.MAX_VALUE);
-            return upenaStore.instances.find(false, explicitReleaseGroupFilter);
+            return upenaStore.topology.instances(clusterKey, wantToConnectToServiceKey, releaseGroupKey);
         }
         return null;
     }
@@ -251,8 +240,7 @@ public class UpenaService {
         }
 
         InstanceDescriptorsResponse instanceDescriptorsResponse = new InstanceDescriptorsResponse(instanceDescriptorsRequest.hostKey, false);
-        InstanceFilter impactedFilter = new InstanceFilter(null, hostKey, null, null, null, 0, Integer.MAX_VALUE);
-        ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> got = upenaStore.instances.find(false, impactedFilter);
+        ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> got = upenaStore.topology.instances(hostKey);
         for (Entry<InstanceKey, TimestampedValue<Instance>> e : got.entrySet()) {
             InstanceDescriptor instanceDescriptor = toInstanceDescriptor(e.getKey(), e.getValue().getValue());
             if (instanceDescriptor != null) {
@@ -327,8 +315,8 @@ public class UpenaService {
                 instance.restartTimestampGMTMillis,
                 instance.enabled);
 
-            InstanceFilter filter = new InstanceFilter(clusterKey, null, serviceKey, releaseGroupKey, null, 0, Integer.MAX_VALUE);
-            ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> instances = upenaStore.instances.find(false, filter);
+            ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> instances = upenaStore.topology.instances(clusterKey, serviceKey,
+                releaseGroupKey);
 
             int count = instances.size();
             for (Entry<InstanceKey, TimestampedValue<Instance>> e : instances.entrySet()) {
@@ -356,8 +344,8 @@ public class UpenaService {
             }
 
         } else if (releaseGroup.type == Type.canary) {
-            InstanceFilter filter = new InstanceFilter(clusterKey, null, serviceKey, releaseGroupKey, null, 0, Integer.MAX_VALUE);
-            ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> instances = upenaStore.instances.find(false, filter);
+            ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> instances = upenaStore.topology.instances(clusterKey, serviceKey,
+                releaseGroupKey);
             int minInstanceId = Integer.MAX_VALUE;
             for (TimestampedValue<Instance> instanceTimestampedValue : instances.values()) {
                 if (!instanceTimestampedValue.getTombstoned()) {
@@ -403,8 +391,8 @@ public class UpenaService {
         } else if (releaseGroup.type == Type.rolling) {
 
 
-            InstanceFilter filter = new InstanceFilter(clusterKey, null, serviceKey, releaseGroupKey, null, 0, Integer.MAX_VALUE);
-            ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> instances = upenaStore.instances.find(false, filter);
+            ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> instances = upenaStore.topology.instances(clusterKey, serviceKey,
+                releaseGroupKey);
 
             boolean anybodyLessThanMeUnhealthy = false;
             boolean amIUnhealthy = false;
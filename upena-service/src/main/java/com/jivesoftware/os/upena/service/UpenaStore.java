@@ -17,6 +17,9 @@ package com.jivesoftware.os.upena.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jivesoftware.os.amza.api.partition.Consistency;
 import com.jivesoftware.os.amza.api.partition.Durability;
 import com.jivesoftware.os.amza.api.partition.PartitionName;
@@ -38,6 +41,7 @@ import com.jivesoftware.os.upena.shared.ClusterKey;
 import com.jivesoftware.os.upena.shared.Host;
 import com.jivesoftware.os.upena.shared.HostKey;
 import com.jivesoftware.os.upena.shared.Instance;
+import com.jivesoftware.os.upena.shared.InstanceFilter;
 import com.jivesoftware.os.upena.shared.InstanceKey;
 import com.jivesoftware.os.upena.shared.Key;
 import com.jivesoftware.os.upena.shared.KeyValueFilter;
@@ -58,11 +62,22 @@ import com.jivesoftware.os.upena.shared.Stored;
 import com.jivesoftware.os.upena.shared.Tenant;
 import com.jivesoftware.os.upena.shared.TenantKey;
 import com.jivesoftware.os.upena.shared.TimestampedValue;
+import com.jivesoftware.os.upena.shared.UpenaCodec;
+import com.jivesoftware.os.upena.shared.UpenaCodecs;
 import com.jivesoftware.os.upena.shared.User;
 import com.jivesoftware.os.upena.shared.UserKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -71,8 +86,11 @@ public class UpenaStore {
 
     private final MetricLogger LOG = MetricLoggerFactory.getLogger();
 
+    private static final byte[] EMPTY = new byte[0];
+
     private final ObjectMapper mapper;
     private final boolean snappyEnabled;
+    private final boolean binaryValuesEnabled;
 
     public UpenaMap<UserKey, User> users;
     public UpenaMap<PermissionKey, Permission> permissions;
@@ -87,11 +105,24 @@ public class UpenaStore {
     public UpenaMap<MonkeyKey, Monkey> monkeys;
     public UpenaMap<ChaosStateKey, ChaosState> chaosStates;
 
+    public volatile UpenaTopology topology;
+
+    private final PartitionName servicesPartitionName = getPartitionName("services");
+    private final PartitionName instancesPartitionName = getPartitionName("instances");
+    private final Set<PartitionName> routingPartitionNames = Sets.newHashSet(servicesPartitionName, instancesPartitionName,
+        getPartitionName("clusters"), getPartitionName("hosts"), getPartitionName("releases"), getPartitionName("tenants"),
+        getPartitionName("monkeys"));
+
+    public volatile RouteWatches routeWatches;
+
     private final AmzaService amzaService;
     private final EmbeddedClientProvider embeddedClientProvider;
     private final AtomicBoolean initialized = new AtomicBoolean(false);
 
     private final ConcurrentMap<String, EmbeddedClient> clientMap = Maps.newConcurrentMap();
+    private final RecordedLog changeLog;
+    private final RecordedLog healthLog;
+    private final OrderIdProvider logIdProvider;
 
     public UpenaStore(
         ObjectMapper mapper,
@@ -100,13 +131,22 @@ public class UpenaStore {
         TenantChanges tenantChanges,
         AmzaService amzaService,
         EmbeddedClientProvider embeddedClientProvider,
-        boolean snappyEnabled) throws Exception {
+        OrderIdProvider logIdProvider,
+        int logQueueCapacity,
+        int logBatchSize,
+        long logLingerMillis,
+        boolean snappyEnabled,
+        boolean binaryValuesEnabled) throws Exception {
 
         this.amzaService = amzaService;
         this.embeddedClientProvider = embeddedClientProvider;
+        this.logIdProvider = logIdProvider;
+        this.changeLog = new RecordedLog("change-changeLog", logQueueCapacity, logBatchSize, logLingerMillis);
+        this.healthLog = new RecordedLog("health-changeLog", logQueueCapacity, logBatchSize, logLingerMillis);
 
         this.mapper = mapper;
         this.snappyEnabled = snappyEnabled;
+        this.binaryValuesEnabled = binaryValuesEnabled;
     }
 
     public void init(OrderIdProvider idProvider,
@@ -119,78 +159,148 @@ public class UpenaStore {
 
 
         users = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("user"), UserKey.class, User.class, new UserKeyProvider(), null);
+            getPartitionName("user"), UserKey.class, User.class, new UserKeyProvider(), null, null, binaryValuesEnabled);
 
         permissions = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("permissions"), PermissionKey.class, Permission.class, new PermissionKeyProvider(), null);
+            getPartitionName("permissions"), PermissionKey.class, Permission.class, new PermissionKeyProvider(), null, null, binaryValuesEnabled);
 
         projects = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("projects"), ProjectKey.class, Project.class, new ProjectKeyProvider(idProvider), null);
+            getPartitionName("projects"), ProjectKey.class, Project.class, new ProjectKeyProvider(idProvider), null, null, binaryValuesEnabled);
 
 
         clusters = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("clusters"), ClusterKey.class, Cluster.class, new ClusterKeyProvider(idProvider), null);
+            getPartitionName("clusters"), ClusterKey.class, Cluster.class, new ClusterKeyProvider(idProvider), null, null, binaryValuesEnabled);
 
         loadBalancers = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("load-balancers"), LBKey.class, LB.class, new LBKeyProvider(idProvider), null);
+            getPartitionName("load-balancers"), LBKey.class, LB.class, new LBKeyProvider(idProvider), null, null, binaryValuesEnabled);
 
         hosts = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("hosts"), HostKey.class, Host.class, new HostKeyProvider(), null);
+            getPartitionName("hosts"), HostKey.class, Host.class, new HostKeyProvider(), null, null, binaryValuesEnabled);
 
         services = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("services"), ServiceKey.class, Service.class, new ServiceKeyProvider(idProvider), null);
+            servicesPartitionName, ServiceKey.class, Service.class, new ServiceKeyProvider(idProvider), null, null, binaryValuesEnabled);
 
         releaseGroups = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("releases"), ReleaseGroupKey.class, ReleaseGroup.class, new ReleaseGroupKeyProvider(idProvider), null);
+            getPartitionName("releases"), ReleaseGroupKey.class, ReleaseGroup.class, new ReleaseGroupKeyProvider(idProvider), null, null,
+            binaryValuesEnabled);
 
         instances = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("instances"), InstanceKey.class, Instance.class, new InstanceKeyProvider(idProvider),
-            new InstanceValidator(minServicePort, maxServicePort));
+            instancesPartitionName, InstanceKey.class, Instance.class, new InstanceKeyProvider(idProvider),
+            new InstanceValidator(minServicePort, maxServicePort),
+            instanceIndexes(),
+            binaryValuesEnabled);
 
         tenants = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("tenants"), TenantKey.class, Tenant.class, new TenantKeyProvider(), null);
+            getPartitionName("tenants"), TenantKey.class, Tenant.class, new TenantKeyProvider(), null, null, binaryValuesEnabled);
 
         monkeys = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("monkeys"), MonkeyKey.class, Monkey.class, new MonkeyKeyProvider(idProvider), null);
+            getPartitionName("monkeys"), MonkeyKey.class, Monkey.class, new MonkeyKeyProvider(idProvider), null, null, binaryValuesEnabled);
 
         chaosStates = new AmzaUpenaMap<>(mapper, amzaService, embeddedClientProvider, partitionProperties,
-            getPartitionName("chaos"), ChaosStateKey.class, ChaosState.class, new ChaosStateKeyProvider(idProvider), null);
+            getPartitionName("chaos"), ChaosStateKey.class, ChaosState.class, new ChaosStateKeyProvider(idProvider), null, null,
+            binaryValuesEnabled);
+
+        topology = new UpenaTopology(services, instances);
 
         initialized.set(true);
     }
 
-    public boolean isReady() {
-        return initialized.get();
+    private static List<UpenaIndex<InstanceKey, Instance>> instanceIndexes() {
+        return Arrays.asList(
+            new UpenaIndex<InstanceKey, Instance>("host",
+                value -> value.hostKey == null ? null : value.hostKey.getKey(),
+                filter -> filter instanceof InstanceFilter && ((InstanceFilter) filter).hostKey != null
+                    ? ((InstanceFilter) filter).hostKey.getKey() : null),
+            new UpenaIndex<InstanceKey, Instance>("releaseGroup",
+                value -> value.releaseGroupKey == null ? null : value.releaseGroupKey.getKey(),
+                filter -> filter instanceof InstanceFilter && ((InstanceFilter) filter).releaseGroupKey != null
+                    ? ((InstanceFilter) filter).releaseGroupKey.getKey() : null),
+            new UpenaIndex<InstanceKey, Instance>("service",
+                value -> value.serviceKey == null ? null : value.serviceKey.getKey(),
+                filter -> filter instanceof InstanceFilter && ((InstanceFilter) filter).serviceKey != null
+                    ? ((InstanceFilter) filter).serviceKey.getKey() : null),
+            new UpenaIndex<InstanceKey, Instance>("cluster",
+                value -> value.clusterKey == null ? null : value.clusterKey.getKey(),
+                filter -> filter instanceof InstanceFilter && ((InstanceFilter) filter).clusterKey != null
+                    ? ((InstanceFilter) filter).clusterKey.getKey() : null)
+        );
     }
 
-    private EmbeddedClient changeLogClient() throws Exception {
-        PartitionProperties partitionProperties = new PartitionProperties(Durability.fsync_async,
-            TimeUnit.DAYS.toMillis(30), TimeUnit.DAYS.toMillis(10), TimeUnit.DAYS.toMillis(30), TimeUnit.DAYS.toMillis(10),
-            TimeUnit.DAYS.toMillis(30), TimeUnit.DAYS.toMillis(10), TimeUnit.DAYS.toMillis(30), TimeUnit.DAYS.toMillis(10),
-            false, Consistency.quorum, true, true, false, snappyEnabled ? RowType.snappy_primary : RowType.primary, "lab", -1, null, -1, -1);
+    /**
+     * Fed from the amza row change stream for both local commits and rows taken from peers.
+     *
+     * @param rawKeys the keys of the rows which changed, or null when they are not known.
+     */
+    public void rowsChanged(PartitionName partitionName, Collection<byte[]> rawKeys) {
+        UpenaTopology t = topology;
+        RouteWatches r = routeWatches;
+        if (servicesPartitionName.equals(partitionName)) {
+            if (t != null) {
+                List<ServiceKey> keys = keys(rawKeys, ServiceKey.class);
+                if (keys == null) {
+                    t.servicesChanged();
+                } else {
+                    t.servicesChanged(keys);
+                }
+            }
+        } else if (instancesPartitionName.equals(partitionName)) {
+            List<InstanceKey> keys = keys(rawKeys, InstanceKey.class);
+            if (t != null) {
+                if (keys == null) {
+                    t.instancesChanged();
+                } else {
+                    t.instancesChanged(keys);
+                }
+            }
+            if (r != null && keys != null) {
+                if (!keys.isEmpty()) {
+                    r.instancesChanged(keys);
+                }
+                return;
+            }
+        }
+        if (r != null && routingPartitionNames.contains(partitionName)) {
+            r.routesChanged();
+        }
+    }
 
-        PartitionName partitionName = getPartitionName("change-changeLog");
-        return clientMap.computeIfAbsent("change-changeLog", s -> {
+    private <K> List<K> keys(Collection<byte[]> rawKeys, Class<K> keyClass) {
+        if (rawKeys == null) {
+            return null;
+        }
+        List<K> keys = new ArrayList<>(rawKeys.size());
+        for (byte[] rawKey : rawKeys) {
+            if (UpenaIndex.isPosting(rawKey)) {
+                continue;
+            }
             try {
-                amzaService.getRingWriter().ensureMaximalRing(partitionName.getRingName(), 30_000L); //TODO config
-                amzaService.createPartitionIfAbsent(partitionName, partitionProperties);
-                amzaService.awaitOnline(partitionName, 30_000L); //TODO config
-                return embeddedClientProvider.getClient(partitionName, CheckOnline.once);
-            } catch (Exception e) {
-                throw new RuntimeException("Failed to get amza client", e);
+                keys.add(mapper.readValue(rawKey, keyClass));
+            } catch (Exception x) {
+                LOG.warn("Failed to read changed {} key, falling back to a full reload.", new Object[] { keyClass.getSimpleName() }, x);
+                return null;
             }
-        });
+        }
+        return keys;
+    }
+
+    public boolean isReady() {
+        return initialized.get();
     }
 
+    private EmbeddedClient logClient(String name) throws Exception {
+        return logClient(name, true);
+    }
 
-    private EmbeddedClient healthLogClient() throws Exception {
+    private EmbeddedClient logClient(String name, boolean expiring) throws Exception {
+        long ttlAge = expiring ? TimeUnit.DAYS.toMillis(30) : 0;
+        long ttlInterval = expiring ? TimeUnit.DAYS.toMillis(10) : 0;
         PartitionProperties partitionProperties = new PartitionProperties(Durability.fsync_async,
             TimeUnit.DAYS.toMillis(30), TimeUnit.DAYS.toMillis(10), TimeUnit.DAYS.toMillis(30), TimeUnit.DAYS.toMillis(10),
-            TimeUnit.DAYS.toMillis(30), TimeUnit.DAYS.toMillis(10), TimeUnit.DAYS.toMillis(30), TimeUnit.DAYS.toMillis(10),
+            ttlAge, ttlInterval, ttlAge, ttlInterval,
             false, Consistency.quorum, true, true, false, snappyEnabled ? RowType.snappy_primary : RowType.primary, "lab", -1, null, -1, -1);
 
-        PartitionName partitionName = getPartitionName("health-changeLog");
-        return clientMap.computeIfAbsent("health-changeLog", s -> {
+        PartitionName partitionName = getPartitionName(name);
+        return clientMap.computeIfAbsent(name, s -> {
             try {
                 amzaService.getRingWriter().ensureMaximalRing(partitionName.getRingName(), 30_000L); //TODO config
                 amzaService.createPartitionIfAbsent(partitionName, partitionProperties);
@@ -200,7 +310,6 @@ public class UpenaStore {
                 throw new RuntimeException("Failed to get amza client", e);
             }
         });
-
     }
 
     private PartitionName getPartitionName(String name) {
@@ -233,6 +342,12 @@ public class UpenaStore {
 
         public static final MetricLogger LOG = MetricLoggerFactory.getLogger();
 
+        private static final int BACKFILL_BATCH_SIZE = 1_000;
+        private static final byte[] ROWS_FROM = { 1 }; // postings all start with a zero byte
+        private static final ScanRange ROWS = new ScanRange(null, ROWS_FROM, null, null);
+        private static final ExecutorService BACKFILL = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("upena-index-backfill-%d").setDaemon(true).build());
+
         private final ObjectMapper mapper;
         private final PartitionProperties partitionProperties;
         private final PartitionName partitionName;
@@ -240,8 +355,12 @@ public class UpenaStore {
         private final EmbeddedClientProvider embeddedClientProvider;
         private final Class<K> keyClass;
         private final Class<V> valueClass;
+        private final UpenaCodec<V> valueCodec;
         private final UpenaKeyProvider<K, V> keyProvider;
         private final UpenaValueValidator<K, V> valueValidator;
+        private final List<UpenaIndex<K, V>> indexes;
+        private final AtomicBoolean indexesBuilt = new AtomicBoolean(false);
+        private final AtomicBoolean backfilling = new AtomicBoolean(false);
         private final ConcurrentMap<String, EmbeddedClient> clientMap = Maps.newConcurrentMap();
 
 
@@ -253,7 +372,9 @@ public class UpenaStore {
             Class<K> keyClass,
             Class<V> valueClass,
             UpenaKeyProvider<K, V> keyProvider,
-            UpenaValueValidator<K, V> valueValidator) {
+            UpenaValueValidator<K, V> valueValidator,
+            List<UpenaIndex<K, V>> indexes,
+            boolean binaryValuesEnabled) {
 
             this.mapper = mapper;
             this.partitionProperties = partitionProperties;
@@ -262,8 +383,10 @@ public class UpenaStore {
             this.embeddedClientProvider = embeddedClientProvider;
             this.keyClass = keyClass;
             this.valueClass = valueClass;
+            this.valueCodec = UpenaCodecs.valueCodec(mapper, valueClass, binaryValuesEnabled);
             this.keyProvider = keyProvider;
             this.valueValidator = valueValidator;
+            this.indexes = indexes == null ? Collections.emptyList() : indexes;
         }
 
         @Override
@@ -277,14 +400,36 @@ public class UpenaStore {
         @Override
         public V get(K key) throws Exception {
             byte[] rawValue = client().getValue(Consistency.none, null, mapper.writeValueAsBytes(key));
-            return rawValue != null ? mapper.readValue(rawValue, valueClass) : null;
+            return rawValue != null ? valueCodec.fromBytes(rawValue) : null;
+        }
+
+        @Override
+        public ConcurrentNavigableMap<K, TimestampedValue<V>> getAll(Collection<K> keys) throws Exception {
+            ConcurrentNavigableMap<K, TimestampedValue<V>> results = new ConcurrentSkipListMap<>();
+            if (keys.isEmpty()) {
+                return results;
+            }
+            List<byte[]> rawKeys = new ArrayList<>(keys.size());
+            for (K key : keys) {
+                rawKeys.add(mapper.writeValueAsBytes(key));
+            }
+            Collections.sort(rawKeys, UnsignedBytes.lexicographicalComparator());
+            List<ScanRange> ranges = new ArrayList<>(rawKeys.size());
+            for (byte[] rawKey : rawKeys) {
+                ranges.add(new ScanRange(null, rawKey, null, Arrays.copyOf(rawKey, rawKey.length + 1)));
+            }
+            client().scan(ranges, (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> {
+                results.put(mapper.readValue(key, keyClass), new BasicTimestampedValue<>(valueCodec.fromBytes(value), timestamp, false));
+                return true;
+            }, true);
+            return results;
         }
 
         @Override
         public void scan(Stream<K, V> stream) throws Exception {
-            client().scan(Collections.singletonList(ScanRange.ROW_SCAN), (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> {
+            client().scan(Collections.singletonList(ROWS), (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> {
                 K k = mapper.readValue(key, keyClass);
-                V v = mapper.readValue(value, valueClass);
+                V v = valueCodec.fromBytes(value);
                 return stream.stream(k, v);
             }, true);
         }
@@ -293,18 +438,38 @@ public class UpenaStore {
         public ConcurrentNavigableMap<K, TimestampedValue<V>> find(boolean removeBadKeysEnabled, KeyValueFilter<K, V> filter) throws Exception {
             ConcurrentNavigableMap<K, TimestampedValue<V>> results = filter == null ? null : filter.createCollector();
             if (results != null) {
-                client().scan(Collections.singletonList(ScanRange.ROW_SCAN), (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> {
-                    K k = mapper.readValue(key, keyClass);
-                    V v = mapper.readValue(value, valueClass);
-                    if (filter.filter(k, v)) {
-                        results.put(k, new BasicTimestampedValue<>(v, timestamp, false));
+                UpenaIndex.RowStream stream = (key, value, timestamp) -> {
+                    if (value != null) {
+                        K k = mapper.readValue(key, keyClass);
+                        V v = valueCodec.fromBytes(value);
+                        if (filter.filter(k, v)) {
+                            results.put(k, new BasicTimestampedValue<>(v, timestamp, false));
+                        }
                     }
                     return true;
-                }, true);
+                };
+                byte[][] postings = postingRange(filter);
+                if (postings == null) {
+                    client().scan(Collections.singletonList(ROWS),
+                        (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> stream.row(key, value, timestamp), true);
+                } else {
+                    // a racing write can leave a stale posting behind, the filter is applied to the current row
+                    UpenaIndex.rows(postings, this::scan, stream);
+                }
             }
             return results;
         }
 
+        private void scan(List<byte[][]> ranges, boolean hydrateValues, UpenaIndex.RowStream stream) throws Exception {
+            List<ScanRange> scanRanges = new ArrayList<>(ranges.size());
+            for (byte[][] range : ranges) {
+                scanRanges.add(new ScanRange(null, range[0], null, range[1]));
+            }
+            client().scan(scanRanges,
+                (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> stream.row(key, value, timestamp),
+                hydrateValues);
+        }
+
         @Override
         public K update(K key, V value) throws Exception {
             if (key == null) {
@@ -314,16 +479,15 @@ public class UpenaStore {
                 value = valueValidator.validate(this, key, value);
             }
 
-            final K k = key;
-            final V v = value;
+            byte[] rawKey = mapper.writeValueAsBytes(key);
+            V existing = existing(rawKey);
+            byte[] rawValue = valueCodec.toBytes(value);
+            V v = value;
             client().commit(Consistency.quorum,
                 null,
-                commitKeyValueStream -> commitKeyValueStream.commit(
-                    mapper.writeValueAsBytes(k),
-                    mapper.writeValueAsBytes(v),
-                    -1,
-                    false
-                ),
+                commitKeyValueStream -> commitKeyValueStream.commit(rawKey, rawValue, -1, false)
+                    && UpenaIndex.postings(indexes, rawKey, v, existing,
+                        (postingKey, tombstone) -> commitKeyValueStream.commit(postingKey, tombstone ? null : EMPTY, -1, tombstone)),
                 30_000,
                 TimeUnit.MILLISECONDS);
             return key;
@@ -331,27 +495,130 @@ public class UpenaStore {
 
         @Override
         public boolean remove(K key) throws Exception {
+            byte[] rawKey = mapper.writeValueAsBytes(key);
+            V existing = existing(rawKey);
             client().commit(Consistency.quorum,
                 null,
-                commitKeyValueStream -> commitKeyValueStream.commit(
-                    mapper.writeValueAsBytes(key),
-                    null,
-                    -1,
-                    true
-                ),
+                commitKeyValueStream -> commitKeyValueStream.commit(rawKey, null, -1, true)
+                    && UpenaIndex.postings(indexes, rawKey, null, existing,
+                        (postingKey, tombstone) -> commitKeyValueStream.commit(postingKey, null, -1, true)),
                 30_000,
                 TimeUnit.MILLISECONDS);
             return true;
         }
 
+        /**
+         * @return the stored value whose postings a write may have to tombstone, only read when this map is indexed.
+         */
+        private V existing(byte[] rawKey) throws Exception {
+            if (indexes.isEmpty()) {
+                return null;
+            }
+            byte[] rawExisting = client().getValue(Consistency.none, null, rawKey);
+            return rawExisting == null ? null : valueCodec.fromBytes(rawExisting);
+        }
+
+        /**
+         * @return null when no declared index can narrow the filter (or the indexes are still being backfilled) otherwise the range of
+         * postings for the first applicable index. Indexes are declared most selective first.
+         */
+        private byte[][] postingRange(KeyValueFilter<K, V> filter) {
+            for (UpenaIndex<K, V> index : indexes) {
+                String term = index.term(filter);
+                if (term != null) {
+                    if (!indexesBuilt.get()) {
+                        backfill();
+                        LOG.inc("upenaMap>find>backfilling");
+                        return null;
+                    }
+                    LOG.inc("upenaMap>find>indexed>" + index.name);
+                    return UpenaIndex.postingRange(index.name, term);
+                }
+            }
+            LOG.inc("upenaMap>find>scan");
+            return null;
+        }
+
+        /**
+         * Rows written before indexes were declared are given postings in the background a page at a time. Until that is done finds fall
+         * back to scanning the rows. Postings are backfilled with their row's timestamp so a concurrent write's tombstone still wins. The
+         * marker key starts with two zero bytes so it can never collide with a posting.
+         */
+        private void backfill() {
+            if (!backfilling.compareAndSet(false, true)) {
+                return;
+            }
+            BACKFILL.submit(() -> {
+                String name = new String(partitionName.getName(), StandardCharsets.UTF_8);
+                try {
+                    StringBuilder names = new StringBuilder();
+                    for (UpenaIndex<K, V> index : indexes) {
+                        names.append(index.name).append(',');
+                    }
+                    byte[] marker = ("\u0000\u0000built:" + names).getBytes(StandardCharsets.UTF_8);
+                    if (client().getValue(Consistency.none, null, marker) == null) {
+                        long count = 0;
+                        byte[] from = ROWS_FROM;
+                        while (from != null) {
+                            List<byte[][]> page = new ArrayList<>(BACKFILL_BATCH_SIZE);
+                            List<Long> timestamps = new ArrayList<>(BACKFILL_BATCH_SIZE);
+                            client().scan(Collections.singletonList(new ScanRange(null, from, null, null)),
+                                (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> {
+                                    page.add(new byte[][] { key, value });
+                                    timestamps.add(timestamp);
+                                    return page.size() < BACKFILL_BATCH_SIZE;
+                                }, true);
+                            client().commit(Consistency.quorum,
+                                null,
+                                commitKeyValueStream -> {
+                                    for (int i = 0; i < page.size(); i++) {
+                                        byte[] rawKey = page.get(i)[0];
+                                        byte[] rawValue = page.get(i)[1];
+                                        long timestamp = timestamps.get(i);
+                                        if (!UpenaIndex.postings(indexes, rawKey, valueCodec.fromBytes(rawValue), null,
+                                            (postingKey, tombstone) -> commitKeyValueStream.commit(postingKey, EMPTY, timestamp, false))) {
+                                            return false;
+                                        }
+                                    }
+                                    return true;
+                                },
+                                30_000,
+                                TimeUnit.MILLISECONDS);
+                            count += page.size();
+                            if (page.size() < BACKFILL_BATCH_SIZE) {
+                                from = null;
+                            } else {
+                                byte[] last = page.get(page.size() - 1)[0];
+                                from = Arrays.copyOf(last, last.length + 1);
+                            }
+                        }
+                        client().commit(Consistency.quorum,
+                            null,
+                            commitKeyValueStream -> commitKeyValueStream.commit(marker, new byte[0], -1, false),
+                            30_000,
+                            TimeUnit.MILLISECONDS);
+                        LOG.info("Backfilled postings for {} rows of {}", count, name);
+                    }
+                    indexesBuilt.set(true);
+                } catch (Exception x) {
+                    LOG.warn("Failed to backfill postings for {}, the next indexed find will retry.", new Object[] { name }, x);
+                    backfilling.set(false);
+                }
+            });
+        }
+
         private EmbeddedClient client() throws Exception {
+            return client(partitionName);
+        }
+
+        private EmbeddedClient client(PartitionName name) throws Exception {
 
-            return clientMap.computeIfAbsent(new String(partitionName.getName()), s -> {
+            return clientMap.computeIfAbsent(new String(name.getName()), s -> {
                 try {
-                    amzaService.getRingWriter().ensureMaximalRing(partitionName.getRingName(), 30_000L); //TODO config
-                    amzaService.createPartitionIfAbsent(partitionName, partitionProperties);
-                    amzaService.awaitOnline(partitionName, 30_000L); //TODO config
-                    return embeddedClientProvider.getClient(partitionName, CheckOnline.once);
+                    amzaService.getRingWriter().ensureMaximalRing(name.getRingName(), 30_000L); //TODO config
+                    amzaService.createPartitionIfAbsent(name, partitionProperties);
+                    amzaService.awaitOnline(name, 30_000L); //TODO config
+                    return embeddedClientProvider.getClient(name, CheckOnline.once);
                 } catch (Exception e) {
                     throw new RuntimeException("Failed to get amza client", e);
                 }
@@ -360,38 +627,25 @@ public class UpenaStore {
     }
 
 
+    /**
+     * recordChange and recordHealth only queue, this waits for everything queued so far to be committed and stops the log writers.
+     * Anything recorded afterwards is committed on the caller's thread.
+     *
+     * @return false if the logs could not be drained within timeoutMillis.
+     */
+    public boolean flushLogs(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean changesFlushed = changeLog.close(timeoutMillis);
+        boolean healthFlushed = healthLog.close(Math.max(0, deadline - System.currentTimeMillis()));
+        return changesFlushed && healthFlushed;
+    }
+
     public void recordChange(String who, String what, long whenTimestampMillis, String why, String where, String how) throws Exception {
-        if (who == null) {
-            who = "null";
-        }
-        String w = who;
-        long descendingTimestamp = Long.MAX_VALUE - whenTimestampMillis;
-
-        changeLogClient().commit(Consistency.quorum, null, commitKeyValueStream -> commitKeyValueStream.commit(
-            longBytes(descendingTimestamp, new byte[8], 0),
-            mapper.writeValueAsBytes(new RecordedChange(w, what, whenTimestampMillis, where, why, how)),
-            -1,
-            false
-            ),
-            30_000,
-            TimeUnit.MILLISECONDS);
+        changeLog.record(new RecordedChange(who == null ? "null" : who, what, whenTimestampMillis, where, why, how));
     }
 
     public void recordHealth(String who, String what, long whenTimestampMillis, String why, String where, String how) throws Exception {
-        if (who == null) {
-            who = "null";
-        }
-        String w = who;
-        long descendingTimestamp = Long.MAX_VALUE - whenTimestampMillis;
-
-        healthLogClient().commit(Consistency.quorum, null, commitKeyValueStream -> commitKeyValueStream.commit(
-            longBytes(descendingTimestamp, new byte[8], 0),
-            mapper.writeValueAsBytes(new RecordedChange(w, what, whenTimestampMillis, where, why, how)),
-            -1,
-            false
-            ),
-            30_000,
-            TimeUnit.MILLISECONDS);
+        healthLog.record(new RecordedChange(who == null ? "null" : who, what, whenTimestampMillis, where, why, how));
     }
 
     public static byte[] longBytes(long v, byte[] _bytes, int _offset) {
@@ -406,6 +660,14 @@ public class UpenaStore {
         return _bytes;
     }
 
+    public static long bytesLong(byte[] bytes, int offset) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return v;
+    }
+
     public void changeLog(long whenAgoElapseLargestMillis,
         long whenAgoElapseSmallestMillis,
         int minCount, //
@@ -415,36 +677,7 @@ public class UpenaStore {
         String where,
         String how,
         LogStream logStream) throws Exception {
-
-        long time = System.currentTimeMillis();
-        final long maxTimestampInclusize = time - whenAgoElapseSmallestMillis;
-        final long minTimestampExclusize = time - whenAgoElapseLargestMillis;
-
-        final AtomicInteger count = new AtomicInteger(minCount);
-        changeLogClient().scan(Collections.singletonList(ScanRange.ROW_SCAN),
-            (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> {
-                RecordedChange change = mapper.readValue(value, RecordedChange.class);
-                if (change.when <= maxTimestampInclusize && (change.when > minTimestampExclusize || count.get() > 0)) {
-                    if (who != null && who.length() > 0 && !change.who.contains(who)) {
-                        return true;
-                    }
-                    if (what != null && what.length() > 0 && !change.what.contains(what)) {
-                        return true;
-                    }
-                    if (why != null && why.length() > 0 && !change.why.contains(why)) {
-                        return true;
-                    }
-                    if (where != null && where.length() > 0 && !change.where.contains(where)) {
-                        return true;
-                    }
-                    if (how != null && how.length() > 0 && !change.how.contains(how)) {
-                        return true;
-                    }
-                    count.decrementAndGet();
-                    return logStream.stream(change);
-                }
-                return change.when > maxTimestampInclusize || count.get() > 0;
-            }, true);
+        changeLog.query(whenAgoElapseLargestMillis, whenAgoElapseSmallestMillis, minCount, who, what, why, where, how, logStream);
     }
 
     public void healthLog(long whenAgoElapseLargestMillis,
@@ -456,38 +689,323 @@ public class UpenaStore {
         String where,
         String how,
         LogStream logStream) throws Exception {
+        healthLog.query(whenAgoElapseLargestMillis, whenAgoElapseSmallestMillis, minCount, who, what, why, where, how, logStream);
+    }
 
-        long time = System.currentTimeMillis();
-        final long maxTimestampInclusize = time - whenAgoElapseSmallestMillis;
-        final long minTimestampExclusize = time - whenAgoElapseLargestMillis;
+    /**
+     * A newest first log of RecordedChanges. Row keys are (Long.MAX_VALUE - when) followed by (Long.MAX_VALUE - orderId), so a time
+     * window is a key range and two events in the same millisecond never overwrite each other. Rows written before the orderId suffix
+     * was added have the 8 byte key alone and still sort into place.
+     *
+     * A companion "-index" partition holds an inverted index over who, what and where: one 't' row per distinct term and one 'p' row
+     * per term and log row key, so the rows for a term are time ordered as well. Filters keep their contains semantics by matching
+     * against the (small) set of distinct terms first.
+     *
+     * record() never touches amza on the caller's thread. A LogWriter per log batches events and commits each batch as one index commit
+     * followed by one row commit. When its queue is full the event is dropped and counted rather than stalling the deploy or login that
+     * recorded it.
+     */
+    private class RecordedLog {
+
+        private static final int MAX_INDEXED_TERMS = 32;
+        private static final int POSTINGS_PAGE_SIZE = 100;
+        private static final int MAX_RANGES_PER_SCAN = 1_000;
+        private static final int BACKFILL_BATCH_SIZE = 1_000;
+
+        private final String name;
+        private final AtomicBoolean indexBuilt = new AtomicBoolean(false);
+        private final AtomicBoolean backfilling = new AtomicBoolean(false);
+        private final LogWriter<Pending> writer;
+
+        RecordedLog(String name, int queueCapacity, int batchSize, long lingerMillis) {
+            this.name = name;
+            this.writer = new LogWriter<>(name, queueCapacity, batchSize, lingerMillis, 100, this::commit);
+        }
 
-        final AtomicInteger count = new AtomicInteger(minCount);
-        healthLogClient().scan(Collections.singletonList(ScanRange.ROW_SCAN),
-            (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> {
-                RecordedChange change = mapper.readValue(value, RecordedChange.class);
-                if (change.when <= maxTimestampInclusize && (change.when > minTimestampExclusize || count.get() > 0)) {
-                    if (who != null && who.length() > 0 && !change.who.contains(who)) {
-                        return true;
-                    }
-                    if (what != null && what.length() > 0 && !change.what.contains(what)) {
-                        return true;
-                    }
-                    if (why != null && why.length() > 0 && !change.why.contains(why)) {
-                        return true;
+        void record(RecordedChange change) throws Exception {
+            byte[] rowKey = new byte[16];
+            longBytes(Long.MAX_VALUE - change.when, rowKey, 0);
+            longBytes(Long.MAX_VALUE - logIdProvider.nextId(), rowKey, 8);
+            writer.record(new Pending(rowKey, mapper.writeValueAsBytes(change), indexKeys(change, rowKey)));
+        }
+
+        boolean close(long timeoutMillis) throws InterruptedException {
+            return writer.close(timeoutMillis);
+        }
+
+        private void commit(List<Pending> batch) throws Exception {
+            // New terms are recorded before the rows so a failure leaves extra index entries which query() skips over.
+            indexClient().commit(Consistency.quorum,
+                null,
+                commitKeyValueStream -> {
+                    for (Pending pending : batch) {
+                        for (byte[] indexKey : pending.indexKeys) {
+                            if (!commitKeyValueStream.commit(indexKey, EMPTY, -1, false)) {
+                                return false;
+                            }
+                        }
                     }
-                    if (where != null && where.length() > 0 && !change.where.contains(where)) {
-                        return true;
+                    return true;
+                },
+                30_000,
+                TimeUnit.MILLISECONDS);
+
+            client().commit(Consistency.quorum,
+                null,
+                commitKeyValueStream -> {
+                    for (Pending pending : batch) {
+                        if (!commitKeyValueStream.commit(pending.rowKey, pending.value, -1, false)) {
+                            return false;
+                        }
                     }
-                    if (how != null && how.length() > 0 && !change.how.contains(how)) {
+                    return true;
+                },
+                30_000,
+                TimeUnit.MILLISECONDS);
+        }
+
+        void query(long whenAgoElapseLargestMillis,
+            long whenAgoElapseSmallestMillis,
+            int minCount,
+            String who,
+            String what,
+            String why,
+            String where,
+            String how,
+            LogStream logStream) throws Exception {
+
+            long time = System.currentTimeMillis();
+            final long maxTimestampInclusize = time - whenAgoElapseSmallestMillis;
+            final long minTimestampExclusize = time - whenAgoElapseLargestMillis;
+            byte[] fromKey = longBytes(Long.MAX_VALUE - maxTimestampInclusize, new byte[8], 0);
+            // only rows older than the window are needed to satisfy minCount, otherwise stop at the edge of the window
+            byte[] toKey = minCount > 0 ? null : longBytes(Long.MAX_VALUE - minTimestampExclusize, new byte[8], 0);
+
+            LogPostings postings = indexedPostings(fromKey, "where", where);
+            if (postings == null) {
+                postings = indexedPostings(fromKey, "who", who);
+            }
+            if (postings == null) {
+                postings = indexedPostings(fromKey, "what", what);
+            }
+
+            final AtomicInteger count = new AtomicInteger(minCount);
+            ValueStream rows = value -> {
+                RecordedChange change = mapper.readValue(value, RecordedChange.class);
+                if (change.when <= maxTimestampInclusize && (change.when > minTimestampExclusize || count.get() > 0)) {
+                    if (!contains(change.who, who)
+                        || !contains(change.what, what)
+                        || !contains(change.why, why)
+                        || !contains(change.where, where)
+                        || !contains(change.how, how)) {
                         return true;
                     }
                     count.decrementAndGet();
                     return logStream.stream(change);
                 }
                 return change.when > maxTimestampInclusize || count.get() > 0;
-            }, true);
+            };
+
+            if (postings == null) {
+                LOG.inc(name + ">query>seek");
+                client().scan(Collections.singletonList(new ScanRange(null, fromKey, null, toKey)),
+                    (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> rows.stream(value), true);
+                return;
+            }
+
+            // the postings are merged a page at a time so a busy term never turns into one unbounded list of ranges
+            AtomicBoolean streaming = new AtomicBoolean(true);
+            while (streaming.get()) {
+                List<byte[]> rowKeys = postings.next(MAX_RANGES_PER_SCAN);
+                if (rowKeys.isEmpty()) {
+                    break;
+                }
+                List<ScanRange> ranges = new ArrayList<>(rowKeys.size());
+                for (byte[] rowKey : rowKeys) {
+                    ranges.add(new ScanRange(null, rowKey, null, Arrays.copyOf(rowKey, rowKey.length + 1)));
+                }
+                LOG.inc(name + ">query>scans");
+                client().scan(ranges,
+                    (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> {
+                        if (!rows.stream(value)) {
+                            streaming.set(false);
+                        }
+                        return streaming.get();
+                    }, true);
+            }
+        }
+
+        /**
+         * @return null when the field is not being filtered on, the index is still being backfilled or the filter matches too many
+         * distinct terms for the index to pay off, otherwise the postings from fromKey on of every term that contains the filter.
+         */
+        private LogPostings indexedPostings(byte[] fromKey, String field, String filter) throws Exception {
+            if (filter == null || filter.isEmpty() || !indexed()) {
+                return null;
+            }
+
+            byte[] termsFrom = indexKey('t', field, "", null);
+            byte[] termsTo = Arrays.copyOf(termsFrom, termsFrom.length);
+            termsTo[termsTo.length - 1]++;
+            List<String> terms = new ArrayList<>();
+            indexClient().scan(Collections.singletonList(new ScanRange(null, termsFrom, null, termsTo)),
+                (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> {
+                    String term = new String(key, termsFrom.length, key.length - termsFrom.length, StandardCharsets.UTF_8);
+                    if (term.contains(filter)) {
+                        terms.add(term);
+                    }
+                    return terms.size() <= MAX_INDEXED_TERMS;
+                }, false);
+            if (terms.size() > MAX_INDEXED_TERMS) {
+                LOG.inc(name + ">query>tooManyTerms>" + field);
+                return null;
+            }
+
+            LogPostings postings = new LogPostings((from, to, limit) -> {
+                List<byte[]> page = new ArrayList<>(limit);
+                indexClient().scan(Collections.singletonList(new ScanRange(null, from, null, to)),
+                    (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> {
+                        page.add(key);
+                        return page.size() < limit;
+                    }, false);
+                return page;
+            }, POSTINGS_PAGE_SIZE);
+            for (String term : terms) {
+                byte[] postingsFrom = indexKey('p', field, term, fromKey);
+                byte[] postingsTo = indexKey('p', field, term, EMPTY);
+                postingsTo[postingsTo.length - 1]++;
+                postings.add(postingsFrom, postingsTo, postingsFrom.length - fromKey.length);
+            }
+            LOG.inc(name + ">query>indexed>" + field);
+            return postings;
+        }
+
+        private List<byte[]> indexKeys(RecordedChange change, byte[] rowKey) {
+            List<byte[]> indexKeys = new ArrayList<>(6);
+            for (String[] fieldTerm : new String[][]{{"who", change.who}, {"what", change.what}, {"where", change.where}}) {
+                if (fieldTerm[1] != null) {
+                    indexKeys.add(indexKey('t', fieldTerm[0], fieldTerm[1], null));
+                    indexKeys.add(indexKey('p', fieldTerm[0], fieldTerm[1], rowKey));
+                }
+            }
+            return indexKeys;
+        }
+
+        /**
+         * Rows recorded before the index existed are given index rows in the background a page at a time, until that is done queries
+         * fall back to seeking through the log. Index rows are backfilled with their log row's timestamp so both expire together. The
+         * marker is kept in a partition without a ttl, in the index partition it would expire and trigger a needless backfill.
+         */
+        private boolean indexed() {
+            if (indexBuilt.get()) {
+                return true;
+            }
+            if (backfilling.compareAndSet(false, true)) {
+                AmzaUpenaMap.BACKFILL.submit(this::backfill);
+            }
+            LOG.inc(name + ">query>backfilling");
+            return false;
+        }
+
+        private void backfill() {
+            try {
+                byte[] marker = ("built:" + name + ":who,what,where").getBytes(StandardCharsets.UTF_8);
+                if (logStateClient().getValue(Consistency.none, null, marker) == null) {
+                    long count = 0;
+                    byte[] from = null;
+                    do {
+                        List<Pending> page = new ArrayList<>(BACKFILL_BATCH_SIZE);
+                        List<Long> timestamps = new ArrayList<>(BACKFILL_BATCH_SIZE);
+                        client().scan(Collections.singletonList(new ScanRange(null, from, null, null)),
+                            (byte[] prefix, byte[] key, byte[] value, long timestamp, long version) -> {
+                                page.add(new Pending(key, value, indexKeys(mapper.readValue(value, RecordedChange.class), key)));
+                                timestamps.add(timestamp);
+                                return page.size() < BACKFILL_BATCH_SIZE;
+                            }, true);
+                        indexClient().commit(Consistency.quorum,
+                            null,
+                            commitKeyValueStream -> {
+                                for (int i = 0; i < page.size(); i++) {
+                                    for (byte[] indexKey : page.get(i).indexKeys) {
+                                        if (!commitKeyValueStream.commit(indexKey, EMPTY, timestamps.get(i), false)) {
+                                            return false;
+                                        }
+                                    }
+                                }
+                                return true;
+                            },
+                            30_000,
+                            TimeUnit.MILLISECONDS);
+                        count += page.size();
+                        if (page.size() < BACKFILL_BATCH_SIZE) {
+                            from = null;
+                        } else {
+                            byte[] last = page.get(page.size() - 1).rowKey;
+                            from = Arrays.copyOf(last, last.length + 1);
+                        }
+                    } while (from != null);
+                    logStateClient().commit(Consistency.quorum,
+                        null,
+                        commitKeyValueStream -> commitKeyValueStream.commit(marker, EMPTY, -1, false),
+                        30_000,
+                        TimeUnit.MILLISECONDS);
+                    LOG.info("Backfilled index rows for {} rows of {}", count, name);
+                }
+                indexBuilt.set(true);
+            } catch (Exception x) {
+                LOG.warn("Failed to backfill the index for {}, the next indexed query will retry.", new Object[] { name }, x);
+                backfilling.set(false);
+            }
+        }
+
+        private byte[] indexKey(char type, String field, String term, byte[] rowKey) {
+            byte[] rawField = field.getBytes(StandardCharsets.UTF_8);
+            byte[] rawTerm = term.getBytes(StandardCharsets.UTF_8);
+            int length = 1 + rawField.length + 1 + rawTerm.length + (rowKey == null ? 0 : 1 + rowKey.length);
+            byte[] indexKey = new byte[length];
+            indexKey[0] = (byte) type;
+            System.arraycopy(rawField, 0, indexKey, 1, rawField.length);
+            System.arraycopy(rawTerm, 0, indexKey, 1 + rawField.length + 1, rawTerm.length);
+            if (rowKey != null) {
+                System.arraycopy(rowKey, 0, indexKey, 1 + rawField.length + 1 + rawTerm.length + 1, rowKey.length);
+            }
+            return indexKey;
+        }
+
+        private EmbeddedClient client() throws Exception {
+            return logClient(name);
+        }
+
+        private EmbeddedClient indexClient() throws Exception {
+            return logClient(name + "-index");
+        }
+
+        private EmbeddedClient logStateClient() throws Exception {
+            return logClient("log-state", false);
+        }
+    }
+
+    private static class Pending {
+
+        private final byte[] rowKey;
+        private final byte[] value;
+        private final List<byte[]> indexKeys;
+
+        Pending(byte[] rowKey, byte[] value, List<byte[]> indexKeys) {
+            this.rowKey = rowKey;
+            this.value = value;
+            this.indexKeys = indexKeys;
+        }
+    }
+
+    private static boolean contains(String value, String filter) {
+        return filter == null || filter.isEmpty() || (value != null && value.contains(filter));
     }
 
+    private interface ValueStream {
+
+        boolean stream(byte[] value) throws Exception;
+    }
 
     public interface LogStream {
 
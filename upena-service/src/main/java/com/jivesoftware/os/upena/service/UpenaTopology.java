@@ -0,0 +1,441 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.upena.service;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.mlogger.core.ValueType;
+import com.jivesoftware.os.upena.shared.ClusterKey;
+import com.jivesoftware.os.upena.shared.HostKey;
+import com.jivesoftware.os.upena.shared.Instance;
+import com.jivesoftware.os.upena.shared.InstanceFilter;
+import com.jivesoftware.os.upena.shared.InstanceKey;
+import com.jivesoftware.os.upena.shared.ReleaseGroupKey;
+import com.jivesoftware.os.upena.shared.Service;
+import com.jivesoftware.os.upena.shared.ServiceKey;
+import com.jivesoftware.os.upena.shared.TimestampedValue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Materialized in memory view of the services and instances partitions used to answer routing requests without scanning amza.
+ *
+ * The view is brought up to date lazily on the first read after amza reports a change to either partition. When the changed keys are
+ * known only those rows are read back and the view is patched copy on write, otherwise (or once too many keys are pending) the partition
+ * is rescanned. While an update is in flight concurrent readers are served the previous view so a restart storm costs one update
+ * instead of one per request.
+ *
+ * Maps handed out by this class are shared and must be treated as read only.
+ */
+public class UpenaTopology {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    private static final ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> NO_INSTANCES = new ConcurrentSkipListMap<>();
+
+    private final UpenaMap<ServiceKey, Service> services;
+    private final UpenaMap<InstanceKey, Instance> instances;
+    private final int maxPendingKeys;
+
+    private final Tracker<ServiceKey> servicesTracker;
+    private final Tracker<InstanceKey> instancesTracker;
+
+    private volatile ServicesView servicesView;
+    private volatile InstancesView instancesView;
+    private final Map<InstanceKey, TimestampedValue<Instance>> instancesByKey = new HashMap<>(); // guarded by instancesTracker.rebuildLock
+
+    public UpenaTopology(UpenaMap<ServiceKey, Service> services, UpenaMap<InstanceKey, Instance> instances) {
+        this(services, instances, 1_000);
+    }
+
+    public UpenaTopology(UpenaMap<ServiceKey, Service> services, UpenaMap<InstanceKey, Instance> instances, int maxPendingKeys) {
+        this.services = services;
+        this.instances = instances;
+        this.maxPendingKeys = maxPendingKeys;
+        this.servicesTracker = new Tracker<>("services");
+        this.instancesTracker = new Tracker<>("instances");
+    }
+
+    /**
+     * Forces the services view to be rescanned.
+     */
+    public void servicesChanged() {
+        servicesTracker.changed(null);
+    }
+
+    public void servicesChanged(Collection<ServiceKey> keys) {
+        servicesTracker.changed(keys);
+    }
+
+    /**
+     * Forces the instances view to be rescanned.
+     */
+    public void instancesChanged() {
+        instancesTracker.changed(null);
+    }
+
+    public void instancesChanged(Collection<InstanceKey> keys) {
+        instancesTracker.changed(keys);
+    }
+
+    public ServiceKey serviceKey(String serviceName) throws Exception {
+        if (serviceName == null) {
+            return null;
+        }
+        return servicesView().serviceNameToKey.get(serviceName);
+    }
+
+    public ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> instances(ClusterKey clusterKey,
+        ServiceKey serviceKey,
+        ReleaseGroupKey releaseGroupKey) throws Exception {
+        ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> got = instancesView().byRelease.get(
+            new ReleaseCoordinate(clusterKey, serviceKey, releaseGroupKey));
+        return got == null ? NO_INSTANCES : got;
+    }
+
+    public ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> instances(HostKey hostKey) throws Exception {
+        ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> got = instancesView().byHost.get(hostKey);
+        return got == null ? NO_INSTANCES : got;
+    }
+
+    private ServicesView servicesView() throws Exception {
+        ServicesView view = servicesView;
+        if (view != null && view.version == servicesTracker.version.get()) {
+            return view;
+        }
+        if (!servicesTracker.rebuildLock.tryLock()) {
+            if (view != null) {
+                servicesTracker.staleRead();
+                return view;
+            }
+            servicesTracker.rebuildLock.lock();
+        }
+        try {
+            view = servicesView;
+            long version = servicesTracker.version.get();
+            if (view != null && view.version == version) {
+                return view;
+            }
+            long dirtySince = servicesTracker.dirtySinceTimestamp.getAndSet(0);
+            List<ServiceKey> changed = servicesTracker.drain();
+
+            long start = System.currentTimeMillis();
+            try {
+                if (view == null || changed == null) {
+                    Map<String, ServiceKey> serviceNameToKey = new HashMap<>();
+                    Map<ServiceKey, String> keyToServiceName = new HashMap<>();
+                    services.scan((key, value) -> {
+                        if (value != null && value.name != null) {
+                            serviceNameToKey.put(value.name, key);
+                            keyToServiceName.put(key, value.name);
+                        }
+                        return true;
+                    });
+                    view = new ServicesView(version, serviceNameToKey, keyToServiceName);
+                    servicesTracker.rebuilt(start, dirtySince);
+                } else {
+                    Map<String, ServiceKey> serviceNameToKey = new HashMap<>(view.serviceNameToKey);
+                    Map<ServiceKey, String> keyToServiceName = new HashMap<>(view.keyToServiceName);
+                    ConcurrentNavigableMap<ServiceKey, TimestampedValue<Service>> got = services.getAll(changed);
+                    for (ServiceKey key : changed) {
+                        String name = keyToServiceName.remove(key);
+                        if (name != null) {
+                            serviceNameToKey.remove(name, key);
+                        }
+                        TimestampedValue<Service> value = got.get(key);
+                        if (value != null && value.getValue() != null && value.getValue().name != null) {
+                            serviceNameToKey.put(value.getValue().name, key);
+                            keyToServiceName.put(key, value.getValue().name);
+                        }
+                    }
+                    view = new ServicesView(version, serviceNameToKey, keyToServiceName);
+                    servicesTracker.updated(start, dirtySince, changed.size());
+                }
+            } catch (Exception x) {
+                servicesTracker.failed(dirtySince);
+                throw x;
+            }
+            servicesView = view;
+            return view;
+        } finally {
+            servicesTracker.rebuildLock.unlock();
+        }
+    }
+
+    private InstancesView instancesView() throws Exception {
+        InstancesView view = instancesView;
+        if (view != null && view.version == instancesTracker.version.get()) {
+            return view;
+        }
+        if (!instancesTracker.rebuildLock.tryLock()) {
+            if (view != null) {
+                instancesTracker.staleRead();
+                return view;
+            }
+            instancesTracker.rebuildLock.lock();
+        }
+        try {
+            view = instancesView;
+            long version = instancesTracker.version.get();
+            if (view != null && view.version == version) {
+                return view;
+            }
+            long dirtySince = instancesTracker.dirtySinceTimestamp.getAndSet(0);
+            List<InstanceKey> changed = instancesTracker.drain();
+
+            long start = System.currentTimeMillis();
+            try {
+                if (view == null || changed == null) {
+                    InstanceFilter all = new InstanceFilter(null, null, null, null, null, 0, Integer.MAX_VALUE);
+                    ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> got = instances.find(false, all);
+
+                    instancesByKey.clear();
+                    Map<ReleaseCoordinate, ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>>> byRelease = new HashMap<>();
+                    Map<HostKey, ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>>> byHost = new HashMap<>();
+                    for (Entry<InstanceKey, TimestampedValue<Instance>> entry : got.entrySet()) {
+                        Instance instance = entry.getValue().getValue();
+                        instancesByKey.put(entry.getKey(), entry.getValue());
+                        byRelease.computeIfAbsent(ReleaseCoordinate.of(instance), k -> new ConcurrentSkipListMap<>())
+                            .put(entry.getKey(), entry.getValue());
+                        if (instance.hostKey != null) {
+                            byHost.computeIfAbsent(instance.hostKey, k -> new ConcurrentSkipListMap<>()).put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    view = new InstancesView(version, byRelease, byHost);
+                    instancesTracker.rebuilt(start, dirtySince);
+                } else {
+                    view = patch(view, version, instancesByKey, changed, instances.getAll(changed));
+                    instancesTracker.updated(start, dirtySince, changed.size());
+                }
+            } catch (Exception x) {
+                instancesTracker.failed(dirtySince);
+                throw x;
+            }
+            instancesView = view;
+            return view;
+        } finally {
+            instancesTracker.rebuildLock.unlock();
+        }
+    }
+
+    /**
+     * Copies only the release and host maps the changed keys move in or out of so readers of the previous view are unaffected.
+     */
+    private static InstancesView patch(InstancesView view,
+        long version,
+        Map<InstanceKey, TimestampedValue<Instance>> byKey,
+        List<InstanceKey> changed,
+        Map<InstanceKey, TimestampedValue<Instance>> got) {
+
+        Map<ReleaseCoordinate, ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>>> byRelease = new HashMap<>(view.byRelease);
+        Map<HostKey, ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>>> byHost = new HashMap<>(view.byHost);
+        Set<ReleaseCoordinate> copiedReleases = new HashSet<>();
+        Set<HostKey> copiedHosts = new HashSet<>();
+
+        for (InstanceKey key : changed) {
+            TimestampedValue<Instance> was = byKey.remove(key);
+            if (was != null) {
+                Instance instance = was.getValue();
+                ReleaseCoordinate coordinate = ReleaseCoordinate.of(instance);
+                ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> release = copy(byRelease, copiedReleases, coordinate);
+                release.remove(key);
+                if (release.isEmpty()) {
+                    byRelease.remove(coordinate);
+                }
+                if (instance.hostKey != null) {
+                    ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> host = copy(byHost, copiedHosts, instance.hostKey);
+                    host.remove(key);
+                    if (host.isEmpty()) {
+                        byHost.remove(instance.hostKey);
+                    }
+                }
+            }
+
+            TimestampedValue<Instance> is = got.get(key);
+            if (is != null && is.getValue() != null) {
+                Instance instance = is.getValue();
+                byKey.put(key, is);
+                copy(byRelease, copiedReleases, ReleaseCoordinate.of(instance)).put(key, is);
+                if (instance.hostKey != null) {
+                    copy(byHost, copiedHosts, instance.hostKey).put(key, is);
+                }
+            }
+        }
+        return new InstancesView(version, byRelease, byHost);
+    }
+
+    private static <G> ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> copy(
+        Map<G, ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>>> groups,
+        Set<G> copied,
+        G group) {
+        ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> had = groups.get(group);
+        if (copied.add(group)) {
+            ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> copy = had == null ? new ConcurrentSkipListMap<>()
+                : new ConcurrentSkipListMap<>(had);
+            groups.put(group, copy);
+            return copy;
+        } else if (had == null) {
+            had = new ConcurrentSkipListMap<>();
+            groups.put(group, had);
+        }
+        return had;
+    }
+
+    private class Tracker<K> {
+
+        private final String name;
+        private final AtomicLong version = new AtomicLong();
+        private final AtomicLong dirtySinceTimestamp = new AtomicLong();
+        private final ReentrantLock rebuildLock = new ReentrantLock();
+        private final Set<K> pending = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean rescan = new AtomicBoolean();
+
+        private Tracker(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param keys the keys which changed or null if they are unknown.
+         */
+        void changed(Collection<K> keys) {
+            // keys must be visible before the version moves so the next update is sure to see them
+            if (keys == null || rescan.get() || pending.size() + keys.size() > maxPendingKeys) {
+                rescan.set(true);
+            } else {
+                pending.addAll(keys);
+            }
+            dirtySinceTimestamp.compareAndSet(0, System.currentTimeMillis());
+            version.incrementAndGet();
+            LOG.inc("topology>" + name + ">changed");
+        }
+
+        /**
+         * @return the changed keys to patch the view with or null if it must be rescanned.
+         */
+        List<K> drain() {
+            boolean all = rescan.getAndSet(false);
+            List<K> keys = new ArrayList<>(pending);
+            pending.removeAll(keys);
+            return all ? null : keys;
+        }
+
+        void staleRead() {
+            LOG.inc("topology>" + name + ">staleRead");
+            long dirtySince = dirtySinceTimestamp.get();
+            if (dirtySince != 0) {
+                LOG.set(ValueType.VALUE, "topology>" + name + ">lagMillis", Math.max(0, System.currentTimeMillis() - dirtySince));
+            }
+        }
+
+        void rebuilt(long start, long dirtySince) {
+            long now = System.currentTimeMillis();
+            LOG.inc("topology>" + name + ">rebuilt");
+            LOG.set(ValueType.VALUE, "topology>" + name + ">rebuildMillis", now - start);
+            LOG.set(ValueType.VALUE, "topology>" + name + ">lagMillis", dirtySince == 0 ? 0 : now - dirtySince);
+        }
+
+        void updated(long start, long dirtySince, int count) {
+            long now = System.currentTimeMillis();
+            LOG.inc("topology>" + name + ">updated");
+            LOG.set(ValueType.VALUE, "topology>" + name + ">updatedKeys", count);
+            LOG.set(ValueType.VALUE, "topology>" + name + ">updateMillis", now - start);
+            LOG.set(ValueType.VALUE, "topology>" + name + ">lagMillis", dirtySince == 0 ? 0 : now - dirtySince);
+        }
+
+        void failed(long dirtySince) {
+            rescan.set(true);
+            dirtySinceTimestamp.compareAndSet(0, dirtySince == 0 ? System.currentTimeMillis() : dirtySince);
+            LOG.inc("topology>" + name + ">failed");
+        }
+    }
+
+    private static class ServicesView {
+
+        private final long version;
+        private final Map<String, ServiceKey> serviceNameToKey;
+        private final Map<ServiceKey, String> keyToServiceName;
+
+        private ServicesView(long version, Map<String, ServiceKey> serviceNameToKey, Map<ServiceKey, String> keyToServiceName) {
+            this.version = version;
+            this.serviceNameToKey = serviceNameToKey;
+            this.keyToServiceName = keyToServiceName;
+        }
+    }
+
+    private static class InstancesView {
+
+        private final long version;
+        private final Map<ReleaseCoordinate, ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>>> byRelease;
+        private final Map<HostKey, ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>>> byHost;
+
+        private InstancesView(long version,
+            Map<ReleaseCoordinate, ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>>> byRelease,
+            Map<HostKey, ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>>> byHost) {
+            this.version = version;
+            this.byRelease = byRelease;
+            this.byHost = byHost;
+        }
+    }
+
+    private static class ReleaseCoordinate {
+
+        private final ClusterKey clusterKey;
+        private final ServiceKey serviceKey;
+        private final ReleaseGroupKey releaseGroupKey;
+
+        private ReleaseCoordinate(ClusterKey clusterKey, ServiceKey serviceKey, ReleaseGroupKey releaseGroupKey) {
+            this.clusterKey = clusterKey;
+            this.serviceKey = serviceKey;
+            this.releaseGroupKey = releaseGroupKey;
+        }
+
+        private static ReleaseCoordinate of(Instance instance) {
+            return new ReleaseCoordinate(instance.clusterKey, instance.serviceKey, instance.releaseGroupKey);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ReleaseCoordinate that = (ReleaseCoordinate) o;
+            return Objects.equals(clusterKey, that.clusterKey)
+                && Objects.equals(serviceKey, that.serviceKey)
+                && Objects.equals(releaseGroupKey, that.releaseGroupKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clusterKey, serviceKey, releaseGroupKey);
+        }
+    }
+}
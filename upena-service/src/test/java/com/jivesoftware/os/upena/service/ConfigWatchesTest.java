@@ -0,0 +1,113 @@
+package com.jivesoftware.os.upena.service;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.jivesoftware.os.upena.service.UpenaConfigStore.ConfigBundle;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ConfigWatchesTest {
+
+    private Map<String, String> hashes;
+    private Map<String, AtomicInteger> evaluations;
+    private ConfigWatches configWatches;
+
+    @BeforeMethod
+    public void setUp() {
+        hashes = new HashMap<>();
+        evaluations = new HashMap<>();
+        configWatches = new ConfigWatches(
+            instanceKey -> {
+                evaluations.computeIfAbsent(instanceKey, k -> new AtomicInteger()).incrementAndGet();
+                return new ConfigBundle(0, hashes.get(instanceKey), Collections.emptyMap(), Collections.emptyMap());
+            },
+            MoreExecutors.sameThreadExecutor());
+        hashes.put("a", "a-1");
+        hashes.put("b", "b-1");
+    }
+
+    @Test
+    public void testPushesOnlyWhenTheHashDiffers() throws Exception {
+        Pushed stale = watch("a", "a-0");
+        Assert.assertEquals(stale.hash, "a-1", "a caller holding an old hash is answered straight away");
+
+        Pushed current = watch("a", "a-1");
+        Assert.assertNull(current.hash);
+        configWatches.configChanged(Collections.singletonList("a"));
+        Assert.assertNull(current.hash, "a rebuilt bundle with the same hash stays parked");
+
+        hashes.put("a", "a-2");
+        configWatches.configChanged(Collections.singletonList("a"));
+        Assert.assertEquals(current.hash, "a-2");
+    }
+
+    @Test
+    public void testOnlyWatchesOfChangedInstancesAreRechecked() throws Exception {
+        Pushed a = watch("a", "a-1");
+        Pushed b = watch("b", "b-1");
+
+        hashes.put("a", "a-2");
+        hashes.put("b", "b-2");
+        configWatches.configChanged(Collections.singletonList("a"));
+
+        Assert.assertEquals(a.hash, "a-2");
+        Assert.assertNull(b.hash);
+        Assert.assertEquals(evaluations.get("b").get(), 1, "an unrelated watch should stay parked");
+
+        configWatches.configChanged();
+        Assert.assertEquals(b.hash, "b-2", "a change to unknown rows rechecks every watch");
+    }
+
+    @Test
+    public void testCancelledWatchIsNotRechecked() throws Exception {
+        Pushed a = new Pushed();
+        ConfigWatches.Watch watch = configWatches.watch("a", "a-1"::equals, a);
+        configWatches.cancel(watch);
+
+        hashes.put("a", "a-2");
+        configWatches.configChanged();
+        Assert.assertNull(a.hash);
+        Assert.assertEquals(evaluations.get("a").get(), 1);
+    }
+
+    @Test
+    public void testAnyHashNeverPushes() throws Exception {
+        Pushed any = new Pushed();
+        configWatches.watch("a", hash -> true, any);
+
+        hashes.put("a", "a-2");
+        configWatches.configChanged();
+        Assert.assertNull(any.hash);
+        Assert.assertEquals(evaluations.get("a").get(), 2);
+    }
+
+    private Pushed watch(String instanceKey, String knownHash) throws Exception {
+        Pushed pushed = new Pushed();
+        configWatches.watch(instanceKey, knownHash::equals, pushed);
+        return pushed;
+    }
+
+    private static class Pushed implements ConfigWatches.Listener {
+
+        private volatile String hash;
+
+        @Override
+        public boolean isDone() {
+            return hash != null;
+        }
+
+        @Override
+        public void changed(ConfigBundle bundle) {
+            this.hash = bundle.hash;
+        }
+
+        @Override
+        public void failed(Exception x) {
+            Assert.fail("unexpected", x);
+        }
+    }
+}
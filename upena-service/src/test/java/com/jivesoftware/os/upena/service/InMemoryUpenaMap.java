@@ -0,0 +1,79 @@
+package com.jivesoftware.os.upena.service;
+
+import com.jivesoftware.os.upena.shared.BasicTimestampedValue;
+import com.jivesoftware.os.upena.shared.Key;
+import com.jivesoftware.os.upena.shared.KeyValueFilter;
+import com.jivesoftware.os.upena.shared.Stored;
+import com.jivesoftware.os.upena.shared.TimestampedValue;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UpenaMap over a sorted map which counts how it is read.
+ */
+class InMemoryUpenaMap<K extends Key, V extends Stored> implements UpenaMap<K, V> {
+
+    final ConcurrentSkipListMap<K, V> rows = new ConcurrentSkipListMap<>();
+    final AtomicInteger scans = new AtomicInteger();
+    final AtomicInteger gets = new AtomicInteger();
+
+    @Override
+    public void putIfAbsent(K key, V value) throws Exception {
+        rows.putIfAbsent(key, value);
+    }
+
+    @Override
+    public V get(K key) throws Exception {
+        gets.incrementAndGet();
+        return rows.get(key);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, TimestampedValue<V>> getAll(Collection<K> keys) throws Exception {
+        gets.addAndGet(keys.size());
+        ConcurrentNavigableMap<K, TimestampedValue<V>> got = new ConcurrentSkipListMap<>();
+        for (K key : keys) {
+            V value = rows.get(key);
+            if (value != null) {
+                got.put(key, new BasicTimestampedValue<>(value, 0, false));
+            }
+        }
+        return got;
+    }
+
+    @Override
+    public void scan(Stream<K, V> stream) throws Exception {
+        scans.incrementAndGet();
+        for (Map.Entry<K, V> entry : rows.entrySet()) {
+            if (!stream.stream(entry.getKey(), entry.getValue())) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K, TimestampedValue<V>> find(boolean removeBadKeysEnabled, KeyValueFilter<K, V> filter) throws Exception {
+        scans.incrementAndGet();
+        ConcurrentNavigableMap<K, TimestampedValue<V>> results = filter.createCollector();
+        for (Map.Entry<K, V> entry : rows.entrySet()) {
+            if (filter.filter(entry.getKey(), entry.getValue())) {
+                results.put(entry.getKey(), new BasicTimestampedValue<>(entry.getValue(), 0, false));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public K update(K key, V value) throws Exception {
+        rows.put(key, value);
+        return key;
+    }
+
+    @Override
+    public boolean remove(K key) throws Exception {
+        return rows.remove(key) != null;
+    }
+}
@@ -0,0 +1,103 @@
+package com.jivesoftware.os.upena.service;
+
+import com.google.common.primitives.UnsignedBytes;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LogPostingsTest {
+
+    private final NavigableMap<byte[], Boolean> index = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+    private final List<Integer> reads = new ArrayList<>();
+    private final LogPostings.Pages pages = (from, to, limit) -> {
+        List<byte[]> page = new ArrayList<>(index.subMap(from, true, to, false).keySet());
+        page = page.subList(0, Math.min(limit, page.size()));
+        reads.add(page.size());
+        return page;
+    };
+
+    @BeforeMethod
+    public void setUp() {
+        index.clear();
+        reads.clear();
+    }
+
+    @Test
+    public void testMergesTermsInRowOrder() throws Exception {
+        post("a", "03", "01", "05");
+        post("b", "02", "06");
+        post("c", "04");
+        LogPostings postings = postings(2, "a", "b", "c");
+
+        Assert.assertEquals(rows(postings.next(4)), Arrays.asList("01", "02", "03", "04"));
+        Assert.assertEquals(rows(postings.next(4)), Arrays.asList("05", "06"));
+        Assert.assertTrue(postings.next(4).isEmpty());
+    }
+
+    @Test
+    public void testReadsOnlyAsFarAsTheMergeReaches() throws Exception {
+        String[] rows = new String[100];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = String.format("%03d", i);
+        }
+        post("busy", rows);
+        LogPostings postings = postings(10, "busy");
+
+        Assert.assertEquals(rows(postings.next(15)), Arrays.asList(rows).subList(0, 15));
+        Assert.assertEquals(reads, Arrays.asList(10, 10), "a page at a time, never the whole term");
+        Assert.assertEquals(postings.next(1000).size(), 85, "a page boundary is never skipped or repeated");
+    }
+
+    @Test
+    public void testCapsRowsPerCallAndDropsDuplicates() throws Exception {
+        post("a", "01", "02", "03");
+        post("b", "02", "03", "04");
+        LogPostings postings = postings(100, "a", "b");
+
+        Assert.assertEquals(rows(postings.next(2)), Arrays.asList("01", "02"));
+        Assert.assertEquals(rows(postings.next(10)), Arrays.asList("03", "04"));
+    }
+
+    @Test
+    public void testEmptyTerms() throws Exception {
+        post("a", "01");
+        Assert.assertTrue(postings(10).next(10).isEmpty());
+        Assert.assertTrue(postings(10, "missing").next(10).isEmpty());
+        Assert.assertEquals(rows(postings(10, "missing", "a").next(10)), Arrays.asList("01"));
+    }
+
+    private LogPostings postings(int pageSize, String... terms) throws Exception {
+        LogPostings postings = new LogPostings(pages, pageSize);
+        for (String term : terms) {
+            byte[] from = key(term, "");
+            byte[] to = Arrays.copyOf(from, from.length);
+            to[to.length - 1]++;
+            postings.add(from, to, from.length);
+        }
+        return postings;
+    }
+
+    private void post(String term, String... rows) {
+        for (String row : rows) {
+            index.put(key(term, row), true);
+        }
+    }
+
+    private static byte[] key(String term, String row) {
+        return ("p" + term + "\u0000" + row).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> rows(List<byte[]> rowKeys) {
+        List<String> rows = new ArrayList<>();
+        for (byte[] rowKey : rowKeys) {
+            rows.add(new String(rowKey, StandardCharsets.UTF_8));
+        }
+        return rows;
+    }
+}
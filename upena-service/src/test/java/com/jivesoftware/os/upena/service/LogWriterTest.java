@@ -0,0 +1,87 @@
+package com.jivesoftware.os.upena.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LogWriterTest {
+
+    @Test
+    public void testBatchesUpToBatchSize() throws Exception {
+        List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        LogWriter<Integer> writer = new LogWriter<>("test", 100, 4, TimeUnit.MINUTES.toMillis(1), 1,
+            batch -> batches.add(new ArrayList<>(batch)));
+        for (int i = 0; i < 10; i++) {
+            writer.record(i);
+        }
+        Thread.sleep(200);
+        Assert.assertEquals(batches.size(), 2, "the partial batch lingers");
+        Assert.assertTrue(writer.close(5_000), "close must not wait out the linger");
+
+        Assert.assertEquals(batches, Arrays.asList(Arrays.asList(0, 1, 2, 3), Arrays.asList(4, 5, 6, 7), Arrays.asList(8, 9)),
+            "full batches go without lingering and close flushes the partial one");
+    }
+
+    @Test
+    public void testRetriesFailedBatch() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        List<Integer> committed = Collections.synchronizedList(new ArrayList<>());
+        LogWriter<Integer> writer = new LogWriter<>("test", 100, 10, 0, 1, batch -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IllegalStateException("attempt " + attempts.get());
+            }
+            committed.addAll(batch);
+        });
+        writer.record(1);
+        Assert.assertTrue(writer.close(10_000));
+
+        Assert.assertEquals(attempts.get(), 3);
+        Assert.assertEquals(committed, Collections.singletonList(1));
+    }
+
+    @Test
+    public void testGivesUpAndCarriesOn() throws Exception {
+        List<Integer> attempted = Collections.synchronizedList(new ArrayList<>());
+        LogWriter<Integer> writer = new LogWriter<>("test", 100, 1, 0, 1, batch -> {
+            attempted.addAll(batch);
+            if (batch.contains(1)) {
+                throw new IllegalStateException("poison");
+            }
+        });
+        writer.record(1);
+        writer.record(2);
+        Assert.assertTrue(writer.close(10_000));
+
+        Assert.assertEquals(attempted, Arrays.asList(1, 1, 1, 2), "a batch that keeps failing must not hold up the next one");
+    }
+
+    @Test
+    public void testDropsWhenFullAndCommitsInlineOnceClosed() throws Exception {
+        CountDownLatch committing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> committed = Collections.synchronizedList(new ArrayList<>());
+        LogWriter<Integer> writer = new LogWriter<>("test", 1, 1, 0, 1, batch -> {
+            committing.countDown();
+            release.await();
+            committed.addAll(batch);
+        });
+        writer.record(1);
+        Assert.assertTrue(committing.await(10, TimeUnit.SECONDS));
+        writer.record(2);
+        writer.record(3);
+        writer.record(4);
+        Assert.assertEquals(writer.dropped(), 2);
+
+        release.countDown();
+        Assert.assertTrue(writer.close(10_000));
+        writer.record(5);
+        Assert.assertEquals(committed, Arrays.asList(1, 2, 5));
+        Assert.assertEquals(writer.dropped(), 2);
+    }
+}
@@ -0,0 +1,154 @@
+package com.jivesoftware.os.upena.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptorsRequest;
+import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptorsResponse;
+import com.jivesoftware.os.upena.shared.ClusterKey;
+import com.jivesoftware.os.upena.shared.Instance;
+import com.jivesoftware.os.upena.shared.InstanceKey;
+import com.jivesoftware.os.upena.shared.ServiceKey;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RouteWatchesTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private InMemoryUpenaMap<InstanceKey, Instance> instances;
+    private Map<String, String> releases;
+    private Map<String, AtomicInteger> evaluations;
+    private RouteWatches routeWatches;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        instances = new InMemoryUpenaMap<>();
+        releases = new ConcurrentHashMap<>();
+        evaluations = new ConcurrentHashMap<>();
+        releases.put("a", "a-1");
+        releases.put("b", "b-1");
+        routeWatches = new RouteWatches(
+            request -> {
+                evaluations.computeIfAbsent(request.getConnectToServiceNamed(), k -> new AtomicInteger()).incrementAndGet();
+                return new ConnectionDescriptorsResponse(1, Collections.emptyList(), releases.get(request.getConnectToServiceNamed()), null,
+                    request.getRequestUuid());
+            },
+            instances::get,
+            ServiceKey::new,
+            mapper,
+            MoreExecutors.sameThreadExecutor());
+        instances.update(new InstanceKey("a1"), instance("a"));
+    }
+
+    @Test
+    public void testOnlyWatchesOfChangedServiceAreRechecked() throws Exception {
+        Pushed a = watch("client-1", "a");
+        Pushed b = watch("client-2", "b");
+        Assert.assertEquals(evaluations.get("a").get(), 1);
+        Assert.assertEquals(evaluations.get("b").get(), 1);
+
+        releases.put("a", "a-2");
+        instances.update(new InstanceKey("a2"), instance("a"));
+        routeWatches.instancesChanged(Collections.singletonList(new InstanceKey("a2")));
+
+        Assert.assertEquals(a.tag, tag("a-2"));
+        Assert.assertNull(b.tag);
+        Assert.assertEquals(evaluations.get("b").get(), 1, "an unrelated watch should stay parked");
+    }
+
+    @Test
+    public void testRemovedInstanceRechecksItsFormerService() throws Exception {
+        routeWatches.instancesChanged(Collections.singletonList(new InstanceKey("a1")));
+        Pushed a = watch("client-1", "a");
+        watch("client-2", "b");
+
+        releases.put("a", "a-2");
+        instances.remove(new InstanceKey("a1"));
+        routeWatches.instancesChanged(Collections.singletonList(new InstanceKey("a1")));
+
+        Assert.assertEquals(a.tag, tag("a-2"));
+        Assert.assertEquals(evaluations.get("b").get(), 1);
+    }
+
+    @Test
+    public void testWatchesOfChangedRequesterAreRechecked() throws Exception {
+        instances.update(new InstanceKey("client-2"), instance("c"));
+        watch("client-2", "b");
+
+        routeWatches.instancesChanged(Collections.singletonList(new InstanceKey("client-2")));
+        Assert.assertEquals(evaluations.get("b").get(), 2);
+    }
+
+    @Test
+    public void testUnknownRemovalAndOtherChangesRecheckEverything() throws Exception {
+        watch("client-1", "a");
+        watch("client-2", "b");
+
+        routeWatches.instancesChanged(Collections.singletonList(new InstanceKey("never-seen")));
+        Assert.assertEquals(evaluations.get("a").get(), 2);
+        Assert.assertEquals(evaluations.get("b").get(), 2);
+
+        routeWatches.routesChanged();
+        Assert.assertEquals(evaluations.get("a").get(), 3);
+        Assert.assertEquals(evaluations.get("b").get(), 3);
+    }
+
+    private Pushed watch(String instanceId, String serviceName) throws Exception {
+        ConnectionDescriptorsRequest request = mapper.readValue(mapper.writeValueAsBytes(
+            new Request("tenant", instanceId, serviceName, "main", "uuid")), ConnectionDescriptorsRequest.class);
+        String current = tag(releases.get(serviceName));
+        Pushed pushed = new Pushed();
+        routeWatches.watch(request, current::equals, pushed);
+        return pushed;
+    }
+
+    private String tag(String release) {
+        return routeWatches.tag(new ConnectionDescriptorsResponse(1, Collections.emptyList(), release, null, null));
+    }
+
+    private static Instance instance(String serviceName) {
+        return new Instance(new ClusterKey("c"), null, new ServiceKey(serviceName), null, 1, true, false, null, 0, null);
+    }
+
+    private static class Pushed implements RouteWatches.Listener {
+
+        private volatile String tag;
+
+        @Override
+        public boolean isDone() {
+            return tag != null;
+        }
+
+        @Override
+        public void changed(ConnectionDescriptorsResponse response, String tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public void failed(Exception x) {
+            Assert.fail("unexpected", x);
+        }
+    }
+
+    public static class Request {
+
+        public final String tenantId;
+        public final String instanceId;
+        public final String connectToServiceNamed;
+        public final String portName;
+        public final String requestUuid;
+
+        Request(String tenantId, String instanceId, String connectToServiceNamed, String portName, String requestUuid) {
+            this.tenantId = tenantId;
+            this.instanceId = instanceId;
+            this.connectToServiceNamed = connectToServiceNamed;
+            this.portName = portName;
+            this.requestUuid = requestUuid;
+        }
+    }
+}
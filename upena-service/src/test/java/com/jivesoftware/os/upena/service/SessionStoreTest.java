@@ -0,0 +1,97 @@
+package com.jivesoftware.os.upena.service;
+
+import com.jivesoftware.os.routing.bird.server.session.RouteSessionValidator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SessionStoreTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @BeforeMethod
+    public void setUp() {
+        clock.set(TimeUnit.DAYS.toMillis(1000));
+    }
+
+    @Test
+    public void testIdleSessionsAndTokensExpire() throws Exception {
+        SessionStore store = store(0);
+        String session = session(store, "a");
+        String unredeemed = store.generateAccessToken("b");
+        Assert.assertTrue(store.isValid(validation("a", session)));
+
+        advance(store, TimeUnit.MINUTES.toMillis(9));
+        Assert.assertTrue(store.isValid(validation("a", session)));
+        advance(store, TimeUnit.MINUTES.toMillis(11));
+        Assert.assertFalse(store.isValid(validation("a", session)));
+        Assert.assertNull(store.exchangeAccessForSession("b", unredeemed));
+    }
+
+    @Test
+    public void testTouchReschedulesUntilHardExpiry() throws Exception {
+        SessionStore store = store(0);
+        String session = session(store, "a");
+
+        // the wheel turns in a bit over 8 minutes, so every touch lands the session a revolution or more out
+        for (int minutes = 5; minutes < 60; minutes += 5) {
+            advance(store, TimeUnit.MINUTES.toMillis(5));
+            Assert.assertTrue(store.isValid(validation("a", session)), "touched at " + minutes);
+        }
+        advance(store, TimeUnit.MINUTES.toMillis(6));
+        Assert.assertFalse(store.isValid(validation("a", session)), "touching never outlives the hard expiry");
+    }
+
+    @Test
+    public void testCapEvictsNearestDeadlineFirst() throws Exception {
+        SessionStore store = store(2);
+        String a = session(store, "a");
+        advance(store, TimeUnit.MINUTES.toMillis(1));
+        String b = session(store, "b");
+        // a wheel revolution later a is touched, its deadline moves past b's while it still sits in its old bucket
+        advance(store, TimeUnit.MINUTES.toMillis(8) + TimeUnit.SECONDS.toMillis(40));
+        Assert.assertTrue(store.isValid(validation("a", a)));
+
+        String c = store.generateAccessToken("c");
+        Assert.assertFalse(store.isValid(validation("b", b)), "b was least recently used");
+        Assert.assertTrue(store.isValid(validation("a", a)));
+        Assert.assertNotNull(store.exchangeAccessForSession("c", c));
+    }
+
+    @Test
+    public void testCapNeverEvictsTheNewSession() throws Exception {
+        SessionStore store = store(1);
+        String a = store.generateAccessToken("a");
+        String b = store.generateAccessToken("b");
+
+        Assert.assertNull(store.exchangeAccessForSession("a", a));
+        Assert.assertNotNull(store.exchangeAccessForSession("b", b));
+    }
+
+    private SessionStore store(int maxSessions) {
+        return new SessionStore(TimeUnit.MINUTES.toMillis(60), TimeUnit.MINUTES.toMillis(10), maxSessions, 1_000, clock::get);
+    }
+
+    private void advance(SessionStore store, long millis) {
+        long to = clock.get() + millis;
+        while (clock.get() < to) {
+            clock.set(Math.min(to, clock.get() + 1_000));
+            store.tick();
+        }
+    }
+
+    private static String session(SessionStore store, String instanceKey) {
+        String sessionToken = store.exchangeAccessForSession(instanceKey, store.generateAccessToken(instanceKey));
+        Assert.assertNotNull(sessionToken);
+        return sessionToken;
+    }
+
+    private static SessionValidation validation(String sessionId, String sessionToken) {
+        SessionValidation validation = new SessionValidation();
+        validation.put(RouteSessionValidator.SESSION_ID, sessionId);
+        validation.put(RouteSessionValidator.SESSION_TOKEN, sessionToken);
+        return validation;
+    }
+}
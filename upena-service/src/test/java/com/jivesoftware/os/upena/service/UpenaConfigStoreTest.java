@@ -0,0 +1,159 @@
+package com.jivesoftware.os.upena.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.primitives.UnsignedBytes;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class UpenaConfigStoreTest {
+
+    private final AtomicInteger parses = new AtomicInteger();
+    private final ObjectMapper mapper = new ObjectMapper() {
+        @Override
+        public <T> T readValue(byte[] src, TypeReference valueTypeRef) throws IOException {
+            parses.incrementAndGet();
+            return super.readValue(src, valueTypeRef);
+        }
+    };
+
+    private TreeMap<byte[], Row> partition;
+    private List<String> scanned;
+    private UpenaConfigStore store;
+
+    @BeforeMethod
+    public void setUp() {
+        parses.set(0);
+        partition = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        scanned = new ArrayList<>();
+        store = new UpenaConfigStore(null, mapper, (ranges, stream) -> {
+            for (byte[][] range : ranges) {
+                for (Map.Entry<byte[], Row> entry : partition.subMap(range[0], range[1]).entrySet()) {
+                    scanned.add(new String(entry.getKey(), StandardCharsets.UTF_8));
+                    stream.row(entry.getKey(), entry.getValue().value, entry.getValue().version);
+                }
+            }
+            scanned.add("|");
+        });
+    }
+
+    @Test
+    public void testCachedEntryIsReusedWithinAGeneration() throws Exception {
+        write("i1", "default", 1, "a", "1");
+
+        Assert.assertEquals(store.get("i1", "default", null, false), properties("a", "1"));
+        Assert.assertEquals(store.get("i1", "default", null, false), properties("a", "1"));
+        Assert.assertEquals(scanned, Arrays.asList("config/i1/default", "|"));
+        Assert.assertEquals(parses.get(), 1);
+    }
+
+    @Test
+    public void testUnchangedVersionIsRevalidatedWithoutParsing() throws Exception {
+        write("i1", "default", 1, "a", "1");
+        store.get("i1", "default", null, false);
+
+        store.changed(null);
+        Assert.assertEquals(store.get("i1", "default", null, false), properties("a", "1"));
+        Assert.assertEquals(scanned, Arrays.asList("config/i1/default", "|", "config/i1/default", "|"), "a new generation rescans");
+        Assert.assertEquals(parses.get(), 1, "the version did not move so the cached map is kept");
+    }
+
+    @Test
+    public void testMovedVersionIsParsedAgain() throws Exception {
+        write("i1", "default", 1, "a", "1");
+        store.get("i1", "default", null, false);
+
+        write("i1", "default", 2, "a", "2");
+        Assert.assertEquals(store.get("i1", "default", null, false), properties("a", "1"), "nothing told the store yet");
+        store.changed(Collections.singleton("i1"));
+        Assert.assertEquals(store.get("i1", "default", null, false), properties("a", "2"));
+        Assert.assertEquals(parses.get(), 2);
+    }
+
+    @Test
+    public void testGetAllLoadsOnlyWhatIsNotCached() throws Exception {
+        write("i1", "default", 1, "a", "1");
+        write("i2", "default", 1, "b", "2");
+        store.get("i1", "default", null, false);
+        scanned.clear();
+
+        Map<String, Map<String, String>> all = store.getAll(Arrays.asList("i1", "i2", "i3"), "default");
+        Assert.assertEquals(all.get("i1"), properties("a", "1"));
+        Assert.assertEquals(all.get("i2"), properties("b", "2"));
+        Assert.assertEquals(all.get("i3"), Collections.emptyMap(), "instances without a row map to an empty map");
+        Assert.assertEquals(scanned, Arrays.asList("config/i2/default", "|"), "i1 came from the cache, i2 and i3 in one scan");
+        Assert.assertEquals(parses.get(), 2);
+
+        scanned.clear();
+        Assert.assertEquals(store.getAll(Arrays.asList("i1", "i2", "i3"), "default").size(), 3);
+        Assert.assertTrue(scanned.isEmpty(), "absent rows are cached too");
+    }
+
+    @Test
+    public void testBundleHashIgnoresIterationOrder() throws Exception {
+        Map<String, Map<String, String>> forward = new LinkedHashMap<>();
+        forward.put("default", properties("a", "1", "b", "2"));
+        forward.put("override", properties("c", "3"));
+        Map<String, Map<String, String>> backward = new LinkedHashMap<>();
+        backward.put("override", properties("c", "3"));
+        backward.put("default", properties("b", "2", "a", "1"));
+
+        Assert.assertEquals(UpenaConfigStore.hash(backward), UpenaConfigStore.hash(forward));
+    }
+
+    @Test
+    public void testBundleHashSeesEveryChange() throws Exception {
+        String hash = UpenaConfigStore.hash(Collections.singletonMap("default", properties("a", "1")));
+
+        Assert.assertNotEquals(UpenaConfigStore.hash(Collections.singletonMap("default", properties("a", "2"))), hash);
+        Assert.assertNotEquals(UpenaConfigStore.hash(Collections.singletonMap("override", properties("a", "1"))), hash);
+        Assert.assertNotEquals(UpenaConfigStore.hash(Collections.singletonMap("default", properties("a", "1", "b", "1"))), hash);
+        Assert.assertNotEquals(UpenaConfigStore.hash(Collections.singletonMap("default", properties("a1", ""))), hash,
+            "keys and values are delimited");
+        Assert.assertNotEquals(UpenaConfigStore.hash(Collections.emptyMap()), hash);
+    }
+
+    @Test
+    public void testInstanceKeyOfRowKey() throws Exception {
+        Assert.assertEquals(UpenaConfigStore.instanceKey("config/i1/default"), "i1");
+        Assert.assertEquals(UpenaConfigStore.instanceKey("config/i1/"), "i1");
+        Assert.assertNull(UpenaConfigStore.instanceKey("config/i1"));
+        Assert.assertNull(UpenaConfigStore.instanceKey("other/i1/default"));
+    }
+
+    private void write(String instanceKey, String context, long version, String... keyValues) throws Exception {
+        partition.put(("config/" + instanceKey + "/" + context).getBytes(StandardCharsets.UTF_8),
+            new Row(mapper.writeValueAsBytes(properties(keyValues)), version));
+    }
+
+    private static Map<String, String> properties(String... keyValues) {
+        Map<String, String> properties = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            properties.put(keyValues[i], keyValues[i + 1]);
+        }
+        return properties;
+    }
+
+    private static class Row {
+
+        private final byte[] value;
+        private final long version;
+
+        Row(byte[] value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+}
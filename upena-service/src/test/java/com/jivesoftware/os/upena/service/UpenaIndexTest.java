@@ -0,0 +1,143 @@
+package com.jivesoftware.os.upena.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.primitives.UnsignedBytes;
+import com.jivesoftware.os.upena.shared.ClusterKey;
+import com.jivesoftware.os.upena.shared.HostKey;
+import com.jivesoftware.os.upena.shared.Instance;
+import com.jivesoftware.os.upena.shared.InstanceFilter;
+import com.jivesoftware.os.upena.shared.InstanceKey;
+import com.jivesoftware.os.upena.shared.ServiceKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class UpenaIndexTest {
+
+    private final Comparator<byte[]> order = UnsignedBytes.lexicographicalComparator();
+
+    private final List<UpenaIndex<InstanceKey, Instance>> indexes = Arrays.asList(
+        new UpenaIndex<InstanceKey, Instance>("host",
+            value -> value.hostKey == null ? null : value.hostKey.getKey(),
+            filter -> ((InstanceFilter) filter).hostKey == null ? null : ((InstanceFilter) filter).hostKey.getKey()),
+        new UpenaIndex<InstanceKey, Instance>("service",
+            value -> value.serviceKey == null ? null : value.serviceKey.getKey(),
+            filter -> ((InstanceFilter) filter).serviceKey == null ? null : ((InstanceFilter) filter).serviceKey.getKey()));
+
+    @Test
+    public void testPostingsForNewChangedAndRemovedValues() throws Exception {
+        byte[] rawKey = new ObjectMapper().writeValueAsBytes(new InstanceKey("i1"));
+
+        List<String> got = postings(rawKey, instance("h1", "s1"), null);
+        Assert.assertEquals(got, Arrays.asList("+" + posting("host", "h1", rawKey), "+" + posting("service", "s1", rawKey)));
+
+        got = postings(rawKey, instance("h2", "s1"), instance("h1", "s1"));
+        Assert.assertEquals(got, Arrays.asList("+" + posting("host", "h2", rawKey), "-" + posting("host", "h1", rawKey),
+            "+" + posting("service", "s1", rawKey)), "unchanged terms are rewritten to carry the new value, moved terms are tombstoned");
+
+        got = postings(rawKey, null, instance("h2", null));
+        Assert.assertEquals(got, Collections.singletonList("-" + posting("host", "h2", rawKey)));
+    }
+
+    @Test
+    public void testPostingRangeHoldsOnlyItsTerm() throws Exception {
+        byte[] rawKey = new ObjectMapper().writeValueAsBytes(new InstanceKey("i1"));
+        byte[][] range = UpenaIndex.postingRange("host", "h1");
+
+        byte[] inside = UpenaIndex.postingKey("host", "h1", rawKey);
+        Assert.assertTrue(order.compare(range[0], inside) <= 0 && order.compare(inside, range[1]) < 0);
+        Assert.assertEquals(UpenaIndex.rowKey(inside, range[0]), rawKey);
+
+        for (byte[] outside : new byte[][] {
+            UpenaIndex.postingKey("host", "h10", rawKey),
+            UpenaIndex.postingKey("host", "h", rawKey),
+            UpenaIndex.postingKey("hosts", "h1", rawKey),
+            rawKey }) {
+            Assert.assertFalse(order.compare(range[0], outside) <= 0 && order.compare(outside, range[1]) < 0, new String(outside));
+        }
+
+        Assert.assertTrue(UpenaIndex.isPosting(inside));
+        Assert.assertFalse(UpenaIndex.isPosting(rawKey));
+    }
+
+    @Test
+    public void testRacingWritesLeaveStalePostingsThatRowsFilterOut() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        NavigableMap<byte[], byte[]> partition = new TreeMap<>(order);
+        byte[] rawKey = mapper.writeValueAsBytes(new InstanceKey("i1"));
+        write(partition, mapper, rawKey, instance("x", "s1"), null);
+
+        // two nodes both read host x before either write lands, the last row written wins but both postings survive
+        Instance onA = instance("y", "s1");
+        Instance onB = instance("z", "s1");
+        Instance existing = instance("x", "s1");
+        write(partition, mapper, rawKey, onA, existing);
+        write(partition, mapper, rawKey, onB, existing);
+        Assert.assertTrue(partition.containsKey(UpenaIndex.postingKey("host", "y", rawKey)), "the orphaned posting");
+        Assert.assertFalse(partition.containsKey(UpenaIndex.postingKey("host", "x", rawKey)));
+
+        Assert.assertEquals(find(partition, mapper, "y"), Collections.emptyList(), "a stale posting is only a false positive");
+        Assert.assertEquals(find(partition, mapper, "z"), Collections.singletonList("z"));
+        Assert.assertEquals(find(partition, mapper, "x"), Collections.emptyList());
+    }
+
+    private void write(NavigableMap<byte[], byte[]> partition, ObjectMapper mapper, byte[] rawKey, Instance value, Instance existing)
+        throws Exception {
+        partition.put(rawKey, mapper.writeValueAsBytes(value));
+        UpenaIndex.postings(indexes, rawKey, value, existing, (postingKey, tombstone) -> {
+            if (tombstone) {
+                partition.remove(postingKey);
+            } else {
+                partition.put(postingKey, new byte[0]);
+            }
+            return true;
+        });
+    }
+
+    private List<String> find(NavigableMap<byte[], byte[]> partition, ObjectMapper mapper, String host) throws Exception {
+        List<String> hosts = new ArrayList<>();
+        UpenaIndex.rows(UpenaIndex.postingRange("host", host),
+            (ranges, hydrateValues, stream) -> {
+                for (byte[][] range : ranges) {
+                    for (Map.Entry<byte[], byte[]> entry : partition.subMap(range[0], true, range[1], false).entrySet()) {
+                        if (!stream.row(entry.getKey(), hydrateValues ? entry.getValue() : null, 0)) {
+                            return;
+                        }
+                    }
+                }
+            },
+            (key, value, timestamp) -> {
+                Instance instance = mapper.readValue(value, Instance.class);
+                if (instance.hostKey.getKey().equals(host)) {
+                    hosts.add(instance.hostKey.getKey());
+                }
+                return true;
+            });
+        return hosts;
+    }
+
+    private List<String> postings(byte[] rawKey, Instance value, Instance existing) throws Exception {
+        List<String> got = new ArrayList<>();
+        UpenaIndex.postings(indexes, rawKey, value, existing, (postingKey, tombstone) -> {
+            got.add((tombstone ? "-" : "+") + Arrays.toString(postingKey));
+            return true;
+        });
+        return got;
+    }
+
+    private static String posting(String name, String term, byte[] rawKey) {
+        return Arrays.toString(UpenaIndex.postingKey(name, term, rawKey));
+    }
+
+    private static Instance instance(String host, String service) {
+        return new Instance(new ClusterKey("c"), host == null ? null : new HostKey(host), service == null ? null : new ServiceKey(service),
+            null, 1, true, false, null, 0, null);
+    }
+}
@@ -0,0 +1,98 @@
+package com.jivesoftware.os.upena.service;
+
+import com.jivesoftware.os.upena.shared.ClusterKey;
+import com.jivesoftware.os.upena.shared.HostKey;
+import com.jivesoftware.os.upena.shared.Instance;
+import com.jivesoftware.os.upena.shared.InstanceKey;
+import com.jivesoftware.os.upena.shared.ReleaseGroupKey;
+import com.jivesoftware.os.upena.shared.Service;
+import com.jivesoftware.os.upena.shared.ServiceKey;
+import com.jivesoftware.os.upena.shared.TimestampedValue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentNavigableMap;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class UpenaTopologyTest {
+
+    private final ClusterKey cluster = new ClusterKey("c");
+    private final ServiceKey service = new ServiceKey("s");
+    private final ReleaseGroupKey release = new ReleaseGroupKey("r1");
+    private final ReleaseGroupKey otherRelease = new ReleaseGroupKey("r2");
+    private final HostKey host = new HostKey("h1");
+    private final HostKey otherHost = new HostKey("h2");
+
+    private InMemoryUpenaMap<ServiceKey, Service> services;
+    private InMemoryUpenaMap<InstanceKey, Instance> instances;
+    private UpenaTopology topology;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        services = new InMemoryUpenaMap<>();
+        instances = new InMemoryUpenaMap<>();
+        topology = new UpenaTopology(services, instances, 3);
+
+        services.update(service, new Service("search", null));
+        instances.update(new InstanceKey("i1"), instance(host, release, 1));
+        instances.update(new InstanceKey("i2"), instance(host, release, 2));
+    }
+
+    @Test
+    public void testChangedKeysPatchTheView() throws Exception {
+        Assert.assertEquals(keys(topology.instances(cluster, service, release)), Arrays.asList(new InstanceKey("i1"), new InstanceKey("i2")));
+        Assert.assertEquals(instances.scans.get(), 1);
+        ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> before = topology.instances(host);
+
+        instances.update(new InstanceKey("i2"), instance(otherHost, otherRelease, 2));
+        instances.update(new InstanceKey("i3"), instance(host, release, 3));
+        topology.instancesChanged(Arrays.asList(new InstanceKey("i2"), new InstanceKey("i3")));
+
+        Assert.assertEquals(keys(topology.instances(cluster, service, release)), Arrays.asList(new InstanceKey("i1"), new InstanceKey("i3")));
+        Assert.assertEquals(keys(topology.instances(cluster, service, otherRelease)), Collections.singletonList(new InstanceKey("i2")));
+        Assert.assertEquals(keys(topology.instances(otherHost)), Collections.singletonList(new InstanceKey("i2")));
+        Assert.assertEquals(instances.scans.get(), 1, "a patch should not rescan");
+        Assert.assertEquals(instances.gets.get(), 2);
+        Assert.assertEquals(keys(before), Arrays.asList(new InstanceKey("i1"), new InstanceKey("i2")), "handed out maps must not change");
+
+        instances.remove(new InstanceKey("i2"));
+        topology.instancesChanged(Collections.singletonList(new InstanceKey("i2")));
+        Assert.assertTrue(topology.instances(otherHost).isEmpty());
+        Assert.assertTrue(topology.instances(cluster, service, otherRelease).isEmpty());
+        Assert.assertEquals(instances.scans.get(), 1);
+    }
+
+    @Test
+    public void testUnknownOrTooManyKeysRescan() throws Exception {
+        topology.instances(host);
+        topology.instancesChanged();
+        topology.instances(host);
+        Assert.assertEquals(instances.scans.get(), 2);
+
+        topology.instancesChanged(Arrays.asList(new InstanceKey("a"), new InstanceKey("b")));
+        topology.instancesChanged(Arrays.asList(new InstanceKey("c"), new InstanceKey("d")));
+        topology.instances(host);
+        Assert.assertEquals(instances.scans.get(), 3);
+        Assert.assertEquals(instances.gets.get(), 0);
+    }
+
+    @Test
+    public void testRenamedServicePatchesNames() throws Exception {
+        Assert.assertEquals(topology.serviceKey("search"), service);
+        services.update(service, new Service("find", null));
+        topology.servicesChanged(Collections.singletonList(service));
+        Assert.assertNull(topology.serviceKey("search"));
+        Assert.assertEquals(topology.serviceKey("find"), service);
+        Assert.assertEquals(services.scans.get(), 1);
+    }
+
+    private Instance instance(HostKey hostKey, ReleaseGroupKey releaseGroupKey, int instanceId) {
+        return new Instance(cluster, hostKey, service, releaseGroupKey, instanceId, true, false, null, 0, null);
+    }
+
+    private static ArrayList<InstanceKey> keys(ConcurrentNavigableMap<InstanceKey, TimestampedValue<Instance>> map) {
+        return new ArrayList<>(map.keySet());
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.upena.shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Compact binary encoding for the hot model types. The first byte of every row is the schema version which can never collide with the
+ * first byte of a json document, so rows written by the legacy json codec are still readable and get rewritten in binary the next time
+ * they are updated.
+ *
+ * Binary writes are only enabled once every node in the ring can read them.
+ */
+public class BinaryUpenaCodec<T> implements UpenaCodec<T> {
+
+    private final Schema<T> schema;
+    private final UpenaCodec<T> legacy;
+    private final boolean writeBinary;
+
+    public BinaryUpenaCodec(Schema<T> schema, UpenaCodec<T> legacy, boolean writeBinary) {
+        this.schema = schema;
+        this.legacy = legacy;
+        this.writeBinary = writeBinary;
+    }
+
+    @Override
+    public byte[] toBytes(T value) throws IOException {
+        if (!writeBinary) {
+            return legacy.toBytes(value);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(schema.version());
+        schema.write(value, out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public T fromBytes(byte[] bytes) throws IOException {
+        int version = bytes.length == 0 ? -1 : bytes[0];
+        if (version > 0 && version <= schema.version()) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+            return schema.read(version, in);
+        }
+        if (bytes.length > 0 && isJsonStart(bytes[0])) {
+            return legacy.fromBytes(bytes);
+        }
+        throw new IOException("Unsupported schema version:" + version + " for " + schema.getClass().getSimpleName());
+    }
+
+    private static boolean isJsonStart(byte b) {
+        return b == '{' || b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    public interface Schema<T> {
+
+        /**
+         * @return the version written by this schema. Must stay below 0x09 so it never looks like json.
+         */
+        int version();
+
+        void write(T value, DataOutput out) throws IOException;
+
+        T read(int version, DataInput in) throws IOException;
+    }
+
+    public static final Schema<Instance> INSTANCE = new Schema<Instance>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public void write(Instance value, DataOutput out) throws IOException {
+            writeKey(value.clusterKey, out);
+            writeKey(value.hostKey, out);
+            writeKey(value.serviceKey, out);
+            writeKey(value.releaseGroupKey, out);
+            out.writeInt(value.instanceId);
+            out.writeBoolean(value.enabled);
+            out.writeBoolean(value.locked);
+            writeString(value.publicKey, out);
+            out.writeLong(value.restartTimestampGMTMillis);
+            if (value.ports == null) {
+                writeLength(-1, out);
+            } else {
+                writeLength(value.ports.size(), out);
+                for (Map.Entry<String, Instance.Port> entry : value.ports.entrySet()) {
+                    writeString(entry.getKey(), out);
+                    Instance.Port port = entry.getValue();
+                    out.writeBoolean(port.sslEnabled);
+                    out.writeBoolean(port.serviceAuthEnabled);
+                    out.writeInt(port.port);
+                    writeStrings(port.properties, out);
+                }
+            }
+        }
+
+        @Override
+        public Instance read(int version, DataInput in) throws IOException {
+            ClusterKey clusterKey = readKey(ClusterKey::new, in);
+            HostKey hostKey = readKey(HostKey::new, in);
+            ServiceKey serviceKey = readKey(ServiceKey::new, in);
+            ReleaseGroupKey releaseGroupKey = readKey(ReleaseGroupKey::new, in);
+            int instanceId = in.readInt();
+            boolean enabled = in.readBoolean();
+            boolean locked = in.readBoolean();
+            String publicKey = readString(in);
+            long restartTimestampGMTMillis = in.readLong();
+            Map<String, Instance.Port> ports = null;
+            int count = readLength(in);
+            if (count >= 0) {
+                ports = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String name = readString(in);
+                    boolean sslEnabled = in.readBoolean();
+                    boolean serviceAuthEnabled = in.readBoolean();
+                    int port = in.readInt();
+                    Map<String, String> properties = readStrings(in);
+                    ports.put(name, new Instance.Port(sslEnabled, serviceAuthEnabled, port, properties));
+                }
+            }
+            return new Instance(clusterKey, hostKey, serviceKey, releaseGroupKey, instanceId, enabled, locked, publicKey, restartTimestampGMTMillis,
+                ports);
+        }
+    };
+
+    public static final Schema<Host> HOST = new Schema<Host>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public void write(Host value, DataOutput out) throws IOException {
+            writeString(value.name, out);
+            writeString(value.datacenterName, out);
+            writeString(value.rackName, out);
+            writeString(value.hostName, out);
+            out.writeInt(value.port);
+            writeString(value.workingDirectory, out);
+            writeString(value.instanceId, out);
+            writeKey(value.clusterKey, out);
+        }
+
+        @Override
+        public Host read(int version, DataInput in) throws IOException {
+            return new Host(readString(in),
+                readString(in),
+                readString(in),
+                readString(in),
+                in.readInt(),
+                readString(in),
+                readString(in),
+                readKey(ClusterKey::new, in));
+        }
+    };
+
+    public static final Schema<Service> SERVICE = new Schema<Service>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public void write(Service value, DataOutput out) throws IOException {
+            writeString(value.name, out);
+            writeString(value.description, out);
+        }
+
+        @Override
+        public Service read(int version, DataInput in) throws IOException {
+            return new Service(readString(in), readString(in));
+        }
+    };
+
+    public static final Schema<ReleaseGroup> RELEASE_GROUP = new Schema<ReleaseGroup>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public void write(ReleaseGroup value, DataOutput out) throws IOException {
+            writeString(value.type == null ? null : value.type.name(), out);
+            writeString(value.name, out);
+            writeString(value.email, out);
+            writeString(value.rollbackVersion, out);
+            writeString(value.version, out);
+            writeString(value.repository, out);
+            writeString(value.description, out);
+            out.writeBoolean(value.autoRelease);
+            writeStrings(value.properties, out);
+        }
+
+        @Override
+        public ReleaseGroup read(int version, DataInput in) throws IOException {
+            String type = readString(in);
+            return new ReleaseGroup(type == null ? null : ReleaseGroup.Type.valueOf(type),
+                readString(in),
+                readString(in),
+                readString(in),
+                readString(in),
+                readString(in),
+                readString(in),
+                in.readBoolean(),
+                readStrings(in));
+        }
+    };
+
+    public static final Schema<Cluster> CLUSTER = new Schema<Cluster>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public void write(Cluster value, DataOutput out) throws IOException {
+            writeString(value.name, out);
+            writeString(value.description, out);
+            writeReleaseGroups(value.defaultReleaseGroups, out);
+        }
+
+        @Override
+        public Cluster read(int version, DataInput in) throws IOException {
+            return new Cluster(readString(in), readString(in), readReleaseGroups(in));
+        }
+    };
+
+    public static final Schema<Tenant> TENANT = new Schema<Tenant>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public void write(Tenant value, DataOutput out) throws IOException {
+            writeString(value.tenantId, out);
+            writeString(value.description, out);
+            writeReleaseGroups(value.overrideReleaseGroups, out);
+        }
+
+        @Override
+        public Tenant read(int version, DataInput in) throws IOException {
+            return new Tenant(readString(in), readString(in), readReleaseGroups(in));
+        }
+    };
+
+    public static final Schema<Monkey> MONKEY = new Schema<Monkey>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public void write(Monkey value, DataOutput out) throws IOException {
+            out.writeBoolean(value.enabled);
+            writeKey(value.clusterKey, out);
+            writeKey(value.hostKey, out);
+            writeKey(value.serviceKey, out);
+            writeString(value.strategyKey == null ? null : value.strategyKey.name(), out);
+            writeStrings(value.properties, out);
+        }
+
+        @Override
+        public Monkey read(int version, DataInput in) throws IOException {
+            boolean enabled = in.readBoolean();
+            ClusterKey clusterKey = readKey(ClusterKey::new, in);
+            HostKey hostKey = readKey(HostKey::new, in);
+            ServiceKey serviceKey = readKey(ServiceKey::new, in);
+            String strategyKey = readString(in);
+            Monkey monkey = new Monkey(enabled, clusterKey, hostKey, serviceKey, strategyKey == null ? null : ChaosStrategyKey.valueOf(strategyKey));
+            Map<String, String> properties = readStrings(in);
+            if (properties != null) {
+                monkey.properties.putAll(properties);
+            }
+            return monkey;
+        }
+    };
+
+    static void writeLength(int length, DataOutput out) throws IOException {
+        // unsigned varint of length + 1 so that -1 (null) costs a single byte
+        int v = length + 1;
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readLength(DataInput in) throws IOException {
+        int v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            v |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v - 1;
+    }
+
+    static void writeString(String value, DataOutput out) throws IOException {
+        if (value == null) {
+            writeLength(-1, out);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeLength(bytes.length, out);
+            out.write(bytes);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = readLength(in);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeKey(Key<?> key, DataOutput out) throws IOException {
+        writeString(key == null ? null : key.getKey(), out);
+    }
+
+    static <K extends Key<?>> K readKey(Function<String, K> keyFactory, DataInput in) throws IOException {
+        String key = readString(in);
+        return key == null ? null : keyFactory.apply(key);
+    }
+
+    static void writeStrings(Map<String, String> values, DataOutput out) throws IOException {
+        if (values == null) {
+            writeLength(-1, out);
+        } else {
+            writeLength(values.size(), out);
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                writeString(entry.getKey(), out);
+                writeString(entry.getValue(), out);
+            }
+        }
+    }
+
+    static Map<String, String> readStrings(DataInput in) throws IOException {
+        int count = readLength(in);
+        if (count < 0) {
+            return null;
+        }
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            values.put(readString(in), readString(in));
+        }
+        return values;
+    }
+
+    static void writeReleaseGroups(Map<ServiceKey, ReleaseGroupKey> values, DataOutput out) throws IOException {
+        if (values == null) {
+            writeLength(-1, out);
+        } else {
+            writeLength(values.size(), out);
+            for (Map.Entry<ServiceKey, ReleaseGroupKey> entry : values.entrySet()) {
+                writeKey(entry.getKey(), out);
+                writeKey(entry.getValue(), out);
+            }
+        }
+    }
+
+    static Map<ServiceKey, ReleaseGroupKey> readReleaseGroups(DataInput in) throws IOException {
+        int count = readLength(in);
+        if (count < 0) {
+            return null;
+        }
+        Map<ServiceKey, ReleaseGroupKey> values = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            values.put(readKey(ServiceKey::new, in), readKey(ReleaseGroupKey::new, in));
+        }
+        return values;
+    }
+}
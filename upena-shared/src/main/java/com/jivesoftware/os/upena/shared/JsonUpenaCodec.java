@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.upena.shared;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+
+/**
+ * The original jackson encoding.
+ */
+public class JsonUpenaCodec<T> implements UpenaCodec<T> {
+
+    private final ObjectMapper mapper;
+    private final Class<T> valueClass;
+
+    public JsonUpenaCodec(ObjectMapper mapper, Class<T> valueClass) {
+        this.mapper = mapper;
+        this.valueClass = valueClass;
+    }
+
+    @Override
+    public byte[] toBytes(T value) throws IOException {
+        return mapper.writeValueAsBytes(value);
+    }
+
+    @Override
+    public T fromBytes(byte[] bytes) throws IOException {
+        return mapper.readValue(bytes, valueClass);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.upena.shared;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks the value codec for a stored type. Types without a binary schema always use json.
+ */
+public class UpenaCodecs {
+
+    private static final Map<Class<?>, BinaryUpenaCodec.Schema<?>> SCHEMAS = new HashMap<>();
+
+    static {
+        SCHEMAS.put(Instance.class, BinaryUpenaCodec.INSTANCE);
+        SCHEMAS.put(Host.class, BinaryUpenaCodec.HOST);
+        SCHEMAS.put(Service.class, BinaryUpenaCodec.SERVICE);
+        SCHEMAS.put(ReleaseGroup.class, BinaryUpenaCodec.RELEASE_GROUP);
+        SCHEMAS.put(Cluster.class, BinaryUpenaCodec.CLUSTER);
+        SCHEMAS.put(Tenant.class, BinaryUpenaCodec.TENANT);
+        SCHEMAS.put(Monkey.class, BinaryUpenaCodec.MONKEY);
+    }
+
+    private UpenaCodecs() {
+    }
+
+    /**
+     * @param writeBinary when false values are still written as json but binary rows written by upgraded peers can be read.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> UpenaCodec<T> valueCodec(ObjectMapper mapper, Class<T> valueClass, boolean writeBinary) {
+        JsonUpenaCodec<T> json = new JsonUpenaCodec<>(mapper, valueClass);
+        BinaryUpenaCodec.Schema<T> schema = (BinaryUpenaCodec.Schema<T>) SCHEMAS.get(valueClass);
+        if (schema == null) {
+            return json;
+        }
+        return new BinaryUpenaCodec<>(schema, json, writeBinary);
+    }
+}
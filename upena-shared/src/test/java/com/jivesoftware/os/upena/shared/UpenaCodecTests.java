@@ -0,0 +1,58 @@
+package com.jivesoftware.os.upena.shared;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class UpenaCodecTests {
+
+    ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @Test
+    public void testInstanceRoundTrip() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("a", "b");
+        properties.put("nullValue", null);
+        Map<String, Instance.Port> ports = new HashMap<>();
+        ports.put("main", new Instance.Port(true, false, 10000, properties));
+        ports.put("manage", new Instance.Port(false, true, 10001, null));
+        Instance instance = new Instance(new ClusterKey("ck"), new HostKey("hk"), new ServiceKey("sk"), null, 7, true, false, "pubkey", 12345L,
+            ports);
+
+        UpenaCodec<Instance> codec = UpenaCodecs.valueCodec(mapper, Instance.class, true);
+        byte[] bytes = codec.toBytes(instance);
+        Assert.assertTrue(bytes.length < mapper.writeValueAsBytes(instance).length);
+
+        Instance got = codec.fromBytes(bytes);
+        Assert.assertEquals(mapper.writeValueAsString(got), mapper.writeValueAsString(instance));
+    }
+
+    @Test
+    public void testReadsLegacyJson() throws Exception {
+        Host host = new Host("name", "dc", "rack", "host", 1175, "/dir", "1", new ClusterKey("ck"));
+        byte[] json = mapper.writeValueAsBytes(host);
+
+        UpenaCodec<Host> codec = UpenaCodecs.valueCodec(mapper, Host.class, true);
+        Assert.assertEquals(mapper.writeValueAsString(codec.fromBytes(json)), mapper.writeValueAsString(host));
+    }
+
+    @Test
+    public void testJsonWriterReadsBinary() throws Exception {
+        Map<ServiceKey, ReleaseGroupKey> defaults = new HashMap<>();
+        defaults.put(new ServiceKey("sk"), new ReleaseGroupKey("rgk"));
+        Cluster cluster = new Cluster("name", null, defaults);
+
+        byte[] binary = UpenaCodecs.valueCodec(mapper, Cluster.class, true).toBytes(cluster);
+        UpenaCodec<Cluster> jsonWriter = UpenaCodecs.valueCodec(mapper, Cluster.class, false);
+        Assert.assertEquals(jsonWriter.toBytes(cluster), mapper.writeValueAsBytes(cluster));
+        Assert.assertEquals(mapper.writeValueAsString(jsonWriter.fromBytes(binary)), mapper.writeValueAsString(cluster));
+    }
+
+    @Test
+    public void testUnschemedTypesStayJson() throws Exception {
+        Assert.assertTrue(UpenaCodecs.valueCodec(mapper, User.class, true) instanceof JsonUpenaCodec);
+    }
+}